@@ -1,6 +1,14 @@
 package com.lxpeak.lxpeakdb.backend;
 
+import java.io.BufferedReader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Iterator;
+
 import com.lxpeak.lxpeakdb.backend.dm.DataManager;
+import com.lxpeak.lxpeakdb.backend.parser.Parser;
+import com.lxpeak.lxpeakdb.backend.parser.statement.Begin;
+import com.lxpeak.lxpeakdb.backend.parser.statement.Insert;
 import com.lxpeak.lxpeakdb.backend.server.Server;
 import com.lxpeak.lxpeakdb.backend.utils.Panic;
 import com.lxpeak.lxpeakdb.backend.vm.VersionManager;
@@ -32,6 +40,9 @@ public class Launcher {
         options.addOption("create", true, "-create DBPath");
         options.addOption("open", true, "-open DBPath");
         options.addOption("mem", true, "-mem 64MB");
+        options.addOption("import", true, "-import DataFile");
+        options.addOption("table", true, "-table TableName");
+        options.addOption("threads", false, "-threads (one thread per connection)");
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = parser.parse(options,args);
 
@@ -40,12 +51,19 @@ public class Launcher {
             createDB(cmd.getOptionValue("create"));
             return;
         }
+        // 向已有数据库的表中批量导入数据，导入完成后退出，不启动服务
+        if(cmd.hasOption("open") && cmd.hasOption("import")) {
+            importData(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")),
+                    cmd.getOptionValue("table"), cmd.getOptionValue("import"));
+            return;
+        }
         // 启动已有的数据库
         if(cmd.hasOption("open")) {
-            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")));
+            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")), cmd.hasOption("threads"));
             return;
         }
-        System.out.println("Usage: launcher (open|create) DBPath");
+        System.out.println("Usage: launcher (open|create) DBPath [-threads]");
+        System.out.println("       launcher -open DBPath -import DataFile -table TableName");
     }
 
     /*
@@ -61,12 +79,55 @@ public class Launcher {
         dm.close();
     }
 
-    private static void openDB(String path, long mem) {
+    // threadPerConnection: 每个连接一个线程（JDK 21及以上为虚拟线程），否则用NIO
+    private static void openDB(String path, long mem, boolean threadPerConnection) {
         TransactionManager tm = TransactionManager.open(path);
         DataManager dm = DataManager.open(path, mem, tm);
         VersionManager vm = new VersionManagerImpl(tm, dm);
         TableManager tbm = TableManager.open(path, vm, dm);
-        new Server(port, tbm).start();
+        new Server(port, tbm, threadPerConnection).start();
+    }
+
+    /*
+    * 数据文件每行是一条记录，格式和insert语句values后面的部分相同，例如：
+    *     1 "Zhang San" 22
+    * 所有数据在一个事务中写入，索引在最后由BulkLoader统一重建。
+    * */
+    private static void importData(String path, long mem, String tableName, String dataFile) {
+        if(tableName == null) {
+            System.out.println("Usage: launcher -open DBPath -import DataFile -table TableName");
+            return;
+        }
+        TransactionManager tm = TransactionManager.open(path);
+        DataManager dm = DataManager.open(path, mem, tm);
+        VersionManager vm = new VersionManagerImpl(tm, dm);
+        TableManager tbm = TableManager.open(path, vm, dm);
+        long xid = tbm.begin(new Begin()).xid;
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(dataFile))) {
+            Iterator<String[]> rows = reader.lines()
+                    .filter(line -> !line.trim().isEmpty())
+                    .map(line -> parseRow(tableName, line))
+                    .iterator();
+            int count = tbm.load(xid, tableName, rows);
+            tbm.commit(xid);
+            System.out.println("import " + count);
+        } catch(Exception e) {
+            tbm.abort(xid);
+            Panic.panic(e);
+        } finally {
+            tm.close();
+            dm.close();
+        }
+    }
+
+    // 借用insert语句的解析得到一行的值
+    private static String[] parseRow(String tableName, String line) {
+        try {
+            Insert insert = (Insert)Parser.Parse(("insert into " + tableName + " values " + line).getBytes());
+            return insert.values;
+        } catch(Exception e) {
+            throw new RuntimeException("Invalid row: " + line, e);
+        }
     }
 
     private static long parseMem(String memStr) {
@@ -2,6 +2,7 @@ package com.lxpeak.lxpeakdb.backend.common;
 
 import java.util.HashMap;
 import java.util.Set;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -20,6 +21,8 @@ public abstract class AbstractCache<T> {
     private int maxResource;                            // 缓存的最大缓存资源数
     private int count = 0;                              // 缓存中元素的个数
     private Lock lock;
+    // 某个资源获取结束（成功或失败）时通知等待它的线程
+    private Condition loaded;
 
     public AbstractCache(int maxResource) {
         this.maxResource = maxResource;
@@ -27,19 +30,21 @@ public abstract class AbstractCache<T> {
         references = new HashMap<>();
         getting = new HashMap<>();
         lock = new ReentrantLock();
+        loaded = lock.newCondition();
     }
 
     protected T get(long key) throws Exception {
         while(true) {
             lock.lock();
             if(getting.containsKey(key)) {
-                // 请求的资源正在被其他线程获取
-                lock.unlock();
+                // 请求的资源正在被其他线程获取，等它获取结束后再看。
+                // 用Condition等待而不是sleep轮询，虚拟线程等待时会让出载体线程
                 try {
-                    Thread.sleep(1);
+                    loaded.await();
                 } catch (InterruptedException e) {
                     e.printStackTrace();
-                    continue;
+                } finally {
+                    lock.unlock();
                 }
                 continue;
             }
@@ -73,6 +78,7 @@ public abstract class AbstractCache<T> {
             // A：注意这是catch中的操作，表示执行上面方法出错了，所以撤销了这个方法之前的所有操作，如果没有出错的话不会执行这里的语句
             count --;
             getting.remove(key);
+            loaded.signalAll();
             lock.unlock();
             throw e;
         }
@@ -81,6 +87,7 @@ public abstract class AbstractCache<T> {
         lock.lock();
         getting.remove(key);
         cache.put(key, obj);
+        loaded.signalAll();
         // Q：这里的1是对的吗？不应该是references.get(key) - 1吗？
         // A：是对的，这里是第一次将key放进references中，如果以后还需要访问这个key，会在上面的while循环里返回
         references.put(key, 1);
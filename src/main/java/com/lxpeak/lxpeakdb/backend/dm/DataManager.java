@@ -9,10 +9,31 @@ import com.lxpeak.lxpeakdb.backend.tm.TransactionManager;
 /*
 * DataManager 是 DM 层直接对外提供方法的类，同时，也实现成 DataItem 对象的缓存。
 * DataItem 存储的 key，是由页号和页内偏移组成的一个 8 字节无符号整数，页号和偏移各占 4 字节。
+*
+* 段（segment）是专属于某个对象（例如一张表的记录）的一组页，段中的页不会用来存放其他数据，
+* 所以顺序读取段的每一页就能找到该对象的全部数据。段号为段的第一页的页号，0表示所有段之外共用的页。
+* 段按区（extent，连续的若干页）分配空间，删除段时它的区回收给之后新建或扩展的段使用。
 * */
 public interface DataManager {
     DataItem read(long uid) throws Exception;
     long insert(long xid, byte[] data) throws Exception;
+    // 在段segment的页中插入数据，segment为0时和insert(xid, data)相同
+    long insert(long xid, byte[] data, long segment) throws Exception;
+    // 新建一个段，返回段号
+    long createSegment() throws Exception;
+    // 段的所有页号，从小到大
+    int[] segmentPages(long segment);
+    // uid所在的页属于哪个段，不属于任何段时返回0
+    long segmentOf(long uid);
+    // 删除段，它的所有页都被清空并回收，段中的数据不能再读取，之后向该段插入会抛出SegmentNotFoundException
+    void dropSegment(long segment) throws Exception;
+    // 所有段的段号
+    long[] segments();
+    // 页中所有有效DataItem的uid，按页内顺序
+    long[] pageItems(int pgno) throws Exception;
+    // 当前线程之后的修改先不把日志刷盘，直到sync（见Logger.deferSync）
+    void deferSync();
+    void sync();
     void close();
 
     /*
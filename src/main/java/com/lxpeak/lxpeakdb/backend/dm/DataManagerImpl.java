@@ -1,5 +1,14 @@
 package com.lxpeak.lxpeakdb.backend.dm;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
 import com.lxpeak.lxpeakdb.backend.dm.dataItem.DataItemImpl;
 import com.lxpeak.lxpeakdb.backend.dm.logger.Logger;
 import com.lxpeak.lxpeakdb.backend.dm.page.Page;
@@ -14,6 +23,7 @@ import com.lxpeak.lxpeakdb.backend.dm.dataItem.DataItem;
 import com.lxpeak.lxpeakdb.backend.dm.page.PageOne;
 import com.lxpeak.lxpeakdb.backend.dm.pageIndex.PageIndex;
 import com.lxpeak.lxpeakdb.backend.tm.TransactionManager;
+import com.lxpeak.lxpeakdb.backend.tm.TransactionManagerImpl;
 
 /*
  * DataManager 是 DM 层直接对外提供方法的类，同时，也实现成 DataItem 对象的缓存。
@@ -21,15 +31,34 @@ import com.lxpeak.lxpeakdb.backend.tm.TransactionManager;
  *
  * UID结构如下： [pgno (32 bits)] [0 (16 bits)] [offset (16 bits)]
  *
+ * 段的每一页的第一项都是页头标记（见DataItem.wrapSegmentRaw），和普通的插入一样写日志，
+ * 启动时读取每一页的页头就能知道它属于哪个段，不需要额外的文件。每个段有自己的PageIndex。
+ *
+ * 段每次扩展一个区（EXTENT_PAGES个连续的页），同一个段的数据在文件中是连续的，顺序扫描时按顺序读文件。
+ * 删除段时先写清空日志（见Recover.formatLog）把每一页清空，再写入FREE_SEGMENT页头，这些页进入空闲页集合，
+ * 之后分配区时优先使用连续的空闲页，没有时才在文件末尾追加。启动时页头为FREE_SEGMENT的页同样回到空闲页集合。
  *
  * */
 public class DataManagerImpl extends AbstractCache<DataItem> implements DataManager {
+    // 每个区的页数
+    static final int EXTENT_PAGES = 8;
+    // 已删除段的页的页头段号
+    static final long FREE_SEGMENT = -1;
 
     TransactionManager tm;
     PageCache pc;
     Logger logger;
     PageIndex pIndex;
     Page pageOne;
+    // 段号 -> 该段的空闲空间索引、所有页号；页号 -> 段号
+    private Map<Long, PageIndex> segIndex;
+    private Map<Long, List<Integer>> segPages;
+    private Map<Integer, Long> pageSegment;
+    // 已回收的空闲页
+    private TreeSet<Integer> freePages;
+    private Lock segLock;
+    // 在文件末尾追加页时持有，保证一个区的页是连续的
+    private Lock allocLock;
 
     public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm) {
         super(0);
@@ -37,6 +66,12 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         this.logger = logger;
         this.tm = tm;
         this.pIndex = new PageIndex();
+        this.segIndex = new HashMap<>();
+        this.segPages = new HashMap<>();
+        this.pageSegment = new HashMap<>();
+        this.freePages = new TreeSet<>();
+        this.segLock = new ReentrantLock();
+        this.allocLock = new ReentrantLock();
     }
 
     // 根据UID从缓存中获取DataItem，并校验有效位
@@ -54,10 +89,17 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
     // 获取页面后，首先需要写入插入日志，接着才可以通过pageX插入数据，并返回插入位置的偏移，最后需要将页面信息重新插入pageIndex。
     @Override
     public long insert(long xid, byte[] data) throws Exception {
+        return insert(xid, data, 0);
+    }
+
+    // 段中的页在插入时从该段自己的PageIndex中选，放不下时为该段新建一页
+    @Override
+    public long insert(long xid, byte[] data, long segment) throws Exception {
         byte[] raw = DataItem.wrapDataItemRaw(data);
         if(raw.length > PageX.MAX_FREE_SPACE) {
             throw Error.DataTooLargeException;
         }
+        PageIndex pIndex = segment == 0 ? this.pIndex : existingSegmentIndex(segment);
 
         // 尝试获取可用页
         // 如果找到可用的页面则跳出循环；
@@ -68,8 +110,10 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
             pi = pIndex.select(raw.length);
             if (pi != null) {
                 break;
+            } else if(segment != 0) {
+                newExtent(segment);
             } else {
-                int newPgno = pc.newPage(PageX.initRaw());
+                int newPgno = appendPages(1);
                 pIndex.add(newPgno, PageX.MAX_FREE_SPACE);
             }
         }
@@ -104,6 +148,227 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         }
     }
 
+    @Override
+    public long createSegment() throws Exception {
+        return newExtent(0);
+    }
+
+    // 为段segment分配一个区并给每一页写入页头标记，segment为0时新建一个段，段号就是区的第一页的页号。返回区的第一页的页号
+    private int newExtent(long segment) throws Exception {
+        if(segment != 0) {
+            existingSegmentIndex(segment);
+        }
+        int first = takeFreeExtent();
+        boolean reused = first != 0;
+        if(!reused) {
+            first = appendPages(EXTENT_PAGES);
+        }
+        if(segment == 0) {
+            segment = first;
+        }
+        for(int pgno = first; pgno < first + EXTENT_PAGES; pgno ++) {
+            int freeSpace = writeHeader(pgno, segment, reused);
+            addSegmentPage(segment, pgno, freeSpace);
+        }
+        return first;
+    }
+
+    // 在文件末尾追加n个连续的空页，返回第一页的页号
+    private int appendPages(int n) {
+        allocLock.lock();
+        try {
+            int first = pc.newPage(PageX.initRaw());
+            for(int i = 1; i < n; i ++) {
+                pc.newPage(PageX.initRaw());
+            }
+            return first;
+        } finally {
+            allocLock.unlock();
+        }
+    }
+
+    // 从空闲页中取出EXTENT_PAGES个连续的页，没有时返回0
+    private int takeFreeExtent() {
+        segLock.lock();
+        try {
+            int start = 0, len = 0;
+            for(int pgno : freePages) {
+                if(len > 0 && pgno == start + len) {
+                    len ++;
+                } else {
+                    start = pgno;
+                    len = 1;
+                }
+                if(len == EXTENT_PAGES) {
+                    for(int i = 0; i < EXTENT_PAGES; i ++) {
+                        freePages.remove(start + i);
+                    }
+                    return start;
+                }
+            }
+            return 0;
+        } finally {
+            segLock.unlock();
+        }
+    }
+
+    // 给页写入段segment的页头标记，format为true时先清空该页。返回写入后的空闲空间
+    private int writeHeader(int pgno, long segment, boolean format) throws Exception {
+        Page pg = pc.getPage(pgno);
+        try {
+            if(format) {
+                logger.log(Recover.formatLog(TransactionManagerImpl.SUPER_XID, pgno));
+                PageX.format(pg);
+            }
+            byte[] raw = DataItem.wrapSegmentRaw(segment);
+            // 和普通插入一样先写日志，恢复时不会把这一页截掉
+            logger.log(Recover.insertLog(TransactionManagerImpl.SUPER_XID, pg, raw));
+            PageX.insert(pg, raw);
+            return PageX.getFreeSpace(pg);
+        } finally {
+            pg.release();
+        }
+    }
+
+    // 调用者需要保证段中的数据已经不再被读取，缓存中没有这些页上的DataItem
+    @Override
+    public void dropSegment(long segment) throws Exception {
+        List<Integer> pages;
+        segLock.lock();
+        try {
+            pages = segPages.remove(segment);
+            segIndex.remove(segment);
+            if(pages == null) {
+                return;
+            }
+            for(int pgno : pages) {
+                pageSegment.remove(pgno);
+            }
+        } finally {
+            segLock.unlock();
+        }
+        for(int pgno : pages) {
+            writeHeader(pgno, FREE_SEGMENT, true);
+        }
+        segLock.lock();
+        try {
+            freePages.addAll(pages);
+        } finally {
+            segLock.unlock();
+        }
+    }
+
+    @Override
+    public long[] segments() {
+        segLock.lock();
+        try {
+            long[] res = new long[segPages.size()];
+            int i = 0;
+            for(long segment : segPages.keySet()) {
+                res[i ++] = segment;
+            }
+            return res;
+        } finally {
+            segLock.unlock();
+        }
+    }
+
+    // 已经删除的段不能再插入，也不能为它重新建立索引、分配区，否则这些区再也不会被回收
+    private PageIndex existingSegmentIndex(long segment) throws Exception {
+        segLock.lock();
+        try {
+            PageIndex index = segIndex.get(segment);
+            if(index == null) {
+                throw Error.SegmentNotFoundException;
+            }
+            return index;
+        } finally {
+            segLock.unlock();
+        }
+    }
+
+    private PageIndex segmentIndex(long segment) {
+        segLock.lock();
+        try {
+            return segIndex.computeIfAbsent(segment, k -> new PageIndex());
+        } finally {
+            segLock.unlock();
+        }
+    }
+
+    private void addSegmentPage(long segment, int pgno, int freeSpace) {
+        segLock.lock();
+        try {
+            List<Integer> pages = segPages.computeIfAbsent(segment, k -> new ArrayList<>());
+            pages.add(pgno);
+            pageSegment.put(pgno, segment);
+        } finally {
+            segLock.unlock();
+        }
+        segmentIndex(segment).add(pgno, freeSpace);
+    }
+
+    @Override
+    public int[] segmentPages(long segment) {
+        segLock.lock();
+        try {
+            List<Integer> pages = segPages.get(segment);
+            if(pages == null) {
+                return new int[0];
+            }
+            int[] res = new int[pages.size()];
+            for(int i = 0; i < res.length; i ++) {
+                res[i] = pages.get(i);
+            }
+            Arrays.sort(res);
+            return res;
+        } finally {
+            segLock.unlock();
+        }
+    }
+
+    @Override
+    public long segmentOf(long uid) {
+        segLock.lock();
+        try {
+            return pageSegment.getOrDefault((int)(uid >>> 32), 0L);
+        } finally {
+            segLock.unlock();
+        }
+    }
+
+    // 顺着每一项的DataSize依次跳到下一项，直到空闲位置
+    @Override
+    public long[] pageItems(int pgno) throws Exception {
+        Page pg = pc.getPage(pgno);
+        try {
+            byte[] raw = pg.getData();
+            int end = PageX.getFSO(pg);
+            long[] uids = new long[16];
+            int n = 0;
+            for(int offset = PageX.OF_DATA; offset < end; offset += DataItem.itemLength(raw, offset)) {
+                if(!DataItem.isValid(raw, offset)) continue;
+                if(n == uids.length) {
+                    uids = Arrays.copyOf(uids, n*2);
+                }
+                uids[n ++] = Types.addressToUid(pgno, (short)offset);
+            }
+            return Arrays.copyOf(uids, n);
+        } finally {
+            pg.release();
+        }
+    }
+
+    @Override
+    public void deferSync() {
+        logger.deferSync();
+    }
+
+    @Override
+    public void sync() {
+        logger.sync();
+    }
+
     @Override
     public void close() {
         // 这里的close只是把缓存里的数据清掉了，没有关闭连接
@@ -184,8 +449,15 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
                 Panic.panic(e);
             }
 
-            // 当前Page对象的pageNumber；当前Page对象的空闲大小
-            pIndex.add(pg.getPageNumber(), PageX.getFreeSpace(pg));
+            // 当前Page对象的pageNumber；当前Page对象的空闲大小，段中的页放进所属段的索引
+            long segment = PageX.getFSO(pg) > PageX.OF_DATA ? DataItem.parseSegment(pg.getData(), PageX.OF_DATA) : 0;
+            if(segment == FREE_SEGMENT) {
+                freePages.add(pg.getPageNumber());
+            } else if(segment != 0) {
+                addSegmentPage(segment, pg.getPageNumber(), PageX.getFreeSpace(pg));
+            } else {
+                pIndex.add(pg.getPageNumber(), PageX.getFreeSpace(pg));
+            }
             // 注意在使用完 Page 后需要及时 release，否则可能会撑爆缓存。
             pg.release();
         }
@@ -25,6 +25,8 @@ import com.lxpeak.lxpeakdb.backend.utils.Parser;
 * [LogType] [XID] [UID] [OldRaw] [NewRaw]
 * insertLog:
 * [LogType] [XID] [Pgno] [Offset] [Raw]
+* formatLog（清空一页，段释放或重用页时写入，XID总是SUPER_XID）:
+* [LogType] [XID] [Pgno]
 * -----------------------------------------------------
 * 日志恢复策略：
 * 1、重做所有崩溃时已完成（committed 或 aborted）的事务
@@ -34,6 +36,7 @@ public class Recover {
 
     private static final byte LOG_TYPE_INSERT = 0;
     private static final byte LOG_TYPE_UPDATE = 1;
+    private static final byte LOG_TYPE_FORMAT = 2;
 
     private static final int REDO = 0;
     private static final int UNDO = 1;
@@ -66,7 +69,9 @@ public class Recover {
             byte[] log = lg.next();
             if(log == null) break;
             int pgno;
-            if(isInsertLog(log)) {
+            if(isFormatLog(log)) {
+                pgno = parseFormatLog(log);
+            } else if(isInsertLog(log)) {
                 // 就为了得到pgno，然后和maxPgno比较
                 InsertLogInfo li = parseInsertLog(log);
                 pgno = li.pgno;
@@ -102,7 +107,10 @@ public class Recover {
         while(true) {
             byte[] log = lg.next();
             if(log == null) break;
-            if(isInsertLog(log)) {
+            if(isFormatLog(log)) {
+                // 按日志顺序重做，之前写入该页的内容被清掉，之后的插入从头开始
+                doFormatLog(pc, log);
+            } else if(isInsertLog(log)) {
                 InsertLogInfo li = parseInsertLog(log);
                 long xid = li.xid;
                 if(!tm.isActive(xid)) {
@@ -125,7 +133,10 @@ public class Recover {
         while(true) {
             byte[] log = lg.next();
             if(log == null) break;
-            if(isInsertLog(log)) {
+            if(isFormatLog(log)) {
+                // 由SUPER_XID写入，不需要撤销
+                continue;
+            } else if(isInsertLog(log)) {
                 InsertLogInfo li = parseInsertLog(log);
                 long xid = li.xid;
                 if(tm.isActive(xid)) {
@@ -165,6 +176,10 @@ public class Recover {
         return log[0] == LOG_TYPE_INSERT;
     }
 
+    private static boolean isFormatLog(byte[] log) {
+        return log[0] == LOG_TYPE_FORMAT;
+    }
+
     // 更新日志格式如下：
     // [LogType] [XID] [UID] [OldRaw] [NewRaw]
     private static final int OF_TYPE = 0;
@@ -266,6 +281,32 @@ public class Recover {
         return li;
     }
 
+    // 清空日志格式如下：
+    // [LogType] [XID] [Pgno]
+    private static final int OF_FORMAT_PGNO = OF_XID+8;
+
+    public static byte[] formatLog(long xid, int pgno) {
+        return Bytes.concat(new byte[]{LOG_TYPE_FORMAT}, Parser.long2Byte(xid), Parser.int2Byte(pgno));
+    }
+
+    private static int parseFormatLog(byte[] log) {
+        return Parser.parseInt(Arrays.copyOfRange(log, OF_FORMAT_PGNO, OF_FORMAT_PGNO+4));
+    }
+
+    private static void doFormatLog(PageCache pc, byte[] log) {
+        Page pg = null;
+        try {
+            pg = pc.getPage(parseFormatLog(log));
+        } catch(Exception e) {
+            Panic.panic(e);
+        }
+        try {
+            PageX.format(pg);
+        } finally {
+            pg.release();
+        }
+    }
+
     private static void doInsertLog(PageCache pc, byte[] log, int flag) {
         InsertLogInfo li = parseInsertLog(log);
         Page pg = null;
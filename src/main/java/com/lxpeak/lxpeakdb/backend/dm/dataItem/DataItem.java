@@ -14,6 +14,9 @@ import com.lxpeak.lxpeakdb.backend.utils.Types;
 * DataItem 是 DM 层向上层提供的数据抽象。上层模块通过地址，向 DM 请求到对应的 DataItem，再获取到其中的数据。
 * */
 public interface DataItem {
+    // 段的页头标记项的ValidFlag，见wrapSegmentRaw
+    byte FLAG_SEGMENT = 2;
+
     SubArray data();
 
     void before();
@@ -25,6 +28,9 @@ public interface DataItem {
     void unlock();
     void rLock();
     void rUnLock();
+    // 乐观读：返回一个版本戳，为0表示当前正被写锁持有；读完数据后用validate检查期间是否有写入
+    long tryOptimisticRead();
+    boolean validate(long stamp);
 
     Page page();
     long getUid();
@@ -47,6 +53,32 @@ public interface DataItem {
         return new DataItemImpl(new SubArray(raw, offset, offset+length), new byte[length], pg, uid, dm);
     }
 
+    // 段中每一页的第一项是页头标记，Data为段号。它的ValidFlag不为0，上层读不到它
+    public static byte[] wrapSegmentRaw(long segment) {
+        byte[] raw = wrapDataItemRaw(Parser.long2Byte(segment));
+        raw[DataItemImpl.OF_VALID] = FLAG_SEGMENT;
+        return raw;
+    }
+
+    // 页面raw中offset处是否为段的页头标记，是则返回段号，否则返回0
+    public static long parseSegment(byte[] raw, int offset) {
+        if(raw[offset+DataItemImpl.OF_VALID] != FLAG_SEGMENT) {
+            return 0;
+        }
+        return Parser.parseLong(Arrays.copyOfRange(raw, offset+DataItemImpl.OF_DATA, offset+DataItemImpl.OF_DATA+8));
+    }
+
+    // 页面raw中offset处的DataItem是否有效
+    public static boolean isValid(byte[] raw, int offset) {
+        return raw[offset+DataItemImpl.OF_VALID] == (byte)0;
+    }
+
+    // 页面raw中offset处的DataItem一共占多少字节
+    public static int itemLength(byte[] raw, int offset) {
+        short size = Parser.parseShort(Arrays.copyOfRange(raw, offset+DataItemImpl.OF_SIZE, offset+DataItemImpl.OF_DATA));
+        return size + DataItemImpl.OF_DATA;
+    }
+
     public static void setDataItemRawInvalid(byte[] raw) {
         raw[DataItemImpl.OF_VALID] = (byte)1;
     }
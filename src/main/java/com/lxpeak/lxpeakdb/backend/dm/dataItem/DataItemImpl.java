@@ -1,8 +1,7 @@
 package com.lxpeak.lxpeakdb.backend.dm.dataItem;
 
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
 
 import com.lxpeak.lxpeakdb.backend.common.SubArray;
 import com.lxpeak.lxpeakdb.backend.dm.page.Page;
@@ -11,7 +10,7 @@ import com.lxpeak.lxpeakdb.backend.dm.DataManagerImpl;
 /**
  * dataItem 结构如下：
  * [ValidFlag] [DataSize] [Data]
- * ValidFlag 1字节，0为合法，1为非法
+ * ValidFlag 1字节，0为合法，1为非法，2为段的页头标记（见DataItem.wrapSegmentRaw）
  * DataSize  2字节，标识Data的长度
  *
  * ValidFlag标识了该 DataItem 是否有效。删除一个 DataItem，只需要简单地将其有效位设置为 0。
@@ -30,6 +29,9 @@ public class DataItemImpl implements DataItem {
 
     private SubArray raw;
     private byte[] oldRaw;
+    // StampedLock 除了读写锁外还提供乐观读：读之前取一个版本戳，读完后校验期间没有写入即可，读者之间、读者和写者之间都不互相阻塞。
+    // 注意它不可重入，持有写锁时不能再获取读锁。
+    private StampedLock lock;
     private Lock rLock;
     private Lock wLock;
     // 保存一个 dm 的引用是因为其释放依赖 dm 的释放（dm 同时实现了缓存接口，用于缓存 DataItem），以及修改数据时落日志。
@@ -40,9 +42,9 @@ public class DataItemImpl implements DataItem {
     public DataItemImpl(SubArray raw, byte[] oldRaw, Page pg, long uid, DataManagerImpl dm) {
         this.raw = raw;
         this.oldRaw = oldRaw;
-        ReadWriteLock lock = new ReentrantReadWriteLock();
-        rLock = lock.readLock();
-        wLock = lock.writeLock();
+        lock = new StampedLock();
+        rLock = lock.asReadLock();
+        wLock = lock.asWriteLock();
         this.dm = dm;
         this.uid = uid;
         this.pg = pg;
@@ -107,6 +109,16 @@ public class DataItemImpl implements DataItem {
         rLock.unlock();
     }
 
+    @Override
+    public long tryOptimisticRead() {
+        return lock.tryOptimisticRead();
+    }
+
+    @Override
+    public boolean validate(long stamp) {
+        return lock.validate(stamp);
+    }
+
     @Override
     public Page page() {
         return pg;
@@ -13,6 +13,10 @@ import com.lxpeak.lxpeakdb.backend.utils.Parser;
 
 public interface Logger {
     void log(byte[] data);
+    // 当前线程之后写的日志先不刷盘，直到调用sync，批量执行多条语句时只刷一次盘
+    void deferSync();
+    // 把已经写入的日志刷到磁盘，之后当前线程写的日志恢复为每条都立即刷盘
+    void sync();
     void truncate(long x) throws Exception;
     byte[] next();
     void rewind();
@@ -39,6 +39,8 @@ public class LoggerImpl implements Logger {
     private RandomAccessFile file;
     private FileChannel fc;
     private Lock lock;
+    // 当前线程写的日志是否暂不刷盘（见deferSync）
+    private ThreadLocal<Boolean> deferred = ThreadLocal.withInitial(() -> false);
 
     private long position;  // 当前日志指针的位置
     private long fileSize;  // 初始化时记录，log操作不更新
@@ -130,27 +132,43 @@ public class LoggerImpl implements Logger {
             // 写入日志文件
             fc.position(fc.size());
             fc.write(buf);
+            // 更新总的校验码，和写日志在同一个锁里，否则并发时可能把日志写到文件头
+            updateXChecksum(log);
+            if(!deferred.get()) {
+                fc.force(false);
+            }
         } catch(IOException e) {
             Panic.panic(e);
         } finally {
             lock.unlock();
         }
-        // 更新总的校验码
-        updateXChecksum(log);
     }
 
-    // 更新总的校验码
-    private void updateXChecksum(byte[] log) {
-        this.xChecksum = calChecksum(this.xChecksum, log);
+    @Override
+    public void deferSync() {
+        deferred.set(true);
+    }
+
+    @Override
+    public void sync() {
+        deferred.set(false);
+        lock.lock();
         try {
-            fc.position(0);
-            fc.write(ByteBuffer.wrap(Parser.int2Byte(xChecksum)));
             fc.force(false);
         } catch(IOException e) {
             Panic.panic(e);
+        } finally {
+            lock.unlock();
         }
     }
 
+    // 更新总的校验码
+    private void updateXChecksum(byte[] log) throws IOException {
+        this.xChecksum = calChecksum(this.xChecksum, log);
+        fc.position(0);
+        fc.write(ByteBuffer.wrap(Parser.int2Byte(xChecksum)));
+    }
+
     // 将日志大小、校验码、数据包装成一个字节数组
     private byte[] wrapLog(byte[] data) {
         byte[] checksum = Parser.int2Byte(calChecksum(0, data));
@@ -13,7 +13,7 @@ import com.lxpeak.lxpeakdb.backend.utils.Parser;
  */
 public class PageX {
     private static final short OF_FREE = 0;
-    private static final short OF_DATA = 2;
+    public static final short OF_DATA = 2;
     public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE - OF_DATA;
 
     public static byte[] initRaw() {
@@ -51,6 +51,12 @@ public class PageX {
         return offset;
     }
 
+    // 清空页面，空闲位置回到数据区开头，原来的数据不再有效
+    public static void format(Page pg) {
+        pg.setDirty(true);
+        setFSO(pg.getData(), OF_DATA);
+    }
+
     // 获取页面的空闲空间大小
     public static int getFreeSpace(Page pg) {
         return PageCache.PAGE_SIZE - (int)getFSO(pg.getData());
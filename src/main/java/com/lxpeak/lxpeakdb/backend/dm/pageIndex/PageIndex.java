@@ -63,7 +63,16 @@ public class PageIndex {
                 }
                 // 可以注意到，被选择的页会直接从PageIndex中移除，这意味着同一个页面是不允许并发写的。
                 // 在上层模块使用完这个页面后，需要将其重新插入PageIndex，也就是调用add方法
-                return lists[number].remove(0);
+                if(number < INTERVALS_NO) {
+                    return lists[number].remove(0);
+                }
+                // 最后一个区间没有向上取整，里面的页不一定放得下（例如占满一页的B+树节点），需要逐个检查
+                for(int i = 0; i < lists[number].size(); i ++) {
+                    if(lists[number].get(i).freeSpace >= spaceSize) {
+                        return lists[number].remove(i);
+                    }
+                }
+                number ++;
             }
             return null;
         } finally {
@@ -6,33 +6,89 @@ import java.util.List;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import com.google.common.primitives.Bytes;
+
 import com.lxpeak.lxpeakdb.backend.common.SubArray;
 import com.lxpeak.lxpeakdb.backend.dm.DataManager;
 import com.lxpeak.lxpeakdb.backend.tm.TransactionManagerImpl;
 import com.lxpeak.lxpeakdb.backend.utils.Parser;
 import com.lxpeak.lxpeakdb.backend.dm.dataItem.DataItem;
+import com.lxpeak.lxpeakdb.common.Error;
 
 /*
 * 由于 B+ 树在插入删除时，会动态调整，根节点不是固定节点，于是设置一个 bootDataItem，该DataItem中存储了根节点的UID。
 * 可以注意到，IM在操作DM时，使用的事务都是SUPER_XID。
+* 每棵树的节点和 bootDataItem 都放在这棵树自己的段中（见DataManager），段号就是 bootUid 所在的段，不需要另外保存；
+* 旧版本创建的树不在段中，新节点仍然放在共用的页中。
+*
+* bootDataItem 的结构为：[RootUid 8][BalanceNumber 2][KeyWidth 1]
+* BalanceNumber 决定了这棵树的节点大小（最多可以占满一页），节点越大树越矮，每次查找需要经过的节点就越少。
+* KeyWidth 是每个key由几个long组成，联合索引的每一列占一个，key之间按列依次比较。
+* 旧版本的 bootDataItem 只有 RootUid，读取时按默认的 Node.DEFAULT_BALANCE_NUMBER 处理；没有 KeyWidth 时为1。
+* ------------------------------------------------------------------------------------------------------
+*
+* 并发控制采用 B-link 树的方式：
+* 1、每个节点的最后一个key就是它的上界（最右侧节点为MAX_VALUE），分裂时先写好新的右节点，再在持有左节点写锁的情况下修改兄弟指针，
+*    所以任何时刻从左节点出发顺着兄弟指针都能找到所有数据。查找的key超过当前节点上界时，就向右移动到兄弟节点。
+* 2、读者对节点使用乐观读（版本戳），不加锁、不阻塞写者，校验失败时才退化为读锁；
+*    插入者同一时刻只持有一个节点的写锁，分裂后释放再去修改父节点，父节点同样通过向右移动找到正确的位置。
+* 3、根节点分裂时通过bootLock修改根节点，如果发现根节点已经被别人换掉，则把新节点插入到对应的层，而不是再生成一个根。
 * ------------------------------------------------------------------------------------------------------
 *
-* 注意：IM没有提供删除索引的能力。当上层模块通过VM删除某个Entry时，实际的操作是设置其XMAX。
-* 如果不去删除对应索引的话，当后续再次尝试读取该Entry时，是可以通过索引寻找到的，但是由于设置了XMAX，所以会在寻找不到合适的版本时返回一个找不到对应内容的错误。
+* 删除索引项：
+* 当上层模块通过VM删除某个Entry时，实际的操作只是设置其XMAX，索引项不会立刻删除（其他事务可能还需要看到旧版本）。
+* 等到该版本对所有事务都不可见时，上层再通过delete(key, uid)删除索引项，例如范围查找遇到这样的项时顺手删除。
+* 1、节点的key少于 balanceNumber 个时，如果右兄弟放得下，就整体并入右兄弟，自己变成只有兄弟指针的空节点（见Node.mergeRight）；
+* 2、然后从父节点中删除指向空节点的项，父节点因此变少时同样向右合并，逐层向上；
+* 3、只向右移动数据，不做从右兄弟借项的重分配，树的高度也不会降低。
+* 同一时刻最多持有同一层相邻两个节点的写锁（先左后右），和插入一样不会死锁。
 * */
 public class BPlusTree {
+    public static final int DEFAULT_BALANCE_NUMBER = Node.DEFAULT_BALANCE_NUMBER;
+
     DataManager dm;
     long bootUid;
+    // 节点所在的段
+    long segment;
     DataItem bootDataItem;
     Lock bootLock;
+    int balanceNumber;
+    int keyWidth;
+    // 每一列都是MIN_VALUE/MAX_VALUE的key，只读
+    long[] minKey, maxKey;
 
     // 1、创建B+树时会先创建根节点，然后创建boot节点，将根节点root保存到boot节点中，返回的也是boot的uid。
     // 2、使用boot保存根节点uid的原因就是根节点可能因分裂而动态变化，所以用boot作为入口，然后去获取真正的根节点。
     // 3、当根节点分裂时，只需通过updateRootUid方法更新根节点uid，而bootUid保持不变，外部系统只需记住bootUid，无需关心根节点的动态变化。
     public static long create(DataManager dm) throws Exception {
-        byte[] rawRoot = Node.newNilRootRaw();
-        long rootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rawRoot);
-        return dm.insert(TransactionManagerImpl.SUPER_XID, Parser.long2Byte(rootUid));
+        return create(dm, Node.DEFAULT_BALANCE_NUMBER);
+    }
+
+    // 每个节点最多有 balanceNumber*2 个key，达到后分裂
+    public static long create(DataManager dm, int balanceNumber) throws Exception {
+        return create(dm, balanceNumber, 1);
+    }
+
+    // 创建key由keyWidth个long组成的B+树，用于联合索引
+    public static long create(DataManager dm, int balanceNumber, int keyWidth) throws Exception {
+        checkShape(balanceNumber, keyWidth);
+        byte[] rawRoot = Node.newNilRootRaw(balanceNumber, keyWidth);
+        long segment = dm.createSegment();
+        long rootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rawRoot, segment);
+        return dm.insert(TransactionManagerImpl.SUPER_XID, bootRaw(rootUid, balanceNumber, keyWidth), segment);
+    }
+
+    static void checkShape(int balanceNumber, int keyWidth) throws Exception {
+        if(keyWidth < 1 || keyWidth > Node.MAX_KEY_WIDTH) {
+            throw Error.InvalidKeyWidthException;
+        }
+        if(balanceNumber < Node.MIN_BALANCE_NUMBER || balanceNumber > Node.maxBalanceNumber(keyWidth)) {
+            throw Error.InvalidFanoutException;
+        }
+    }
+
+    static byte[] bootRaw(long rootUid, int balanceNumber, int keyWidth) {
+        return Bytes.concat(Parser.long2Byte(rootUid), Parser.short2Byte((short)balanceNumber), new byte[]{(byte)keyWidth});
     }
 
     public static BPlusTree load(long bootUid, DataManager dm) throws Exception {
@@ -40,9 +96,25 @@ public class BPlusTree {
         assert bootDataItem != null;
         BPlusTree t = new BPlusTree();
         t.bootUid = bootUid;
+        t.segment = dm.segmentOf(bootUid);
         t.dm = dm;
         t.bootDataItem = bootDataItem;
         t.bootLock = new ReentrantLock();
+        SubArray sa = bootDataItem.data();
+        if(sa.end - sa.start >= 8+2) {
+            t.balanceNumber = Parser.parseShort(sa.raw, sa.start+8);
+        } else {
+            t.balanceNumber = Node.DEFAULT_BALANCE_NUMBER;
+        }
+        if(sa.end - sa.start >= 8+2+1) {
+            t.keyWidth = sa.raw[sa.start+8+2];
+        } else {
+            t.keyWidth = 1;
+        }
+        t.minKey = new long[t.keyWidth];
+        t.maxKey = new long[t.keyWidth];
+        Arrays.fill(t.minKey, Long.MIN_VALUE);
+        Arrays.fill(t.maxKey, Long.MAX_VALUE);
         return t;
     }
 
@@ -52,29 +124,71 @@ public class BPlusTree {
         try {
             // 从bootDataItem中得到根节点数据
             SubArray sa = bootDataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start, sa.start+8));
+            return Parser.parseLong(sa.raw, sa.start);
         } finally {
             bootLock.unlock();
         }
     }
 
-    private void updateRootUid(long left, long right, long rightKey) throws Exception {
+    // left是插入开始时读到的根节点，它分裂出了right。
+    // 如果期间根节点已经被其他线程分裂过，left就不再是根节点了，此时不能再生成新的根节点（会丢掉别人生成的那一层），
+    // 而是要把right插入到left的上一层中。
+    private void updateRootUid(long left, long right, long[] rightKey) throws Exception {
+        long curRoot;
         bootLock.lock();
         try {
-            byte[] rootRaw = Node.newRootRaw(left, right, rightKey);
-            long newRootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rootRaw);
-            // before进行加锁和保存数据前的预处理，after进行日志操作并解锁
-            bootDataItem.before();
-            SubArray diRaw = bootDataItem.data();
-            System.arraycopy(Parser.long2Byte(newRootUid), 0, diRaw.raw, diRaw.start, 8);
-            bootDataItem.after(TransactionManagerImpl.SUPER_XID);
+            curRoot = rootUid();
+            if(curRoot == left) {
+                byte[] rootRaw = Node.newRootRaw(balanceNumber, keyWidth, left, right, rightKey);
+                long newRootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rootRaw, segment);
+                // before进行加锁和保存数据前的预处理，after进行日志操作并解锁
+                bootDataItem.before();
+                SubArray diRaw = bootDataItem.data();
+                System.arraycopy(Parser.long2Byte(newRootUid), 0, diRaw.raw, diRaw.start, 8);
+                bootDataItem.after(TransactionManagerImpl.SUPER_XID);
+                return;
+            }
         } finally {
             bootLock.unlock();
         }
+        int curHeight = height(curRoot);
+        InsertRes res = insertAtHeight(curRoot, curHeight, height(left)+1, right, rightKey);
+        if(res.newNode != 0) {
+            updateRootUid(curRoot, res.newNode, res.newKey);
+        }
+    }
+
+    // 节点所在的高度，叶子节点为1。B+树所有叶子在同一层，沿最左边的子节点走到叶子即可
+    private int height(long nodeUid) throws Exception {
+        int h = 1;
+        while(true) {
+            Node node = Node.loadNode(this, nodeUid);
+            boolean isLeaf = node.isLeaf();
+            node.release();
+            if(isLeaf) {
+                return h;
+            }
+            h ++;
+            // 最左边的节点可能已经被合并清空，需要向右移动
+            nodeUid = searchNext(nodeUid, minKey);
+        }
+    }
+
+    // 从高度为nodeHeight的节点向下走，把(uid, key)插入到高度为targetHeight的那一层
+    private InsertRes insertAtHeight(long nodeUid, int nodeHeight, int targetHeight, long uid, long[] key) throws Exception {
+        if(nodeHeight == targetHeight) {
+            return insertAndSplit(nodeUid, uid, key);
+        }
+        long next = searchNext(nodeUid, key);
+        InsertRes ir = insertAtHeight(next, nodeHeight-1, targetHeight, uid, key);
+        if(ir.newNode != 0) {
+            return insertAndSplit(nodeUid, ir.newNode, ir.newKey);
+        }
+        return new InsertRes();
     }
 
     // 递归找叶子节点，先横着找每个兄弟节点，找到比目标key大的值后，进入下一层继续横着找
-    private long searchLeaf(long nodeUid, long key) throws Exception {
+    private long searchLeaf(long nodeUid, long[] key) throws Exception {
         Node node = Node.loadNode(this, nodeUid);
         boolean isLeaf = node.isLeaf();
         node.release();
@@ -87,7 +201,7 @@ public class BPlusTree {
         }
     }
 
-    private long searchNext(long nodeUid, long key) throws Exception {
+    private long searchNext(long nodeUid, long[] key) throws Exception {
         // 最后一个值时MAX_VALUE所以一定会跳出循环
         while(true) {
             Node node = Node.loadNode(this, nodeUid);
@@ -98,31 +212,64 @@ public class BPlusTree {
         }
     }
 
+    // 单列的key，只能用于keyWidth为1的树
+    private long[] single(long key) throws Exception {
+        if(keyWidth != 1) {
+            throw Error.InvalidKeyWidthException;
+        }
+        return new long[]{key};
+    }
+
+    // 检查key的列数，返回一份拷贝，之后调用方修改数组不会影响树
+    private long[] checkKey(long[] key) throws Exception {
+        if(key.length != keyWidth) {
+            throw Error.InvalidKeyWidthException;
+        }
+        return key.clone();
+    }
+
     public List<Long> search(long key) throws Exception {
         return searchRange(key, key);
     }
 
+    public List<Long> search(long[] key) throws Exception {
+        return searchRange(key, key);
+    }
+
     public List<Long> searchRange(long leftKey, long rightKey) throws Exception {
-        long rootUid = rootUid();
-        // 找到范围查找里的左侧边界leftKey
-        long leafUid = searchLeaf(rootUid, leftKey);
+        return searchRange(single(leftKey), single(rightKey));
+    }
+
+    public List<Long> searchRange(long[] leftKey, long[] rightKey) throws Exception {
         List<Long> uids = new ArrayList<>();
-        while(true) {
-            Node leaf = Node.loadNode(this, leafUid);
-            Node.LeafSearchRangeRes res = leaf.leafSearchRange(leftKey, rightKey);
-            leaf.release();
-            uids.addAll(res.uids);
-            // 如果返回的结果里有兄弟节点，则继续查找兄弟节点是否有属于[leftKey, rightKey]的值
-            if(res.siblingUid == 0) {
-                break;
-            } else {
-                leafUid = res.siblingUid;
-            }
+        RangeCursor cursor = cursor(leftKey, rightKey);
+        while(cursor.hasNext()) {
+            uids.add(cursor.next());
         }
         return uids;
     }
 
+    // 返回一个按key顺序遍历[leftKey, rightKey]的游标，叶子节点在遍历过程中才逐个读取
+    public RangeCursor cursor(long leftKey, long rightKey) throws Exception {
+        return new RangeCursor(this, single(leftKey), single(rightKey));
+    }
+
+    // 联合索引按列依次比较，例如第一列相等、第二列在某个范围内可以写成[(a, lo), (a, hi)]
+    public RangeCursor cursor(long[] leftKey, long[] rightKey) throws Exception {
+        return new RangeCursor(this, checkKey(leftKey), checkKey(rightKey));
+    }
+
+    // 找到key所在的叶子节点
+    long searchLeaf(long[] key) throws Exception {
+        return searchLeaf(rootUid(), key);
+    }
+
     public void insert(long key, long uid) throws Exception {
+        insert(single(key), uid);
+    }
+
+    public void insert(long[] key, long uid) throws Exception {
+        key = checkKey(key);
         long rootUid = rootUid();
         InsertRes res = insert(rootUid, uid, key);
         assert res != null;
@@ -132,10 +279,11 @@ public class BPlusTree {
     }
 
     class InsertRes {
-        long newNode, newKey;
+        long newNode;
+        long[] newKey;
     }
 
-    private InsertRes insert(long nodeUid, long uid, long key) throws Exception {
+    private InsertRes insert(long nodeUid, long uid, long[] key) throws Exception {
         // 根据uid读取节点数据
         Node node = Node.loadNode(this, nodeUid);
         boolean isLeaf = node.isLeaf();
@@ -160,7 +308,7 @@ public class BPlusTree {
         return res;
     }
 
-    private InsertRes insertAndSplit(long nodeUid, long uid, long key) throws Exception {
+    private InsertRes insertAndSplit(long nodeUid, long uid, long[] key) throws Exception {
         while(true) {
             Node node = Node.loadNode(this, nodeUid);
             Node.InsertAndSplitRes iasr = node.insertAndSplit(uid, key);
@@ -177,6 +325,80 @@ public class BPlusTree {
         }
     }
 
+    // 删除索引项(key, uid)，返回是否找到
+    public boolean delete(long key, long uid) throws Exception {
+        return delete(single(key), uid);
+    }
+
+    public boolean delete(long[] key, long uid) throws Exception {
+        key = checkKey(key);
+        long nodeUid = searchLeaf(key);
+        while(true) {
+            Node node = Node.loadNode(this, nodeUid);
+            Node.DeleteRes res = node.delete(key, uid);
+            node.release();
+            if(res.found) {
+                if(res.underflow) {
+                    rebalance(nodeUid, 1);
+                }
+                return true;
+            }
+            if(res.siblingUid == 0) {
+                return false;
+            }
+            nodeUid = res.siblingUid;
+        }
+    }
+
+    // 高度为nodeHeight的节点nodeUid中的key过少，尝试并入右兄弟，再从父节点中删除它，父节点过少时继续向上处理
+    private void rebalance(long nodeUid, int nodeHeight) throws Exception {
+        while(true) {
+            Node node = Node.loadNode(this, nodeUid);
+            Node.MergeRes mr = node.mergeRight();
+            node.release();
+            if(!mr.merged) {
+                return;
+            }
+            // 空节点的兄弟指针不会再改变
+            node = Node.loadNode(this, nodeUid);
+            long sibling = Node.getRawSibling(node.raw);
+            node.release();
+
+            // 从根节点向下找到父节点所在的那一层
+            long parent = rootUid();
+            int h = height(parent);
+            if(h <= nodeHeight) {
+                return;
+            }
+            for(; h > nodeHeight+1; h --) {
+                parent = searchNext(parent, mr.lastKey);
+            }
+            Node.RemoveSonRes rr;
+            while(true) {
+                Node p = Node.loadNode(this, parent);
+                rr = p.removeSon(nodeUid, sibling, mr.lastKey);
+                p.release();
+                if(rr.done) {
+                    break;
+                }
+                parent = rr.siblingUid;
+            }
+            if(!rr.underflow) {
+                return;
+            }
+            nodeUid = parent;
+            nodeHeight ++;
+        }
+    }
+
+    public int getBalanceNumber() {
+        return balanceNumber;
+    }
+
+    public int getKeyWidth() {
+        return keyWidth;
+    }
+
     public void close() {
         bootDataItem.release();
     }
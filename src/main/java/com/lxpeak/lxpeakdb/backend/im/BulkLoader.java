@@ -0,0 +1,434 @@
+package com.lxpeak.lxpeakdb.backend.im;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+
+import com.lxpeak.lxpeakdb.backend.common.SubArray;
+import com.lxpeak.lxpeakdb.backend.dm.DataManager;
+import com.lxpeak.lxpeakdb.backend.tm.TransactionManagerImpl;
+import com.lxpeak.lxpeakdb.common.Error;
+
+/**
+ * 自底向上批量构建B+树，用于在已有数据上创建索引和批量导入。
+ *
+ * 逐条调用 BPlusTree.insert 时，每一条都要从根走到叶子，叶子写满后还要分裂并记录更新日志。
+ * BulkLoader 先把所有(key, uid)排好序，再一层一层地直接生成写满的节点：
+ * 1、外部排序：add 的数据先放在内存缓冲区中，缓冲区满了就排序后写入临时文件（一个run），build 时再多路归并；
+ * 2、节点需要知道右兄弟的UID，所以按从大到小的顺序从右往左生成，每个节点只调用一次 dm.insert，不会再被修改，
+ *    因此每个节点只有一条插入日志，没有分裂产生的更新日志；
+ * 3、每个节点中子节点i对应的key是子节点i+1中最小的key，每层最右边的为MAX_VALUE，和分裂产生的结构一致。
+ * 联合索引的key由keyWidth个long组成，缓冲区中每个key依次占keyWidth个long，排序时按列依次比较。
+ *
+ * 生成的树和 BPlusTree.create 创建的树格式相同，返回的同样是 bootUid，所有节点同样放在这棵树自己的段中。
+ */
+public class BulkLoader {
+    // 内存中最多缓存的(key, uid)对数，超过后排序并写入临时文件
+    static final int DEFAULT_RUN_SIZE = 1 << 20;
+
+    private DataManager dm;
+    private int balanceNumber;
+    private int w;
+    // 每个节点写入的key数，留一个空位，之后插入时不会立刻分裂
+    private int fill;
+
+    private int runSize;
+    private long[] keys;
+    private long[] uids;
+    private int size;
+    private List<File> runs;
+    private long segment;
+
+    public BulkLoader(DataManager dm) throws Exception {
+        this(dm, Node.DEFAULT_BALANCE_NUMBER, 1, DEFAULT_RUN_SIZE);
+    }
+
+    public BulkLoader(DataManager dm, int balanceNumber) throws Exception {
+        this(dm, balanceNumber, 1, DEFAULT_RUN_SIZE);
+    }
+
+    public BulkLoader(DataManager dm, int balanceNumber, int keyWidth) throws Exception {
+        this(dm, balanceNumber, keyWidth, DEFAULT_RUN_SIZE);
+    }
+
+    BulkLoader(DataManager dm, int balanceNumber, int keyWidth, int runSize) throws Exception {
+        BPlusTree.checkShape(balanceNumber, keyWidth);
+        this.dm = dm;
+        this.balanceNumber = balanceNumber;
+        this.w = keyWidth;
+        this.fill = balanceNumber*2 - 1;
+        this.runSize = runSize;
+        // 缓冲区按需扩大到runSize，数据量小时不占用太多内存
+        int initial = Math.min(runSize, 1024);
+        this.keys = new long[initial*w];
+        this.uids = new long[initial];
+        this.runs = new ArrayList<>();
+    }
+
+    public void add(long key, long uid) throws Exception {
+        if(w != 1) {
+            throw Error.InvalidKeyWidthException;
+        }
+        ensureSpace();
+        keys[size] = key;
+        uids[size] = uid;
+        size ++;
+    }
+
+    public void add(long[] key, long uid) throws Exception {
+        if(key.length != w) {
+            throw Error.InvalidKeyWidthException;
+        }
+        ensureSpace();
+        System.arraycopy(key, 0, keys, size*w, w);
+        uids[size] = uid;
+        size ++;
+    }
+
+    private void ensureSpace() throws IOException {
+        if(size == uids.length) {
+            if(size < runSize) {
+                int n = Math.min(runSize, size*2);
+                keys = Arrays.copyOf(keys, n*w);
+                uids = Arrays.copyOf(uids, n);
+            } else {
+                spill();
+            }
+        }
+    }
+
+    // 构建B+树并返回bootUid，调用后BulkLoader不能再使用
+    public long build() throws Exception {
+        PairSource source;
+        if(runs.isEmpty()) {
+            sort(keys, uids, w, 0, size-1);
+            source = new MemorySource(keys, uids, w, size);
+        } else {
+            if(size > 0) {
+                spill();
+            }
+            source = new MergeSource(runs, w);
+        }
+        try {
+            return buildTree(source);
+        } finally {
+            source.close();
+            for(File run : runs) {
+                run.delete();
+            }
+            runs.clear();
+        }
+    }
+
+    private long buildTree(PairSource source) throws Exception {
+        segment = dm.createSegment();
+        // 当前层的节点（从右往左生成），firstKeys中第i个key（占w个long）为节点i中最小的key
+        LongList levelUids = new LongList(1);
+        LongList levelFirstKeys = new LongList(w);
+        long[] maxKey = new long[w];
+        Arrays.fill(maxKey, Long.MAX_VALUE);
+
+        // 生成叶子节点：从最大的key开始，每攒够fill个生成一个叶子，右兄弟是上一个生成的叶子
+        long[] leafKeys = new long[fill*w];
+        long[] leafUids = new long[fill];
+        long sibling = 0;
+        int n = 0;
+        while(source.next()) {
+            // 倒序放入，攒满后leafKeys就是从小到大的
+            source.key(leafKeys, (fill-1-n)*w);
+            leafUids[fill-1-n] = source.uid();
+            n ++;
+            if(n == fill) {
+                sibling = writeNode(true, leafKeys, leafUids, 0, fill, sibling);
+                levelUids.add(sibling);
+                levelFirstKeys.add(leafKeys, 0);
+                n = 0;
+            }
+        }
+        if(n > 0 || levelUids.size() == 0) {
+            sibling = writeNode(true, leafKeys, leafUids, fill-n, n, sibling);
+            levelUids.add(sibling);
+            if(n > 0) {
+                levelFirstKeys.add(leafKeys, (fill-n)*w);
+            } else {
+                levelFirstKeys.add(maxKey, 0);
+            }
+        }
+        levelUids.reverse();
+        levelFirstKeys.reverse();
+
+        // 逐层向上生成内部节点，直到只剩一个节点作为根节点
+        while(levelUids.size() > 1) {
+            int count = levelUids.size();
+            LongList upperUids = new LongList(1);
+            LongList upperFirstKeys = new LongList(w);
+            long[] nodeKeys = new long[fill*w];
+            long[] nodeSons = new long[fill];
+            sibling = 0;
+            // 从右往左每fill个子节点生成一个父节点，最左边的父节点可能不满
+            for(int end = count; end > 0; end -= fill) {
+                int begin = Math.max(0, end - fill);
+                int len = end - begin;
+                for(int i = 0; i < len; i ++) {
+                    int child = begin + i;
+                    nodeSons[i] = levelUids.get(child);
+                    if(child+1 < count) {
+                        levelFirstKeys.get(child+1, nodeKeys, i*w);
+                    } else {
+                        System.arraycopy(maxKey, 0, nodeKeys, i*w, w);
+                    }
+                }
+                sibling = writeNode(false, nodeKeys, nodeSons, 0, len, sibling);
+                upperUids.add(sibling);
+                upperFirstKeys.add(levelFirstKeys.data, begin*w);
+            }
+            upperUids.reverse();
+            upperFirstKeys.reverse();
+            levelUids = upperUids;
+            levelFirstKeys = upperFirstKeys;
+        }
+
+        byte[] bootRaw = BPlusTree.bootRaw(levelUids.get(0), balanceNumber, w);
+        return dm.insert(TransactionManagerImpl.SUPER_XID, bootRaw, segment);
+    }
+
+    private long writeNode(boolean isLeaf, long[] nodeKeys, long[] sons, int from, int len, long sibling) throws Exception {
+        int nodeSize = Node.nodeSize(balanceNumber, w);
+        SubArray raw = new SubArray(new byte[nodeSize], 0, nodeSize);
+        Node.setRawIsLeaf(raw, isLeaf);
+        Node.setRawNoKeys(raw, len);
+        Node.setRawSibling(raw, sibling);
+        for(int i = 0; i < len; i ++) {
+            Node.setRawKthSon(raw, sons[from+i], i, w);
+            Node.setRawKthKey(raw, nodeKeys, (from+i)*w, i, w);
+        }
+        return dm.insert(TransactionManagerImpl.SUPER_XID, raw.raw, segment);
+    }
+
+    // 把缓冲区排序后按从大到小的顺序写入临时文件
+    private void spill() throws IOException {
+        sort(keys, uids, w, 0, size-1);
+        File run = File.createTempFile("lxpeakdb-bulk", ".run");
+        run.deleteOnExit();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run)))) {
+            for(int i = size-1; i >= 0; i --) {
+                for(int c = 0; c < w; c ++) {
+                    out.writeLong(keys[i*w+c]);
+                }
+                out.writeLong(uids[i]);
+            }
+        }
+        runs.add(run);
+        size = 0;
+    }
+
+    // 第i项和第j项按(key, uid)比较，key按列依次比较
+    static int compare(long[] keys, long[] uids, int w, int i, int j) {
+        for(int c = 0; c < w; c ++) {
+            int r = Long.compare(keys[i*w+c], keys[j*w+c]);
+            if(r != 0) {
+                return r;
+            }
+        }
+        return Long.compare(uids[i], uids[j]);
+    }
+
+    static void swap(long[] keys, long[] uids, int w, int i, int j) {
+        for(int c = 0; c < w; c ++) {
+            long t = keys[i*w+c]; keys[i*w+c] = keys[j*w+c]; keys[j*w+c] = t;
+        }
+        long t = uids[i]; uids[i] = uids[j]; uids[j] = t;
+    }
+
+    // 按(key, uid)从小到大对两个平行数组做快速排序，keys中每个key占w个long
+    static void sort(long[] keys, long[] uids, int w, int lo, int hi) {
+        while(lo < hi) {
+            if(hi - lo < 16) {
+                // 小区间直接插入排序
+                for(int i = lo+1; i <= hi; i ++) {
+                    for(int j = i; j > lo && compare(keys, uids, w, j-1, j) > 0; j --) {
+                        swap(keys, uids, w, j-1, j);
+                    }
+                }
+                return;
+            }
+            // 把枢轴换到hi，划分过程中它的位置不变
+            swap(keys, uids, w, (lo + hi) >>> 1, hi);
+            int i = lo, j = hi-1;
+            while(true) {
+                while(compare(keys, uids, w, i, hi) < 0) i ++;
+                while(j > lo && compare(keys, uids, w, j, hi) > 0) j --;
+                if(i >= j) {
+                    break;
+                }
+                swap(keys, uids, w, i, j);
+                i ++;
+                j --;
+            }
+            swap(keys, uids, w, i, hi);
+            // 先递归较小的一边，较大的一边继续循环，避免栈过深
+            if(i - lo < hi - i) {
+                sort(keys, uids, w, lo, i-1);
+                lo = i+1;
+            } else {
+                sort(keys, uids, w, i+1, hi);
+                hi = i-1;
+            }
+        }
+    }
+
+    // 按(key, uid)从大到小依次给出排好序的数据
+    interface PairSource {
+        boolean next() throws IOException;
+        // 把当前的key拷贝到dst[off]开始的位置
+        void key(long[] dst, int off);
+        long uid();
+        void close() throws IOException;
+    }
+
+    static class MemorySource implements PairSource {
+        long[] keys, uids;
+        int w;
+        int pos;
+
+        MemorySource(long[] keys, long[] uids, int w, int size) {
+            this.keys = keys;
+            this.uids = uids;
+            this.w = w;
+            this.pos = size;
+        }
+
+        public boolean next() {
+            pos --;
+            return pos >= 0;
+        }
+
+        public void key(long[] dst, int off) { System.arraycopy(keys, pos*w, dst, off, w); }
+        public long uid() { return uids[pos]; }
+        public void close() {}
+    }
+
+    // 对多个临时文件做多路归并
+    static class MergeSource implements PairSource {
+        PriorityQueue<RunReader> heap;
+        List<RunReader> readers;
+        RunReader cur;
+
+        MergeSource(List<File> runs, int w) throws IOException {
+            heap = new PriorityQueue<>((a, b) -> b.compareTo(a));
+            readers = new ArrayList<>();
+            for(File run : runs) {
+                RunReader r = new RunReader(run, w);
+                readers.add(r);
+                if(r.advance()) {
+                    heap.add(r);
+                }
+            }
+        }
+
+        public boolean next() throws IOException {
+            if(cur != null && cur.advance()) {
+                heap.add(cur);
+            }
+            cur = heap.poll();
+            return cur != null;
+        }
+
+        // cur在下一次next时才前进，所以这里读到的是当前的值
+        public void key(long[] dst, int off) { System.arraycopy(cur.key, 0, dst, off, cur.key.length); }
+        public long uid() { return cur.uid; }
+
+        public void close() throws IOException {
+            for(RunReader r : readers) {
+                r.in.close();
+            }
+        }
+    }
+
+    static class RunReader {
+        DataInputStream in;
+        // 当前读到的值
+        long[] key;
+        long uid;
+
+        RunReader(File run, int w) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(run)));
+            key = new long[w];
+        }
+
+        boolean advance() throws IOException {
+            try {
+                for(int c = 0; c < key.length; c ++) {
+                    key[c] = in.readLong();
+                }
+                uid = in.readLong();
+                return true;
+            } catch(EOFException e) {
+                return false;
+            }
+        }
+
+        int compareTo(RunReader o) {
+            for(int c = 0; c < key.length; c ++) {
+                int r = Long.compare(key[c], o.key[c]);
+                if(r != 0) {
+                    return r;
+                }
+            }
+            return Long.compare(uid, o.uid);
+        }
+    }
+
+    // 简单的long动态数组，避免装箱，每个元素占w个long
+    static class LongList {
+        int w;
+        long[] data;
+        int size;
+
+        LongList(int w) {
+            this.w = w;
+            this.data = new long[16*w];
+        }
+
+        void add(long v) {
+            grow();
+            data[size ++] = v;
+        }
+
+        // 追加src[off]开始的w个long作为一个元素
+        void add(long[] src, int off) {
+            grow();
+            System.arraycopy(src, off, data, size*w, w);
+            size ++;
+        }
+
+        private void grow() {
+            if((size+1)*w > data.length) {
+                data = Arrays.copyOf(data, data.length*2);
+            }
+        }
+
+        long get(int i) { return data[i]; }
+        void get(int i, long[] dst, int off) { System.arraycopy(data, i*w, dst, off, w); }
+        int size() { return size; }
+
+        void reverse() {
+            for(int i = 0, j = size-1; i < j; i ++, j --) {
+                for(int c = 0; c < w; c ++) {
+                    long t = data[i*w+c]; data[i*w+c] = data[j*w+c]; data[j*w+c] = t;
+                }
+            }
+        }
+    }
+}
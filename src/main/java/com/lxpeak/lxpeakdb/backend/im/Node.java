@@ -1,10 +1,9 @@
 package com.lxpeak.lxpeakdb.backend.im;
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
 
 import com.lxpeak.lxpeakdb.backend.common.SubArray;
+import com.lxpeak.lxpeakdb.backend.dm.page.PageX;
 import com.lxpeak.lxpeakdb.backend.dm.dataItem.DataItem;
 import com.lxpeak.lxpeakdb.backend.tm.TransactionManagerImpl;
 import com.lxpeak.lxpeakdb.backend.utils.Parser;
@@ -17,8 +16,14 @@ import com.lxpeak.lxpeakdb.backend.utils.Parser;
  * 其中 LeafFlag 标记了该节点是否是个叶子节点；(1个字节)
  *     KeyNumber 为该节点中 key 的个数；(2个字节)
  *     SiblingUid 是其兄弟节点存储在 DM 中的 UID；(8个字节)
- *     son和key分别是8个字节。
- * 后续是穿插的子节点（SonN）和 KeyN。最后的一个 KeyN 始终为 MAX_VALUE，以此方便查找。
+ *     son是8个字节，key由所属B+树的 keyWidth 个long组成（联合索引每一列一个），单列索引的key就是8个字节。
+ * 后续是穿插的子节点（SonN）和 KeyN。最后的一个 KeyN 始终为 MAX_VALUE（每一列都是），以此方便查找。
+ * key之间按列依次比较，第一列相同时再比较第二列，以此类推。
+ *
+ * 节点大小由所属B+树的 balanceNumber 决定，每棵树可以不同，最大可以占满一整页，
+ * 所以节点内的读写都以 raw.end 为边界，而不是固定的节点大小。
+ *
+ * 被合并掉的节点 KeyNumber 为0，只剩下指向右兄弟的 SiblingUid，查找到这里时直接向右移动。
  */
 public class Node {
     static final int IS_LEAF_OFFSET = 0;
@@ -26,14 +31,33 @@ public class Node {
     static final int SIBLING_OFFSET = NO_KEYS_OFFSET+2;
     static final int NODE_HEADER_SIZE = SIBLING_OFFSET+8;
 
-    static final int BALANCE_NUMBER = 32;
-    static final int NODE_SIZE = NODE_HEADER_SIZE + (2*8)*(BALANCE_NUMBER*2+2);
+    static final int DEFAULT_BALANCE_NUMBER = 32;
+    static final int MAX_BALANCE_NUMBER = maxBalanceNumber(1);
+    static final int MIN_BALANCE_NUMBER = 2;
+    static final int MAX_KEY_WIDTH = 8;
+
+    // 一个[Son|Key]占用的字节数
+    static int pairSize(int keyWidth) {
+        return 8*(1+keyWidth);
+    }
+
+    // 节点作为DataItem存放，DataItem自己还有[ValidFlag 1][DataSize 2]的头部，整个DataItem不能超过页的最大空闲空间
+    static int maxBalanceNumber(int keyWidth) {
+        return ((PageX.MAX_FREE_SPACE - 3 - NODE_HEADER_SIZE) / pairSize(keyWidth) - 2) / 2;
+    }
+
+    // 节点分裂时有 balanceNumber*2 个key，再预留一个[Son|Key]给插入时的移位
+    static int nodeSize(int balanceNumber, int keyWidth) {
+        return NODE_HEADER_SIZE + pairSize(keyWidth)*(balanceNumber*2+2);
+    }
 
     // 持有B+树结构的引用，DataItem的引用和SubArray的引用，用于方便快速修改数据和释放数据
     BPlusTree tree;
     DataItem dataItem;
     SubArray raw;
     long uid;
+    // key由几个long组成
+    int w;
 
     static void setRawIsLeaf(SubArray raw, boolean isLeaf) {
         if(isLeaf) {
@@ -47,70 +71,118 @@ public class Node {
         return raw.raw[raw.start + IS_LEAF_OFFSET] == (byte)1;
     }
 
-    // 首先通过Parser.short2Byte((short)noKeys)得到一个内容是noKeys的字节数组，而且是short类型的，所以返回的是大小为2的字节数组
-    // 然后将这个数组赋值给raw，得到的数组是2个字节，复制的长度也就是2个字节了
+    // 节点的读写都直接在DataItem所在页的字节数组上按偏移进行，不分配临时数组
     static void setRawNoKeys(SubArray raw, int noKeys) {
-        // 用 System.arraycopy 将noKeys以字节数组的形式复制到raw中
-        System.arraycopy(Parser.short2Byte((short)noKeys), 0, raw.raw, raw.start+NO_KEYS_OFFSET, 2);
+        Parser.putShort(raw.raw, raw.start+NO_KEYS_OFFSET, (short)noKeys);
     }
 
     static int getRawNoKeys(SubArray raw) {
-        // 取出两个字节然后通过parseShort转成对应的数字
-        return (int)Parser.parseShort(Arrays.copyOfRange(raw.raw, raw.start+NO_KEYS_OFFSET, raw.start+NO_KEYS_OFFSET+2));
+        return (int)Parser.parseShort(raw.raw, raw.start+NO_KEYS_OFFSET);
     }
 
     static void setRawSibling(SubArray raw, long sibling) {
-        System.arraycopy(Parser.long2Byte(sibling), 0, raw.raw, raw.start+SIBLING_OFFSET, 8);
+        Parser.putLong(raw.raw, raw.start+SIBLING_OFFSET, sibling);
     }
 
     static long getRawSibling(SubArray raw) {
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, raw.start+SIBLING_OFFSET, raw.start+SIBLING_OFFSET+8));
+        return Parser.parseLong(raw.raw, raw.start+SIBLING_OFFSET);
     }
 
     // 设置第K个子节点
-    static void setRawKthSon(SubArray raw, long uid, int kth) {
-        int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2);
-        // 其实最终效果就是给raw.raw复制
-        System.arraycopy(Parser.long2Byte(uid), 0, raw.raw, offset, 8);
+    static void setRawKthSon(SubArray raw, long uid, int kth, int w) {
+        int offset = raw.start+NODE_HEADER_SIZE+kth*pairSize(w);
+        Parser.putLong(raw.raw, offset, uid);
     }
 
     // 得到第K个子节点
-    static long getRawKthSon(SubArray raw, int kth) {
-        int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2);
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset+8));
+    static long getRawKthSon(SubArray raw, int kth, int w) {
+        int offset = raw.start+NODE_HEADER_SIZE+kth*pairSize(w);
+        return Parser.parseLong(raw.raw, offset);
+    }
+
+    // 设置第K个子节点的Key，从key[off]开始取w个long
+    static void setRawKthKey(SubArray raw, long[] key, int off, int kth, int w) {
+        int offset = raw.start+NODE_HEADER_SIZE+kth*pairSize(w)+8;
+        for(int i = 0; i < w; i ++) {
+            Parser.putLong(raw.raw, offset+i*8, key[off+i]);
+        }
+    }
+
+    // 把第K个子节点的key的每一列都设为MAX_VALUE
+    static void setRawKthKeyMax(SubArray raw, int kth, int w) {
+        int offset = raw.start+NODE_HEADER_SIZE+kth*pairSize(w)+8;
+        for(int i = 0; i < w; i ++) {
+            Parser.putLong(raw.raw, offset+i*8, Long.MAX_VALUE);
+        }
+    }
+
+    // 得到第K个子节点的key的第col列
+    static long getRawKthKey(SubArray raw, int kth, int col, int w) {
+        int offset = raw.start+NODE_HEADER_SIZE+kth*pairSize(w)+8+col*8;
+        return Parser.parseLong(raw.raw, offset);
+    }
+
+    // 把第K个子节点的key拷贝到dst[off]开始的位置
+    static void getRawKthKey(SubArray raw, int kth, int w, long[] dst, int off) {
+        int offset = raw.start+NODE_HEADER_SIZE+kth*pairSize(w)+8;
+        for(int i = 0; i < w; i ++) {
+            dst[off+i] = Parser.parseLong(raw.raw, offset+i*8);
+        }
     }
 
-    // 设置第K个子节点的Key
-    static void setRawKthKey(SubArray raw, long key, int kth) {
-        int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2)+8;
-        System.arraycopy(Parser.long2Byte(key), 0, raw.raw, offset, 8);
+    // 第K个子节点的key和key[off]开始的w个long按列比较
+    static int compareRawKthKey(SubArray raw, int kth, int w, long[] key, int off) {
+        int offset = raw.start+NODE_HEADER_SIZE+kth*pairSize(w)+8;
+        for(int i = 0; i < w; i ++) {
+            int c = Long.compare(Parser.parseLong(raw.raw, offset+i*8), key[off+i]);
+            if(c != 0) {
+                return c;
+            }
+        }
+        return 0;
     }
 
-    // 得到第K个子节点的key
-    static long getRawKthKey(SubArray raw, int kth) {
-        int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2)+8;
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset+8));
+    // 二分查找第一个 >= key 的位置，没有则返回noKeys
+    static int lowerBound(SubArray raw, int noKeys, int w, long[] key) {
+        int lo = 0, hi = noKeys;
+        while(lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if(compareRawKthKey(raw, mid, w, key, 0) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
     }
 
     // 假如kth是2的话，有3个节点时分裂，那么1,2分给左节点（老节点），3分给了右节点（新节点）
-    static void copyRawFromKth(SubArray from, SubArray to, int kth) {
-        int offset = from.start+NODE_HEADER_SIZE+kth*(8*2);
+    static void copyRawFromKth(SubArray from, SubArray to, int kth, int w) {
+        int offset = from.start+NODE_HEADER_SIZE+kth*pairSize(w);
         System.arraycopy(from.raw, offset, to.raw, to.start+NODE_HEADER_SIZE, from.end-offset);
     }
 
+    // 删除第k个[SON|KEY]，后面的向前移动
+    static void removeRawKth(SubArray raw, int kth, int noKeys, int w) {
+        int size = pairSize(w);
+        int begin = raw.start+NODE_HEADER_SIZE+kth*size;
+        System.arraycopy(raw.raw, begin+size, raw.raw, begin, (noKeys-kth-1)*size);
+    }
+
     // 从第k个开始移动一个[SON|UID]的空间,空出来的地方就是以后的第K个位置
-    static void shiftRawKth(SubArray raw, int kth) {
-        int begin = raw.start+NODE_HEADER_SIZE+(kth+1)*(8*2);
-        int end = raw.start+NODE_SIZE-1;
-        for(int i = end; i >= begin; i --) {
-            raw.raw[i] = raw.raw[i-(8*2)];
-        }
+    static void shiftRawKth(SubArray raw, int kth, int w) {
+        int size = pairSize(w);
+        int begin = raw.start+NODE_HEADER_SIZE+(kth+1)*size;
+        int end = raw.end;
+        // System.arraycopy 能正确处理源和目标重叠的情况
+        System.arraycopy(raw.raw, begin-size, raw.raw, begin, end-begin);
     }
 
     // 生成一个根节点
-    static byte[] newRootRaw(long left, long right, long key)  {
-        //开辟NODE_SIZE大小的字节数组
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+    static byte[] newRootRaw(int balanceNumber, int w, long left, long right, long[] key)  {
+        //开辟nodeSize大小的字节数组
+        int size = nodeSize(balanceNumber, w);
+        SubArray raw = new SubArray(new byte[size], 0, size);
 
         //下面几个方法都是来填充开辟的字节数组的
         //第一个字节保存是否为叶子节点
@@ -119,17 +191,18 @@ public class Node {
         setRawNoKeys(raw, 2);
         // 这个方法用的是long型的，所以这里占用8个字节
         setRawSibling(raw, 0);
-        setRawKthSon(raw, left, 0);
-        setRawKthKey(raw, key, 0);
-        setRawKthSon(raw, right, 1);
-        setRawKthKey(raw, Long.MAX_VALUE, 1);
+        setRawKthSon(raw, left, 0, w);
+        setRawKthKey(raw, key, 0, 0, w);
+        setRawKthSon(raw, right, 1, w);
+        setRawKthKeyMax(raw, 1, w);
 
         return raw.raw;
     }
 
     // 生成一个空的根节点数据
-    static byte[] newNilRootRaw()  {
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+    static byte[] newNilRootRaw(int balanceNumber, int w)  {
+        int size = nodeSize(balanceNumber, w);
+        SubArray raw = new SubArray(new byte[size], 0, size);
 
         setRawIsLeaf(raw, true);
         setRawNoKeys(raw, 0);
@@ -146,6 +219,7 @@ public class Node {
         n.dataItem = di;
         n.raw = di.data();
         n.uid = uid;
+        n.w = bTree.keyWidth;
         return n;
     }
 
@@ -153,10 +227,16 @@ public class Node {
         dataItem.release();
     }
 
+    // 叶子标记在节点创建后就不会再改变，读取时不需要加锁
     public boolean isLeaf() {
+        return getRawIfLeaf(raw);
+    }
+
+    // 是否是被合并清空的节点
+    boolean isEmpty() {
         dataItem.rLock();
         try {
-            return getRawIfLeaf(raw);
+            return getRawNoKeys(raw) == 0;
         } finally {
             dataItem.rUnLock();
         }
@@ -168,83 +248,114 @@ public class Node {
     }
 
     // 寻找对应key的UID，如果找不到，则返回兄弟节点的UID
-    public SearchNextRes searchNext(long key) {
-        // 读锁
-        dataItem.rLock();
-        try {
-            SearchNextRes res = new SearchNextRes();
-            // key 个数
-            int noKeys = getRawNoKeys(raw);
-            for(int i = 0; i < noKeys; i ++) {
-                long ik = getRawKthKey(raw, i);
-                // 遍历键，找到第一个大于目标键的位置，返回对应子节点UID；若无，返回兄弟节点UID
-                if(key < ik) {
-                    res.uid = getRawKthSon(raw, i);
-                    res.siblingUid = 0;
+    // 先不加锁地乐观读，读完后校验版本戳，期间有写入（或读到了写了一半的数据导致越界）时再加读锁重读
+    public SearchNextRes searchNext(long[] key) {
+        long stamp = dataItem.tryOptimisticRead();
+        if(stamp != 0) {
+            try {
+                SearchNextRes res = doSearchNext(key);
+                if(dataItem.validate(stamp)) {
                     return res;
                 }
+            } catch(RuntimeException e) {
+                // 数据不一致，交给下面加锁重读
             }
-            res.uid = 0;
-            res.siblingUid = getRawSibling(raw);
-            return res;
-
+        }
+        dataItem.rLock();
+        try {
+            return doSearchNext(key);
         } finally {
             dataItem.rUnLock();
         }
     }
 
-    class LeafSearchRangeRes {
-        List<Long> uids;
+    private SearchNextRes doSearchNext(long[] key) {
+        SearchNextRes res = new SearchNextRes();
+        // key 个数
+        int noKeys = getNoKeysBounded();
+        // 二分找到第一个不小于目标键的位置，返回对应子节点UID；若无，返回兄弟节点UID
+        // 子节点i中的key都不大于key_i，但重复的key可能跨越多个子节点（key_i等于子节点i+1的第一个key，子节点i中也可能有key_i），
+        // 所以要进入第一个可能包含目标键的子节点，再顺着兄弟指针向右找，否则会漏掉左边的重复key
+        int i = lowerBound(raw, noKeys, w, key);
+        if(i < noKeys) {
+            res.uid = getRawKthSon(raw, i, w);
+            res.siblingUid = 0;
+            return res;
+        }
+        res.uid = 0;
+        res.siblingUid = getRawSibling(raw);
+        return res;
+    }
+
+    static class LeafScanRes {
+        // 本次写入keys/uids的个数
+        int count;
         long siblingUid;
     }
 
-    // leafSearchRange 方法在当前节点进行范围查找，范围是 [leftKey, rightKey]，
+    // leafScan 方法在当前节点进行范围查找，范围是 [leftKey, rightKey]，把命中的key和uid写进调用方提供的数组，不产生装箱。
+    // uids的容量不小于 capacity()，keys中每个key依次占w个long，容量不小于 capacity()*w。
     // 这里约定如果 rightKey 大于等于该节点的最大的 key, 则还同时返回兄弟节点的 UID，方便继续搜索下一个节点。
-    public LeafSearchRangeRes leafSearchRange(long leftKey, long rightKey) {
-        dataItem.rLock();
-        try {
-            // key个数
-            int noKeys = getRawNoKeys(raw);
-            int kth = 0;
-            while(kth < noKeys) {
-                long ik = getRawKthKey(raw, kth);
-                // 找到比leftKey大的key后就跳出循环，开始从leftKey作为起点进行查找
-                if(ik >= leftKey) {
-                    break;
-                }
-                kth ++;
-            }
-            List<Long> uids = new ArrayList<>();
-            while(kth < noKeys) {
-                long ik = getRawKthKey(raw, kth);
-                if(ik <= rightKey) {
-                    uids.add(getRawKthSon(raw, kth));
-                    kth ++;
-                } else {
-                    break;
+    public void leafScan(long[] leftKey, long[] rightKey, long[] keys, long[] uids, LeafScanRes res) {
+        long stamp = dataItem.tryOptimisticRead();
+        if(stamp != 0) {
+            try {
+                doLeafScan(leftKey, rightKey, keys, uids, res);
+                if(dataItem.validate(stamp)) {
+                    return;
                 }
+            } catch(RuntimeException e) {
+                // 数据不一致，交给下面加锁重读
             }
-            long siblingUid = 0;
-            // 如果该节点找完了，则返回兄弟节点的UID，方便继续搜索下一个节点。
-            if(kth == noKeys) {
-                siblingUid = getRawSibling(raw);
-            }
-            LeafSearchRangeRes res = new LeafSearchRangeRes();
-            res.uids = uids;
-            res.siblingUid = siblingUid;
-            return res;
+        }
+        dataItem.rLock();
+        try {
+            doLeafScan(leftKey, rightKey, keys, uids, res);
         } finally {
             dataItem.rUnLock();
         }
     }
 
+    private void doLeafScan(long[] leftKey, long[] rightKey, long[] keys, long[] uids, LeafScanRes res) {
+        // key个数
+        int noKeys = getNoKeysBounded();
+        // 二分找到第一个不小于leftKey的key，开始从leftKey作为起点进行查找
+        int kth = lowerBound(raw, noKeys, w, leftKey);
+        int count = 0;
+        while(kth < noKeys) {
+            if(compareRawKthKey(raw, kth, w, rightKey, 0) <= 0) {
+                getRawKthKey(raw, kth, w, keys, count*w);
+                uids[count] = getRawKthSon(raw, kth, w);
+                count ++;
+                kth ++;
+            } else {
+                break;
+            }
+        }
+        res.count = count;
+        // 如果该节点找完了，则返回兄弟节点的UID，方便继续搜索下一个节点。
+        res.siblingUid = kth == noKeys ? getRawSibling(raw) : 0;
+    }
+
+    // 节点最多能容纳的[Son|Key]个数
+    int capacity() {
+        return (raw.end - raw.start - NODE_HEADER_SIZE) / pairSize(w);
+    }
+
+    // 乐观读时可能读到写了一半的keyNumber，限制在节点容量之内，避免读到节点之外的数据
+    private int getNoKeysBounded() {
+        int noKeys = getRawNoKeys(raw);
+        return Math.max(0, Math.min(noKeys, capacity()));
+    }
+
     class InsertAndSplitRes {
-        long siblingUid, newSon, newKey;
+        long siblingUid, newSon;
+        long[] newKey;
     }
 
     // 插入键值对，若超出容量则分裂。
     // 若需要分裂，将后半部分键转移到新节点，更新兄弟指针，返回新节点信息供父节点处理
-    public InsertAndSplitRes insertAndSplit(long uid, long key) throws Exception {
+    public InsertAndSplitRes insertAndSplit(long uid, long[] key) throws Exception {
         boolean success = false;
         Exception err = null;
         InsertAndSplitRes res = new InsertAndSplitRes();
@@ -283,20 +394,11 @@ public class Node {
     }
 
     // 将节点的key和uid插入当前节点的合适位置，并调整节点结构
-    private boolean insert(long uid, long key) {
+    private boolean insert(long uid, long[] key) {
         // 得到keyNumber
         int noKeys = getRawNoKeys(raw);
-        int kth = 0;
-        while(kth < noKeys) {
-            // 得到第K个节点的KEY
-            long ik = getRawKthKey(raw, kth);
-            // 一直找到比key大或正好为key，然后跳出循环
-            if(ik < key) {
-                kth ++;
-            } else {
-                break;
-            }
-        }
+        // 二分找到第一个比key大或正好为key的位置
+        int kth = lowerBound(raw, noKeys, w, key);
         // 如果这个节点找到最后一个key了且存在兄弟节点，不允许插入到末尾
         if(kth == noKeys && getRawSibling(raw) != 0) return false;
 
@@ -305,10 +407,10 @@ public class Node {
         if(getRawIfLeaf(raw)) {
             // 叶子节点
             // 将第k个节点及其以后的数据后移
-            shiftRawKth(raw, kth);
+            shiftRawKth(raw, kth, w);
             // 在第K个节点处插入key和uid
-            setRawKthKey(raw, key, kth);
-            setRawKthSon(raw, uid, kth);
+            setRawKthKey(raw, key, 0, kth, w);
+            setRawKthSon(raw, uid, kth, w);
         } else {
             // 非叶子节点
             // 解释一下，叶子结点的比较好理解，就是将字节移动之后再添加上新的key和uid即可，但是非叶子节点比较麻烦。
@@ -331,14 +433,15 @@ public class Node {
             // A： 因为在split方法里已经对旧节点和新节点的raw重新赋值了，旧节点分裂点key右边的部分都赋值给了新节点，也就是[1,2,3]->[1,2]和[3]
 
             // 得到原本第k个节点的key
-            long kk = getRawKthKey(raw, kth);
+            long[] kk = new long[w];
+            getRawKthKey(raw, kth, w, kk, 0);
             // 在第K个节点处插入key
-            setRawKthKey(raw, key, kth);
+            setRawKthKey(raw, key, 0, kth, w);
             // 将第k+1个节点及其以后的数据后移
-            shiftRawKth(raw, kth+1);
+            shiftRawKth(raw, kth+1, w);
             // 在第K+1个节点处插入key和uid
-            setRawKthKey(raw, kk, kth+1);
-            setRawKthSon(raw, uid, kth+1);
+            setRawKthKey(raw, kk, 0, kth+1, w);
+            setRawKthSon(raw, uid, kth+1, w);
         }
         // 设置keyNumber
         setRawNoKeys(raw, noKeys+1);
@@ -346,36 +449,183 @@ public class Node {
     }
 
     private boolean needSplit() {
-        return BALANCE_NUMBER*2 == getRawNoKeys(raw);
+        return tree.balanceNumber*2 == getRawNoKeys(raw);
     }
 
     class SplitRes {
-        long newSon, newKey;
+        long newSon;
+        long[] newKey;
     }
 
     private SplitRes split() throws Exception {
         // 开辟新空间给分裂出的新节点
-        SubArray nodeRaw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+        int balanceNumber = tree.balanceNumber;
+        int size = nodeSize(balanceNumber, w);
+        SubArray nodeRaw = new SubArray(new byte[size], 0, size);
         // 给新节点赋值
         setRawIsLeaf(nodeRaw, getRawIfLeaf(raw));
-        setRawNoKeys(nodeRaw, BALANCE_NUMBER);
+        setRawNoKeys(nodeRaw, balanceNumber);
         setRawSibling(nodeRaw, getRawSibling(raw));
         // 给新节点划分一半的key，分裂点的key属于旧节点
-        copyRawFromKth(raw, nodeRaw, BALANCE_NUMBER);
+        copyRawFromKth(raw, nodeRaw, balanceNumber, w);
         // 得到新节点UID
-        long son = tree.dm.insert(TransactionManagerImpl.SUPER_XID, nodeRaw.raw);
+        long son = tree.dm.insert(TransactionManagerImpl.SUPER_XID, nodeRaw.raw, tree.segment);
 
         // 给老节点赋值
-        setRawNoKeys(raw, BALANCE_NUMBER);
+        setRawNoKeys(raw, balanceNumber);
         // 老节点的兄弟节点是新节点
         setRawSibling(raw, son);
 
         SplitRes res = new SplitRes();
         res.newSon = son;
-        res.newKey = getRawKthKey(nodeRaw, 0);
+        res.newKey = new long[w];
+        getRawKthKey(nodeRaw, 0, w, res.newKey, 0);
         return res;
     }
 
+    class DeleteRes {
+        boolean found, underflow;
+        long siblingUid;
+    }
+
+    // 从叶子中删除(key, uid)，如果本节点找完了还没找到，返回兄弟节点的UID继续找
+    public DeleteRes delete(long[] key, long uid) throws Exception {
+        DeleteRes res = new DeleteRes();
+        dataItem.before();
+        try {
+            int noKeys = getRawNoKeys(raw);
+            int kth = lowerBound(raw, noKeys, w, key);
+            while(kth < noKeys && compareRawKthKey(raw, kth, w, key, 0) == 0) {
+                if(getRawKthSon(raw, kth, w) == uid) {
+                    removeRawKth(raw, kth, noKeys, w);
+                    setRawNoKeys(raw, noKeys-1);
+                    res.found = true;
+                    res.underflow = noKeys-1 < tree.balanceNumber;
+                    return res;
+                }
+                kth ++;
+            }
+            if(kth == noKeys) {
+                res.siblingUid = getRawSibling(raw);
+            }
+            return res;
+        } finally {
+            if(res.found) {
+                dataItem.after(TransactionManagerImpl.SUPER_XID);
+            } else {
+                dataItem.unBefore();
+            }
+        }
+    }
+
+    class MergeRes {
+        boolean merged;
+        // 合并前本节点的最后一个key，用于在父节点中找到指向本节点的项
+        long[] lastKey;
+    }
+
+    /*
+    * 节点中的key不足 balanceNumber 个时，如果右兄弟放得下，就把本节点的所有项整体移到右兄弟的开头，本节点变为空节点。
+    * 只向右合并，不从右兄弟借项：B-link树中读者和插入者只会向右移动，从父节点拿到旧指针的人到达空节点后顺着兄弟指针就能找到这些项；
+    * 如果把项向左移，已经越过本节点的人就再也找不到它们了。
+    * 先写右兄弟再清空本节点，中途崩溃最多留下重复的项，不会丢失。
+    * 空节点之后不会再被插入（插入到末尾且有兄弟时总是向右移动），所以它的兄弟指针也不会再改变。
+    * */
+    public MergeRes mergeRight() throws Exception {
+        MergeRes res = new MergeRes();
+        dataItem.before();
+        try {
+            int noKeys = getRawNoKeys(raw);
+            long sibling = getRawSibling(raw);
+            if(noKeys == 0 || noKeys >= tree.balanceNumber || sibling == 0) {
+                return res;
+            }
+            Node right = loadNode(tree, sibling);
+            try {
+                right.dataItem.before();
+                boolean moved = false;
+                try {
+                    int rightKeys = getRawNoKeys(right.raw);
+                    // 合并后不能达到分裂的大小
+                    if(noKeys + rightKeys >= tree.balanceNumber*2) {
+                        return res;
+                    }
+                    int len = noKeys*pairSize(w);
+                    int begin = right.raw.start+NODE_HEADER_SIZE;
+                    System.arraycopy(right.raw.raw, begin, right.raw.raw, begin+len, rightKeys*pairSize(w));
+                    System.arraycopy(raw.raw, raw.start+NODE_HEADER_SIZE, right.raw.raw, begin, len);
+                    setRawNoKeys(right.raw, noKeys+rightKeys);
+                    moved = true;
+                } finally {
+                    if(moved) {
+                        right.dataItem.after(TransactionManagerImpl.SUPER_XID);
+                    } else {
+                        right.dataItem.unBefore();
+                    }
+                }
+            } finally {
+                right.release();
+            }
+            res.lastKey = new long[w];
+            getRawKthKey(raw, noKeys-1, w, res.lastKey, 0);
+            setRawNoKeys(raw, 0);
+            res.merged = true;
+            return res;
+        } finally {
+            if(res.merged) {
+                dataItem.after(TransactionManagerImpl.SUPER_XID);
+            } else {
+                dataItem.unBefore();
+            }
+        }
+    }
+
+    class RemoveSonRes {
+        // 是否已经处理完（删除了或者放弃了）
+        boolean done, removed, underflow;
+        long siblingUid;
+    }
+
+    /*
+    * 从内部节点中删除指向已被合并清空的子节点son的项，son原来的范围交给它右边的子节点。
+    * 只有右边的子节点正是son的兄弟（son的项都移到了那里）时才能删除，
+    * 否则（son是本节点最后一个子节点，或者son分裂出的节点还没插入到本节点）就放弃，son继续作为空节点留在链表里。
+    * key是son合并前的最后一个key，本节点中son对应的key不小于它。
+    * */
+    public RemoveSonRes removeSon(long son, long sonSibling, long[] key) throws Exception {
+        RemoveSonRes res = new RemoveSonRes();
+        dataItem.before();
+        try {
+            int noKeys = getRawNoKeys(raw);
+            int kth = lowerBound(raw, noKeys, w, key);
+            for(; kth < noKeys; kth ++) {
+                if(getRawKthSon(raw, kth, w) == son) {
+                    res.done = true;
+                    if(kth+1 < noKeys && getRawKthSon(raw, kth+1, w) == sonSibling) {
+                        removeRawKth(raw, kth, noKeys, w);
+                        setRawNoKeys(raw, noKeys-1);
+                        res.removed = true;
+                        res.underflow = noKeys-1 < tree.balanceNumber;
+                    }
+                    return res;
+                }
+                if(compareRawKthKey(raw, kth, w, key, 0) > 0) {
+                    res.done = true;
+                    return res;
+                }
+            }
+            res.siblingUid = getRawSibling(raw);
+            res.done = res.siblingUid == 0;
+            return res;
+        } finally {
+            if(res.removed) {
+                dataItem.after(TransactionManagerImpl.SUPER_XID);
+            } else {
+                dataItem.unBefore();
+            }
+        }
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
@@ -383,8 +633,10 @@ public class Node {
         int KeyNumber = getRawNoKeys(raw);
         sb.append("KeyNumber: ").append(KeyNumber).append("\n");
         sb.append("sibling: ").append(getRawSibling(raw)).append("\n");
+        long[] key = new long[w];
         for(int i = 0; i < KeyNumber; i ++) {
-            sb.append("son: ").append(getRawKthSon(raw, i)).append(", key: ").append(getRawKthKey(raw, i)).append("\n");
+            getRawKthKey(raw, i, w, key, 0);
+            sb.append("son: ").append(getRawKthSon(raw, i, w)).append(", key: ").append(Arrays.toString(key)).append("\n");
         }
         return sb.toString();
     }
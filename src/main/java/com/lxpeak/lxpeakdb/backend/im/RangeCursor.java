@@ -0,0 +1,161 @@
+package com.lxpeak.lxpeakdb.backend.im;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * B+树的范围游标，按key从小到大遍历[leftKey, rightKey]内的uid。
+ *
+ * 游标每次只读取一个叶子节点：把该叶子中命中的key和uid拷贝到两个long数组里后立刻释放节点（每个key依次占keyWidth个long），
+ * 然后在数组上迭代，用完后再顺着兄弟指针读取下一个叶子。所以：
+ * 1、不会像searchRange一样把整个范围的uid装箱放进List；
+ * 2、调用方随时可以停止遍历（例如LIMIT），后面的叶子根本不会被读取；
+ * 3、迭代期间不持有任何节点的引用和锁。叶子分裂只会把key移到当前叶子和原兄弟之间的新节点里，
+ *    而这些key在拷贝时已经读到了，所以直接走拷贝时记下的兄弟指针不会漏掉数据。
+ * 4、删除时叶子可能被整体并入右兄弟（见Node.mergeRight），已经读过的项会再次出现在后面的叶子里。
+ *    读取下一个叶子时总是跳过key小于上一个返回的key的项（没有合并时后面的叶子里不会有这样的项）；
+ *    key相等的项可能是跨越多个叶子的重复key，所以记录下当前key已经返回过的uid，
+ *    只有上一个叶子已经被清空（它的项被移到了右边）时，才跳过其中已经返回过的。
+ */
+public class RangeCursor {
+    private BPlusTree tree;
+    private long[] leftKey, rightKey;
+    private int w;
+
+    private long[] keys;
+    private long[] uids;
+    private Node.LeafScanRes scanRes;
+    // 当前缓冲区内的位置和个数
+    private int pos, count;
+    // 下一个要读取的叶子，为0表示没有了
+    private long nextLeaf;
+    private boolean started;
+    // 上一次next返回的项，以及它所在的叶子
+    private boolean hasCur;
+    private long[] curKey;
+    private long curUid;
+    private long curLeaf;
+    // 当前缓冲区来自的叶子
+    private long bufLeaf;
+    // 和curKey相同的key已经返回过的uid
+    private long[] runUids = new long[16];
+    private int runSize;
+
+    RangeCursor(BPlusTree tree, long[] leftKey, long[] rightKey) {
+        this.tree = tree;
+        this.leftKey = leftKey;
+        this.rightKey = rightKey;
+        this.w = tree.keyWidth;
+        this.curKey = new long[w];
+        int capacity = tree.balanceNumber*2+2;
+        this.keys = new long[capacity*w];
+        this.uids = new long[capacity];
+        this.scanRes = new Node.LeafScanRes();
+    }
+
+    public boolean hasNext() throws Exception {
+        if(!started) {
+            started = true;
+            // 找到范围查找里的左侧边界leftKey所在的叶子
+            nextLeaf = tree.searchLeaf(leftKey);
+        }
+        // 当前叶子可能一个都没命中（例如leftKey大于叶子里所有的key），继续读下一个叶子
+        while(pos == count && nextLeaf != 0) {
+            long leafUid = nextLeaf;
+            Node leaf = Node.loadNode(tree, leafUid);
+            try {
+                leaf.leafScan(leftKey, rightKey, keys, uids, scanRes);
+            } finally {
+                leaf.release();
+            }
+            pos = 0;
+            count = scanRes.count;
+            nextLeaf = scanRes.siblingUid;
+            bufLeaf = leafUid;
+            if(hasCur && count > 0 && compareCur(0) <= 0) {
+                skipReturned();
+            }
+        }
+        return pos < count;
+    }
+
+    // 跳过缓冲区中已经返回过的项
+    private void skipReturned() throws Exception {
+        Node prev = Node.loadNode(tree, curLeaf);
+        boolean merged;
+        try {
+            merged = prev.isEmpty();
+        } finally {
+            prev.release();
+        }
+        long[] returned = null;
+        if(merged) {
+            returned = Arrays.copyOf(runUids, runSize);
+            Arrays.sort(returned);
+        }
+        // 叶子中key有序，只需要处理开头key不大于curKey的部分，留下的项往后挪，pos指向第一个留下的
+        int end = pos;
+        while(end < count && compareCur(end) <= 0) {
+            end ++;
+        }
+        int keep = end;
+        for(int i = end-1; i >= pos; i --) {
+            if(compareCur(i) < 0 || (merged && Arrays.binarySearch(returned, uids[i]) >= 0)) {
+                continue;
+            }
+            keep --;
+            System.arraycopy(keys, i*w, keys, keep*w, w);
+            uids[keep] = uids[i];
+        }
+        pos = keep;
+    }
+
+    // 缓冲区中第i个key和curKey比较
+    private int compareCur(int i) {
+        for(int c = 0; c < w; c ++) {
+            int r = Long.compare(keys[i*w+c], curKey[c]);
+            if(r != 0) {
+                return r;
+            }
+        }
+        return 0;
+    }
+
+    // 返回下一个uid，调用前需要先调用hasNext
+    public long next() {
+        if(pos == count) {
+            throw new NoSuchElementException();
+        }
+        if(!hasCur || compareCur(pos) != 0) {
+            runSize = 0;
+        }
+        hasCur = true;
+        System.arraycopy(keys, pos*w, curKey, 0, w);
+        curUid = uids[pos];
+        if(runSize == runUids.length) {
+            runUids = Arrays.copyOf(runUids, runSize*2);
+        }
+        runUids[runSize ++] = curUid;
+        curLeaf = bufLeaf;
+        pos ++;
+        return curUid;
+    }
+
+    // 从B+树中删除上一次next返回的项，不影响之后的遍历
+    public void remove() throws Exception {
+        if(!hasCur) {
+            throw new IllegalStateException();
+        }
+        tree.delete(curKey, curUid);
+    }
+
+    // 上一次next返回的uid对应的key，只能用于keyWidth为1的树
+    public long key() {
+        return curKey[0];
+    }
+
+    // 上一次next返回的uid对应的key的拷贝
+    public long[] keyColumns() {
+        return curKey.clone();
+    }
+}
@@ -1,11 +1,20 @@
 package com.lxpeak.lxpeakdb.backend.parser;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+import com.lxpeak.lxpeakdb.backend.parser.statement.Close;
 import com.lxpeak.lxpeakdb.backend.parser.statement.Create;
+import com.lxpeak.lxpeakdb.backend.parser.statement.CreateIndex;
+import com.lxpeak.lxpeakdb.backend.parser.statement.Deallocate;
+import com.lxpeak.lxpeakdb.backend.parser.statement.Declare;
 import com.lxpeak.lxpeakdb.backend.parser.statement.Drop;
+import com.lxpeak.lxpeakdb.backend.parser.statement.Execute;
+import com.lxpeak.lxpeakdb.backend.parser.statement.Fetch;
+import com.lxpeak.lxpeakdb.backend.parser.statement.Prepare;
 import com.lxpeak.lxpeakdb.backend.parser.statement.Select;
+import com.lxpeak.lxpeakdb.backend.parser.statement.SetFormat;
 import com.lxpeak.lxpeakdb.backend.parser.statement.Where;
 import com.lxpeak.lxpeakdb.common.Error;
 import com.lxpeak.lxpeakdb.backend.parser.statement.Abort;
@@ -16,6 +25,7 @@ import com.lxpeak.lxpeakdb.backend.parser.statement.Insert;
 import com.lxpeak.lxpeakdb.backend.parser.statement.Show;
 import com.lxpeak.lxpeakdb.backend.parser.statement.SingleExpression;
 import com.lxpeak.lxpeakdb.backend.parser.statement.Update;
+import com.lxpeak.lxpeakdb.backend.parser.statement.Vacuum;
 
 /*
 * SQL 语句语法如下：
@@ -35,26 +45,57 @@ import com.lxpeak.lxpeakdb.backend.parser.statement.Update;
 *     <field name> <field type>
 *     ...
 *     <field name> <field type>
-*     [(index <field name list>)]
+*     [(index <index> [unique] [include (<field name> ...)] [fanout <number>] <index> ...)]
+*     <index> 为 <field name> 或联合索引 (<field name> <field name> ...)
 *         create table students
 *         id int32,
 *         name string,
 *         age int32,
-*         (index id name)
+*         (index id unique fanout 256 name)
+*         create table orders id int64, tenant_id int32, created_at int64 (index id (tenant_id created_at))
+*         create table orders id int64, tenant_id int32, amount int64 (index id tenant_id include (amount))
+*         create table logs ts int64, msg string
+*
+* <create index statement>
+*     create [unique] index on <table name> (<field name> [<field name> ...] [include <field name> ...] [fanout <number>])
+*         create index on students (age)
+*         create unique index on orders (tenant_id created_at)
+*         create index on orders (tenant_id include amount)
+*
+* <set format statement>
+*     set format (text|binary)
+*     这个会话之后SELECT和FETCH的结果格式，默认为text；binary时带有列头，值按类型编码（见ResultStream）
+*         set format binary
+*
+* <vacuum statement>
+*     vacuum <table name>
+*         vacuum students
 *
 * <drop statement>
 *     drop table <table name>
 *         drop table students
 *
 * <select statement>
-*     select (*|<field name list>) from <table name> [<where statement>]
+*     select (*|<field name list>) from <table name> [<where statement>] [order by <field name> [asc|desc]] [limit <number>]
 *         select * from student where id = 1
 *         select name from student where id > 1 and id < 4
 *         select name, age, id from student where id = 12
+*         select * from student where id > 1 limit 10
+*         select name, age from student where id > 1 order by age desc limit 3
 *
 * <insert statement>
-*     insert into <table name> values <value list>
+*     insert into <table name> values (<value list> | (<value list>), (<value list>) ...)
 *         insert into student values 5 "Zhang SAN" 22
+*         insert into student values (5, "Zhang San", 22), (6, "Li Si", 23)
+*
+* <batch>
+*     <statement>; <statement>; ...
+*     一个包中的多条语句在一个事务中执行，不能包含begin、commit、abort、select、prepare、deallocate、游标语句和set format，结果为每条语句一行
+*         insert into student values 7 "Wang Wu" 20; update student set age = 21 where id = 5
+*
+* <upsert statement>
+*     upsert into <table name> values <value list>
+*         upsert into student values 5 "Zhang San" 23
 *
 * <delete statement>
 *     delete from <table name> <where statement>
@@ -64,9 +105,40 @@ import com.lxpeak.lxpeakdb.backend.parser.statement.Update;
 *     update <table name> set <field name>=<value> [<where statement>]
 *         update student set name = "ZYJ" where id = 5
 *
+* <prepare statement>
+*     prepare <name> as (<select statement>|<insert statement>|<upsert statement>|<update statement>|<delete statement>)
+*     语句中的值可以写成 ? 作为参数，执行时按出现的顺序代入；引号中的"?"是普通的值。PREPARE以外的语句不能有参数
+*         prepare find as select name from student where id = ?
+*         prepare add as insert into student values ? ? ?
+*
+* <execute statement>
+*     execute <name> [<value> ...]
+*         execute find 5
+*         execute add 8 "Zhao Liu" 19
+*
+* <deallocate statement>
+*     deallocate <name>
+*         deallocate find
+*
+* <declare statement>
+*     declare <name> cursor for <select statement>
+*     服务端游标：只打开查询，结果由fetch分批取出，服务端只保存游标在B+树或堆段中的位置。
+*     不在事务中时游标有自己的事务，close时结束
+*         declare c cursor for select * from student where id > 1
+*
+* <fetch statement>
+*     fetch [<number>] from <name>
+*     取出接下来最多<number>行（默认256行），没有更多行时结果为空
+*         fetch 100 from c
+*
+* <close statement>
+*     close <name>
+*         close c
+*
 * <where statement>
-*     where <field name> (>|<|=) <value> [(and|or) <field name> (>|<|=) <value>]
+*     where <field name> (>|<|=|like) <value> [(and|or) <field name> (>|<|=|like) <value>]
 *         where age > 10 or age < 3
+*         where name like "Zhang%" and age > 20
 *
 * <field name> <table name>
 *     [a-zA-Z][a-zA-Z0-9_]*
@@ -79,7 +151,15 @@ import com.lxpeak.lxpeakdb.backend.parser.statement.Update;
 *
 * */
 public class Parser {
+    // 预处理语句中参数的位置上的值，只有不在引号中的 ? 解析成这个对象，代入参数时按引用比较
+    static final String PARAM = new String("?");
+
     public static Object Parse(byte[] statement) throws Exception {
+        return Parse(statement, false);
+    }
+
+    // params为true时是PREPARE中的语句，值可以是参数
+    private static Object Parse(byte[] statement, boolean params) throws Exception {
         Tokenizer tokenizer = new Tokenizer(statement);
         String token = tokenizer.peek();
         tokenizer.pop();
@@ -109,6 +189,10 @@ public class Parser {
                 case "insert":
                     stat = parseInsert(tokenizer);
                     break;
+                case "upsert":
+                    stat = parseInsert(tokenizer);
+                    ((Insert)stat).upsert = true;
+                    break;
                 case "delete":
                     stat = parseDelete(tokenizer);
                     break;
@@ -118,12 +202,43 @@ public class Parser {
                 case "show":
                     stat = parseShow(tokenizer);
                     break;
+                case "set":
+                    stat = parseSetFormat(tokenizer);
+                    break;
+                case "vacuum":
+                    stat = parseVacuum(tokenizer);
+                    break;
+                case "prepare":
+                    stat = parsePrepare(tokenizer);
+                    break;
+                case "execute":
+                    stat = parseExecute(tokenizer);
+                    break;
+                case "deallocate":
+                    stat = parseDeallocate(tokenizer);
+                    break;
+                case "declare":
+                    stat = parseDeclare(tokenizer);
+                    break;
+                case "fetch":
+                    stat = parseFetch(tokenizer);
+                    break;
+                case "close":
+                    stat = parseClose(tokenizer);
+                    break;
                 default:
                     throw Error.InvalidCommandException;
             }
+            if(!params && countParams(stat) > 0) {
+                throw Error.InvalidCommandException;
+            }
         } catch(Exception e) {
             statErr = e;
         }
+        // 语法以外的错误（例如fanout不合法）直接抛出，不换成带位置的错误信息
+        if(statErr != null && statErr != Error.InvalidCommandException) {
+            throw statErr;
+        }
         try {
             // 检查是否解析完全
             String next = tokenizer.peek();
@@ -142,6 +257,237 @@ public class Parser {
         return stat;
     }
 
+    private static Prepare parsePrepare(Tokenizer tokenizer) throws Exception {
+        Prepare prepare = new Prepare();
+        String name = tokenizer.peek();
+        if(!isName(name) || "".equals(name)) {
+            throw Error.InvalidCommandException;
+        }
+        prepare.name = name;
+        tokenizer.pop();
+        if(!"as".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        Object stat = Parse(tokenizer.rest(), true);
+        if(!(stat instanceof Select || stat instanceof Insert || stat instanceof Update || stat instanceof Delete)) {
+            throw Error.InvalidCommandException;
+        }
+        prepare.stat = stat;
+        prepare.params = countParams(stat);
+        return prepare;
+    }
+
+    // 语句中参数的个数
+    private static int countParams(Object stat) throws Exception {
+        if(stat instanceof Declare) {
+            stat = ((Declare)stat).select;
+        }
+        if(!(stat instanceof Select || stat instanceof Insert || stat instanceof Update || stat instanceof Delete)) {
+            return 0;
+        }
+        Params counter = new Params(null);
+        bind(stat, counter);
+        return counter.pos;
+    }
+
+    private static Execute parseExecute(Tokenizer tokenizer) throws Exception {
+        Execute execute = new Execute();
+        String name = tokenizer.peek();
+        if(!isName(name) || "".equals(name)) {
+            throw Error.InvalidCommandException;
+        }
+        execute.name = name;
+        tokenizer.pop();
+        List<String> params = new ArrayList<>();
+        while(!"".equals(tokenizer.peek())) {
+            params.add(tokenizer.peek());
+            tokenizer.pop();
+        }
+        execute.params = params.toArray(new String[params.size()]);
+        return execute;
+    }
+
+    private static Deallocate parseDeallocate(Tokenizer tokenizer) throws Exception {
+        Deallocate deallocate = new Deallocate();
+        String name = tokenizer.peek();
+        if(!isName(name) || "".equals(name)) {
+            throw Error.InvalidCommandException;
+        }
+        deallocate.name = name;
+        tokenizer.pop();
+        return deallocate;
+    }
+
+    private static Declare parseDeclare(Tokenizer tokenizer) throws Exception {
+        Declare declare = new Declare();
+        String name = tokenizer.peek();
+        if(!isName(name) || "".equals(name)) {
+            throw Error.InvalidCommandException;
+        }
+        declare.name = name;
+        tokenizer.pop();
+        if(!"cursor".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        if(!"for".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        if(!"select".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        declare.select = parseSelect(tokenizer);
+        return declare;
+    }
+
+    private static Fetch parseFetch(Tokenizer tokenizer) throws Exception {
+        Fetch fetch = new Fetch();
+        fetch.count = -1;
+        if(!"from".equals(tokenizer.peek())) {
+            try {
+                fetch.count = Integer.parseInt(tokenizer.peek());
+            } catch(NumberFormatException e) {
+                throw Error.InvalidCommandException;
+            }
+            if(fetch.count <= 0) {
+                throw Error.InvalidCommandException;
+            }
+            tokenizer.pop();
+            if(!"from".equals(tokenizer.peek())) {
+                throw Error.InvalidCommandException;
+            }
+        }
+        tokenizer.pop();
+        String name = tokenizer.peek();
+        if(!isName(name) || "".equals(name)) {
+            throw Error.InvalidCommandException;
+        }
+        fetch.name = name;
+        tokenizer.pop();
+        return fetch;
+    }
+
+    private static Close parseClose(Tokenizer tokenizer) throws Exception {
+        Close close = new Close();
+        String name = tokenizer.peek();
+        if(!isName(name) || "".equals(name)) {
+            throw Error.InvalidCommandException;
+        }
+        close.name = name;
+        tokenizer.pop();
+        return close;
+    }
+
+    /*
+    * 把预处理语句中的参数（值为PARAM的位置）按出现的顺序换成params，返回一个新的语句对象，原来的语句不变，可以反复使用。
+    * 参数的个数不对时抛出ParamCountException。
+    * */
+    public static Object bind(Object stat, String[] params) throws Exception {
+        Params p = new Params(params);
+        Object res = bind(stat, p);
+        if(p.pos != params.length) {
+            throw Error.ParamCountException;
+        }
+        return res;
+    }
+
+    // 按顺序取出参数，values为null时只计数
+    private static class Params {
+        String[] values;
+        int pos;
+
+        Params(String[] values) {
+            this.values = values;
+        }
+
+        String bind(String v) throws Exception {
+            if(v != PARAM) {
+                return v;
+            }
+            if(values == null) {
+                pos ++;
+                return v;
+            }
+            if(pos >= values.length) {
+                throw Error.ParamCountException;
+            }
+            return values[pos ++];
+        }
+    }
+
+    private static Object bind(Object stat, Params p) throws Exception {
+        if(stat instanceof Select) {
+            Select s = (Select)stat;
+            Select res = new Select();
+            res.tableName = s.tableName;
+            res.fields = s.fields;
+            res.where = bind(s.where, p);
+            res.orderBy = s.orderBy;
+            res.desc = s.desc;
+            res.limit = s.limit;
+            return res;
+        } else if(stat instanceof Insert) {
+            Insert s = (Insert)stat;
+            Insert res = new Insert();
+            res.tableName = s.tableName;
+            res.upsert = s.upsert;
+            if(s.rows == null) {
+                res.values = bind(s.values, p);
+            } else {
+                res.rows = new String[s.rows.length][];
+                for (int i = 0; i < s.rows.length; i++) {
+                    res.rows[i] = bind(s.rows[i], p);
+                }
+                res.values = res.rows[0];
+            }
+            return res;
+        } else if(stat instanceof Update) {
+            Update s = (Update)stat;
+            Update res = new Update();
+            res.tableName = s.tableName;
+            res.fieldName = s.fieldName;
+            res.value = p.bind(s.value);
+            res.where = bind(s.where, p);
+            return res;
+        } else {
+            Delete s = (Delete)stat;
+            Delete res = new Delete();
+            res.tableName = s.tableName;
+            res.where = bind(s.where, p);
+            return res;
+        }
+    }
+
+    private static String[] bind(String[] values, Params p) throws Exception {
+        String[] res = new String[values.length];
+        for (int i = 0; i < values.length; i++) {
+            res[i] = p.bind(values[i]);
+        }
+        return res;
+    }
+
+    private static Where bind(Where where, Params p) throws Exception {
+        if(where == null) {
+            return null;
+        }
+        Where res = new Where();
+        res.singleExp1 = bind(where.singleExp1, p);
+        res.logicOp = where.logicOp;
+        res.singleExp2 = where.singleExp2 == null ? null : bind(where.singleExp2, p);
+        return res;
+    }
+
+    private static SingleExpression bind(SingleExpression exp, Params p) throws Exception {
+        SingleExpression res = new SingleExpression();
+        res.field = exp.field;
+        res.compareOp = exp.compareOp;
+        res.value = p.bind(exp.value);
+        return res;
+    }
+
     private static Show parseShow(Tokenizer tokenizer) throws Exception {
         String tmp = tokenizer.peek();
         if("".equals(tmp)) {
@@ -150,6 +496,21 @@ public class Parser {
         throw Error.InvalidCommandException;
     }
 
+    private static SetFormat parseSetFormat(Tokenizer tokenizer) throws Exception {
+        if(!"format".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        String format = tokenizer.peek();
+        if(!"text".equals(format) && !"binary".equals(format)) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        SetFormat setFormat = new SetFormat();
+        setFormat.binary = "binary".equals(format);
+        return setFormat;
+    }
+
     private static Update parseUpdate(Tokenizer tokenizer) throws Exception {
         Update update = new Update();
         update.tableName = tokenizer.peek();
@@ -168,7 +529,7 @@ public class Parser {
         }
         tokenizer.pop();
 
-        update.value = tokenizer.peek();
+        update.value = parseValue(tokenizer);
         tokenizer.pop();
 
         String tmp = tokenizer.peek();
@@ -219,21 +580,95 @@ public class Parser {
             throw Error.InvalidCommandException;
         }
 
+        tokenizer.pop();
+        if("(".equals(tokenizer.peek())) {
+            insert.rows = parseRows(tokenizer);
+            insert.values = insert.rows[0];
+            return insert;
+        }
+
         List<String> values = new ArrayList<>();
         while(true) {
-            tokenizer.pop();
-            String value = tokenizer.peek();
+            String value = parseValue(tokenizer);
             if("".equals(value)) {
                 break;
             } else {
                 values.add(value);
             }
+            tokenizer.pop();
         }
         insert.values = values.toArray(new String[values.size()]);
 
         return insert;
     }
 
+    // (<value>, <value> ...), (<value> ...) ...，括号内的逗号可以省略
+    private static String[][] parseRows(Tokenizer tokenizer) throws Exception {
+        List<String[]> rows = new ArrayList<>();
+        while(true) {
+            if(!"(".equals(tokenizer.peek())) {
+                throw Error.InvalidCommandException;
+            }
+            tokenizer.pop();
+            List<String> values = new ArrayList<>();
+            while(true) {
+                String value = parseValue(tokenizer);
+                if("".equals(value)) {
+                    throw Error.InvalidCommandException;
+                }
+                tokenizer.pop();
+                if(")".equals(value)) {
+                    break;
+                }
+                if(!",".equals(value)) {
+                    values.add(value);
+                }
+            }
+            if(values.isEmpty()) {
+                throw Error.InvalidCommandException;
+            }
+            rows.add(values.toArray(new String[values.size()]));
+            if(!",".equals(tokenizer.peek())) {
+                break;
+            }
+            tokenizer.pop();
+        }
+        return rows.toArray(new String[rows.size()][]);
+    }
+
+    /*
+    * 把一个包中用分号隔开的多条语句分开，引号中的分号不算，空的语句被忽略
+    * */
+    public static List<byte[]> split(byte[] statements) {
+        List<byte[]> res = new ArrayList<>();
+        int start = 0;
+        byte quote = 0;
+        for (int i = 0; i <= statements.length; i++) {
+            if(i < statements.length) {
+                byte b = statements[i];
+                if(quote != 0) {
+                    if(b == quote) {
+                        quote = 0;
+                    }
+                    continue;
+                }
+                if(b == '"' || b == '\'') {
+                    quote = b;
+                    continue;
+                }
+                if(b != ';') {
+                    continue;
+                }
+            }
+            byte[] stat = Arrays.copyOfRange(statements, start, i);
+            if(!new String(stat).trim().isEmpty()) {
+                res.add(stat);
+            }
+            start = i + 1;
+        }
+        return res;
+    }
+
     private static Select parseSelect(Tokenizer tokenizer) throws Exception {
         Select read = new Select();
 
@@ -281,12 +716,45 @@ public class Parser {
 
         // 解析where，可能为空
         String tmp = tokenizer.peek();
-        if("".equals(tmp)) {
+        if("".equals(tmp) || "limit".equals(tmp) || "order".equals(tmp)) {
             read.where = null;
-            return read;
+        } else {
+            read.where = parseWhere(tokenizer);
+        }
+
+        // 解析order by，可能为空
+        if("order".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            if(!"by".equals(tokenizer.peek())) {
+                throw Error.InvalidCommandException;
+            }
+            tokenizer.pop();
+            String field = tokenizer.peek();
+            if("".equals(field) || !isName(field)) {
+                throw Error.InvalidCommandException;
+            }
+            read.orderBy = field;
+            tokenizer.pop();
+            if("desc".equals(tokenizer.peek()) || "asc".equals(tokenizer.peek())) {
+                read.desc = "desc".equals(tokenizer.peek());
+                tokenizer.pop();
+            }
         }
 
-        read.where = parseWhere(tokenizer);
+        // 解析limit，可能为空
+        read.limit = -1;
+        if("limit".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            try {
+                read.limit = Integer.parseInt(tokenizer.peek());
+            } catch(NumberFormatException e) {
+                throw Error.InvalidCommandException;
+            }
+            if(read.limit < 0) {
+                throw Error.InvalidCommandException;
+            }
+            tokenizer.pop();
+        }
         return read;
     }
 
@@ -303,10 +771,10 @@ public class Parser {
         SingleExpression exp1 = parseSingleExp(tokenizer);
         where.singleExp1 = exp1;
 
-        // 解析逻辑运算符（如 "AND"）
+        // 解析逻辑运算符（如 "AND"），where后面还可能跟着order by和limit
         String logicOp = tokenizer.peek();
-        if("".equals(logicOp)) {
-            where.logicOp = logicOp;
+        if("".equals(logicOp) || "limit".equals(logicOp) || "order".equals(logicOp)) {
+            where.logicOp = "";
             return where;
         }
         if(!isLogicOp(logicOp)) {
@@ -319,9 +787,7 @@ public class Parser {
         SingleExpression exp2 = parseSingleExp(tokenizer);
         where.singleExp2 = exp2;
 
-        if(!"".equals(tokenizer.peek())) {
-            throw Error.InvalidCommandException;
-        }
+        // 后面是否还有多余的内容由调用方检查
         return where;
     }
 
@@ -342,19 +808,40 @@ public class Parser {
         exp.compareOp = op;
         tokenizer.pop();
 
-        exp.value = tokenizer.peek();
+        exp.value = parseValue(tokenizer);
         tokenizer.pop();
         return exp;
     }
 
+    // 当前的值，不在引号中的 ? 是参数，返回PARAM
+    private static String parseValue(Tokenizer tokenizer) throws Exception {
+        String value = tokenizer.peek();
+        if(tokenizer.peekType() == Tokenizer.SYMBOL && "?".equals(value)) {
+            return PARAM;
+        }
+        return value;
+    }
+
     private static boolean isCmpOp(String op) {
-        return ("=".equals(op) || ">".equals(op) || "<".equals(op));
+        return ("=".equals(op) || ">".equals(op) || "<".equals(op) || "like".equals(op));
     }
 
     private static boolean isLogicOp(String op) {
         return ("and".equals(op) || "or".equals(op));
     }
 
+    private static Vacuum parseVacuum(Tokenizer tokenizer) throws Exception {
+        String tableName = tokenizer.peek();
+        if("".equals(tableName) || !isName(tableName)) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+
+        Vacuum vacuum = new Vacuum();
+        vacuum.tableName = tableName;
+        return vacuum;
+    }
+
     private static Drop parseDrop(Tokenizer tokenizer) throws Exception {
         if(!"table".equals(tokenizer.peek())) {
             throw Error.InvalidCommandException;
@@ -383,15 +870,35 @@ public class Parser {
     * <field name> <field type>
     * ...
     * <field name> <field type>
-    * [(index <field name list>)]
+    * [(index <index> [fanout <number>] ...)]
     *     create table students
     *     id int32,
     *     name string,
     *     age int32,
-    *     (index id name)
+    *     (index id fanout 256 name)
+    * fanout 为该索引B+树每个节点最多容纳的key数，必须是正的偶数，不写则使用默认值
+    * unique 表示唯一索引，插入时检查是否已经有相同的值
+    * 括号括起来的多个字段是一个联合索引，例如 (index id (tenant_id created_at))，
+    * 索引按第一个字段排序，第一个字段相同时按第二个字段排序，以此类推
+    * include 后面括号里的字段不参与排序和唯一性检查，只是把它们的值一起存进索引，
+    * 查询只用到索引里的字段时可以不读取记录，例如 (index id tenant_id include (amount))
     *
     * */
-    private static Create parseCreate(Tokenizer tokenizer) throws Exception {
+    private static Object parseCreate(Tokenizer tokenizer) throws Exception {
+        if("unique".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            if(!"index".equals(tokenizer.peek())) {
+                throw Error.InvalidCommandException;
+            }
+            tokenizer.pop();
+            CreateIndex createIndex = parseCreateIndex(tokenizer);
+            createIndex.unique = true;
+            return createIndex;
+        }
+        if("index".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            return parseCreateIndex(tokenizer);
+        }
         if(!"table".equals(tokenizer.peek())) {
             throw Error.InvalidCommandException;
         }
@@ -433,7 +940,15 @@ public class Parser {
             if(",".equals(next)) {
                 continue;
             } else if("".equals(next)) {
-                throw Error.TableNoIndexException;
+                // 没有索引的表，查询时顺序扫描
+                create.fieldName = fNames.toArray(new String[fNames.size()]);
+                create.fieldType = fTypes.toArray(new String[fTypes.size()]);
+                create.index = new String[0];
+                create.following = new String[0][];
+                create.include = new String[0][];
+                create.fanout = new int[0];
+                create.unique = new boolean[0];
+                return create;
             } else if("(".equals(next)) {
                 // 根据create格式，有括号的是创建索引的语句，所以直接跳出，进行后续的索引处理
                 break;
@@ -445,26 +960,79 @@ public class Parser {
         create.fieldType = fTypes.toArray(new String[fTypes.size()]);
 
         // 解析索引（如 "(id, name)"）
-        // 虽然格式里写的索引是可选的，但是代码里不是
         tokenizer.pop();
         if(!"index".equals(tokenizer.peek())) {
             throw Error.InvalidCommandException;
         }
 
         List<String> indexes = new ArrayList<>();
+        List<String[]> following = new ArrayList<>();
+        List<Integer> fanouts = new ArrayList<>();
+        List<Boolean> uniques = new ArrayList<>();
+        List<String[]> includes = new ArrayList<>();
         while(true) {
             tokenizer.pop();
             String field = tokenizer.peek();
             if(")".equals(field)) {
                 break;
             }
+            // unique 和 fanout 一样修饰它前面的那个索引
+            if("unique".equals(field) && indexes.size() > 0) {
+                uniques.set(uniques.size()-1, true);
+                continue;
+            }
+            if("include".equals(field) && indexes.size() > 0) {
+                tokenizer.pop();
+                if(!"(".equals(tokenizer.peek())) {
+                    throw Error.InvalidCommandException;
+                }
+                tokenizer.pop();
+                String[] columns = parseIndexColumns(tokenizer);
+                if(columns.length == 0) {
+                    throw Error.InvalidCommandException;
+                }
+                includes.set(includes.size()-1, columns);
+                continue;
+            }
+            // 联合索引
+            if("(".equals(field)) {
+                tokenizer.pop();
+                String[] columns = parseIndexColumns(tokenizer);
+                if(columns.length == 0) {
+                    throw Error.InvalidCommandException;
+                }
+                indexes.add(columns[0]);
+                following.add(Arrays.copyOfRange(columns, 1, columns.length));
+                fanouts.add(0);
+                uniques.add(false);
+                includes.add(new String[0]);
+                continue;
+            }
+            // fanout 修饰的是它前面的那个索引字段
+            if("fanout".equals(field) && indexes.size() > 0) {
+                tokenizer.pop();
+                fanouts.set(fanouts.size()-1, parseFanout(tokenizer));
+                continue;
+            }
             if(!isName(field)) {
                 throw Error.InvalidCommandException;
             } else {
                 indexes.add(field);
+                following.add(new String[0]);
+                fanouts.add(0);
+                uniques.add(false);
+                includes.add(new String[0]);
             }
         }
         create.index = indexes.toArray(new String[indexes.size()]);
+        create.following = following.toArray(new String[following.size()][]);
+        create.include = includes.toArray(new String[includes.size()][]);
+        create.fanout = new int[fanouts.size()];
+        create.unique = new boolean[uniques.size()];
+        for(int i = 0; i < fanouts.size(); i ++) {
+            create.fanout[i] = fanouts.get(i);
+            create.unique[i] = uniques.get(i);
+        }
         tokenizer.pop();
 
         if(!"".equals(tokenizer.peek())) {
@@ -473,6 +1041,98 @@ public class Parser {
         return create;
     }
 
+    // 读取若干个字段名，直到")"，tokenizer停在")"上
+    private static String[] parseIndexColumns(Tokenizer tokenizer) throws Exception {
+        List<String> columns = new ArrayList<>();
+        while(!")".equals(tokenizer.peek())) {
+            String field = tokenizer.peek();
+            if("".equals(field) || !isName(field)) {
+                throw Error.InvalidCommandException;
+            }
+            columns.add(field);
+            tokenizer.pop();
+        }
+        return columns.toArray(new String[columns.size()]);
+    }
+
+    /*
+    * create index on <table name> (<field name> [<field name> ...] [include <field name> ...] [fanout <number>])
+    *     create index on students (age)
+    *     create index on orders (tenant_id created_at)
+    *     create index on orders (tenant_id include amount)
+    * 在已有数据的表上为某个字段创建索引，多个字段时创建联合索引，include 之后的字段只存进索引，不参与排序
+    * */
+    private static CreateIndex parseCreateIndex(Tokenizer tokenizer) throws Exception {
+        if(!"on".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+
+        CreateIndex createIndex = new CreateIndex();
+        String tableName = tokenizer.peek();
+        if(!isName(tableName)) {
+            throw Error.InvalidCommandException;
+        }
+        createIndex.tableName = tableName;
+        tokenizer.pop();
+
+        if(!"(".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        String field = tokenizer.peek();
+        if(!isName(field)) {
+            throw Error.InvalidCommandException;
+        }
+        createIndex.fieldName = field;
+        tokenizer.pop();
+
+        List<String> following = new ArrayList<>();
+        while(!"".equals(tokenizer.peek()) && isName(tokenizer.peek()) && !"fanout".equals(tokenizer.peek()) && !"include".equals(tokenizer.peek())) {
+            following.add(tokenizer.peek());
+            tokenizer.pop();
+        }
+        createIndex.following = following.toArray(new String[following.size()]);
+
+        List<String> include = new ArrayList<>();
+        if("include".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            while(!"".equals(tokenizer.peek()) && isName(tokenizer.peek()) && !"fanout".equals(tokenizer.peek())) {
+                include.add(tokenizer.peek());
+                tokenizer.pop();
+            }
+            if(include.isEmpty()) {
+                throw Error.InvalidCommandException;
+            }
+        }
+        createIndex.include = include.toArray(new String[include.size()]);
+
+        if("fanout".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            createIndex.fanout = parseFanout(tokenizer);
+            tokenizer.pop();
+        }
+        if(!")".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        return createIndex;
+    }
+
+    // fanout 是节点分裂前最多容纳的key数，节点按一半分裂，所以必须是正的偶数
+    private static int parseFanout(Tokenizer tokenizer) throws Exception {
+        int fanout;
+        try {
+            fanout = Integer.parseInt(tokenizer.peek());
+        } catch(NumberFormatException e) {
+            throw Error.InvalidCommandException;
+        }
+        if(fanout <= 0 || fanout % 2 != 0) {
+            throw Error.InvalidFanoutException;
+        }
+        return fanout;
+    }
+
     private static boolean isType(String tp) {
         return ("int32".equals(tp) || "int64".equals(tp) ||
         "string".equals(tp));
@@ -541,6 +1201,6 @@ public class Parser {
     }
 
     private static boolean isName(String name) {
-        return !(name.length() == 1 && !Tokenizer.isAlphaBeta(name.getBytes()[0]));
+        return !(name.length() == 1 && !Tokenizer.isAlphaBeta((byte)name.charAt(0)));
     }
 }
@@ -1,11 +1,67 @@
 package com.lxpeak.lxpeakdb.backend.parser;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import com.lxpeak.lxpeakdb.common.Error;
 
+/*
+* 词法分析器，直接在原始的字节数组上工作：每个词法单元只记录类型和在stat中的位置[start, start+length)，
+* 扫描过程中不创建任何对象。
+*
+* peek返回词法单元的字符串：关键字和符号返回下面的常量（同一个String对象），Parser里用"select".equals(token)比较时
+* 第一步引用相等就成立；只有名字、数字和引号中的值才用new String创建，而它们本来就要放进解析结果。
+* 需要区分类型或只看字节时用peekType、start和length，不会创建字符串。
+* */
 public class Tokenizer {
+    // 词法单元的类型
+    public static final int END = 0;
+    public static final int SYMBOL = 1;
+    // 名字、关键字或数字
+    public static final int WORD = 2;
+    // 引号中的值，start和length不包含引号
+    public static final int QUOTED = 3;
+
+    // Parser用到的关键字，按首字母分组，识别时只和同一个首字母、同样长度的比较
+    private static final String[] KEYWORDS = {
+        "abort", "and", "as", "asc", "begin", "binary", "by", "close", "commit", "committed",
+        "create", "cursor", "deallocate", "declare", "delete", "desc", "drop", "execute", "fanout",
+        "fetch", "for", "format", "from", "include", "index", "insert", "int32", "int64", "into",
+        "isolation", "level", "like", "limit", "on", "or", "order", "prepare", "read", "repeatable",
+        "select", "set", "show", "string", "table", "text", "unique", "update", "upsert", "vacuum",
+        "values", "where",
+    };
+    private static final String[][] BY_FIRST = new String[26][];
+    private static final byte[][][] BYTES_BY_FIRST = new byte[26][][];
+    // 符号对应的字符串，下标为符号的字节
+    private static final String[] SYMBOLS = new String[128];
+
+    static {
+        for (int c = 0; c < 26; c++) {
+            List<String> words = new ArrayList<>();
+            for (String kw : KEYWORDS) {
+                if(kw.charAt(0) == 'a' + c) {
+                    words.add(kw);
+                }
+            }
+            BY_FIRST[c] = words.toArray(new String[words.size()]);
+            BYTES_BY_FIRST[c] = new byte[words.size()][];
+            for (int i = 0; i < words.size(); i++) {
+                BYTES_BY_FIRST[c][i] = words.get(i).getBytes();
+            }
+        }
+        for (char c : new char[]{'>', '<', '=', '*', ',', '(', ')', '?'}) {
+            SYMBOLS[c] = String.valueOf(c);
+        }
+    }
+
     private byte[] stat; //原始输入字节流
     private int pos; //当前解析位置
-    private String currentToken;//当前缓存的词法单元
+    private int type; //当前词法单元的类型
+    private int start; //当前词法单元在stat中的起始位置
+    private int length; //当前词法单元的长度
+    private String currentToken;//当前词法单元的字符串，peek时才创建
     private boolean flushToken;//标记是否需要重新解析下一个词法单元
     private Exception err;
 
@@ -16,31 +72,48 @@ public class Tokenizer {
         this.flushToken = true;
     }
 
-    // 如果flushToken为true，调用next()解析新词法单元
-    // 如果flushToken为false，返回当前缓存的词法单元currentToken
+    // 如果flushToken为true，先解析下一个词法单元
+    // 返回当前词法单元的字符串，同一个词法单元只创建一次
     public String peek() throws Exception {
-        if(err != null) {
-            throw err;
-        }
-        if(flushToken) {
-            String token = null;
-            try {
-                token = next();
-            } catch(Exception e) {
-                err = e;
-                throw e;
-            }
-            currentToken = token;
-            flushToken = false;
+        scan();
+        if(currentToken == null) {
+            currentToken = token();
         }
         return currentToken;
     }
 
+    // 当前词法单元的类型（END、SYMBOL、WORD、QUOTED），不创建字符串
+    public int peekType() throws Exception {
+        scan();
+        return type;
+    }
+
+    // 当前词法单元在原始字节数组中的位置，需要先调用peek或peekType
+    public int start() {
+        return start;
+    }
+
+    public int length() {
+        return length;
+    }
+
     // 标记当前词法单元已处理，下次 peek() 将解析新词法单元
     public void pop() {
         flushToken = true;
     }
 
+    // 剩下还没有解析的部分，之后peek返回""
+    public byte[] rest() {
+        byte[] res = Arrays.copyOfRange(stat, pos, stat.length);
+        pos = stat.length;
+        type = END;
+        start = pos;
+        length = 0;
+        currentToken = "";
+        flushToken = false;
+        return res;
+    }
+
     // 生成错误信息，标记解析失败的位置（例如 SELECT << FROM table）
     public byte[] errStat() {
         byte[] res = new byte[stat.length+3];
@@ -50,84 +123,106 @@ public class Tokenizer {
         return res;
     }
 
-    private void popByte() {
-        pos ++;
-        if(pos > stat.length) {
-            pos = stat.length;
+    private void scan() throws Exception {
+        if(err != null) {
+            throw err;
+        }
+        if(!flushToken) {
+            return;
+        }
+        try {
+            nextMetaState();
+        } catch(Exception e) {
+            err = e;
+            throw e;
         }
+        currentToken = null;
+        flushToken = false;
     }
 
-    private Byte peekByte() {
-        if(pos == stat.length) {
-            return null;
+    // 当前词法单元的字符串：关键字和符号用常量，其余的才创建新的字符串
+    private String token() {
+        switch(type) {
+            case END:
+                return "";
+            case SYMBOL:
+                return SYMBOLS[stat[start]];
+            case WORD:
+                String kw = keyword(stat, start, length);
+                return kw != null ? kw : new String(stat, start, length);
+            default:
+                return new String(stat, start, length);
         }
-        return stat[pos];
     }
 
-    private String next() throws Exception {
-        if(err != null) {
-            throw err;
+    // [start, start+length)是关键字时返回对应的常量，否则返回null
+    static String keyword(byte[] b, int start, int length) {
+        int c = b[start] - 'a';
+        if(c < 0 || c >= 26) {
+            return null;
         }
-        return nextMetaState();
+        byte[][] words = BYTES_BY_FIRST[c];
+        for (int i = 0; i < words.length; i++) {
+            byte[] w = words[i];
+            if(w.length != length) {
+                continue;
+            }
+            int j = 1;
+            while(j < length && w[j] == b[start+j]) {
+                j ++;
+            }
+            if(j == length) {
+                return BY_FIRST[c][i];
+            }
+        }
+        return null;
     }
 
     // 解析下一个词法单元，处理空白字符、符号、标识符、引号字符串等
-    private String nextMetaState() throws Exception {
+    private void nextMetaState() throws Exception {
         // 排除掉所有空格、换行
-        while(true) {
-            Byte b = peekByte();
-            if(b == null) {
-                return "";
-            }
-            if(!isBlank(b)) {
-                break;
-            }
-            popByte();
+        while(pos < stat.length && isBlank(stat[pos])) {
+            pos ++;
+        }
+        start = pos;
+        length = 0;
+        if(pos == stat.length) {
+            type = END;
+            return;
         }
         // 拿到第一个有实际意义的字符
-        byte b = peekByte();
+        byte b = stat[pos];
         // 如果是符号则返回符号
         if(isSymbol(b)) {
-            popByte();
-            return new String(new byte[]{b});
+            pos ++;
+            type = SYMBOL;
+            length = 1;
         }
         // 如果是引号则解析引号字符串
         else if(b == '"' || b == '\'') {
-            return nextQuoteState();
+            nextQuoteState(b);
         }
         // 如果是标识符或数字则解析标识符或数字
         else if(isAlphaBeta(b) || isDigit(b)) {
-            return nextTokenState();
+            nextTokenState();
         } else {
-            err = Error.InvalidCommandException;
-            throw err;
+            throw Error.InvalidCommandException;
         }
     }
 
-    private String nextTokenState() throws Exception {
-        StringBuilder sb = new StringBuilder();
-        while(true) {
-            Byte b = peekByte();
-            // 这个两层if有点难看，修改了一下，不知道会不会出bug
-            // if(b == null || !(isAlphaBeta(b) || isDigit(b) || b == '_')) {
-            //     if(b != null && isBlank(b)) {
-            //         popByte();
-            //     }
-            //     return sb.toString();
-            // }
-            if(b == null){
-                return sb.toString();
-            }
-            if(isBlank(b)){
-                popByte();
-                return sb.toString();
-            }
-            if(!(isAlphaBeta(b) || isDigit(b) || b == '_')){
-                return sb.toString();
+    private void nextTokenState() {
+        type = WORD;
+        while(pos < stat.length) {
+            byte b = stat[pos];
+            if(!(isAlphaBeta(b) || isDigit(b) || b == '_')) {
+                break;
             }
-
-            sb.append(new String(new byte[]{b}));
-            popByte();
+            pos ++;
+        }
+        length = pos - start;
+        // 紧跟在后面的一个空白字符也一起跳过
+        if(pos < stat.length && isBlank(stat[pos])) {
+            pos ++;
         }
     }
 
@@ -139,29 +234,26 @@ public class Tokenizer {
         return ((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z'));
     }
 
-    private String nextQuoteState() throws Exception {
-        byte quote = peekByte();
-        popByte();
-        StringBuilder sb = new StringBuilder();
+    private void nextQuoteState(byte quote) throws Exception {
+        type = QUOTED;
+        pos ++;
+        start = pos;
         while(true) {
-            Byte b = peekByte();
-            if(b == null) {
-                err = Error.InvalidCommandException;
-                throw err;
+            if(pos == stat.length) {
+                throw Error.InvalidCommandException;
             }
-            if(b == quote) {
-                popByte();
+            if(stat[pos] == quote) {
                 break;
             }
-            sb.append(new String(new byte[]{b}));
-            popByte();
+            pos ++;
         }
-        return sb.toString();
+        length = pos - start;
+        pos ++;
     }
 
     static boolean isSymbol(byte b) {
         return (b == '>' || b == '<' || b == '=' || b == '*' ||
-		b == ',' || b == '(' || b == ')');
+		b == ',' || b == '(' || b == ')' || b == '?');
     }
 
     static boolean isBlank(byte b) {
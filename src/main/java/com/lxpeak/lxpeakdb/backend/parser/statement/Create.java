@@ -4,5 +4,14 @@ public class Create {
     public String tableName;
     public String[] fieldName;
     public String[] fieldType;
+    // 每个索引的第一个字段
     public String[] index;
+    // 与index一一对应，联合索引第一个字段之后的字段，单列索引为空数组
+    public String[][] following;
+    // 与index一一对应，0表示使用默认的节点大小
+    public int[] fanout;
+    // 与index一一对应，是否为唯一索引
+    public boolean[] unique;
+    // 与index一一对应，只存进索引、不参与排序的字段，没有时为空数组
+    public String[][] include;
 }
@@ -0,0 +1,13 @@
+package com.lxpeak.lxpeakdb.backend.parser.statement;
+
+public class CreateIndex {
+    public String tableName;
+    public String fieldName;
+    // 联合索引第一个字段之后的字段，单列索引为空数组
+    public String[] following;
+    // 0表示使用默认的节点大小
+    public int fanout;
+    public boolean unique;
+    // 只存进索引、不参与排序的字段，没有时为空数组
+    public String[] include;
+}
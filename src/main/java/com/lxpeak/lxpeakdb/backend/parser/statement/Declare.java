@@ -0,0 +1,6 @@
+package com.lxpeak.lxpeakdb.backend.parser.statement;
+
+public class Declare {
+    public String name;
+    public Select select;
+}
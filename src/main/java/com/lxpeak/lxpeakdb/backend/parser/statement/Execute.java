@@ -0,0 +1,6 @@
+package com.lxpeak.lxpeakdb.backend.parser.statement;
+
+public class Execute {
+    public String name;
+    public String[] params;
+}
@@ -0,0 +1,7 @@
+package com.lxpeak.lxpeakdb.backend.parser.statement;
+
+public class Fetch {
+    public String name;
+    // 最多取出的行数，没有指定时为-1
+    public int count;
+}
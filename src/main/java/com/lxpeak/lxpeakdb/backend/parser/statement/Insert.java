@@ -3,4 +3,8 @@ package com.lxpeak.lxpeakdb.backend.parser.statement;
 public class Insert {
     public String tableName;
     public String[] values;
+    // 多行插入（values (...), (...)）时的所有行，values为第一行；单行插入时为null
+    public String[][] rows;
+    // upsert into：唯一索引上已经有相同的值时改为更新那一行
+    public boolean upsert;
 }
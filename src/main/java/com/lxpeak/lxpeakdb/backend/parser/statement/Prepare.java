@@ -0,0 +1,9 @@
+package com.lxpeak.lxpeakdb.backend.parser.statement;
+
+public class Prepare {
+    public String name;
+    // 解析好的语句，参数的位置上是Parser.PARAM
+    public Object stat;
+    // 参数的个数
+    public int params;
+}
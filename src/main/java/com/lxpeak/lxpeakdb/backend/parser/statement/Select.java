@@ -4,4 +4,9 @@ public class Select {
     public String tableName;
     public String[] fields;
     public Where where;
+    // ORDER BY的字段，没有时为null
+    public String orderBy;
+    public boolean desc;
+    // 最多返回的行数，-1表示没有限制
+    public int limit;
 }
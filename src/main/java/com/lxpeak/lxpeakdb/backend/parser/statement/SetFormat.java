@@ -0,0 +1,6 @@
+package com.lxpeak.lxpeakdb.backend.parser.statement;
+
+public class SetFormat {
+    // SELECT的结果是否用二进制格式（见ResultStream）
+    public boolean binary;
+}
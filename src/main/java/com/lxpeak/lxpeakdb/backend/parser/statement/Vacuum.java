@@ -0,0 +1,5 @@
+package com.lxpeak.lxpeakdb.backend.parser.statement;
+
+public class Vacuum {
+    public String tableName;
+}
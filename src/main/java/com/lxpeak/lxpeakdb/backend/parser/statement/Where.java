@@ -4,4 +4,6 @@ public class Where {
     public SingleExpression singleExp1;
     public String logicOp;
     public SingleExpression singleExp2;
+    // 表为这个条件选好的访问路径（见Table.accessPath），语句被缓存（见PlanCache）时再次执行可以直接使用
+    public volatile Object plan;
 }
@@ -0,0 +1,6 @@
+package com.lxpeak.lxpeakdb.backend.server;
+
+// 接收语句执行结果的一批数据，SELECT的结果可能分成多批
+public interface BatchSink {
+    void send(byte[] batch) throws Exception;
+}
@@ -0,0 +1,209 @@
+package com.lxpeak.lxpeakdb.backend.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import com.lxpeak.lxpeakdb.transport.Encoder;
+import com.lxpeak.lxpeakdb.transport.Frame;
+import com.lxpeak.lxpeakdb.transport.FrameCodec;
+import com.lxpeak.lxpeakdb.transport.Package;
+
+/*
+* 一个客户端连接。读写由Server的selector线程完成，语句在workers中执行：
+* 1、收到的数据中有完整的语句时交给workers执行，执行期间不再读取这个连接，后面的语句留在缓冲区或socket中，保证按顺序执行；
+* 2、执行结果由workers编码后放进待写出队列，能写的部分直接写出，写不完的由selector线程在socket可写时继续写；
+* 3、待写出的数据超过HIGH_WATER时，执行语句的线程等待客户端读取，大的查询结果不会全部堆在内存里。
+*
+* 所有状态都由这个对象的锁保护。
+* */
+class Connection {
+    static final int HIGH_WATER = 1 << 20;
+
+    private Server server;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private Executor exe;
+    private FrameCodec codec;
+    private Encoder encoder;
+
+    private Deque<ByteBuffer> out;
+    private long pending;
+    // 是否有语句正在执行
+    private boolean busy;
+    private boolean closed;
+
+    Connection(Server server, SocketChannel channel, SelectionKey key, Executor exe) {
+        this.server = server;
+        this.channel = channel;
+        this.key = key;
+        this.exe = exe;
+        this.codec = new FrameCodec();
+        this.encoder = new Encoder();
+        this.out = new ArrayDeque<>();
+    }
+
+    // socket可读
+    synchronized void read() {
+        try {
+            if(channel.read(codec.buffer()) < 0) {
+                close();
+                return;
+            }
+        } catch(Exception e) {
+            close();
+            return;
+        }
+        dispatch();
+    }
+
+    // socket可写
+    synchronized void write() {
+        flush();
+        updateInterest();
+        notifyAll();
+    }
+
+    // 缓冲区中有完整的语句并且没有语句在执行时，交给workers执行
+    private void dispatch() {
+        if(busy || closed) {
+            return;
+        }
+        Frame frame;
+        try {
+            frame = codec.poll();
+            // 协商为二进制帧时先回复MAGIC
+            byte[] ack = codec.takeAck();
+            if(ack != null) {
+                enqueue(new ByteBuffer[]{ByteBuffer.wrap(ack)});
+            }
+        } catch(Exception e) {
+            close();
+            return;
+        }
+        if(frame != null) {
+            Package pkg;
+            try {
+                pkg = encoder.decode(frame);
+            } catch(Exception e) {
+                close();
+                return;
+            }
+            busy = true;
+            server.workers.execute(() -> handle(pkg));
+        }
+        updateInterest();
+    }
+
+    // 在workers中执行一条语句
+    private void handle(Package pkg) {
+        StreamSink sink = new StreamSink(this::send, pkg.getId(), codec.isBinary());
+        Exception e = null;
+        try {
+            exe.execute(pkg.getData(), sink);
+        } catch (Exception e1) {
+            e = e1;
+            e.printStackTrace();
+        }
+        try {
+            sink.finish(e);
+        } catch (Exception e1) {
+            close();
+        }
+        synchronized(this) {
+            busy = false;
+            if(closed) {
+                exe.close();
+                return;
+            }
+            dispatch();
+        }
+    }
+
+    // 发送一个包，待写出的数据太多时等待客户端读取
+    synchronized void send(Package pkg) throws Exception {
+        if(closed) {
+            throw new IOException("Connection closed");
+        }
+        enqueue(codec.encode(encoder.encode(pkg)));
+        while(pending > HIGH_WATER && !closed) {
+            wait();
+        }
+    }
+
+    private void enqueue(ByteBuffer[] bufs) {
+        for (ByteBuffer buf : bufs) {
+            out.add(buf);
+            pending += buf.remaining();
+        }
+        flush();
+        updateInterest();
+    }
+
+    // 尽量写出待写出的数据，socket写不下时留给selector线程
+    private void flush() {
+        try {
+            while(!out.isEmpty()) {
+                long n = channel.write(out.toArray(new ByteBuffer[0]));
+                pending -= n;
+                while(!out.isEmpty() && !out.peek().hasRemaining()) {
+                    out.poll();
+                }
+                if(n == 0) {
+                    break;
+                }
+            }
+        } catch(IOException e) {
+            close();
+        }
+    }
+
+    // 执行语句时不读取，有数据没写完时关注可写
+    private void updateInterest() {
+        if(closed) {
+            return;
+        }
+        if(server.inLoop()) {
+            applyInterest();
+        } else {
+            server.runInLoop(() -> {
+                synchronized(this) {
+                    applyInterest();
+                }
+            });
+        }
+    }
+
+    private void applyInterest() {
+        if(closed || !key.isValid()) {
+            return;
+        }
+        int ops = busy ? 0 : SelectionKey.OP_READ;
+        if(!out.isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        key.interestOps(ops);
+    }
+
+    // 关闭连接，有语句正在执行时由执行的线程结束后回滚事务
+    synchronized void close() {
+        if(closed) {
+            return;
+        }
+        closed = true;
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        out.clear();
+        notifyAll();
+        if(!busy) {
+            exe.close();
+        }
+    }
+}
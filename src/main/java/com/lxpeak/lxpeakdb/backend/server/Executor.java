@@ -1,30 +1,84 @@
 package com.lxpeak.lxpeakdb.backend.server;
 
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
 import com.lxpeak.lxpeakdb.backend.parser.Parser;
 import com.lxpeak.lxpeakdb.backend.tbm.BeginRes;
+import com.lxpeak.lxpeakdb.backend.tbm.ResultStream;
 import com.lxpeak.lxpeakdb.common.Error;
 import com.lxpeak.lxpeakdb.backend.parser.statement.Abort;
 import com.lxpeak.lxpeakdb.backend.parser.statement.Begin;
+import com.lxpeak.lxpeakdb.backend.parser.statement.Close;
 import com.lxpeak.lxpeakdb.backend.parser.statement.Commit;
 import com.lxpeak.lxpeakdb.backend.parser.statement.Create;
+import com.lxpeak.lxpeakdb.backend.parser.statement.CreateIndex;
+import com.lxpeak.lxpeakdb.backend.parser.statement.Deallocate;
+import com.lxpeak.lxpeakdb.backend.parser.statement.Declare;
 import com.lxpeak.lxpeakdb.backend.parser.statement.Delete;
+import com.lxpeak.lxpeakdb.backend.parser.statement.Drop;
+import com.lxpeak.lxpeakdb.backend.parser.statement.Execute;
+import com.lxpeak.lxpeakdb.backend.parser.statement.Fetch;
 import com.lxpeak.lxpeakdb.backend.parser.statement.Insert;
+import com.lxpeak.lxpeakdb.backend.parser.statement.Prepare;
 import com.lxpeak.lxpeakdb.backend.parser.statement.Select;
+import com.lxpeak.lxpeakdb.backend.parser.statement.SetFormat;
 import com.lxpeak.lxpeakdb.backend.parser.statement.Show;
 import com.lxpeak.lxpeakdb.backend.parser.statement.Update;
+import com.lxpeak.lxpeakdb.backend.parser.statement.Vacuum;
 import com.lxpeak.lxpeakdb.backend.tbm.TableManager;
 
 // 不是线程池父类
 public class Executor {
+    // SELECT的结果每读出这么多行就交给BatchSink
+    static final int BATCH_ROWS = 256;
+
     private long xid;
     TableManager tbm;
+    // 这个会话中预处理过的语句，执行时只需要代入参数，不需要再解析
+    private Map<String, Prepare> prepared;
+    // 解析过的语句，服务器上的所有会话共用一个（见PlanCache）
+    private PlanCache plans;
+    // 这个会话打开的游标
+    private Map<String, Cursor> cursors;
+    // SELECT和FETCH的结果是否用二进制格式（见ResultStream）
+    private boolean binary;
+
+    /*
+    * 服务端游标：打开的查询（算子树）和读取它的事务。内存中只有扫描的位置（B+树游标当前的叶子或堆段当前的页），
+    * 每次fetch才拉取一批行，所以导出很大的表也不会把结果全部放进内存。
+    * 在事务中声明的游标用这个事务，事务结束时关闭；否则游标有自己的（可重复读）事务，close时提交。
+    * */
+    private static class Cursor {
+        ResultStream rs;
+        long xid;
+        boolean own;
+    }
 
     public Executor(TableManager tbm) {
+        this(tbm, new PlanCache());
+    }
+
+    public Executor(TableManager tbm, PlanCache plans) {
         this.tbm = tbm;
         this.xid = 0;
+        this.prepared = new HashMap<>();
+        this.plans = plans;
+        this.cursors = new HashMap<>();
     }
 
     public void close() {
+        for (Cursor cursor : cursors.values()) {
+            cursor.rs.close();
+            if(cursor.own) {
+                tbm.abort(cursor.xid);
+            }
+        }
+        cursors.clear();
         if(xid != 0) {
             System.out.println("Abnormal Abort: " + xid);
             tbm.abort(xid);
@@ -35,38 +89,143 @@ public class Executor {
     // 2、xid是用来跟踪当前是否有活跃的事务的。比如，当xid不等于0的时候，表示当前有一个事务在进行中，
     //    而Commit或Abort之后，事务就结束了，所以需要将xid重置为0，表示没有事务在进行。
     public byte[] execute(byte[] sql) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        execute(sql, batch -> out.write(batch, 0, batch.length));
+        return out.toByteArray();
+    }
+
+    // 执行sql，结果交给sink。SELECT每读出BATCH_ROWS行就交出一批，客户端不需要等到最后一行；其他语句只有一批
+    public void execute(byte[] sql, BatchSink sink) throws Exception {
         System.out.println("Execute: " + new String(sql));
+        List<byte[]> sqls = Parser.split(sql);
+        if(sqls.size() > 1) {
+            executeBatch(sqls, sink);
+            return;
+        }
         // 根据Parse()方法得到sql语句对应的结构化信息对象（Begin、Commit、Abort、Show、Create、Select、Insert、Delete、Update），
         // 然后根据对象的类型调用 TBM 的不同方法进行处理。
-        Object stat = Parser.Parse(sql);
+        Object stat = plans.parse(sqls.size() == 1 ? sqls.get(0) : sql);
         if(Begin.class.isInstance(stat)) {
             if(xid != 0) {
                 throw Error.NestedTransactionException;
             }
             BeginRes r = tbm.begin((Begin)stat);
             xid = r.xid;
-            return r.result;
+            sink.send(r.result);
         } else if(Commit.class.isInstance(stat)) {
             if(xid == 0) {
                 throw Error.NoTransactionException;
             }
+            closeCursors(xid);
             byte[] res = tbm.commit(xid);
             xid = 0;
-            return res;
+            sink.send(res);
         } else if(Abort.class.isInstance(stat)) {
             if(xid == 0) {
                 throw Error.NoTransactionException;
             }
+            closeCursors(xid);
             byte[] res = tbm.abort(xid);
             xid = 0;
-            return res;
+            sink.send(res);
+        } else if(Prepare.class.isInstance(stat)) {
+            Prepare prepare = (Prepare)stat;
+            prepared.put(prepare.name, prepare);
+            sink.send("prepare".getBytes());
+        } else if(Deallocate.class.isInstance(stat)) {
+            if(prepared.remove(((Deallocate)stat).name) == null) {
+                throw Error.PreparedNotFoundException;
+            }
+            sink.send("deallocate".getBytes());
+        } else if(Execute.class.isInstance(stat)) {
+            execute2(bind((Execute)stat), sink);
+        } else if(SetFormat.class.isInstance(stat)) {
+            binary = ((SetFormat)stat).binary;
+            sink.send(("set format " + (binary ? "binary" : "text")).getBytes());
+        } else if(Declare.class.isInstance(stat)) {
+            sink.send(declare((Declare)stat));
+        } else if(Fetch.class.isInstance(stat)) {
+            sink.send(fetch((Fetch)stat));
+        } else if(Close.class.isInstance(stat)) {
+            Cursor cursor = cursors.remove(((Close)stat).name);
+            if(cursor == null) {
+                throw Error.CursorNotFoundException;
+            }
+            closeCursor(cursor);
+            sink.send("close".getBytes());
+        } else {
+            execute2(stat, sink);
+        }
+    }
+
+    // 把参数代入预处理过的语句
+    private Object bind(Execute execute) throws Exception {
+        Prepare prepare = prepared.get(execute.name);
+        if(prepare == null) {
+            throw Error.PreparedNotFoundException;
+        }
+        return Parser.bind(prepare.stat, execute.params);
+    }
+
+    // 打开游标，不在事务中时为游标开始一个可重复读的事务，分多次取出的结果是同一个快照
+    private byte[] declare(Declare declare) throws Exception {
+        if(cursors.containsKey(declare.name)) {
+            throw Error.DuplicatedCursorException;
+        }
+        Cursor cursor = new Cursor();
+        cursor.own = xid == 0;
+        if(cursor.own) {
+            Begin begin = new Begin();
+            begin.isRepeatableRead = true;
+            cursor.xid = tbm.begin(begin).xid;
         } else {
-            return execute2(stat);
+            cursor.xid = xid;
+        }
+        try {
+            cursor.rs = tbm.query(cursor.xid, declare.select, false);
+            cursor.rs.setBinary(binary);
+        } catch(Exception e) {
+            if(cursor.own) {
+                tbm.abort(cursor.xid);
+            }
+            throw e;
+        }
+        cursors.put(declare.name, cursor);
+        return ("declare " + declare.name).getBytes();
+    }
+
+    // 从游标中取出下一批行，取完之后结果为空
+    private byte[] fetch(Fetch fetch) throws Exception {
+        Cursor cursor = cursors.get(fetch.name);
+        if(cursor == null) {
+            throw Error.CursorNotFoundException;
         }
+        byte[] batch = cursor.rs.next(fetch.count < 0 ? BATCH_ROWS : fetch.count);
+        return batch == null ? new byte[0] : batch;
     }
 
-    // 处理Show、Create、Select、Insert、Delete、Update
-    private byte[] execute2(Object stat) throws Exception {
+    private void closeCursor(Cursor cursor) throws Exception {
+        cursor.rs.close();
+        if(cursor.own) {
+            tbm.commit(cursor.xid);
+        }
+    }
+
+    // 事务结束前关闭在这个事务中声明的游标
+    private void closeCursors(long xid) {
+        Iterator<Cursor> it = cursors.values().iterator();
+        while(it.hasNext()) {
+            Cursor cursor = it.next();
+            if(!cursor.own && cursor.xid == xid) {
+                cursor.rs.close();
+                it.remove();
+            }
+        }
+    }
+
+    // 处理Show、Create、CreateIndex、Drop、Select、Insert、Delete、Update、Vacuum
+    // 临时事务要等SELECT的结果全部交出之后才提交
+    private void execute2(Object stat, BatchSink sink) throws Exception {
         boolean tmpTransaction = false;
         Exception e = null;
         if(xid == 0) {
@@ -75,21 +234,20 @@ public class Executor {
             xid = r.xid;
         }
         try {
-            byte[] res = null;
-            if(Show.class.isInstance(stat)) {
-                res = tbm.show(xid);
-            } else if(Create.class.isInstance(stat)) {
-                res = tbm.create(xid, (Create)stat);
-            } else if(Select.class.isInstance(stat)) {
-                res = tbm.read(xid, (Select)stat);
-            } else if(Insert.class.isInstance(stat)) {
-                res = tbm.insert(xid, (Insert)stat);
-            } else if(Delete.class.isInstance(stat)) {
-                res = tbm.delete(xid, (Delete)stat);
-            } else if(Update.class.isInstance(stat)) {
-                res = tbm.update(xid, (Update)stat);
-            }
-            return res;
+            if(Select.class.isInstance(stat)) {
+                ResultStream rs = tbm.query(xid, (Select)stat);
+                rs.setBinary(binary);
+                try {
+                    byte[] batch;
+                    while((batch = rs.next(BATCH_ROWS)) != null) {
+                        sink.send(batch);
+                    }
+                } finally {
+                    rs.close();
+                }
+                return;
+            }
+            sink.send(run(stat));
         } catch(Exception e1) {
             e = e1;
             throw e;
@@ -104,4 +262,97 @@ public class Executor {
             }
         }
     }
+
+    /*
+    * 一个包中用分号隔开的多条语句：在一个事务中依次执行（已经在事务中时用这个事务），
+    * 执行期间写的日志最后才刷一次盘，返回一个包，每条语句的结果一行，INSERT也带上行数（例如insert 1）。
+    * 某条语句出错时，不在事务中则整批回滚。
+    * */
+    private void executeBatch(List<byte[]> sqls, BatchSink sink) throws Exception {
+        List<Object> stats = new ArrayList<>();
+        for (byte[] sql : sqls) {
+            Object stat = plans.parse(sql);
+            if(Execute.class.isInstance(stat)) {
+                stat = bind((Execute)stat);
+            }
+            if(Begin.class.isInstance(stat) || Commit.class.isInstance(stat) || Abort.class.isInstance(stat) ||
+                Select.class.isInstance(stat) || Prepare.class.isInstance(stat) || Deallocate.class.isInstance(stat) ||
+                Declare.class.isInstance(stat) || Fetch.class.isInstance(stat) || Close.class.isInstance(stat) ||
+                SetFormat.class.isInstance(stat)) {
+                throw Error.InvalidBatchException;
+            }
+            if(Insert.class.isInstance(stat) && ((Insert)stat).rows == null) {
+                stat = asRows((Insert)stat);
+            }
+            stats.add(stat);
+        }
+        boolean tmpTransaction = false;
+        Exception e = null;
+        if(xid == 0) {
+            tmpTransaction = true;
+            BeginRes r = tbm.begin(new Begin());
+            xid = r.xid;
+        }
+        StringBuilder sb = new StringBuilder();
+        tbm.deferSync();
+        try {
+            for (Object stat : stats) {
+                sb.append(new String(run(stat))).append("\n");
+            }
+        } catch(Exception e1) {
+            e = e1;
+            throw e;
+        } finally {
+            // 提交前日志必须已经在磁盘上
+            tbm.sync();
+            if(tmpTransaction) {
+                if(e != null) {
+                    tbm.abort(xid);
+                } else {
+                    tbm.commit(xid);
+                }
+                xid = 0;
+            }
+        }
+        sink.send(sb.toString().getBytes());
+    }
+
+    // 单行插入改成只有一行的多行插入，结果中带上行数
+    private static Insert asRows(Insert insert) {
+        Insert res = new Insert();
+        res.tableName = insert.tableName;
+        res.values = insert.values;
+        res.rows = new String[][]{insert.values};
+        res.upsert = insert.upsert;
+        return res;
+    }
+
+    // 执行SELECT以外的语句，返回结果
+    private byte[] run(Object stat) throws Exception {
+        byte[] res = null;
+        if(Show.class.isInstance(stat)) {
+            res = tbm.show(xid);
+        } else if(Create.class.isInstance(stat)) {
+            res = tbm.create(xid, (Create)stat);
+            plans.clear();
+        } else if(CreateIndex.class.isInstance(stat)) {
+            try {
+                res = tbm.createIndex(xid, (CreateIndex)stat);
+            } finally {
+                plans.clear();
+            }
+        } else if(Drop.class.isInstance(stat)) {
+            res = tbm.drop(xid, (Drop)stat);
+            plans.clear();
+        } else if(Insert.class.isInstance(stat)) {
+            res = tbm.insert(xid, (Insert)stat);
+        } else if(Delete.class.isInstance(stat)) {
+            res = tbm.delete(xid, (Delete)stat);
+        } else if(Update.class.isInstance(stat)) {
+            res = tbm.update(xid, (Update)stat);
+        } else if(Vacuum.class.isInstance(stat)) {
+            res = tbm.vacuum(xid, (Vacuum)stat);
+        }
+        return res;
+    }
 }
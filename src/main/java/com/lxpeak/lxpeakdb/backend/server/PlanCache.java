@@ -0,0 +1,128 @@
+package com.lxpeak.lxpeakdb.backend.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.lxpeak.lxpeakdb.backend.parser.Parser;
+import com.lxpeak.lxpeakdb.backend.parser.statement.Delete;
+import com.lxpeak.lxpeakdb.backend.parser.statement.Select;
+import com.lxpeak.lxpeakdb.backend.parser.statement.Update;
+
+/*
+* 服务器上所有会话共用的语句缓存，key是规范化后的sql（引号外连续的空白合并成一个空格，去掉首尾空白和结尾的分号），
+* value是解析好的语句。语句中的Where第一次执行时会记下表选好的访问路径（见Table.accessPath），
+* 所以不同客户端重复执行同一条sql时既不用解析，也不用重新计算索引上的搜索范围。
+*
+* 1、只缓存SELECT、UPDATE、DELETE，INSERT的值每次几乎都不同，缓存只会挤掉别的语句；
+* 2、缓存的语句在执行时只读，多个会话可以同时执行同一个对象；
+* 3、执行DDL（CREATE TABLE、CREATE INDEX、DROP TABLE）后清空，访问路径本身也会检查表和索引是否变化；
+* 4、最多保存capacity条，超出时淘汰最久没有用过的。
+* */
+public class PlanCache {
+    static final int DEFAULT_CAPACITY = 1024;
+
+    private final int capacity;
+    private final LinkedHashMap<String, Object> plans;
+    private final Lock lock;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public PlanCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public PlanCache(int capacity) {
+        this.capacity = capacity;
+        this.plans = new LinkedHashMap<String, Object>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+                return size() > PlanCache.this.capacity;
+            }
+        };
+        this.lock = new ReentrantLock();
+    }
+
+    // 解析sql，能缓存的语句先从缓存中取
+    public Object parse(byte[] sql) throws Exception {
+        String key = normalize(sql);
+        lock.lock();
+        try {
+            Object stat = plans.get(key);
+            if(stat != null) {
+                hits.incrementAndGet();
+                return stat;
+            }
+        } finally {
+            lock.unlock();
+        }
+        misses.incrementAndGet();
+        Object stat = Parser.Parse(sql);
+        if(Select.class.isInstance(stat) || Update.class.isInstance(stat) || Delete.class.isInstance(stat)) {
+            lock.lock();
+            try {
+                plans.put(key, stat);
+            } finally {
+                lock.unlock();
+            }
+        }
+        return stat;
+    }
+
+    public void clear() {
+        lock.lock();
+        try {
+            plans.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return plans.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    static String normalize(byte[] sql) {
+        StringBuilder sb = new StringBuilder(sql.length);
+        char quote = 0;
+        boolean space = false;
+        for (byte b : sql) {
+            char c = (char)(b & 0xff);
+            if(quote == 0 && Character.isWhitespace(c)) {
+                space = true;
+                continue;
+            }
+            if(space && sb.length() > 0) {
+                sb.append(' ');
+            }
+            space = false;
+            if(quote == 0 && (c == '\'' || c == '"')) {
+                quote = c;
+            } else if(c == quote) {
+                quote = 0;
+            }
+            sb.append(c);
+        }
+        int end = sb.length();
+        while(end > 0 && (sb.charAt(end-1) == ';' || sb.charAt(end-1) == ' ')) {
+            end --;
+        }
+        sb.setLength(end);
+        return sb.toString();
+    }
+}
@@ -1,10 +1,20 @@
 package com.lxpeak.lxpeakdb.backend.server;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -14,16 +24,113 @@ import com.lxpeak.lxpeakdb.transport.Package;
 import com.lxpeak.lxpeakdb.transport.Packager;
 import com.lxpeak.lxpeakdb.transport.Transporter;
 
+/*
+* 所有连接的读写都在一个线程（start的调用线程）中用Selector完成，连接空闲时不占用任何线程，
+* 收到一条完整的语句后才交给workers执行（见Connection）。
+*
+* threadPerConnection为true时使用另一种模式：每个连接一个线程，用阻塞的socket处理整个会话（HandleSocket）。
+* 运行在支持虚拟线程的JDK（21及以上）上时这些线程是虚拟线程，阻塞时不占用操作系统线程，
+* 可以用简单的阻塞代码支撑大量连接；否则退化为普通线程。
+*
+* workers没有上限：语句可能在等待别的事务释放锁，而那个事务的下一条语句（比如commit）也要在workers中执行，
+* 固定大小的线程池会因此全部卡住。每个连接同时最多只有一条语句在执行，线程数不会超过连接数，空闲的线程一段时间后回收。
+* */
 public class Server {
     private int port;
     TableManager tbm;
+    private boolean threadPerConnection;
+    // 所有会话共用的语句缓存
+    PlanCache plans;
+
+    private Selector selector;
+    private Thread loop;
+    ThreadPoolExecutor workers;
+    // 其他线程要在selector线程中做的事（修改连接关注的事件）
+    private Queue<Runnable> tasks;
 
     public Server(int port, TableManager tbm) {
+        this(port, tbm, false);
+    }
+
+    public Server(int port, TableManager tbm, boolean threadPerConnection) {
         this.port = port;
         this.tbm = tbm;
+        this.threadPerConnection = threadPerConnection;
+        this.plans = new PlanCache();
+        this.tasks = new ConcurrentLinkedQueue<>();
     }
 
     public void start() {
+        if(threadPerConnection) {
+            startBlocking();
+            return;
+        }
+        ServerSocketChannel ssc = null;
+        try {
+            selector = Selector.open();
+            ssc = ServerSocketChannel.open();
+            ssc.bind(new InetSocketAddress(port));
+            ssc.configureBlocking(false);
+            ssc.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        System.out.println("Server listen to port: " + port);
+        loop = Thread.currentThread();
+        int n = Runtime.getRuntime().availableProcessors();
+        workers = new ThreadPoolExecutor(n, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS, new SynchronousQueue<>());
+        try {
+            while(true) {
+                selector.select();
+                Runnable task;
+                while((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while(it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if(!key.isValid()) {
+                        continue;
+                    }
+                    if(key.isAcceptable()) {
+                        accept(ssc);
+                        continue;
+                    }
+                    Connection conn = (Connection)key.attachment();
+                    if(key.isReadable()) {
+                        conn.read();
+                    }
+                    if(key.isValid() && key.isWritable()) {
+                        conn.write();
+                    }
+                }
+            }
+        } catch(IOException e) {
+            e.printStackTrace();
+        } finally {
+            workers.shutdown();
+            try {
+                ssc.close();
+                selector.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    private void accept(ServerSocketChannel ssc) throws IOException {
+        SocketChannel channel = ssc.accept();
+        if(channel == null) {
+            return;
+        }
+        InetSocketAddress address = (InetSocketAddress)channel.getRemoteAddress();
+        System.out.println("Establish connection: " + address.getAddress().getHostAddress()+":"+address.getPort());
+        channel.configureBlocking(false);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(new Connection(this, channel, key, new Executor(tbm, plans)));
+    }
+
+    private void startBlocking() {
         ServerSocket ss = null;
         try {
             ss = new ServerSocket(port);
@@ -32,31 +139,59 @@ public class Server {
             return;
         }
         System.out.println("Server listen to port: " + port);
-        ThreadPoolExecutor tpe = new ThreadPoolExecutor(10, 20, 1L, TimeUnit.SECONDS, new ArrayBlockingQueue<>(100), new ThreadPoolExecutor.CallerRunsPolicy());
+        ExecutorService sessions = newThreadPerTaskExecutor();
         try {
             while(true) {
-                // 接收一个socket然后用线程池处理
                 Socket socket = ss.accept();
-                Runnable worker = new HandleSocket(socket, tbm);
-                tpe.execute(worker);
+                sessions.execute(new HandleSocket(socket, tbm, plans));
             }
         } catch(IOException e) {
             e.printStackTrace();
         } finally {
+            sessions.shutdown();
             try {
                 ss.close();
             } catch (IOException ignored) {}
         }
     }
+
+    /*
+    * 每个任务一个虚拟线程（Executors.newVirtualThreadPerTaskExecutor，JDK 21）。
+    * 编译目标的JDK还没有这个方法，所以通过反射查找，找不到时每个任务一个普通线程，空闲线程一段时间后回收。
+    * */
+    static ExecutorService newThreadPerTaskExecutor() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService)m.invoke(null);
+        } catch(ReflectiveOperationException e) {
+            return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS, new SynchronousQueue<>());
+        }
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == loop;
+    }
+
+    // 在selector线程中执行task
+    void runInLoop(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
 }
 
+/*
+* 每个连接一个线程的会话：在阻塞的socket上逐条接收语句、执行并返回结果，直到客户端断开。
+* 等待网络、锁和磁盘时都用的是java.util.concurrent的锁或阻塞I/O，在虚拟线程上不会长时间占住载体线程。
+* */
 class HandleSocket implements Runnable {
     private Socket socket;
     private TableManager tbm;
+    private PlanCache plans;
 
-    public HandleSocket(Socket socket, TableManager tbm) {
+    public HandleSocket(Socket socket, TableManager tbm, PlanCache plans) {
         this.socket = socket;
         this.tbm = tbm;
+        this.plans = plans;
     }
 
     @Override
@@ -65,10 +200,10 @@ class HandleSocket implements Runnable {
         System.out.println("Establish connection: " + address.getAddress().getHostAddress()+":"+address.getPort());
         Packager packager = null;
         try {
-            Transporter t = new Transporter(socket);
+            Transporter t = Transporter.accept(socket);
             Encoder e = new Encoder();
             packager = new Packager(t, e);
-        } catch(IOException e) {
+        } catch(Exception e) {
             e.printStackTrace();
             try {
                 socket.close();
@@ -77,8 +212,7 @@ class HandleSocket implements Runnable {
             }
             return;
         }
-        // 这是自己写的处理输入的类，不是线程池的父类
-        Executor exe = new Executor(tbm);
+        Executor exe = new Executor(tbm, plans);
         while(true) {
             Package pkg = null;
             try {
@@ -86,18 +220,16 @@ class HandleSocket implements Runnable {
             } catch(Exception e) {
                 break;
             }
-            byte[] sql = pkg.getData();
-            byte[] result = null;
+            StreamSink sink = new StreamSink(packager::send, pkg.getId(), packager.isBinary());
             Exception e = null;
             try {
-                result = exe.execute(sql);
+                exe.execute(pkg.getData(), sink);
             } catch (Exception e1) {
                 e = e1;
                 e.printStackTrace();
             }
-            pkg = new Package(result, e);
             try {
-                packager.send(pkg);
+                sink.finish(e);
             } catch (Exception e1) {
                 e1.printStackTrace();
                 break;
@@ -110,5 +242,4 @@ class HandleSocket implements Runnable {
             e.printStackTrace();
         }
     }
-    
-}
\ No newline at end of file
+}
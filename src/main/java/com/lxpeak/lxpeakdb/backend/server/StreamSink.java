@@ -0,0 +1,66 @@
+package com.lxpeak.lxpeakdb.backend.server;
+
+import java.io.ByteArrayOutputStream;
+
+import com.lxpeak.lxpeakdb.transport.Package;
+
+/*
+* 每一批结果先留着，下一批到来时才把它作为中间包发出，最后一批（或错误）作为结束包发出。
+* 所以只有一批结果的语句和原来一样只发一个包。所有的包都带上请求的编号。
+*
+* 只有二进制帧的连接才发送中间包（partial为true）：十六进制行的客户端是原来的客户端，只认识flag为0和1的包，
+* 这时把所有批次拼起来，结束时作为一个包发出，和原来一样。
+* */
+class StreamSink implements BatchSink {
+    // 把包发给客户端，阻塞的连接直接写socket，NIO的连接放进待写出队列
+    interface Sender {
+        void send(Package pkg) throws Exception;
+    }
+
+    private Sender sender;
+    private int id;
+    private boolean partial;
+    private byte[] last;
+    // 不发送中间包时，last之前的批次
+    private ByteArrayOutputStream merged;
+
+    StreamSink(Sender sender, int id, boolean partial) {
+        this.sender = sender;
+        this.id = id;
+        this.partial = partial;
+    }
+
+    @Override
+    public void send(byte[] batch) throws Exception {
+        if(last != null) {
+            if(partial) {
+                send(new Package(last, true));
+            } else {
+                if(merged == null) {
+                    merged = new ByteArrayOutputStream();
+                }
+                merged.write(last);
+            }
+        }
+        last = batch;
+    }
+
+    void finish(Exception e) throws Exception {
+        if(e != null) {
+            if(partial && last != null) {
+                send(new Package(last, true));
+            }
+            send(new Package(null, e));
+        } else if(merged != null) {
+            merged.write(last);
+            send(new Package(merged.toByteArray(), null));
+        } else {
+            send(new Package(last == null ? new byte[0] : last, null));
+        }
+    }
+
+    private void send(Package pkg) throws Exception {
+        pkg.setId(id);
+        sender.send(pkg);
+    }
+}
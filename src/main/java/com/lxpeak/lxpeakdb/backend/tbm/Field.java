@@ -1,11 +1,18 @@
 package com.lxpeak.lxpeakdb.backend.tbm;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.google.common.primitives.Bytes;
 
+import com.lxpeak.lxpeakdb.backend.dm.DataManager;
 import com.lxpeak.lxpeakdb.backend.im.BPlusTree;
+import com.lxpeak.lxpeakdb.backend.im.RangeCursor;
 import com.lxpeak.lxpeakdb.backend.parser.statement.SingleExpression;
 import com.lxpeak.lxpeakdb.backend.tm.TransactionManagerImpl;
 import com.lxpeak.lxpeakdb.backend.utils.Panic;
@@ -16,16 +23,40 @@ import com.lxpeak.lxpeakdb.common.Error;
 /**
  * field 表示字段信息
  * 二进制格式为：
- * [FieldName][TypeName][IndexUid]
+ * [FieldName][TypeName][IndexUid][KeyFormat][FollowingCount][Following1]...[FollowingN][Unique][IncludeCount]
  * 如果field无索引，IndexUid为0
+ * KeyFormat 是字符串在索引中的key的格式（1个字节），旧版本的字段记录没有这一项：
+ *     KEY_HASH 为旧的哈希格式，只能用于等值查询；
+ *     KEY_ORDERED 为保序的前缀格式，支持范围查询和前缀查询。
+ * Following 是联合索引中排在该字段之后的字段名，FollowingCount 为其个数（1个字节），单列索引和旧版本的记录没有这一项。
+ * 联合索引挂在它的第一个字段上，B+树的key由每一列的key依次组成，后面的列总是用 KEY_ORDERED 格式。
+ * Unique 为1表示唯一索引（1个字节），只有唯一索引或有 include 字段时才写这一项（此时 FollowingCount 总是写上，可能为0）。
+ * IncludeCount 为 Following 中最后几个 include 字段的个数（1个字节），没有时不写。
+ * include 字段作为key最后的几列存进B+树，所以和前面的列一起排序，但查重和范围查询只用前面的列；
+ * 它们的值可以直接从key中读出（只有数字类型，字符串的key只是前缀），查询用到的字段都在索引里时可以不读记录。
  */
 public class Field {
+    static final byte KEY_HASH = 0;
+    static final byte KEY_ORDERED = 1;
+
     long uid;
     private Table tb;
     String fieldName;
     String fieldType;
-    private long index; //字段的索引标识符（如果字段有索引）
-    private BPlusTree bt; //字段的 B+ 树索引对象（如果字段有索引）
+    private volatile long index; //字段的索引标识符（如果字段有索引）
+    private volatile BPlusTree bt; //字段的 B+ 树索引对象（如果字段有索引）
+    private byte keyFormat = KEY_ORDERED;
+    // 联合索引中排在该字段之后的字段名，followFields在第一次使用时才解析（加载表时后面的字段可能还没有加载）
+    private String[] following = new String[0];
+    private volatile Field[] followFields;
+    // following中最后includeCount个是include字段
+    private int includeCount;
+    private volatile boolean unique;
+    // 唯一索引按key分段加锁，同一个key的"检查是否重复+插入索引"串行执行
+    private Lock[] keyLocks;
+    // 正在通过 create index 创建索引时不为null，期间写入的(key, uid)先暂存在这里，索引建好后再补进去
+    private List<long[]> pending;
+    private Lock lock = new ReentrantLock();
 
     public static Field loadField(Table tb, long uid) {
         byte[] raw = null;
@@ -42,6 +73,7 @@ public class Field {
     public Field(long uid, Table tb) {
         this.uid = uid;
         this.tb = tb;
+        initKeyLocks();
     }
 
     public Field(Table tb, String fieldName, String fieldType, long index) {
@@ -49,6 +81,14 @@ public class Field {
         this.fieldName = fieldName;
         this.fieldType = fieldType;
         this.index = index;
+        initKeyLocks();
+    }
+
+    private void initKeyLocks() {
+        keyLocks = new Lock[16];
+        for(int i = 0; i < keyLocks.length; i ++) {
+            keyLocks[i] = new ReentrantLock();
+        }
     }
 
     private Field parseSelf(byte[] raw) {
@@ -66,6 +106,31 @@ public class Field {
         position += res.next;
         // 如果这个字段没有索引则为 0。
         this.index = Parser.parseLong(Arrays.copyOfRange(raw, position, position+8));
+        position += 8;
+        // 旧版本的字段记录没有KeyFormat，已有的索引是按哈希建的
+        if(position < raw.length) {
+            keyFormat = raw[position];
+        } else {
+            keyFormat = index != 0 ? KEY_HASH : KEY_ORDERED;
+        }
+        position += 1;
+        if(position < raw.length) {
+            int n = raw[position];
+            position += 1;
+            following = new String[n];
+            for(int i = 0; i < n; i ++) {
+                res = Parser.parseString(Arrays.copyOfRange(raw, position, raw.length));
+                following[i] = res.str;
+                position += res.next;
+            }
+        }
+        if(position < raw.length) {
+            unique = raw[position] == 1;
+            position += 1;
+        }
+        if(position < raw.length) {
+            includeCount = raw[position];
+        }
         if(index != 0) {
             try {
                 // 加载B+树，其实就是create和open中的open
@@ -77,19 +142,40 @@ public class Field {
         return this;
     }
 
+    // 节点在key数达到 balanceNumber*2 时分裂，所以fanout必须是正的偶数；0表示没有指定，使用默认值
+    static int balanceNumber(int fanout) throws Exception {
+        if(fanout == 0) {
+            return BPlusTree.DEFAULT_BALANCE_NUMBER;
+        }
+        if(fanout < 0 || fanout % 2 != 0) {
+            throw Error.InvalidFanoutException;
+        }
+        return fanout / 2;
+    }
+
     /*
     * indexed：是否需要索引
+    * fanout：索引每个节点最多容纳的key数，为0时使用默认值（见balanceNumber）
+    * following：联合索引中排在该字段之后的字段名，单列索引为空数组
+    * unique：是否为唯一索引
+    * include：只存进索引、不参与查重和范围查询的字段
     * */
-    public static Field createField(Table tb, long xid, String fieldName, String fieldType, boolean indexed) throws Exception {
+    public static Field createField(Table tb, long xid, String fieldName, String fieldType, boolean indexed, int fanout, String[] following, boolean unique, String[] include) throws Exception {
         // 检查字段类型合法性
         typeCheck(fieldType);
         Field f = new Field(tb, fieldName, fieldType, 0);
         // 若需要索引则生成新的B+树
         if(indexed) {
-            long index = BPlusTree.create(((TableManagerImpl)tb.tbm).dm);
-            BPlusTree bt = BPlusTree.load(index, ((TableManagerImpl)tb.tbm).dm);
+            DataManager dm = ((TableManagerImpl)tb.tbm).dm;
+            int keyWidth = 1 + following.length + include.length;
+            // 节点在key数达到 balanceNumber*2 时分裂
+            long index = BPlusTree.create(dm, balanceNumber(fanout), keyWidth);
+            BPlusTree bt = BPlusTree.load(index, dm);
             f.index = index;
             f.bt = bt;
+            f.following = concat(following, include);
+            f.includeCount = include.length;
+            f.unique = unique;
         }
         f.persistSelf(xid);
         return f;
@@ -98,11 +184,39 @@ public class Field {
     // 将字段数据持久化到数据库
     private void persistSelf(long xid) throws Exception {
         // 由于需要使用对象变量，所以需要先保证当前的Field对象是赋值后的
+        this.uid = ((TableManagerImpl)tb.tbm).vm.insert(xid, raw());
+    }
+
+    // 索引UID变化后重写字段记录，新版本挂在原记录的版本链上，表中保存的字段UID不需要改动
+    private void updateSelf(long xid) throws Exception {
+        ((TableManagerImpl)tb.tbm).vm.update(xid, uid, raw(), true);
+    }
+
+    // 将字段名、类型、索引UID、key的格式和联合索引的字段拼接为字节数组
+    private byte[] raw() {
         byte[] nameRaw = Parser.string2Byte(fieldName);
         byte[] typeRaw = Parser.string2Byte(fieldType);
         byte[] indexRaw = Parser.long2Byte(index);
-        // 将字段名、类型和索引UID拼接为字节数组，得到uid
-        this.uid = ((TableManagerImpl)tb.tbm).vm.insert(xid, Bytes.concat(nameRaw, typeRaw, indexRaw));
+        byte[] raw = Bytes.concat(nameRaw, typeRaw, indexRaw, new byte[]{keyFormat});
+        if(following.length > 0 || unique || includeCount > 0) {
+            raw = Bytes.concat(raw, new byte[]{(byte)following.length});
+            for(String name : following) {
+                raw = Bytes.concat(raw, Parser.string2Byte(name));
+            }
+        }
+        if(unique || includeCount > 0) {
+            raw = Bytes.concat(raw, new byte[]{(byte)(unique ? 1 : 0)});
+        }
+        if(includeCount > 0) {
+            raw = Bytes.concat(raw, new byte[]{(byte)includeCount});
+        }
+        return raw;
+    }
+
+    private static String[] concat(String[] a, String[] b) {
+        String[] r = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, r, a.length, b.length);
+        return r;
     }
 
     private static void typeCheck(String fieldType) throws Exception {
@@ -115,13 +229,245 @@ public class Field {
         return index != 0;
     }
 
-    public void insert(Object key, long uid) throws Exception {
-        long uKey = value2Uid(key);
-        bt.insert(uKey, uid);
+    // 写入时是否需要维护该字段的索引，包括正在创建中的索引
+    public boolean maintainsIndex() {
+        lock.lock();
+        try {
+            return index != 0 || pending != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 该字段的索引是否包含字段name（作为第一个字段、联合索引后面的字段或者include字段）
+    public boolean indexCovers(String name) {
+        if(!maintainsIndex()) {
+            return false;
+        }
+        if(fieldName.equals(name)) {
+            return true;
+        }
+        for(String f : following) {
+            if(f.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 已经建好的唯一索引，创建中的索引还不检查
+    public boolean isUnique() {
+        return unique;
+    }
+
+    // 只按参与查重的列选择锁，include字段不同的记录也要互斥
+    Lock keyLock(long[] key) {
+        return keyLocks[(Arrays.hashCode(Arrays.copyOf(key, keyColumns())) & 0x7fffffff) % keyLocks.length];
+    }
+
+    // 两条记录在该索引的每一列（不含include字段）上的值是否都相同，key相同的记录（例如字符串的前8个字节相同）还需要这样比较
+    boolean sameValues(Map<String, Object> a, Map<String, Object> b) throws Exception {
+        if(compare(a.get(fieldName), b.get(fieldName)) != 0) {
+            return false;
+        }
+        Field[] fs = followFields();
+        for(int i = 0; i < fs.length - includeCount; i ++) {
+            if(fs[i].compare(a.get(fs[i].fieldName), b.get(fs[i].fieldName)) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // 记录在该索引每一列（不含include字段）上的值，用于在内存中查重
+    List<Object> values(Map<String, Object> entry) throws Exception {
+        List<Object> vs = new ArrayList<>();
+        vs.add(entry.get(fieldName));
+        Field[] fs = followFields();
+        for(int i = 0; i < fs.length - includeCount; i ++) {
+            vs.add(entry.get(fs[i].fieldName));
+        }
+        return vs;
+    }
+
+    // 联合索引第二个字段，单列索引返回null，include字段不能用来缩小范围
+    public Field secondField() throws Exception {
+        return following.length - includeCount > 0 ? followFields()[0] : null;
+    }
+
+    // 索引key的每一列对应的字段，依次为该字段、联合索引后面的字段和include字段
+    Field[] keyFields() throws Exception {
+        Field[] fs = new Field[1 + following.length];
+        fs[0] = this;
+        System.arraycopy(followFields(), 0, fs, 1, following.length);
+        return fs;
+    }
+
+    // 能否从索引的key中还原出该字段的值，字符串的key只是前缀或哈希，不能还原
+    boolean keyHoldsValue() {
+        return !"string".equals(fieldType);
+    }
+
+    // 从key还原字段的值，只能用于数字类型
+    Object key2Value(long key) {
+        return "int32".equals(fieldType) ? (Object)(int)key : (Object)key;
+    }
+
+    private Field[] followFields() throws Exception {
+        Field[] fs = followFields;
+        if(fs == null) {
+            fs = new Field[following.length];
+            for(int i = 0; i < fs.length; i ++) {
+                fs[i] = tb.getField(following[i]);
+            }
+            followFields = fs;
+        }
+        return fs;
+    }
+
+    // 一条记录在索引中的key，entry为字段名到值的映射
+    long[] key(Map<String, Object> entry) throws Exception {
+        long[] key = new long[1 + following.length];
+        key[0] = value2Uid(entry.get(fieldName));
+        Field[] fs = followFields();
+        for(int i = 0; i < fs.length; i ++) {
+            key[i+1] = fs[i].value2Uid(entry.get(fs[i].fieldName), KEY_ORDERED);
+        }
+        return key;
+    }
+
+    public void insert(Map<String, Object> entry, long uid) throws Exception {
+        long[] key = key(entry);
+        BPlusTree t;
+        lock.lock();
+        try {
+            if(pending != null) {
+                long[] p = Arrays.copyOf(key, key.length+1);
+                p[key.length] = uid;
+                pending.add(p);
+                return;
+            }
+            t = bt;
+        } finally {
+            lock.unlock();
+        }
+        t.insert(key, uid);
+    }
+
+    // 开始创建索引，之后的写入会先暂存起来
+    void beginIndexBuild(String[] following, String[] include) throws Exception {
+        lock.lock();
+        try {
+            if(index != 0 || pending != null) {
+                throw Error.FieldAlreadyIndexedException;
+            }
+            this.following = concat(following, include);
+            this.includeCount = include.length;
+            this.followFields = null;
+            pending = new ArrayList<>();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void abortIndexBuild() {
+        lock.lock();
+        try {
+            pending = null;
+            following = new String[0];
+            includeCount = 0;
+            followFields = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 索引key由几个long组成
+    int keyWidth() {
+        return 1 + following.length;
     }
 
-    public List<Long> search(long left, long right) throws Exception {
-        return bt.searchRange(left, right);
+    // 参与查重和范围查询的列数，即keyWidth去掉include字段
+    int keyColumns() {
+        return 1 + following.length - includeCount;
+    }
+
+    // 使用新建好的B+树作为该字段的索引，补上创建期间暂存的写入，并持久化字段记录
+    void setIndex(long xid, long bootUid, boolean unique) throws Exception {
+        BPlusTree t = BPlusTree.load(bootUid, ((TableManagerImpl)tb.tbm).dm);
+        lock.lock();
+        try {
+            if(pending != null) {
+                for(long[] p : pending) {
+                    long[] key = Arrays.copyOf(p, p.length-1);
+                    long uid = p[p.length-1];
+                    // 创建期间写入的行也可能已经被扫描到了，避免重复
+                    if(!t.search(key).contains(uid)) {
+                        t.insert(key, uid);
+                    }
+                }
+                pending = null;
+            }
+            if(bt != null) {
+                bt.close();
+            }
+            index = bootUid;
+            bt = t;
+            this.unique = unique;
+        } finally {
+            lock.unlock();
+        }
+        updateSelf(xid);
+    }
+
+    // 索引每个节点最多容纳的key数，重建索引时沿用
+    int fanout() {
+        lock.lock();
+        try {
+            return bt.getBalanceNumber() * 2;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 索引所在的段，没有索引或者是旧版本的索引时返回0
+    long indexSegment() {
+        return index == 0 ? 0 : ((TableManagerImpl)tb.tbm).dm.segmentOf(index);
+    }
+
+    // 删除表时释放B+树，返回索引所在的段，旧版本的索引不在段中，返回0
+    long dropIndex() {
+        lock.lock();
+        try {
+            if(bt == null) {
+                return 0;
+            }
+            bt.close();
+            bt = null;
+            return ((TableManagerImpl)tb.tbm).dm.segmentOf(index);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 第一个字段在[left, right]内的游标，联合索引后面的列取全部范围
+    public RangeCursor cursor(long left, long right) throws Exception {
+        long[] l = new long[keyWidth()];
+        long[] r = new long[keyWidth()];
+        Arrays.fill(l, Long.MIN_VALUE);
+        Arrays.fill(r, Long.MAX_VALUE);
+        l[0] = left;
+        r[0] = right;
+        return bt.cursor(l, r);
+    }
+
+    // 按列依次比较的[left, right]的游标，列数少于索引时后面的列取全部范围
+    public RangeCursor cursor(long[] left, long[] right) throws Exception {
+        long[] l = Arrays.copyOf(left, keyWidth());
+        long[] r = Arrays.copyOf(right, keyWidth());
+        Arrays.fill(l, left.length, l.length, Long.MIN_VALUE);
+        Arrays.fill(r, right.length, r.length, Long.MAX_VALUE);
+        return bt.cursor(l, r);
     }
 
     // 将字符串转换为数字
@@ -137,12 +483,18 @@ public class Field {
         return null;
     }
 
-    // 得到用于进行B+树查询的uid，数字的话因为直接可以比较所以不用处理，字符串通过哈希函数映射后得到uid进行比较
+    // 得到用于进行B+树查询的uid，数字的话因为直接可以比较所以不用处理，
+    // 字符串取UTF-8编码的前8个字节作为key，保持字符串的大小顺序，前缀相同的字符串key相同，需要再比较完整的值
     public long value2Uid(Object key) {
+        return value2Uid(key, keyFormat);
+    }
+
+    // 按指定的格式得到key，联合索引后面的列总是KEY_ORDERED格式
+    long value2Uid(Object key, byte format) {
         long uid = 0;
         switch(fieldType) {
             case "string":
-                uid = Parser.str2Uid((String)key);
+                uid = format == KEY_HASH ? Parser.str2Uid((String)key) : Parser.str2Key((String)key);
                 break;
             case "int32":
                 int uint = (int)key;
@@ -196,6 +548,36 @@ public class Field {
         return res;
     }
 
+    // 定长字段在记录中占的字节数，字符串不定长，返回-1
+    int fixedLength() {
+        switch(fieldType) {
+            case "int32":
+                return 4;
+            case "int64":
+                return 8;
+            default:
+                return -1;
+        }
+    }
+
+    // 记录raw中从pos开始的该字段的值占多少字节，字符串为4字节长度加内容
+    int rawLength(byte[] raw, int pos) {
+        int n = fixedLength();
+        return n >= 0 ? n : 4 + Parser.parseInt(raw, pos);
+    }
+
+    // 直接在记录raw的pos处解析出该字段的值，不拷贝数组
+    Object valueAt(byte[] raw, int pos) {
+        switch(fieldType) {
+            case "int32":
+                return Parser.parseInt(raw, pos);
+            case "int64":
+                return Parser.parseLong(raw, pos);
+            default:
+                return new String(raw, pos+4, Parser.parseInt(raw, pos));
+        }
+    }
+
     public String printValue(Object v) {
         String str = null;
         switch(fieldType) {
@@ -214,42 +596,167 @@ public class Field {
 
     @Override
     public String toString() {
-        return new StringBuilder("(")
+        StringBuilder sb = new StringBuilder("(")
             .append(fieldName)
             .append(", ")
             .append(fieldType)
-            .append(index!=0?", Index":", NoIndex")
-            .append(")")
-            .toString();
+            .append(index!=0?(unique?", UniqueIndex":", Index"):", NoIndex");
+        if(index != 0 && following.length > 0) {
+            sb.append("(").append(fieldName);
+            for(int i = 0; i < following.length - includeCount; i ++) {
+                sb.append(", ").append(following[i]);
+            }
+            sb.append(")");
+            if(includeCount > 0) {
+                sb.append(" Include(");
+                for(int i = following.length - includeCount; i < following.length; i ++) {
+                    sb.append(following[i]).append(i == following.length-1 ? ")" : ", ");
+                }
+            }
+        }
+        return sb.append(")").toString();
     }
 
-    // 得到判断条件的搜索范围
+    /*
+    * 得到判断条件在索引上的搜索范围，范围内的记录还需要用matches()检查：
+    * 字符串的key只是前8个字节，范围两端可能有不满足条件的记录；旧的哈希格式只能算出等值查询的范围，其他条件扫描全部。
+    * left大于right时表示没有记录满足条件。
+    * */
     public FieldCalRes calExp(SingleExpression exp) throws Exception {
-        Object v = null;
+        return calExp(exp, keyFormat);
+    }
+
+    // 按指定的key格式计算范围，用于该字段作为联合索引后面的列时
+    FieldCalRes calExp(SingleExpression exp, byte keyFormat) throws Exception {
         FieldCalRes res = new FieldCalRes();
+        res.left = Long.MIN_VALUE;
+        res.right = Long.MAX_VALUE;
+        if("like".equals(exp.compareOp)) {
+            if(!"string".equals(fieldType)) {
+                throw Error.InvalidCmpOpException;
+            }
+            if(keyFormat == KEY_ORDERED) {
+                // 第一个通配符之前的部分是前缀，例如 name like 'Zh%' -> ['Zh'后面补0x00, 'Zh'后面补0xFF]
+                String prefix = exp.value;
+                for(int i = 0; i < prefix.length(); i ++) {
+                    if(prefix.charAt(i) == '%' || prefix.charAt(i) == '_') {
+                        prefix = prefix.substring(0, i);
+                        break;
+                    }
+                }
+                int n = prefix.getBytes(StandardCharsets.UTF_8).length;
+                if(n > 0) {
+                    res.left = Parser.str2Key(prefix);
+                    res.right = n >= 8 ? res.left : res.left | ((1L << ((8-n)*8)) - 1);
+                }
+            }
+            return res;
+        }
+        Object v = string2Value(exp.value);
+        long key = value2Uid(v, keyFormat);
+        boolean exact = !"string".equals(fieldType);
+        if(!exact && keyFormat == KEY_HASH) {
+            // 哈希值没有顺序
+            if("=".equals(exp.compareOp)) {
+                res.left = res.right = key;
+            }
+            return res;
+        }
         switch(exp.compareOp) {
-            // 例如 age < 25 -> [0, 24]
+            // 例如 age < 25 -> [MIN_VALUE, 24]
             case "<":
-                res.left = 0;
-                v = string2Value(exp.value);
-                res.right = value2Uid(v);
-                if(res.right > 0) {
-                    res.right --;
+                if(!exact) {
+                    res.right = key;
+                } else if(key == Long.MIN_VALUE) {
+                    res.left = Long.MAX_VALUE;
+                    res.right = Long.MIN_VALUE;
+                } else {
+                    res.right = key - 1;
                 }
                 break;
             // 例如 age = 25 -> [25, 25]
             case "=":
-                v = string2Value(exp.value);
-                res.left = value2Uid(v);
-                res.right = res.left;
+                res.left = key;
+                res.right = key;
                 break;
-            // 例如 age > 25 -> [26, Long.MAX_VALUE]
+            // 例如 age > 25 -> [26, MAX_VALUE]
             case ">":
-                res.right = Long.MAX_VALUE;
-                v = string2Value(exp.value);
-                res.left = value2Uid(v) + 1;
+                if(!exact) {
+                    res.left = key;
+                } else if(key == Long.MAX_VALUE) {
+                    res.left = Long.MAX_VALUE;
+                    res.right = Long.MIN_VALUE;
+                } else {
+                    res.left = key + 1;
+                }
                 break;
+            default:
+                throw Error.InvalidCmpOpException;
         }
         return res;
     }
+
+    // 字段的值v是否满足条件exp
+    public boolean matches(Object v, SingleExpression exp) {
+        if("like".equals(exp.compareOp)) {
+            return like((String)v, exp.value);
+        }
+        int c = compare(v, string2Value(exp.value));
+        switch(exp.compareOp) {
+            case "<":
+                return c < 0;
+            case "=":
+                return c == 0;
+            case ">":
+                return c > 0;
+        }
+        return false;
+    }
+
+    // 字符串按UTF-8字节比较，和索引中key的顺序一致
+    int compare(Object a, Object b) {
+        switch(fieldType) {
+            case "int32":
+                return Integer.compare((int)a, (int)b);
+            case "int64":
+                return Long.compare((long)a, (long)b);
+            case "string":
+                byte[] x = ((String)a).getBytes(StandardCharsets.UTF_8);
+                byte[] y = ((String)b).getBytes(StandardCharsets.UTF_8);
+                int n = Math.min(x.length, y.length);
+                for(int i = 0; i < n; i ++) {
+                    if(x[i] != y[i]) {
+                        return (x[i] & 0xFF) - (y[i] & 0xFF);
+                    }
+                }
+                return x.length - y.length;
+        }
+        return 0;
+    }
+
+    // %匹配任意个字符，_匹配一个字符
+    static boolean like(String str, String pattern) {
+        int s = 0, p = 0;
+        // 上一个%的位置，以及当时对应的str位置
+        int star = -1, mark = 0;
+        while(s < str.length()) {
+            if(p < pattern.length() && (pattern.charAt(p) == '_' || pattern.charAt(p) == str.charAt(s))) {
+                s ++;
+                p ++;
+            } else if(p < pattern.length() && pattern.charAt(p) == '%') {
+                star = p ++;
+                mark = s;
+            } else if(star != -1) {
+                // 回到上一个%，让它多匹配一个字符
+                p = star + 1;
+                s = ++ mark;
+            } else {
+                return false;
+            }
+        }
+        while(p < pattern.length() && pattern.charAt(p) == '%') {
+            p ++;
+        }
+        return p == pattern.length();
+    }
 }
@@ -0,0 +1,32 @@
+package com.lxpeak.lxpeakdb.backend.tbm;
+
+import com.lxpeak.lxpeakdb.backend.parser.statement.Where;
+
+// 只留下满足where条件的行
+class Filter implements Operator {
+    private Table table;
+    private Operator child;
+    private Where where;
+
+    Filter(Table table, Operator child, Where where) {
+        this.table = table;
+        this.child = child;
+        this.where = where;
+    }
+
+    @Override
+    public Object[] next() throws Exception {
+        Object[] row;
+        while((row = child.next()) != null) {
+            if(table.matches(row, where)) {
+                return row;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() {
+        child.close();
+    }
+}
@@ -0,0 +1,155 @@
+package com.lxpeak.lxpeakdb.backend.tbm;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.lxpeak.lxpeakdb.backend.dm.DataManager;
+import com.lxpeak.lxpeakdb.backend.vm.RawFilter;
+import com.lxpeak.lxpeakdb.backend.vm.ScanRes;
+import com.lxpeak.lxpeakdb.backend.vm.VersionManager;
+
+/**
+ * 顺序扫描表的堆段（见DataManager的段），不需要索引：
+ * 按页号顺序读取段中每一页上对事务可见的版本，在记录的字节数组上用where条件过滤（见Table.rawFilter），只把满足条件的记录交给上层。
+ *
+ * open之后每次next返回下一组页中的记录，上层用完一组再取下一组，不会把整个表的结果放进内存。
+ * 并行扫描时把页按PAGES_PER_TASK一组交给线程池，最多提前扫描WINDOW组，结果仍然按页号顺序返回；
+ * 有limit时逐页扫描，够数后就不再读后面的页。
+ */
+class HeapScan {
+    static final int PAGES_PER_TASK = 4;
+    static final int WINDOW = Runtime.getRuntime().availableProcessors();
+
+    // 所有表共用的扫描线程，队列满时由调用线程自己扫描
+    private static final ThreadPoolExecutor POOL = new ThreadPoolExecutor(
+        Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().availableProcessors(),
+        1L, TimeUnit.SECONDS, new ArrayBlockingQueue<>(100), r -> {
+            Thread t = new Thread(r, "heap-scan");
+            t.setDaemon(true);
+            return t;
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+
+    private VersionManager vm;
+    private DataManager dm;
+    private long segment;
+    private RawFilter filter;
+
+    private long xid;
+    private boolean parallel;
+    private int[] pages;
+    // 下一个还没有交给线程池（或还没有扫描）的页在pages中的位置
+    private int nextPage;
+    private Deque<Future<ScanRes>> pending;
+    // close之后还没开始的任务直接返回，正在执行的任务扫描完当前页就停下
+    private volatile boolean closed;
+
+    HeapScan(VersionManager vm, DataManager dm, long segment, RawFilter filter) {
+        this.vm = vm;
+        this.dm = dm;
+        this.segment = segment;
+        this.filter = filter;
+    }
+
+    // 开始扫描，parallel为false时逐页扫描
+    void open(long xid, boolean parallel) {
+        this.xid = xid;
+        this.pages = dm.segmentPages(segment);
+        this.parallel = parallel && pages.length > PAGES_PER_TASK;
+        this.nextPage = 0;
+        this.pending = new ArrayDeque<>();
+        this.closed = false;
+    }
+
+    // 下一组页中满足条件的记录，扫描完时返回null
+    ScanRes next() throws Exception {
+        if(!parallel) {
+            if(nextPage >= pages.length) {
+                return null;
+            }
+            return vm.scanPage(xid, pages[nextPage ++], filter);
+        }
+        while(pending.size() < WINDOW && nextPage < pages.length) {
+            int[] range = Arrays.copyOfRange(pages, nextPage, Math.min(nextPage + PAGES_PER_TASK, pages.length));
+            nextPage += range.length;
+            pending.add(POOL.submit(() -> {
+                ScanRes res = new ScanRes();
+                for(int pgno : range) {
+                    if(closed) {
+                        break;
+                    }
+                    append(res, vm.scanPage(xid, pgno, filter), -1);
+                }
+                return res;
+            }));
+        }
+        Future<ScanRes> f = pending.poll();
+        if(f == null) {
+            return null;
+        }
+        try {
+            return f.get();
+        } catch(ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
+        }
+    }
+
+    /*
+    * 不再需要后面的结果，停止还没有完成的扫描，并等交给线程池的任务都结束才返回。
+    * Future.cancel不能停下已经开始的任务，关闭之后调用方会结束事务、释放表（表可能随后被删除、段被回收），
+    * 任务不能再用这个事务读取表的页。
+    * */
+    void close() {
+        if(pending == null) {
+            return;
+        }
+        closed = true;
+        boolean interrupted = false;
+        for(Future<ScanRes> f : pending) {
+            while(true) {
+                try {
+                    f.get();
+                    break;
+                } catch(InterruptedException e) {
+                    interrupted = true;
+                } catch(ExecutionException e) {
+                    // 结果已经不需要了，错误也不再报告
+                    break;
+                }
+            }
+        }
+        pending.clear();
+        nextPage = pages.length;
+        if(interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // 一次取出全部结果，limit小于0表示不限制
+    ScanRes scan(long xid, int limit) throws Exception {
+        open(xid, limit < 0);
+        ScanRes res = new ScanRes();
+        try {
+            ScanRes part;
+            while((limit < 0 || res.uids.size() < limit) && (part = next()) != null) {
+                append(res, part, limit);
+            }
+        } finally {
+            close();
+        }
+        return res;
+    }
+
+    private static void append(ScanRes res, ScanRes part, int limit) {
+        for(int i = 0; i < part.uids.size(); i ++) {
+            if(limit >= 0 && res.uids.size() >= limit) return;
+            res.uids.add(part.uids.get(i));
+            res.data.add(part.data.get(i));
+        }
+    }
+}
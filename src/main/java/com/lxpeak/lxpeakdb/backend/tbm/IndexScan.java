@@ -0,0 +1,60 @@
+package com.lxpeak.lxpeakdb.backend.tbm;
+
+import java.util.List;
+
+import com.lxpeak.lxpeakdb.backend.im.RangeCursor;
+
+/**
+ * 依次遍历B+树游标（OR条件有两个）上的uid，读出对事务可见的记录。
+ * keyFields不为null时，全部可见的页上的记录直接用索引中的值（index-only scan，见VisibilityMap）。
+ */
+class IndexScan implements Operator {
+    private Table table;
+    private long xid;
+    private List<RangeCursor> cursors;
+    private Field[] keyFields;
+    private int[] keyColumns;
+    private RowDecoder decoder;
+    private int current;
+
+    IndexScan(Table table, long xid, List<RangeCursor> cursors, Field[] keyFields, RowDecoder decoder) throws Exception {
+        this.table = table;
+        this.xid = xid;
+        this.cursors = cursors;
+        this.keyFields = keyFields;
+        this.decoder = decoder;
+        if(keyFields != null) {
+            keyColumns = new int[keyFields.length];
+            for (int i = 0; i < keyFields.length; i++) {
+                keyColumns[i] = table.column(keyFields[i].fieldName);
+            }
+        }
+    }
+
+    @Override
+    public Object[] next() throws Exception {
+        TableManagerImpl tbm = (TableManagerImpl)table.tbm;
+        while(current < cursors.size()) {
+            RangeCursor cursor = cursors.get(current);
+            if(!cursor.hasNext()) {
+                current ++;
+                continue;
+            }
+            long uid = cursor.next();
+            if(keyFields != null && table.vmap.isAllVisible(uid)) {
+                // 记录对所有事务可见且没有被修改过，索引中的值就是它的值
+                return table.keyRow(keyFields, keyColumns, cursor.keyColumns());
+            }
+            byte[] raw = tbm.vm.read(xid, uid);
+            if(raw == null) {
+                // 已经对所有事务都不可见的记录，顺手把这个索引项删掉，之后的查找就不用再经过它了
+                if(tbm.vm.isObsolete(uid)) {
+                    cursor.remove();
+                }
+                continue;
+            }
+            return decoder.decode(raw);
+        }
+        return null;
+    }
+}
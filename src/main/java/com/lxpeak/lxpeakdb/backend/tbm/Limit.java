@@ -0,0 +1,30 @@
+package com.lxpeak.lxpeakdb.backend.tbm;
+
+// 最多返回limit行，够数后不再向子算子拉取
+class Limit implements Operator {
+    private Operator child;
+    private int limit;
+    private int count;
+
+    Limit(Operator child, int limit) {
+        this.child = child;
+        this.limit = limit;
+    }
+
+    @Override
+    public Object[] next() throws Exception {
+        if(count >= limit) {
+            return null;
+        }
+        Object[] row = child.next();
+        if(row != null) {
+            count ++;
+        }
+        return row;
+    }
+
+    @Override
+    public void close() {
+        child.close();
+    }
+}
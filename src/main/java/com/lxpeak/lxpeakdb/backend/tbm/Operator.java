@@ -0,0 +1,16 @@
+package com.lxpeak.lxpeakdb.backend.tbm;
+
+/**
+ * 查询的执行计划是一棵算子树（火山模型）：上层算子每次向子算子拉取一行，处理后再交给自己的上层，
+ * 最上层由ResultStream每读出一批行就交给调用方，不需要先把整个结果放进内存。
+ *
+ * 叶子是SeqScan（顺序扫描堆段）或IndexScan（B+树游标），上面依次可能有Filter、Sort、Limit，
+ * 投影在ResultStream输出时完成。Limit够数后不再向下拉取，后面的页和叶子节点都不会被读取。
+ */
+interface Operator {
+    // 下一行，按表中字段顺序排列，没有用到的列为null（见RowDecoder）；没有更多行时返回null
+    Object[] next() throws Exception;
+
+    // 提前结束时释放资源，例如取消还在进行的并行扫描
+    default void close() {}
+}
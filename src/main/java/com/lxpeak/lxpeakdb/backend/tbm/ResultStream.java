@@ -0,0 +1,133 @@
+package com.lxpeak.lxpeakdb.backend.tbm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * SELECT的结果，调用方每次取出一批行，每行按投影的字段格式化为一行文本，例如 "[1, Zhang San]\n"。
+ * 行是取的时候才从算子树中拉取的，所以第一批可以在扫描完整个表之前就交给客户端。
+ * 取完或者不再需要时调用close。
+ *
+ * 二进制格式（setBinary）不需要把值格式化成文本，客户端也不需要解析字符串：
+ * 第一批以列头开始：[列数 4字节]，之后每列是[名字][类型（Field.fieldType）]，都写成[长度 4字节][字节]；
+ * 之后每行依次是各列的值，布局和Field.value2Raw相同：int32为4字节，int64为8字节，string为[长度 4字节][字节]，都是大端。
+ * 没有行时第一批只有列头。
+ */
+public class ResultStream {
+    private Operator root;
+    private List<Field> projection;
+    // 投影的字段在行中是第几列
+    private int[] columns;
+    private boolean done;
+    private boolean binary;
+    private boolean headerSent;
+    // 关闭时调用一次，TableManagerImpl用来结束对表的使用
+    private Runnable onClose;
+
+    ResultStream(Operator root, List<Field> projection, int[] columns) {
+        this.root = root;
+        this.projection = projection;
+        this.columns = columns;
+    }
+
+    void onClose(Runnable onClose) {
+        this.onClose = onClose;
+    }
+
+    // 之后取出的批次是否用二进制格式，在第一次调用next之前设置
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    // 最多取出n行，没有更多行时返回null
+    public byte[] next(int n) throws Exception {
+        if(binary) {
+            return nextBinary(n);
+        }
+        if(done) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        int count = 0;
+        while(count < n) {
+            Object[] row = root.next();
+            if(row == null) {
+                done = true;
+                break;
+            }
+            sb.append("[");
+            for (int i = 0; i < columns.length; i++) {
+                if(i > 0) {
+                    sb.append(", ");
+                }
+                sb.append(projection.get(i).printValue(row[columns[i]]));
+            }
+            sb.append("]\n");
+            count ++;
+        }
+        if(count == 0) {
+            return null;
+        }
+        return sb.toString().getBytes();
+    }
+
+    private byte[] nextBinary(int n) throws Exception {
+        if(done && headerSent) {
+            return null;
+        }
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buf);
+        if(!headerSent) {
+            headerSent = true;
+            out.writeInt(projection.size());
+            for (Field fd : projection) {
+                writeString(out, fd.fieldName);
+                writeString(out, fd.fieldType);
+            }
+        }
+        int count = 0;
+        while(!done && count < n) {
+            Object[] row = root.next();
+            if(row == null) {
+                done = true;
+                break;
+            }
+            for (int i = 0; i < columns.length; i++) {
+                Object v = row[columns[i]];
+                switch(projection.get(i).fieldType) {
+                    case "int32":
+                        out.writeInt((int)v);
+                        break;
+                    case "int64":
+                        out.writeLong((long)v);
+                        break;
+                    default:
+                        writeString(out, (String)v);
+                }
+            }
+            count ++;
+        }
+        if(buf.size() == 0) {
+            return null;
+        }
+        return buf.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes();
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    public void close() {
+        done = true;
+        root.close();
+        if(onClose != null) {
+            Runnable r = onClose;
+            onClose = null;
+            r.run();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.lxpeak.lxpeakdb.backend.tbm;
+
+import java.util.List;
+
+/**
+ * 只解码记录中需要的列（投影下推）。
+ *
+ * 记录是各字段的值依次拼接：int32占4字节，int64占8字节，string为4字节长度加内容。
+ * 第一个string字段及之前的列在记录中的偏移是固定的，创建时算好，直接跳过去读；
+ * 之后的列只能从前一列往后走，string按长度前缀跳过，不解码内容。最后一个需要的列之后的数据不会被读取。
+ *
+ * 解码结果是按表中字段顺序排列的数组，不需要的列为null，不会为每行建一个Map。
+ */
+class RowDecoder {
+    private List<Field> fields;
+    private boolean[] needed;
+    // 列在记录中的固定偏移，前面有string字段时为-1
+    private int[] offsets;
+    // 从这一列开始往后走
+    private int first;
+    // 最后一个需要的列，没有需要的列时为-1
+    private int last;
+
+    RowDecoder(List<Field> fields, boolean[] needed) {
+        this.fields = fields;
+        this.needed = needed;
+        this.offsets = new int[fields.size()];
+        int offset = 0;
+        for (int i = 0; i < fields.size(); i++) {
+            offsets[i] = offset;
+            int n = fields.get(i).fixedLength();
+            offset = offset < 0 || n < 0 ? -1 : offset + n;
+        }
+        this.first = -1;
+        this.last = -1;
+        for (int i = 0; i < needed.length; i++) {
+            if(needed[i]) {
+                if(first < 0) {
+                    first = i;
+                }
+                last = i;
+            }
+        }
+        // 第一个需要的列偏移不固定时，从它前面最后一个偏移固定的列开始
+        while(first > 0 && offsets[first] < 0) {
+            first --;
+        }
+    }
+
+    Object[] decode(byte[] raw) {
+        Object[] row = new Object[fields.size()];
+        if(last < 0) {
+            return row;
+        }
+        int pos = offsets[first];
+        for (int i = first; i <= last; i++) {
+            if(offsets[i] >= 0) {
+                pos = offsets[i];
+            }
+            Field field = fields.get(i);
+            if(needed[i]) {
+                row[i] = field.valueAt(raw, pos);
+            }
+            if(i < last) {
+                pos += field.rawLength(raw, pos);
+            }
+        }
+        return row;
+    }
+}
@@ -0,0 +1,34 @@
+package com.lxpeak.lxpeakdb.backend.tbm;
+
+import com.lxpeak.lxpeakdb.backend.vm.ScanRes;
+
+// 顺序扫描堆段，where条件已经在HeapScan中按字节过滤过了
+class SeqScan implements Operator {
+    private HeapScan scan;
+    private RowDecoder decoder;
+    private ScanRes batch;
+    private int pos;
+
+    SeqScan(HeapScan scan, RowDecoder decoder, long xid, boolean parallel) {
+        this.scan = scan;
+        this.decoder = decoder;
+        scan.open(xid, parallel);
+    }
+
+    @Override
+    public Object[] next() throws Exception {
+        while(batch == null || pos >= batch.data.size()) {
+            batch = scan.next();
+            pos = 0;
+            if(batch == null) {
+                return null;
+            }
+        }
+        return decoder.decode(batch.data.get(pos ++));
+    }
+
+    @Override
+    public void close() {
+        scan.close();
+    }
+}
@@ -0,0 +1,46 @@
+package com.lxpeak.lxpeakdb.backend.tbm;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+// 按一个字段排序。第一次next时读完子算子的所有行，排好序后再逐行返回
+class Sort implements Operator {
+    private Operator child;
+    private Field field;
+    // 排序字段在行中是第几列
+    private int column;
+    private boolean desc;
+    private List<Object[]> rows;
+    private int pos;
+
+    Sort(Operator child, Field field, int column, boolean desc) {
+        this.child = child;
+        this.field = field;
+        this.column = column;
+        this.desc = desc;
+    }
+
+    @Override
+    public Object[] next() throws Exception {
+        if(rows == null) {
+            rows = new ArrayList<>();
+            Object[] row;
+            while((row = child.next()) != null) {
+                rows.add(row);
+            }
+            Comparator<Object[]> cmp = (a, b) -> field.compare(a[column], b[column]);
+            // 稳定排序，值相同的行保持扫描时的顺序
+            rows.sort(desc ? cmp.reversed() : cmp);
+        }
+        if(pos >= rows.size()) {
+            return null;
+        }
+        return rows.get(pos ++);
+    }
+
+    @Override
+    public void close() {
+        child.close();
+    }
+}
@@ -3,34 +3,60 @@ package com.lxpeak.lxpeakdb.backend.tbm;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
 
 import com.google.common.primitives.Bytes;
 
+import com.lxpeak.lxpeakdb.backend.dm.DataManager;
+import com.lxpeak.lxpeakdb.backend.im.BulkLoader;
+import com.lxpeak.lxpeakdb.backend.im.RangeCursor;
 import com.lxpeak.lxpeakdb.backend.parser.statement.Create;
+import com.lxpeak.lxpeakdb.backend.parser.statement.CreateIndex;
 import com.lxpeak.lxpeakdb.backend.parser.statement.Delete;
 import com.lxpeak.lxpeakdb.backend.parser.statement.Select;
+import com.lxpeak.lxpeakdb.backend.parser.statement.SingleExpression;
 import com.lxpeak.lxpeakdb.backend.parser.statement.Where;
 import com.lxpeak.lxpeakdb.backend.utils.Panic;
 import com.lxpeak.lxpeakdb.backend.utils.ParseStringRes;
 import com.lxpeak.lxpeakdb.common.Error;
 import com.lxpeak.lxpeakdb.backend.parser.statement.Insert;
 import com.lxpeak.lxpeakdb.backend.parser.statement.Update;
-import com.lxpeak.lxpeakdb.backend.tbm.Field.ParseValueRes;
 import com.lxpeak.lxpeakdb.backend.tm.TransactionManagerImpl;
 import com.lxpeak.lxpeakdb.backend.utils.Parser;
+import com.lxpeak.lxpeakdb.backend.vm.RawFilter;
+import com.lxpeak.lxpeakdb.backend.vm.ScanRes;
+import com.lxpeak.lxpeakdb.backend.vm.VersionManager;
+import com.lxpeak.lxpeakdb.backend.vm.VisibilityMap;
 
 /**
  * Table维护了表结构
  * 一个数据库中存在多张表，TBM使用链表的形式将其组织起来，每一张表都保存一个指向下一张表的UID。表的二进制结构如下：
  * [TableName][NextTable（8字节）]
- * [Field1Uid][Field2Uid]...[FieldNUid]
+ * [Field1Uid][Field2Uid]...[FieldNUid][0][HeapSegment]
+ * HeapSegment 是存放该表记录的段（见DataManager），前面用一个为0的UID和字段分开，旧版本的表没有这两项，记录在共用的页里。
  *
  * ----------------------------------------------------
  * 对表和字段的操作，有一个很重要的步骤，就是计算Where条件的范围，目前LxPeakDB的Where只支持两个条件的与和或。
- * 例如有条件的Delete，计算Where，最终就需要获取到条件范围内所有的UID。LxPeakDB只支持已索引字段作为Where的条件。
+ * 例如有条件的Delete，计算Where，最终就需要获取到条件范围内所有的UID。Where的第一个条件必须是已索引的字段
+ * （AND 时也可以是第二个条件）。
  * 计算Where的范围，具体可以查看Table的parseWhere()和calWhere()方法，以及Field类的calExp()方法。
+ * 索引范围只是候选（例如字符串的key只有前8个字节），读出记录后还要用matches()检查完整的条件。
+ * 条件用不上索引（或者表没有索引）时顺序扫描表的堆段（见HeapScan），条件直接在记录的字节数组上判断。
+ *
+ * 唯一索引：新版本插入唯一索引前，先在同一个key下查找可能仍然存在的记录（包括其他事务未提交的，见VersionManager.readLive），
+ * 比较完整的值，相同则抛出DuplicatedKeyException。查找和插入索引在该key的锁内完成，两个事务同时插入相同的值时后一个一定能看到前一个。
+ *
+ * 联合索引 (a b) 挂在字段a上，key按(a, b)排序：
+ * 只有a上的条件时扫描a的范围；a = x AND b的范围时扫描[(x, b的下界), (x, b的上界)]，不会读到a = x中b不满足条件的项。
+ *
+ * 只读索引（index-only scan）：SELECT 和 WHERE 用到的字段都是所选索引中的数字字段时，
+ * 索引项所在页在可见性映射（见VisibilityMap）中被标记为全部可见的记录直接用key中的值，不再读取记录，其余的照常读取。
+ * 可见性映射只由VACUUM设置，每次写入记录前后都要清除记录所在页的标记。
  *
  */
 public class Table {
@@ -40,7 +66,19 @@ public class Table {
     byte status;
     // 下一个table的Uid
     long nextUid;
+    // 存放记录的段，为0表示旧版本创建的表，记录只能通过索引找到
+    long heap;
     List<Field> fields = new ArrayList<>();
+    // 该表的记录所在的哪些页是全部可见的，只保存在内存中
+    VisibilityMap vmap = new VisibilityMap();
+    // 索引变化（建索引）时加一，之前为where条件选好的访问路径失效
+    volatile long version;
+    // 正在执行的语句和还没关闭的查询结果（包括游标）个数，由TableManagerImpl的锁保护，不为0时不能删除
+    int users;
+    // 批量导入时换下的旧索引所在的段，key是导入的事务，事务提交后移到retired，回滚时旧索引仍然有效
+    Map<Long, List<Long>> replaced = new HashMap<>();
+    // 不再被引用的旧索引所在的段，等没有语句在用这张表时回收，都由TableManagerImpl的锁保护
+    List<Long> retired = new ArrayList<>();
 
     public static Table loadTable(TableManager tbm, long uid) {
         byte[] raw = null;
@@ -56,23 +94,61 @@ public class Table {
 
     public static Table createTable(TableManager tbm, long nextUid, long xid, Create create) throws Exception {
         Table tb = new Table(tbm, create.tableName, nextUid);
+        tb.heap = ((TableManagerImpl)tbm).dm.createSegment();
         for(int i = 0; i < create.fieldName.length; i ++) {
             String fieldName = create.fieldName[i];
             String fieldType = create.fieldType[i];
             boolean indexed = false;
+            boolean unique = false;
+            int fanout = 0;
+            String[] following = new String[0];
+            String[] include = new String[0];
             // 是否有需要建立索引的字段
             for(int j = 0; j < create.index.length; j ++) {
                 if(fieldName.equals(create.index[j])) {
+                    if(indexed) {
+                        throw Error.FieldAlreadyIndexedException;
+                    }
                     indexed = true;
-                    break;
+                    if(create.fanout != null) {
+                        fanout = create.fanout[j];
+                    }
+                    if(create.unique != null) {
+                        unique = create.unique[j];
+                    }
+                    if(create.following != null) {
+                        following = create.following[j];
+                    }
+                    if(create.include != null) {
+                        include = create.include[j];
+                    }
+                    checkIndexColumns(create.fieldName, fieldName, following, include);
                 }
             }
-            tb.fields.add(Field.createField(tb, xid, fieldName, fieldType, indexed));
+            tb.fields.add(Field.createField(tb, xid, fieldName, fieldType, indexed, fanout, following, unique, include));
         }
 
         return tb.persistSelf(xid);
     }
 
+    // 联合索引和include的字段都要存在且不能重复
+    private static void checkIndexColumns(String[] fieldNames, String first, String[] following, String[] include) throws Exception {
+        List<String> names = Arrays.asList(fieldNames);
+        List<String> columns = new ArrayList<>();
+        columns.add(first);
+        List<String> all = new ArrayList<>(Arrays.asList(following));
+        all.addAll(Arrays.asList(include));
+        for(String f : all) {
+            if(!names.contains(f)) {
+                throw Error.FieldNotFoundException;
+            }
+            if(columns.contains(f)) {
+                throw Error.InvalidCommandException;
+            }
+            columns.add(f);
+        }
+    }
+
     public Table(TableManager tbm, long uid) {
         this.tbm = tbm;
         this.uid = uid;
@@ -87,7 +163,7 @@ public class Table {
     /*
     * 表的二进制结构如下：
     * [TableName][NextTable]
-    * [Field1Uid][Field2Uid]...[FieldNUid]
+    * [Field1Uid][Field2Uid]...[FieldNUid][0][HeapSegment]
     * */
     private Table parseSelf(byte[] raw) {
         int position = 0;
@@ -103,6 +179,10 @@ public class Table {
         while(position < raw.length) {
             long uid = Parser.parseLong(Arrays.copyOfRange(raw, position, position+8));
             position += 8;
+            if(uid == 0) {
+                heap = Parser.parseLong(Arrays.copyOfRange(raw, position, position+8));
+                break;
+            }
             fields.add(Field.loadField(this, uid));
             // System.out.println("Table对象是："+this);
         }
@@ -117,23 +197,59 @@ public class Table {
         for(Field field : fields) {
             fieldRaw = Bytes.concat(fieldRaw, Parser.long2Byte(field.uid));
         }
+        if(heap != 0) {
+            fieldRaw = Bytes.concat(fieldRaw, Parser.long2Byte(0), Parser.long2Byte(heap));
+        }
         uid = ((TableManagerImpl)tbm).vm.insert(xid, Bytes.concat(nameRaw, nextRaw, fieldRaw));
         return this;
     }
 
+    // 删除只设置XMAX，不会修改索引，所以可以边遍历索引边删除
     public int delete(long xid, Delete delete) throws Exception {
-        List<Long> uids = parseWhere(delete.where);
         int count = 0;
-        for (Long uid : uids) {
-            if(((TableManagerImpl)tbm).vm.delete(xid, uid)) {
-                count ++;
+        if(useHeap(delete.where)) {
+            for (long uid : heapScan(xid, delete.where, -1).uids) {
+                if(deleteRow(xid, uid)) {
+                    count ++;
+                }
+            }
+            return count;
+        }
+        RawFilter filter = rawFilter(delete.where);
+        for (RangeCursor cursor : parseWhere(delete.where)) {
+            while(cursor.hasNext()) {
+                long uid = cursor.next();
+                byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, uid);
+                if(raw == null || (filter != null && !filter.test(raw))) continue;
+                if(deleteRow(xid, uid)) {
+                    count ++;
+                }
             }
         }
         return count;
     }
 
+    private boolean deleteRow(long xid, long uid) throws Exception {
+        vmap.clear(uid);
+        try {
+            return ((TableManagerImpl)tbm).vm.delete(xid, uid);
+        } finally {
+            vmap.clear(uid);
+        }
+    }
+
     public int update(long xid, Update update) throws Exception {
-        List<Long> uids = parseWhere(update.where);
+        // 修改索引字段时新版本会插入到索引中，如果边遍历边修改，新插入的记录可能再次被遍历到，所以先把uid都取出来
+        List<Long> uids = new ArrayList<>();
+        if(useHeap(update.where)) {
+            uids = heapScan(xid, update.where, -1).uids;
+        } else {
+            for (RangeCursor cursor : parseWhere(update.where)) {
+                while(cursor.hasNext()) {
+                    uids.add(cursor.next());
+                }
+            }
+        }
         Field fd = null;
         for (Field f : fields) {
             if(f.fieldName.equals(update.fieldName)) {
@@ -145,60 +261,537 @@ public class Table {
             throw Error.FieldNotFoundException;
         }
         Object value = fd.string2Value(update.value);
+        boolean indexed = indexed(fd);
+        RawFilter filter = rawFilter(update.where);
         int count = 0;
         for (Long uid : uids) {
-            // 1.根据uid找到对应的字段
+            // 1.根据uid找到对应的记录
             byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, uid);
-            if(raw == null) continue;
-
-            // 2.删除这个字段的内容
-            ((TableManagerImpl)tbm).vm.delete(xid, uid);
+            if(raw == null || (filter != null && !filter.test(raw))) continue;
 
             // 解析读取的字节数组
             Map<String, Object> entry = parseEntry(raw);
+            // 没有修改索引字段时，新版本挂在旧版本的版本链上，所有索引都不需要改动
+            boolean hot = !indexed || value.equals(entry.get(fd.fieldName));
             // 把新值放进去
             entry.put(fd.fieldName, value);
+            // 修改了唯一索引的列时先检查一遍，大部分冲突在写入新版本前就能发现
+            if(!hot) {
+                checkUnique(xid, entry, uid, fd);
+            }
             // 将新的内容变成字节数组
             raw = entry2Raw(entry);
-            // 3.添加这个字段的内容
-            long uuid = ((TableManagerImpl)tbm).vm.insert(xid, raw);
+            // 2.删除旧版本并写入新版本
+            vmap.clear(uid);
+            long uuid = ((TableManagerImpl)tbm).vm.update(xid, uid, raw, hot);
+            vmap.clear(uid);
+            if(uuid == 0) continue;
 
             count ++;
+            if(hot) continue;
 
-            // 重新添加索引字段到B+树
-            for (Field field : fields) {
-                if(field.isIndexed()) {
-                    field.insert(entry.get(field.fieldName), uuid);
+            // 修改了索引字段，新版本不在版本链上，需要重新添加索引字段到B+树
+            vmap.clear(uuid);
+            insertIndexes(xid, entry, uuid);
+            vmap.clear(uuid);
+        }
+        return count;
+    }
+
+    // 覆盖了字段fd的唯一索引中是否已有和entry相同的值（忽略self），有则抛出DuplicatedKeyException
+    private void checkUnique(long xid, Map<String, Object> entry, long self, Field fd) throws Exception {
+        for (Field field : fields) {
+            if(field.isUnique() && field.indexCovers(fd.fieldName)) {
+                if(findDuplicate(xid, field, field.key(entry), entry, self) != 0) {
+                    throw Error.DuplicatedKeyException;
                 }
             }
         }
-        return count;
+    }
+
+    // 在唯一索引fd中查找和entry的值相同、且可能仍然存在的记录，返回其uid，没有则返回0
+    private long findDuplicate(long xid, Field fd, long[] key, Map<String, Object> entry, long self) throws Exception {
+        // include字段不参与查重
+        long[] prefix = Arrays.copyOf(key, fd.keyColumns());
+        RangeCursor cursor = fd.cursor(prefix, prefix);
+        while(cursor.hasNext()) {
+            long uid = cursor.next();
+            if(uid == self) continue;
+            byte[] raw = ((TableManagerImpl)tbm).vm.readLive(xid, uid);
+            if(raw != null && fd.sameValues(parseEntry(raw), entry)) {
+                return uid;
+            }
+        }
+        return 0;
+    }
+
+    // 把新版本uid插入所有需要维护的索引，唯一索引先插入，插入前在key锁内检查重复
+    private void insertIndexes(long xid, Map<String, Object> entry, long uid) throws Exception {
+        for (Field field : fields) {
+            if(!field.isUnique()) continue;
+            long[] key = field.key(entry);
+            Lock l = field.keyLock(key);
+            l.lock();
+            try {
+                if(findDuplicate(xid, field, key, entry, uid) != 0) {
+                    throw Error.DuplicatedKeyException;
+                }
+                field.insert(entry, uid);
+            } finally {
+                l.unlock();
+            }
+        }
+        for (Field field : fields) {
+            if(field.maintainsIndex() && !field.isUnique()) {
+                field.insert(entry, uid);
+            }
+        }
+    }
+
+    // 字段是否出现在某个索引中（包括联合索引后面的列）
+    private boolean indexed(Field fd) {
+        for (Field field : fields) {
+            if(field.indexCovers(fd.fieldName)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     public String read(long xid, Select read) throws Exception {
-        // 处理where条件的查询条件,得到对某字段的查询范围,通过B+树范围查询后得到UID集合
-        List<Long> uids = parseWhere(read.where);
+        ResultStream rs = query(xid, read, true);
         StringBuilder sb = new StringBuilder();
-        for (Long uid : uids) {
-            byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, uid);
-            if(raw == null) continue;
-            Map<String, Object> entry = parseEntry(raw);
-            sb.append(printEntry(entry)).append("\n");
+        try {
+            byte[] batch;
+            while((batch = rs.next(Integer.MAX_VALUE)) != null) {
+                sb.append(new String(batch));
+            }
+        } finally {
+            rs.close();
         }
         return sb.toString();
     }
 
-    public void insert(long xid, Insert insert) throws Exception {
-        Map<String, Object> entry = string2Entry(insert.values);
+    /*
+    * 生成SELECT的算子树（见Operator）：
+    * 条件用不上索引时为SeqScan，where条件在扫描时按字节过滤；否则为IndexScan加上Filter。
+    * 之后有ORDER BY时加上Sort，有LIMIT时加上Limit。没有LIMIT时顺序扫描按页并行（parallel为false时除外）。
+    * 没有ORDER BY时除了当前的一批行，只保存扫描的位置；ORDER BY需要在Sort中保存全部结果。
+    * */
+    public ResultStream query(long xid, Select read, boolean parallel) throws Exception {
+        List<Field> projection = projection(read.fields);
+        int[] columns = new int[projection.size()];
+        // 只解码输出、排序和过滤需要的列，顺序扫描的where条件在扫描时已经判断过了
+        boolean[] needed = new boolean[fields.size()];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = fields.indexOf(projection.get(i));
+            needed[columns[i]] = true;
+        }
+        Field order = read.orderBy == null ? null : getField(read.orderBy);
+        if(order != null) {
+            needed[column(order.fieldName)] = true;
+        }
+        Operator op;
+        if(useHeap(read.where)) {
+            TableManagerImpl tm = (TableManagerImpl)tbm;
+            HeapScan scan = new HeapScan(tm.vm, tm.dm, heap, rawFilter(read.where));
+            op = new SeqScan(scan, new RowDecoder(fields, needed), xid, order != null || (parallel && read.limit < 0));
+        } else {
+            // 能只读索引时选用的索引，没有WHERE条件时优先选包含所有查询字段的索引
+            Field scan = null;
+            Field[] keyFields = null;
+            if(!"*".equals(read.fields[0])) {
+                Set<String> names = new HashSet<>(Arrays.asList(read.fields));
+                if(read.where != null) {
+                    names.add(read.where.singleExp1.field);
+                    if(read.where.singleExp2 != null) {
+                        names.add(read.where.singleExp2.field);
+                    }
+                }
+                if(order != null) {
+                    names.add(order.fieldName);
+                }
+                if(read.where == null) {
+                    for (Field field : fields) {
+                        if(field.isIndexed() && covers(field, names)) {
+                            scan = field;
+                            break;
+                        }
+                    }
+                } else {
+                    Field fd = accessPath(read.where).fd;
+                    if(fd.isIndexed() && covers(fd, names)) {
+                        scan = fd;
+                    }
+                }
+                if(scan != null) {
+                    keyFields = scan.keyFields();
+                }
+            }
+            markColumns(needed, read.where);
+            // 处理where条件的查询条件,得到对某字段的查询范围,通过B+树游标逐个遍历UID
+            op = new IndexScan(this, xid, parseWhere(read.where, scan), keyFields, new RowDecoder(fields, needed));
+            if(read.where != null) {
+                op = new Filter(this, op, read.where);
+            }
+        }
+        if(order != null) {
+            op = new Sort(op, order, column(order.fieldName), read.desc);
+        }
+        if(read.limit >= 0) {
+            op = new Limit(op, read.limit);
+        }
+        return new ResultStream(op, projection, columns);
+    }
+
+    // SELECT要输出的字段，*为全部字段
+    private List<Field> projection(String[] names) throws Exception {
+        if("*".equals(names[0])) {
+            return fields;
+        }
+        List<Field> fs = new ArrayList<>();
+        for (String name : names) {
+            fs.add(getField(name));
+        }
+        return fs;
+    }
+
+    // 索引fd的key中是否包含names中的所有字段，并且都能从key中还原出值
+    private boolean covers(Field fd, Set<String> names) throws Exception {
+        Set<String> covered = new HashSet<>();
+        for (Field f : fd.keyFields()) {
+            if(f.keyHoldsValue()) {
+                covered.add(f.fieldName);
+            }
+        }
+        return covered.containsAll(names);
+    }
+
+    // 用索引的key还原出记录中索引包含的字段，keyColumns为keyFields在记录中是第几列
+    Object[] keyRow(Field[] keyFields, int[] keyColumns, long[] key) {
+        Object[] row = new Object[fields.size()];
+        for (int i = 0; i < keyFields.length; i++) {
+            if(keyFields[i].keyHoldsValue()) {
+                row[keyColumns[i]] = keyFields[i].key2Value(key[i]);
+            }
+        }
+        return row;
+    }
+
+    public void insert(long xid, String[] values) throws Exception {
+        Map<String, Object> entry = string2Entry(values);
+        insertEntry(xid, entry);
+    }
+
+    private void insertEntry(long xid, Map<String, Object> entry) throws Exception {
         byte[] raw = entry2Raw(entry);
         // 写日志以及执行插入操作
-        long uid = ((TableManagerImpl)tbm).vm.insert(xid, raw);
+        long uid = ((TableManagerImpl)tbm).vm.insert(xid, raw, heap);
+        vmap.clear(uid);
+        try {
+            // 将有索引的字段放进B+树中
+            insertIndexes(xid, entry, uid);
+        } catch(Exception e) {
+            // 违反唯一约束时删掉刚插入的记录，它只对本事务可见，已经插入的索引项之后会被当作无效项清理掉
+            if(e == Error.DuplicatedKeyException) {
+                ((TableManagerImpl)tbm).vm.delete(xid, uid);
+            }
+            throw e;
+        } finally {
+            vmap.clear(uid);
+        }
+    }
+
+    /*
+    * 唯一索引上已经有值相同的记录时，用新的值更新那一行，否则插入，返回是否为更新。
+    * 查重和插入在所有唯一索引的key锁内完成，同一个key的并发upsert只有一个会插入，其余的看到它之后走更新。
+    * 冲突的记录是其他事务插入还没提交的，等该事务结束后重新判断；提交后仍对本事务不可见（可重复读）时无法更新，抛出DuplicatedKeyException。
+    * 更新在key锁外进行（行锁可能需要等待），期间那一行被其他事务更新或删除时也重新判断。
+    * */
+    public boolean upsert(long xid, String[] values) throws Exception {
+        Map<String, Object> entry = string2Entry(values);
+        VersionManager vm = ((TableManagerImpl)tbm).vm;
+        List<Lock> locks = new ArrayList<>();
+        for (Field field : fields) {
+            if(field.isUnique()) {
+                locks.add(field.keyLock(field.key(entry)));
+            }
+        }
+        while(true) {
+            long dup = 0;
+            // 按字段的顺序加锁，ReentrantLock可以重入，insertIndexes里再次加锁不会阻塞
+            for (Lock l : locks) {
+                l.lock();
+            }
+            try {
+                for (Field field : fields) {
+                    if(!field.isUnique()) continue;
+                    dup = findDuplicate(xid, field, field.key(entry), entry, 0);
+                    if(dup != 0) break;
+                }
+                if(dup == 0) {
+                    insertEntry(xid, entry);
+                    return false;
+                }
+            } finally {
+                for (int i = locks.size()-1; i >= 0; i --) {
+                    locks.get(i).unlock();
+                }
+            }
+            byte[] raw = vm.read(xid, dup);
+            if(raw == null) {
+                // 创建它的事务可能刚好在这期间结束，所以没有等待时也要再看一次，仍然存在且不可见才是真正的冲突
+                if(vm.waitForCreator(xid, dup) || vm.read(xid, dup) != null || vm.readLive(xid, dup) == null) continue;
+                throw Error.DuplicatedKeyException;
+            }
+            Map<String, Object> old = parseEntry(raw);
+            boolean hot = true;
+            for (Field f : fields) {
+                if(indexed(f) && !entry.get(f.fieldName).equals(old.get(f.fieldName))) {
+                    hot = false;
+                    break;
+                }
+            }
+            vmap.clear(dup);
+            long uuid = vm.update(xid, dup, entry2Raw(entry), hot);
+            vmap.clear(dup);
+            if(uuid == 0) continue;
+            if(!hot) {
+                vmap.clear(uuid);
+                insertIndexes(xid, entry, uuid);
+                vmap.clear(uuid);
+            }
+            return true;
+        }
+    }
+
+    /*
+    * 在已有数据的表上为字段创建索引：
+    * 通过表上已有的索引扫描出当前事务可见的所有行，交给BulkLoader排序后一次性自底向上建树。
+    * 表上还没有索引时顺序扫描堆段，索引项指向扫描到的可见版本。
+    * 扫描期间其他事务写入的行由Field暂存，建好后再补进索引。
+    * 联合索引挂在第一个字段上，每个字段最多作为一个索引的第一个字段。
+    * */
+    public void createIndex(long xid, CreateIndex createIndex) throws Exception {
+        Field fd = getField(createIndex.fieldName);
+        String[] following = createIndex.following == null ? new String[0] : createIndex.following;
+        String[] include = createIndex.include == null ? new String[0] : createIndex.include;
+        String[] names = new String[fields.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = fields.get(i).fieldName;
+        }
+        checkIndexColumns(names, fd.fieldName, following, include);
+        Field base = null;
         for (Field field : fields) {
             if(field.isIndexed()) {
-                // 将有索引的字段放进B+树中
-                field.insert(entry.get(field.fieldName), uid);
+                base = field;
+                break;
             }
         }
+        if(base == null && heap == 0) {
+            throw Error.TableNoIndexException;
+        }
+        fd.beginIndexBuild(following, include);
+        try {
+            BulkLoader loader = newBulkLoader(createIndex.fanout, fd.keyWidth());
+            // 唯一索引在内存中检查已有的数据是否重复
+            Set<List<Object>> seen = createIndex.unique ? new HashSet<>() : null;
+            if(base == null) {
+                ScanRes res = heapScan(xid, null, -1);
+                for (int i = 0; i < res.uids.size(); i++) {
+                    addToIndex(loader, seen, fd, parseEntry(res.data.get(i)), res.uids.get(i));
+                }
+            } else {
+                RangeCursor cursor = base.cursor(Long.MIN_VALUE, Long.MAX_VALUE);
+                while(cursor.hasNext()) {
+                    long uid = cursor.next();
+                    byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, uid);
+                    if(raw == null) continue;
+                    addToIndex(loader, seen, fd, parseEntry(raw), uid);
+                }
+            }
+            fd.setIndex(xid, loader.build(), createIndex.unique);
+        } catch(Exception e) {
+            fd.abortIndexBuild();
+            throw e;
+        } finally {
+            version ++;
+        }
+    }
+
+    private void addToIndex(BulkLoader loader, Set<List<Object>> seen, Field fd, Map<String, Object> entry, long uid) throws Exception {
+        if(seen != null && !seen.add(fd.values(entry))) {
+            throw Error.DuplicatedKeyException;
+        }
+        loader.add(fd.key(entry), uid);
+    }
+
+    /*
+    * 批量导入：逐行写入数据，但不逐条插入索引，而是把每个索引已有的内容和新数据一起交给BulkLoader重新建树，
+    * 新树沿用旧树的节点大小。用于离线导入（没有其他并发的写入），旧的索引树所在的段放进replaced，由调用方回收。
+    * */
+    public int load(long xid, Iterator<String[]> rows, List<Long> replaced) throws Exception {
+        List<Field> indexed = new ArrayList<>();
+        List<BulkLoader> loaders = new ArrayList<>();
+        for (Field field : fields) {
+            if(field.isIndexed()) {
+                BulkLoader loader = newBulkLoader(field.fanout(), field.keyWidth());
+                RangeCursor cursor = field.cursor(Long.MIN_VALUE, Long.MAX_VALUE);
+                while(cursor.hasNext()) {
+                    long uid = cursor.next();
+                    loader.add(cursor.keyColumns(), uid);
+                }
+                indexed.add(field);
+                loaders.add(loader);
+            }
+        }
+        // 导入的数据之间在内存中查重，和已有数据之间在旧的索引树上查重
+        List<Set<List<Object>>> seen = new ArrayList<>();
+        for (Field field : indexed) {
+            seen.add(field.isUnique() ? new HashSet<>() : null);
+        }
+        List<Long> uids = new ArrayList<>();
+        while(rows.hasNext()) {
+            Map<String, Object> entry = string2Entry(rows.next());
+            for (int i = 0; i < indexed.size(); i++) {
+                Field field = indexed.get(i);
+                if(seen.get(i) == null) continue;
+                if(!seen.get(i).add(field.values(entry)) || findDuplicate(xid, field, field.key(entry), entry, 0) != 0) {
+                    throw Error.DuplicatedKeyException;
+                }
+            }
+            long uid = ((TableManagerImpl)tbm).vm.insert(xid, entry2Raw(entry), heap);
+            vmap.clear(uid);
+            for (int i = 0; i < indexed.size(); i++) {
+                Field field = indexed.get(i);
+                loaders.get(i).add(field.key(entry), uid);
+            }
+            uids.add(uid);
+        }
+        for (int i = 0; i < indexed.size(); i++) {
+            Field field = indexed.get(i);
+            long old = field.indexSegment();
+            field.setIndex(xid, loaders.get(i).build(), field.isUnique());
+            if(old != 0) {
+                replaced.add(old);
+            }
+        }
+        for (long uid : uids) {
+            vmap.clear(uid);
+        }
+        return uids.size();
+    }
+
+    // 记录和索引所在的段
+    List<Long> segments() {
+        List<Long> segments = new ArrayList<>();
+        if(heap != 0) {
+            segments.add(heap);
+        }
+        for (Field field : fields) {
+            long segment = field.indexSegment();
+            if(segment != 0) {
+                segments.add(segment);
+            }
+        }
+        return segments;
+    }
+
+    /*
+    * 删除表：释放每个索引的B+树，回收记录和索引所在的段。
+    * 段中的页被清空后不能恢复，所以删除表不随事务回滚。旧版本的表和索引不在段中，它们的页不会被回收。
+    * 调用时已经没有事务会再读写这张表（见TableManagerImpl.drop），批量导入换下的旧索引也一起回收。
+    * */
+    void drop() throws Exception {
+        List<Long> segments = new ArrayList<>(retired);
+        for (List<Long> t : replaced.values()) {
+            segments.addAll(t);
+        }
+        if(heap != 0) {
+            segments.add(heap);
+        }
+        for (Field field : fields) {
+            long segment = field.dropIndex();
+            if(segment != 0) {
+                segments.add(segment);
+            }
+        }
+        for (long segment : segments) {
+            ((TableManagerImpl)tbm).dm.dropSegment(segment);
+        }
+    }
+
+    // 让链表中该表的下一张表变为nextUid，表的记录不能修改，所以写入一条新的记录，uid随之改变
+    void relink(long nextUid) throws Exception {
+        this.nextUid = nextUid;
+        persistSelf(TransactionManagerImpl.SUPER_XID);
+    }
+
+    /*
+    * VACUUM：
+    * 1、删掉所有索引中已经对所有事务都不可见的项；
+    * 2、设置可见性映射。记录都在第一个有索引的字段的索引中，先遍历一遍记下每一页当前的版本号，
+    *    再遍历一遍检查每条记录，页上的记录都全部可见（见VersionManager.isAllVisible）时把该页设置为全部可见。
+    *    检查期间有写入的页版本号会变化，不会被设置；在记下版本号之前就写完的记录第二遍一定能遍历到。
+    * 返回设置为全部可见的页数。
+    * */
+    public int vacuum(long xid) throws Exception {
+        VersionManager vm = ((TableManagerImpl)tbm).vm;
+        for (Field field : fields) {
+            if(!field.isIndexed()) continue;
+            RangeCursor cursor = field.cursor(Long.MIN_VALUE, Long.MAX_VALUE);
+            while(cursor.hasNext()) {
+                if(vm.isObsolete(cursor.next())) {
+                    cursor.remove();
+                }
+            }
+        }
+        if(!hasIndex()) {
+            return 0;
+        }
+        Field base = indexFor(null);
+        Map<Long, Long> versions = new HashMap<>();
+        RangeCursor cursor = base.cursor(Long.MIN_VALUE, Long.MAX_VALUE);
+        while(cursor.hasNext()) {
+            long uid = cursor.next();
+            versions.putIfAbsent(page(uid), vmap.version(uid));
+        }
+        Set<Long> notAllVisible = new HashSet<>();
+        cursor = base.cursor(Long.MIN_VALUE, Long.MAX_VALUE);
+        while(cursor.hasNext()) {
+            long uid = cursor.next();
+            if(!notAllVisible.contains(page(uid)) && !vm.isAllVisible(uid)) {
+                notAllVisible.add(page(uid));
+            }
+        }
+        int count = 0;
+        for (Map.Entry<Long, Long> e : versions.entrySet()) {
+            if(notAllVisible.contains(e.getKey())) continue;
+            if(vmap.setAllVisible(e.getKey(), e.getValue())) {
+                count ++;
+            }
+        }
+        return count;
+    }
+
+    // uid所在页的第一个uid（偏移为0），用来代表这一页
+    private static long page(long uid) {
+        return uid & ~0xFFFFFFFFL;
+    }
+
+    // fanout为0时使用默认的节点大小
+    private BulkLoader newBulkLoader(int fanout, int keyWidth) throws Exception {
+        DataManager dm = ((TableManagerImpl)tbm).dm;
+        return new BulkLoader(dm, Field.balanceNumber(fanout), keyWidth);
+    }
+
+    Field getField(String fieldName) throws Exception {
+        for (Field field : fields) {
+            if(field.fieldName.equals(fieldName)) {
+                return field;
+            }
+        }
+        throw Error.FieldNotFoundException;
     }
 
     // 如果该表有5个字段,则values数组会传5个值,将字段名和字段值依次放进entry中
@@ -215,57 +808,188 @@ public class Table {
         return entry;
     }
 
-    private List<Long> parseWhere(Where where) throws Exception {
+    // 每个搜索范围对应一个游标，OR条件有两个
+    private List<RangeCursor> parseWhere(Where where) throws Exception {
+        return parseWhere(where, null);
+    }
+
+    // scan不为null时，没有WHERE条件的情况下扫描该字段的索引
+    private List<RangeCursor> parseWhere(Where where, Field scan) throws Exception {
         // 最多两个判断条件，第一个判断条件的搜索范围[l0,r0], 第二个判断条件的搜索范围[l1,r1]
         long l0=0, r0=0, l1=0, r1=0;
         boolean single = false;
         Field fd = null;
         // 如果没有WHERE条件，默认选择第一个有索引的字段的全部范围
         if(where == null) {
-            for (Field field : fields) {
-                if(field.isIndexed()) {
-                    fd = field;
-                    break;
-                }
-            }
-            l0 = 0;
+            fd = scan != null ? scan : indexFor(null);
+            l0 = Long.MIN_VALUE;
             r0 = Long.MAX_VALUE;
             single = true;
         }
 
         // 找到 WHERE 条件中涉及的字段（必须是已索引的字段）
         else {
-            for (Field field : fields) {
-                if(field.fieldName.equals(where.singleExp1.field)) {
-                    if(!field.isIndexed()) {
-                        throw Error.FieldNotIndexedException;
-                    }
-                    fd = field;
-                    break;
-                }
+            AccessPath path = accessPath(where);
+            fd = path.fd;
+            if(!fd.isIndexed()) {
+                throw Error.FieldNotIndexedException;
             }
-            if(fd == null) {
-                throw Error.FieldNotFoundException;
+            CalWhereRes res = path.res;
+            if(res.left != null) {
+                List<RangeCursor> cursors = new ArrayList<>();
+                cursors.add(fd.cursor(res.left, res.right));
+                return cursors;
             }
-            // 计算条件的搜索范围
-            CalWhereRes res = calWhere(fd, where);
             // 第一个判断条件的搜索范围[l0,r0], 第二个判断条件的搜索范围[l1,r1]
             l0 = res.l0; r0 = res.r0;
             l1 = res.l1; r1 = res.r1;
             single = res.single;
         }
-        // 调用 B+ 树查询满足范围的 UID 列表
-        List<Long> uids = fd.search(l0, r0);
+        // 在 B+ 树上打开满足范围的游标
+        List<RangeCursor> cursors = new ArrayList<>();
+        cursors.add(fd.cursor(l0, r0));
         if(!single) {
-            List<Long> tmp = fd.search(l1, r1);
-            uids.addAll(tmp);
+            cursors.add(fd.cursor(l1, r1));
         }
-        return uids;
+        return cursors;
+    }
+
+    private boolean hasIndex() {
+        for (Field field : fields) {
+            if(field.isIndexed()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 条件用不上索引时顺序扫描堆段。旧版本的表没有堆段，仍然只能用索引（用不上时抛出FieldNotIndexedException）
+    private boolean useHeap(Where where) throws Exception {
+        if(heap == 0) {
+            return false;
+        }
+        if(where == null) {
+            return !hasIndex();
+        }
+        return !accessPath(where).fd.isIndexed();
+    }
+
+    /*
+    * where条件的访问路径：用哪个字段的索引，以及在索引上的搜索范围（见calWhere）。
+    * 算好后记在where上，同一个Where对象（缓存的语句，见PlanCache）再次执行时不用重新计算；
+    * 记下的表或版本号和当前的不同（表被删除后重建、建了新索引）时重新计算。
+    * 游标每次执行都重新打开。
+    * */
+    private AccessPath accessPath(Where where) throws Exception {
+        Object cached = where.plan;
+        if(cached instanceof AccessPath) {
+            AccessPath path = (AccessPath)cached;
+            if(path.table == this && path.version == version) {
+                return path;
+            }
+        }
+        AccessPath path = new AccessPath();
+        path.table = this;
+        path.version = version;
+        path.fd = indexFor(where);
+        if(path.fd.isIndexed()) {
+            // AND 的两个条件可以交换，第一个字段没有索引时用第二个字段的索引
+            Where w = path.fd.fieldName.equals(where.singleExp1.field) ? where : swap(where);
+            // 计算条件的搜索范围
+            path.res = calWhere(path.fd, w);
+        }
+        where.plan = path;
+        return path;
+    }
+
+    static class AccessPath {
+        Table table;
+        long version;
+        Field fd;
+        // fd没有索引（顺序扫描）时为null
+        CalWhereRes res;
+    }
+
+    // 顺序扫描堆段中对xid可见且满足where条件的记录
+    private ScanRes heapScan(long xid, Where where, int limit) throws Exception {
+        TableManagerImpl tm = (TableManagerImpl)tbm;
+        return new HeapScan(tm.vm, tm.dm, heap, rawFilter(where)).scan(xid, limit);
+    }
+
+    // 把where条件变成直接在记录字节数组上的判断，只解码条件用到的字段
+    private RawFilter rawFilter(Where where) throws Exception {
+        if(where == null) {
+            return null;
+        }
+        String logicOp = where.logicOp;
+        if(!"".equals(logicOp) && !"and".equals(logicOp) && !"or".equals(logicOp)) {
+            throw Error.InvalidLogOpException;
+        }
+        // 先检查一遍比较符，例如数字字段不能用like
+        getField(where.singleExp1.field).calExp(where.singleExp1);
+        if(where.singleExp2 != null) {
+            getField(where.singleExp2.field).calExp(where.singleExp2);
+        }
+        boolean[] needed = new boolean[fields.size()];
+        markColumns(needed, where);
+        RowDecoder decoder = new RowDecoder(fields, needed);
+        return raw -> matches(decoder.decode(raw), where);
+    }
+
+    // 字段在记录中是第几列
+    int column(String fieldName) throws Exception {
+        for (int i = 0; i < fields.size(); i++) {
+            if(fields.get(i).fieldName.equals(fieldName)) {
+                return i;
+            }
+        }
+        throw Error.FieldNotFoundException;
+    }
+
+    // 标记where条件用到的列
+    private void markColumns(boolean[] needed, Where where) throws Exception {
+        if(where == null) {
+            return;
+        }
+        needed[column(where.singleExp1.field)] = true;
+        if(where.singleExp2 != null) {
+            needed[column(where.singleExp2.field)] = true;
+        }
+    }
+
+    // 查询使用哪个字段的索引：没有WHERE条件时为第一个有索引的字段，AND的第一个字段没有索引时可以用第二个字段的
+    private Field indexFor(Where where) throws Exception {
+        if(where == null) {
+            for (Field field : fields) {
+                if(field.isIndexed()) {
+                    return field;
+                }
+            }
+            throw Error.TableNoIndexException;
+        }
+        Field fd = getField(where.singleExp1.field);
+        if(!fd.isIndexed() && where.singleExp2 != null && "and".equals(where.logicOp)) {
+            Field fd2 = getField(where.singleExp2.field);
+            if(fd2.isIndexed()) {
+                return fd2;
+            }
+        }
+        return fd;
+    }
+
+    private Where swap(Where where) {
+        Where w = new Where();
+        w.singleExp1 = where.singleExp2;
+        w.singleExp2 = where.singleExp1;
+        w.logicOp = where.logicOp;
+        return w;
     }
 
     class CalWhereRes {
         long l0, r0, l1, r1;
         boolean single;
+        // 不为null时表示在联合索引上按列比较的范围，此时忽略上面的范围
+        long[] left, right;
     }
 
     private CalWhereRes calWhere(Field fd, Where where) throws Exception {
@@ -281,12 +1005,27 @@ public class Table {
 
             // OR 条件（如 age < 20 OR age > 30）
             case "or":
+                res.single = true;
+                // 第二个条件是别的字段时，满足它的记录可能在第一个字段的任何位置，只能扫描全部
+                if(!fd.fieldName.equals(where.singleExp2.field)) {
+                    res.l0 = Long.MIN_VALUE; res.r0 = Long.MAX_VALUE;
+                    break;
+                }
                 // 第一个条件的搜索范围[l0,r0], 第二个条件的搜索范围[l1,r1]
-                res.single = false;
                 r = fd.calExp(where.singleExp1);
                 res.l0 = r.left; res.r0 = r.right;
                 r = fd.calExp(where.singleExp2);
                 res.l1 = r.left; res.r1 = r.right;
+                if(res.l1 < res.l0) {
+                    long t = res.l0; res.l0 = res.l1; res.l1 = t;
+                    t = res.r0; res.r0 = res.r1; res.r1 = t;
+                }
+                // 两个范围有重叠时合并成一个，否则同一条记录会被遍历两次
+                if(res.l1 <= res.r0) {
+                    if(res.r1 > res.r0) res.r0 = res.r1;
+                } else {
+                    res.single = false;
+                }
                 break;
 
             // AND 条件（如 age > 20 AND age < 30）
@@ -294,6 +1033,22 @@ public class Table {
                 res.single = true;
                 r = fd.calExp(where.singleExp1);
                 res.l0 = r.left; res.r0 = r.right;
+                Field second = fd.secondField();
+                // 联合索引的第一个字段等值、第二个字段有条件时，在第一个字段等于该值的那一段里按第二个字段的范围扫描
+                if(second != null && second.fieldName.equals(where.singleExp2.field) && "=".equals(where.singleExp1.compareOp)) {
+                    FieldCalRes r2 = second.calExp(where.singleExp2, Field.KEY_ORDERED);
+                    res.left = new long[fd.keyWidth()];
+                    res.right = new long[fd.keyWidth()];
+                    Arrays.fill(res.left, Long.MIN_VALUE);
+                    Arrays.fill(res.right, Long.MAX_VALUE);
+                    res.left[0] = r.left; res.right[0] = r.right;
+                    res.left[1] = r2.left; res.right[1] = r2.right;
+                    break;
+                }
+                // 第二个条件是别的字段时只用第一个条件的范围，第二个条件在读出记录后检查
+                if(!fd.fieldName.equals(where.singleExp2.field)) {
+                    break;
+                }
                 r = fd.calExp(where.singleExp2);
                 res.l1 = r.left; res.r1 = r.right;
                 // 取交集
@@ -306,27 +1061,35 @@ public class Table {
         return res;
     }
 
-    private String printEntry(Map<String, Object> entry) {
-        StringBuilder sb = new StringBuilder("[");
-        for (int i = 0; i < fields.size(); i++) {
-            Field field = fields.get(i);
-            sb.append(field.printValue(entry.get(field.fieldName)));
-            if(i == fields.size()-1) {
-                sb.append("]");
-            } else {
-                sb.append(", ");
-            }
+    // 记录是否满足where条件，where为null时总是满足。row按字段顺序排列，只需要有条件用到的列
+    boolean matches(Object[] row, Where where) throws Exception {
+        if(where == null) {
+            return true;
         }
-        return sb.toString();
+        boolean m1 = matches(row, where.singleExp1);
+        switch(where.logicOp) {
+            case "":
+                return m1;
+            case "and":
+                return m1 && matches(row, where.singleExp2);
+            case "or":
+                return m1 || matches(row, where.singleExp2);
+            default:
+                throw Error.InvalidLogOpException;
+        }
+    }
+
+    private boolean matches(Object[] row, SingleExpression exp) throws Exception {
+        int i = column(exp.field);
+        return fields.get(i).matches(row[i], exp);
     }
 
-    private Map<String, Object> parseEntry(byte[] raw) {
+    Map<String, Object> parseEntry(byte[] raw) {
         int pos = 0;
         Map<String, Object> entry = new HashMap<>();
         for (Field field : fields) {
-            ParseValueRes r = field.parserValue(Arrays.copyOfRange(raw, pos, raw.length));
-            entry.put(field.fieldName, r.v);
-            pos += r.shift;
+            entry.put(field.fieldName, field.valueAt(raw, pos));
+            pos += field.rawLength(raw, pos);
         }
         return entry;
     }
@@ -1,14 +1,19 @@
 package com.lxpeak.lxpeakdb.backend.tbm;
 
+import java.util.Iterator;
+
 import com.lxpeak.lxpeakdb.backend.dm.DataManager;
 import com.lxpeak.lxpeakdb.backend.utils.Parser;
 import com.lxpeak.lxpeakdb.backend.vm.VersionManager;
 import com.lxpeak.lxpeakdb.backend.parser.statement.Begin;
 import com.lxpeak.lxpeakdb.backend.parser.statement.Create;
+import com.lxpeak.lxpeakdb.backend.parser.statement.CreateIndex;
 import com.lxpeak.lxpeakdb.backend.parser.statement.Delete;
+import com.lxpeak.lxpeakdb.backend.parser.statement.Drop;
 import com.lxpeak.lxpeakdb.backend.parser.statement.Insert;
 import com.lxpeak.lxpeakdb.backend.parser.statement.Select;
 import com.lxpeak.lxpeakdb.backend.parser.statement.Update;
+import com.lxpeak.lxpeakdb.backend.parser.statement.Vacuum;
 
 /*
 * 由于 TableManager 已经是直接被最外层 Server 调用（LxPeakDB 是 C/S 结构），
@@ -23,11 +28,28 @@ public interface TableManager {
 
     byte[] show(long xid);
     byte[] create(long xid, Create create) throws Exception;
+    byte[] createIndex(long xid, CreateIndex createIndex) throws Exception;
+    // 删除表，立即生效，不随事务回滚。有语句、游标或其他未结束的事务在用这张表时抛出TableInUseException，
+    // 表的段等比删除更早的事务都结束后才回收
+    byte[] drop(long xid, Drop drop) throws Exception;
 
     byte[] insert(long xid, Insert insert) throws Exception;
     byte[] read(long xid, Select select) throws Exception;
+    // 和read相同，但结果由调用方分批取出，用完后需要close
+    ResultStream query(long xid, Select select) throws Exception;
+    // parallel为false时顺序扫描不提前读取后面的页，游标（见Executor）用这种方式只占用一批行的内存
+    ResultStream query(long xid, Select select, boolean parallel) throws Exception;
     byte[] update(long xid, Update update) throws Exception;
     byte[] delete(long xid, Delete delete) throws Exception;
+    // 清理索引中的无效项并更新可见性映射
+    byte[] vacuum(long xid, Vacuum vacuum) throws Exception;
+
+    // 批量导入数据，返回导入的行数。索引按原来的fanout重建，旧的索引在事务提交后回收
+    int load(long xid, String tableName, Iterator<String[]> rows) throws Exception;
+
+    // 当前线程执行的语句先不把日志刷盘，直到sync，一批语句只刷一次盘
+    void deferSync();
+    void sync();
 
     public static TableManager create(String path, VersionManager vm, DataManager dm) {
         Booter booter = Booter.create(path);
@@ -2,20 +2,27 @@ package com.lxpeak.lxpeakdb.backend.tbm;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import com.lxpeak.lxpeakdb.backend.dm.DataManager;
 import com.lxpeak.lxpeakdb.backend.parser.statement.Create;
+import com.lxpeak.lxpeakdb.backend.parser.statement.CreateIndex;
 import com.lxpeak.lxpeakdb.backend.parser.statement.Delete;
+import com.lxpeak.lxpeakdb.backend.parser.statement.Drop;
 import com.lxpeak.lxpeakdb.backend.parser.statement.Select;
 import com.lxpeak.lxpeakdb.backend.vm.VersionManager;
 import com.lxpeak.lxpeakdb.common.Error;
 import com.lxpeak.lxpeakdb.backend.parser.statement.Begin;
 import com.lxpeak.lxpeakdb.backend.parser.statement.Insert;
 import com.lxpeak.lxpeakdb.backend.parser.statement.Update;
+import com.lxpeak.lxpeakdb.backend.parser.statement.Vacuum;
+import com.lxpeak.lxpeakdb.backend.utils.Panic;
 import com.lxpeak.lxpeakdb.backend.utils.Parser;
 
 /*
@@ -36,6 +43,10 @@ public class TableManagerImpl implements TableManager {
     private Map<String, Table> tableCache;
     // 未提交事务的临时表，仅在当前事务内可见，其他事务无法看到
     private Map<Long, List<Table>> xidTableCache;
+    // 事务创建或写过（插入、更新、删除）的表，事务结束前其他事务不能删除这些表
+    private Map<Long, Set<Table>> xidWrites;
+    // 已经删除、段还没有回收的表，key是删除它的事务
+    private Map<Long, List<Table>> dropped;
     private Lock lock;
 
     TableManagerImpl(VersionManager vm, DataManager dm, Booter booter) {
@@ -44,8 +55,11 @@ public class TableManagerImpl implements TableManager {
         this.booter = booter;
         this.tableCache = new HashMap<>();
         this.xidTableCache = new HashMap<>();
+        this.xidWrites = new HashMap<>();
+        this.dropped = new HashMap<>();
         lock = new ReentrantLock();
         loadTables();
+        reclaimSegments();
     }
 
     private void loadTables() {
@@ -58,6 +72,115 @@ public class TableManagerImpl implements TableManager {
         }
     }
 
+    /*
+    * 删除表后要等比它早的事务都结束才回收它的段（见drop），这之前崩溃的话段不会被回收。
+    * 启动时表都已经加载，不属于任何表的段就是这样的段（或者崩溃时还没建完的索引），在这里回收。
+    * */
+    private void reclaimSegments() {
+        Set<Long> used = new HashSet<>();
+        for (Table tb : tableCache.values()) {
+            used.addAll(tb.segments());
+        }
+        try {
+            for (long segment : dm.segments()) {
+                if(!used.contains(segment)) {
+                    dm.dropSegment(segment);
+                }
+            }
+        } catch(Exception e) {
+            Panic.panic(e);
+        }
+    }
+
+    // 语句开始使用表，write为true时记下事务写过这张表，用完后调用release
+    private Table acquire(long xid, String tableName, boolean write) throws Exception {
+        lock.lock();
+        try {
+            Table table = tableCache.get(tableName);
+            if(table == null) {
+                throw Error.TableNotFoundException;
+            }
+            table.users ++;
+            if(write) {
+                xidWrites.computeIfAbsent(xid, k -> new HashSet<>()).add(table);
+            }
+            return table;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(Table table) {
+        List<Long> segments = new ArrayList<>();
+        lock.lock();
+        try {
+            table.users --;
+            retire(table, segments);
+        } finally {
+            lock.unlock();
+        }
+        freeSegments(segments);
+    }
+
+    // 没有语句在用表时，把它不再引用的旧索引的段放进segments，调用时持有锁
+    private void retire(Table table, List<Long> segments) {
+        if(table.users == 0) {
+            segments.addAll(table.retired);
+            table.retired.clear();
+        }
+    }
+
+    private void freeSegments(List<Long> segments) {
+        try {
+            for (long segment : segments) {
+                dm.dropSegment(segment);
+            }
+        } catch(Exception e) {
+            Panic.panic(e);
+        }
+    }
+
+    /*
+    * 事务结束：其他事务可以删除它写过的表，比它晚删除的表可能已经可以回收。
+    * 提交时它批量导入换下的旧索引不再被引用，回滚时仍然是表的索引，不能回收。
+    * */
+    private void endTransaction(long xid, boolean committed) {
+        List<Table> ready = new ArrayList<>();
+        List<Long> segments = new ArrayList<>();
+        lock.lock();
+        try {
+            Set<Table> written = xidWrites.remove(xid);
+            if(written != null) {
+                for (Table table : written) {
+                    List<Long> replaced = table.replaced.remove(xid);
+                    if(replaced != null && committed) {
+                        table.retired.addAll(replaced);
+                    }
+                    retire(table, segments);
+                }
+            }
+            long oldest = vm.oldestActive();
+            Iterator<Map.Entry<Long, List<Table>>> it = dropped.entrySet().iterator();
+            while(it.hasNext()) {
+                Map.Entry<Long, List<Table>> e = it.next();
+                if(oldest == 0 || oldest > e.getKey()) {
+                    ready.addAll(e.getValue());
+                    it.remove();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        freeSegments(segments);
+        try {
+            for (Table table : ready) {
+                table.drop();
+            }
+        } catch(Exception e) {
+            Panic.panic(e);
+        }
+    }
+
     // 从booter文件中获得第一个表的UID
     private long firstTableUid() {
         byte[] raw = booter.load();
@@ -84,14 +207,24 @@ public class TableManagerImpl implements TableManager {
     // 对VM的commit方法的一层包装
     @Override
     public byte[] commit(long xid) throws Exception {
-        vm.commit(xid);
+        try {
+            vm.commit(xid);
+        } catch(Exception e) {
+            endTransaction(xid, false);
+            throw e;
+        }
+        endTransaction(xid, true);
         return "commit".getBytes();
     }
 
     // 对VM的abort方法的一层包装
     @Override
     public byte[] abort(long xid) {
-        vm.abort(xid);
+        try {
+            vm.abort(xid);
+        } finally {
+            endTransaction(xid, false);
+        }
         return "abort".getBytes();
     }
     @Override
@@ -131,58 +264,201 @@ public class TableManagerImpl implements TableManager {
                 xidTableCache.put(xid, new ArrayList<>());
             }
             xidTableCache.get(xid).add(table);
+            xidWrites.computeIfAbsent(xid, k -> new HashSet<>()).add(table);
             return ("create " + create.tableName).getBytes();
         } finally {
             lock.unlock();
         }
     }
+    /*
+    * 表按链表串起，删除一张表时要让它前面的表指向它后面的表。表的记录不能修改，
+    * 所以从它前面的那张表开始，依次为前面的每张表写入新记录（见Table.relink），最后更新Booter中的头表，
+    * 更新Booter之前崩溃的话链表仍然是旧的。
+    *
+    * 还有语句或没关闭的查询结果（游标）在用这张表，或者其他未结束的事务写过这张表时拒绝删除：
+    * 它们还会读写表的段，而事务回滚（包括崩溃恢复时的undo）会写回表的页。
+    * 从链表摘下后表对之后的语句不可见，但比删除它的事务早的事务可能还有崩溃恢复时要undo的修改，
+    * 所以等这些事务都结束后才回收表的段（见endTransaction）。
+    * */
     @Override
-    public byte[] insert(long xid, Insert insert) throws Exception {
+    public byte[] drop(long xid, Drop drop) throws Exception {
         lock.lock();
-        Table table = tableCache.get(insert.tableName);
-        lock.unlock();
-        if(table == null) {
-            throw Error.TableNotFoundException;
+        try {
+            Table table = tableCache.get(drop.tableName);
+            if(table == null) {
+                throw Error.TableNotFoundException;
+            }
+            if(table.users > 0) {
+                throw Error.TableInUseException;
+            }
+            for (Map.Entry<Long, Set<Table>> e : xidWrites.entrySet()) {
+                if(e.getKey() != xid && e.getValue().contains(table)) {
+                    throw Error.TableInUseException;
+                }
+            }
+            Map<Long, Table> tables = new HashMap<>();
+            for (Table tb : tableCache.values()) {
+                tables.put(tb.uid, tb);
+            }
+            List<Table> before = new ArrayList<>();
+            for(long uid = firstTableUid(); uid != table.uid; uid = tables.get(uid).nextUid) {
+                before.add(tables.get(uid));
+            }
+            long next = table.nextUid;
+            for(int i = before.size()-1; i >= 0; i --) {
+                before.get(i).relink(next);
+                next = before.get(i).uid;
+            }
+            updateFirstTableUid(next);
+            tableCache.remove(drop.tableName);
+            for (List<Table> t : xidTableCache.values()) {
+                t.remove(table);
+            }
+            for (Set<Table> t : xidWrites.values()) {
+                t.remove(table);
+            }
+            dropped.computeIfAbsent(xid, k -> new ArrayList<>()).add(table);
+            return ("drop " + drop.tableName).getBytes();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public byte[] createIndex(long xid, CreateIndex createIndex) throws Exception {
+        Table table = acquire(xid, createIndex.tableName, true);
+        try {
+            table.createIndex(xid, createIndex);
+        } finally {
+            release(table);
+        }
+        StringBuilder sb = new StringBuilder("create index ").append(createIndex.fieldName);
+        if(createIndex.following != null) {
+            for(String f : createIndex.following) {
+                sb.append(", ").append(f);
+            }
+        }
+        if(createIndex.include != null && createIndex.include.length > 0) {
+            sb.append(" include ").append(String.join(", ", createIndex.include));
         }
-        table.insert(xid, insert);
-        return "insert".getBytes();
+        return sb.toString().getBytes();
     }
+    @Override
+    public byte[] insert(long xid, Insert insert) throws Exception {
+        Table table = acquire(xid, insert.tableName, true);
+        try {
+            if(insert.rows == null) {
+                if(insert.upsert) {
+                    return (table.upsert(xid, insert.values) ? "update 1" : "insert").getBytes();
+                }
+                table.insert(xid, insert.values);
+                return "insert".getBytes();
+            }
+            // 多行插入返回插入（和更新）的行数
+            int inserted = 0, updated = 0;
+            for (String[] values : insert.rows) {
+                if(insert.upsert && table.upsert(xid, values)) {
+                    updated ++;
+                } else {
+                    if(!insert.upsert) {
+                        table.insert(xid, values);
+                    }
+                    inserted ++;
+                }
+            }
+            if(insert.upsert) {
+                return ("insert " + inserted + ", update " + updated).getBytes();
+            }
+            return ("insert " + inserted).getBytes();
+        } finally {
+            release(table);
+        }
+    }
+    @Override
+    public void deferSync() {
+        dm.deferSync();
+    }
+
+    @Override
+    public void sync() {
+        dm.sync();
+    }
+
     @Override
     public byte[] read(long xid, Select read) throws Exception {
-        lock.lock();
-        Table table = tableCache.get(read.tableName);
-        lock.unlock();
-        if(table == null) {
-            throw Error.TableNotFoundException;
+        Table table = acquire(xid, read.tableName, false);
+        try {
+            return table.read(xid, read).getBytes();
+        } finally {
+            release(table);
         }
-        return table.read(xid, read).getBytes();
     }
+    @Override
+    public ResultStream query(long xid, Select read) throws Exception {
+        return query(xid, read, true);
+    }
+    @Override
+    public ResultStream query(long xid, Select read, boolean parallel) throws Exception {
+        Table table = acquire(xid, read.tableName, false);
+        // 结果关闭时才结束对表的使用
+        ResultStream rs;
+        try {
+            rs = table.query(xid, read, parallel);
+        } catch(Exception e) {
+            release(table);
+            throw e;
+        }
+        rs.onClose(() -> release(table));
+        return rs;
+    }
+
     @Override
     public byte[] update(long xid, Update update) throws Exception {
-        lock.lock();
-        Table table = tableCache.get(update.tableName);
-        lock.unlock();
-        if(table == null) {
-            throw Error.TableNotFoundException;
+        Table table = acquire(xid, update.tableName, true);
+        try {
+            return ("update " + table.update(xid, update)).getBytes();
+        } finally {
+            release(table);
         }
-        int count = table.update(xid, update);
-        return ("update " + count).getBytes();
     }
 
     /*
     * Q：为什么TBM的delete记录的时候，不需要删除索引呢
     * A：当上层模块通过VM删除某个Entry时，实际的操作是设置其XMAX。如果不去删除对应索引的话，当后续再次尝试读取该Entry时，是可以通过索引寻找到的，
     *    但是由于设置了XMAX，所以会在寻找不到合适的版本时返回一个找不到对应内容的错误。
+    *    此时其他事务可能还需要看到旧版本，索引项要等到该版本对所有事务都不可见后，由之后的查询顺手删除（见IndexScan.next）。
     * */
     @Override
     public byte[] delete(long xid, Delete delete) throws Exception {
-        lock.lock();
-        Table table = tableCache.get(delete.tableName);
-        lock.unlock();
-        if(table == null) {
-            throw Error.TableNotFoundException;
+        Table table = acquire(xid, delete.tableName, true);
+        try {
+            return ("delete " + table.delete(xid, delete)).getBytes();
+        } finally {
+            release(table);
+        }
+    }
+
+    @Override
+    public byte[] vacuum(long xid, Vacuum vacuum) throws Exception {
+        Table table = acquire(xid, vacuum.tableName, false);
+        try {
+            return ("vacuum " + table.vacuum(xid)).getBytes();
+        } finally {
+            release(table);
+        }
+    }
+
+    @Override
+    public int load(long xid, String tableName, Iterator<String[]> rows) throws Exception {
+        Table table = acquire(xid, tableName, true);
+        List<Long> replaced = new ArrayList<>();
+        try {
+            return table.load(xid, rows, replaced);
+        } finally {
+            lock.lock();
+            table.replaced.computeIfAbsent(xid, k -> new ArrayList<>()).addAll(replaced);
+            lock.unlock();
+            release(table);
         }
-        int count = table.delete(xid, delete);
-        return ("delete " + count).getBytes();
     }
 }
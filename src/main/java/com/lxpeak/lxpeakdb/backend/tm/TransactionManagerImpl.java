@@ -82,8 +82,8 @@ public class TransactionManagerImpl implements TransactionManager {
         tmp[0] = status;
         ByteBuffer buf = ByteBuffer.wrap(tmp);
         try {
-            fc.position(offset);
-            fc.write(buf);
+            // 多个线程同时提交、回滚和检查状态，用带位置的读写，不能先设置共享的position再读写
+            fc.write(buf, offset);
         } catch (IOException e) {
             Panic.panic(e);
         }
@@ -103,8 +103,7 @@ public class TransactionManagerImpl implements TransactionManager {
         ByteBuffer buf = ByteBuffer.wrap(Parser.long2Byte(xidCounter));
         try {
             // 注意FileChannel的write()方法是覆盖的，如果需要追加(append)则需要手动设置position。
-            fc.position(0);
-            fc.write(buf);
+            fc.write(buf, 0);
         } catch (IOException e) {
             Panic.panic(e);
         }
@@ -144,8 +143,7 @@ public class TransactionManagerImpl implements TransactionManager {
         long offset = getXidPosition(xid);
         ByteBuffer buf = ByteBuffer.wrap(new byte[XID_FIELD_SIZE]);
         try {
-            fc.position(offset);
-            fc.read(buf);
+            fc.read(buf, offset);
         } catch (IOException e) {
             Panic.panic(e);
         }
@@ -1,6 +1,7 @@
 package com.lxpeak.lxpeakdb.backend.utils;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
 import com.google.common.primitives.Bytes;
@@ -44,6 +45,44 @@ public class Parser {
         return ByteBuffer.allocate(Long.SIZE / Byte.SIZE).putLong(value).array();
     }
 
+    /*
+    * 下面几个带offset的方法直接在原数组上按大端序读写，不会像上面的方法一样分配新数组和ByteBuffer，
+    * 用于B+树节点这类需要频繁读写的热点路径。
+    * */
+    public static short parseShort(byte[] buf, int offset) {
+        return (short)(((buf[offset] & 0xFF) << 8) | (buf[offset+1] & 0xFF));
+    }
+
+    public static int parseInt(byte[] buf, int offset) {
+        return ((buf[offset] & 0xFF) << 24) |
+               ((buf[offset+1] & 0xFF) << 16) |
+               ((buf[offset+2] & 0xFF) << 8) |
+               (buf[offset+3] & 0xFF);
+    }
+
+    public static long parseLong(byte[] buf, int offset) {
+        return ((long)(buf[offset] & 0xFF) << 56) |
+               ((long)(buf[offset+1] & 0xFF) << 48) |
+               ((long)(buf[offset+2] & 0xFF) << 40) |
+               ((long)(buf[offset+3] & 0xFF) << 32) |
+               ((long)(buf[offset+4] & 0xFF) << 24) |
+               ((long)(buf[offset+5] & 0xFF) << 16) |
+               ((long)(buf[offset+6] & 0xFF) << 8) |
+               ((long)(buf[offset+7] & 0xFF));
+    }
+
+    public static void putShort(byte[] buf, int offset, short value) {
+        buf[offset] = (byte)(value >>> 8);
+        buf[offset+1] = (byte)value;
+    }
+
+    public static void putLong(byte[] buf, int offset, long value) {
+        for(int i = 7; i >= 0; i --) {
+            buf[offset+i] = (byte)value;
+            value >>>= 8;
+        }
+    }
+
     public static ParseStringRes parseString(byte[] raw) {
         // string2Byte方法里开头四个字节保存的是字符串以字节数组存储的长度，所以这里取四个字节作为长度进行解析
         int length = parseInt(Arrays.copyOf(raw, 4));
@@ -84,4 +123,18 @@ public class Parser {
         return res;
     }
 
+    /*
+    * 保序的字符串key：取UTF-8编码的前8个字节（不足补0），按无符号大端组成long，再翻转符号位，
+    * 使得 a < b（按字节比较）时 str2Key(a) <= str2Key(b)，B+树按有符号long比较时顺序不变。
+    * 前8个字节相同的字符串key相同，需要再比较完整的值。
+    */
+    public static long str2Key(String key) {
+        byte[] b = key.getBytes(StandardCharsets.UTF_8);
+        long res = 0;
+        for(int i = 0; i < 8; i ++) {
+            res = (res << 8) | (i < b.length ? (b[i] & 0xFF) : 0);
+        }
+        return res ^ Long.MIN_VALUE;
+    }
+
 }
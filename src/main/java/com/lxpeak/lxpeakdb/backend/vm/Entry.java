@@ -11,17 +11,21 @@ import com.lxpeak.lxpeakdb.backend.utils.Parser;
 /**
  * VM向上层抽象出entry
  * entry结构：
- * [XMIN] [XMAX] [data]
+ * [XMIN] [XMAX] [NEXT] [data]
  *
  * XMIN 是创建该条记录（版本）的事务编号，
  * XMAX 则是删除该条记录（版本）的事务编号，
+ * NEXT 是该记录被更新后新版本的UID，为0表示没有更新的版本（版本链的末尾）；
  * DATA 就是这条记录持有的数据。
+ *
+ * 通过NEXT串起来的版本链，索引只需要指向链头的UID，更新未修改索引字段时就不必改动任何索引（类似PostgreSQL的HOT）。
  */
 public class Entry {
 
     private static final int OF_XMIN = 0;
     private static final int OF_XMAX = OF_XMIN+8;
-    private static final int OF_DATA = OF_XMAX+8;
+    private static final int OF_NEXT = OF_XMAX+8;
+    private static final int OF_DATA = OF_NEXT+8;
 
     private long uid;
     private DataItem dataItem;
@@ -46,7 +50,8 @@ public class Entry {
     public static byte[] wrapEntryRaw(long xid, byte[] data) {
         byte[] xmin = Parser.long2Byte(xid);
         byte[] xmax = new byte[8];
-        return Bytes.concat(xmin, xmax, data);
+        byte[] next = new byte[8];
+        return Bytes.concat(xmin, xmax, next, data);
     }
 
     public void release() {
@@ -92,12 +97,28 @@ public class Entry {
         dataItem.rLock();
         try {
             SubArray sa = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start+OF_XMAX, sa.start+OF_DATA));
+            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start+OF_XMAX, sa.start+OF_NEXT));
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    public long getNext() {
+        dataItem.rLock();
+        try {
+            SubArray sa = dataItem.data();
+            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start+OF_NEXT, sa.start+OF_DATA));
         } finally {
             dataItem.rUnLock();
         }
     }
 
+    // data部分的长度
+    public int dataLength() {
+        SubArray sa = dataItem.data();
+        return sa.end - sa.start - OF_DATA;
+    }
+
     public void setXmax(long xid) {
         dataItem.before();
         try {
@@ -108,6 +129,29 @@ public class Entry {
         }
     }
 
+    // 在同一次before/after中同时设置XMAX和NEXT，保证两者在日志中是原子的
+    public void setXmax(long xid, long next) {
+        dataItem.before();
+        try {
+            SubArray sa = dataItem.data();
+            System.arraycopy(Parser.long2Byte(xid), 0, sa.raw, sa.start+OF_XMAX, 8);
+            System.arraycopy(Parser.long2Byte(next), 0, sa.raw, sa.start+OF_NEXT, 8);
+        } finally {
+            dataItem.after(xid);
+        }
+    }
+
+    // 原地覆盖data部分，调用方需保证data和原数据长度相同
+    public void overwrite(long xid, byte[] data) {
+        dataItem.before();
+        try {
+            SubArray sa = dataItem.data();
+            System.arraycopy(data, 0, sa.raw, sa.start+OF_DATA, data.length);
+        } finally {
+            dataItem.after(xid);
+        }
+    }
+
     public long getUid() {
         return uid;
     }
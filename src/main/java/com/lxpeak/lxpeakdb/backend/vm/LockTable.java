@@ -102,6 +102,20 @@ public class LockTable {
         }
     }
 
+    // 在事务结束之前提前释放它持有的一个资源，等待这个资源的事务中选一个获得
+    public void release(long xid, long uid) {
+        lock.lock();
+        try {
+            if(!isInList(x2u, xid, uid)) {
+                return;
+            }
+            removeFromList(x2u, xid, uid);
+            selectNewXID(uid);
+        } finally {
+            lock.unlock();
+        }
+    }
+
     // 从等待队列中选择一个xid来占用uid.
     // while循环释放掉了这个线程所有持有的资源的锁，这些资源可以被等待的线程所获取
     private void selectNewXID(long uid) {
@@ -0,0 +1,6 @@
+package com.lxpeak.lxpeakdb.backend.vm;
+
+// 在版本的数据（字节数组）上判断是否满足条件，由上层根据记录格式实现
+public interface RawFilter {
+    boolean test(byte[] data) throws Exception;
+}
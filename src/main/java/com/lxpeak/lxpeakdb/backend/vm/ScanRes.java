@@ -0,0 +1,10 @@
+package com.lxpeak.lxpeakdb.backend.vm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// 顺序扫描的结果，uids和data一一对应，uid是对事务可见的那个版本的UID（不一定是链头）
+public class ScanRes {
+    public List<Long> uids = new ArrayList<>();
+    public List<byte[]> data = new ArrayList<>();
+}
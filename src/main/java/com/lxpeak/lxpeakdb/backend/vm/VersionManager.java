@@ -6,7 +6,23 @@ import com.lxpeak.lxpeakdb.backend.tm.TransactionManager;
 public interface VersionManager {
     byte[] read(long xid, long uid) throws Exception;
     long insert(long xid, byte[] data) throws Exception;
+    // 插入到段segment中，同一条记录之后的新版本也会插入到这个段
+    long insert(long xid, byte[] data, long segment) throws Exception;
     boolean delete(long xid, long uid) throws Exception;
+    long update(long xid, long uid, byte[] data, boolean hot) throws Exception;
+    // 版本链上的所有版本是否对任何事务都不可见了，此时指向它的索引项可以删除
+    boolean isObsolete(long uid) throws Exception;
+    // 版本链上可能仍然存在的版本（不管对xid是否可见），用于唯一性检查，没有则返回null
+    byte[] readLive(long xid, long uid) throws Exception;
+    // 版本链上可能仍然存在的版本如果是其他还没结束的事务创建的，等待该事务提交或回滚，返回是否等待过
+    boolean waitForCreator(long xid, long uid) throws Exception;
+    // 链头版本是否对所有活跃事务以及之后的事务都可见，并且没有被删除或更新，VACUUM用来设置可见性映射
+    boolean isAllVisible(long uid) throws Exception;
+    // 页pgno中对xid可见的版本，按页内顺序返回，filter不为null时只返回数据满足filter的
+    ScanRes scanPage(long xid, int pgno, RawFilter filter) throws Exception;
+
+    // 活跃事务中最小的xid，没有活跃事务时返回0
+    long oldestActive();
 
     long begin(int level);
     void commit(long xid) throws Exception;
@@ -1,6 +1,8 @@
 package com.lxpeak.lxpeakdb.backend.vm;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.locks.Lock;
@@ -14,8 +16,8 @@ import com.lxpeak.lxpeakdb.backend.tm.TransactionManager;
 import com.lxpeak.lxpeakdb.backend.tm.TransactionManagerImpl;
 
 /*
-* 注意只有delete方法调用了LockTable的add方法，而insert和read不需要，原因如下：
-* 1、删除操作（delete）需要修改现有数据，设置XMAX。这时候需要防止其他事务同时修改同一条记录，否则会出现竞态条件。因此，必须获取锁来确保独占访问。
+* 注意只有delete和update方法调用了LockTable的add方法，而insert和read不需要，原因如下：
+* 1、删除操作（delete）和更新操作（update）需要修改现有数据，设置XMAX。这时候需要防止其他事务同时修改同一条记录，否则会出现竞态条件。因此，必须获取锁来确保独占访问。
 * 2、插入新数据（insert）时通常不需要锁定现有记录，因为新插入的数据在事务提交前对其他事务可能是不可见的。插入的数据在提交前可能只有当前事务可见，所以其他事务不会冲突。
 * 3、读操作（read）依赖版本号判断。事务读取的是快照版本，不会修改数据，因此不需要加锁.
 * */
@@ -38,6 +40,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
     }
 
     // read() 方法读取一个 entry，注意判断下可见性即可。
+    // uid是版本链的链头，如果链头对当前事务不可见，则沿着NEXT寻找对当前事务可见的版本
     // 读取真正的数据，以字节数组形式返回
     @Override
     public byte[] read(long xid, long uid) throws Exception {
@@ -49,24 +52,13 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             throw t.err;
         }
 
-        Entry entry = null;
-        try {
-            entry = super.get(uid);
-        } catch(Exception e) {
-            // 这里的异常是返回的本对象中getForCache()抛出的异常
-            if(e == Error.NullEntryException) {
-                return null;
-            } else {
-                throw e;
-            }
+        Entry entry = visibleVersion(t, uid);
+        if(entry == null) {
+            return null;
         }
         try {
-            if(Visibility.isVisible(tm, t, entry)) {
-                // 获得保存真正数据的字节数组
-                return entry.data();
-            } else {
-                return null;
-            }
+            // 获得保存真正数据的字节数组
+            return entry.data();
         } finally {
             entry.release();
         }
@@ -76,6 +68,11 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
     // 返回uid
     @Override
     public long insert(long xid, byte[] data) throws Exception {
+        return insert(xid, data, 0);
+    }
+
+    @Override
+    public long insert(long xid, byte[] data, long segment) throws Exception {
         lock.lock();
         Transaction t = activeTransaction.get(xid);
         lock.unlock();
@@ -85,7 +82,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         }
 
         byte[] raw = Entry.wrapEntryRaw(xid, data);
-        return dm.insert(xid, raw);
+        return dm.insert(xid, raw, segment);
     }
 
     // 主要是前置的三件事：一是可见性判断，二是获取资源的锁，三是版本跳跃判断。删除的操作只有一个设置 XMAX。
@@ -98,6 +95,149 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         if(t.err != null) {
             throw t.err;
         }
+        Entry entry = lockVisibleVersion(t, uid);
+        if(entry == null) {
+            return false;
+        }
+        try {
+            // Q：为什么如果Xmax是xid就返回false?
+            // A：方法最后会执行一次entry.setXmax(xid)，这里如果相等了，说明已经删除了，不用再次删除（设置XMAX）
+            if(entry.getXmax() == xid) {
+                return false;
+            }
+            entry.setXmax(xid);
+            return true;
+        } finally {
+            entry.release();
+        }
+    }
+
+    /*
+    * update() 和 delete() 的前置步骤相同，区别在于删除旧版本的同时写入新版本：
+    * 1、hot为true表示上层没有修改任何索引字段，此时新版本通过旧版本的NEXT链接起来，索引仍然指向链头，不需要改动任何索引；
+    *    如果可见版本就是本事务自己创建的（对其他事务都不可见）且长度不变，则直接原地覆盖，连新版本都不用插入。
+    * 2、hot为false表示修改了索引字段，新版本不挂在版本链上，由上层把新版本的UID插入所有索引。
+    * 返回新版本的UID，如果没有可见的版本则返回0。
+    * */
+    @Override
+    public long update(long xid, long uid, byte[] data, boolean hot) throws Exception {
+        lock.lock();
+        Transaction t = activeTransaction.get(xid);
+        lock.unlock();
+
+        if(t.err != null) {
+            throw t.err;
+        }
+        Entry entry = lockVisibleVersion(t, uid);
+        if(entry == null) {
+            return 0;
+        }
+        try {
+            if(entry.getXmax() == xid) {
+                return 0;
+            }
+            if(hot && entry.getXmin() == xid && entry.dataLength() == data.length) {
+                entry.overwrite(xid, data);
+                return entry.getUid();
+            }
+            // 新版本和旧版本放在同一个段里
+            long newUid = dm.insert(xid, Entry.wrapEntryRaw(xid, data), dm.segmentOf(entry.getUid()));
+            entry.setXmax(xid, hot ? newUid : 0);
+            return newUid;
+        } finally {
+            entry.release();
+        }
+    }
+
+    /*
+    * 索引项指向版本链的链头，只有链上的每个版本都对所有事务不可见时，索引项才能删除。
+    * 回滚的事务不会再开始，提交的删除不会被撤销，所以一旦返回true，之后也一直是true。
+    * */
+    @Override
+    public boolean isObsolete(long uid) throws Exception {
+        List<Transaction> active;
+        lock.lock();
+        try {
+            active = new ArrayList<>(activeTransaction.values());
+        } finally {
+            lock.unlock();
+        }
+        while(uid != 0) {
+            Entry entry = null;
+            try {
+                entry = super.get(uid);
+            } catch(Exception e) {
+                if(e == Error.NullEntryException) {
+                    return true;
+                } else {
+                    throw e;
+                }
+            }
+            try {
+                if(!Visibility.isObsolete(tm, active, entry)) {
+                    return false;
+                }
+                uid = entry.getNext();
+            } finally {
+                entry.release();
+            }
+        }
+        return true;
+    }
+
+    /*
+    * 顺序扫描时每个版本单独判断可见性，不从链头开始找：
+    * 同一条记录的版本链上，对某个事务可见的版本最多只有一个（前一个版本的XMAX就是后一个版本的XMIN），
+    * 所以把页中每个可见的版本都返回，既不会重复也不会遗漏。
+    * */
+    @Override
+    public ScanRes scanPage(long xid, int pgno, RawFilter filter) throws Exception {
+        lock.lock();
+        Transaction t = activeTransaction.get(xid);
+        lock.unlock();
+
+        // 并行扫描的任务可能在事务结束后才执行（见HeapScan.close）
+        if(t == null) {
+            throw Error.TransactionNotActiveException;
+        }
+        if(t.err != null) {
+            throw t.err;
+        }
+        ScanRes res = new ScanRes();
+        for(long uid : dm.pageItems(pgno)) {
+            Entry entry = null;
+            try {
+                entry = super.get(uid);
+            } catch(Exception e) {
+                if(e == Error.NullEntryException) {
+                    continue;
+                } else {
+                    throw e;
+                }
+            }
+            try {
+                if(!Visibility.isVisible(tm, t, entry)) continue;
+                byte[] data = entry.data();
+                if(filter == null || filter.test(data)) {
+                    res.uids.add(uid);
+                    res.data.add(data);
+                }
+            } finally {
+                entry.release();
+            }
+        }
+        return res;
+    }
+
+    @Override
+    public boolean isAllVisible(long uid) throws Exception {
+        List<Transaction> active;
+        lock.lock();
+        try {
+            active = new ArrayList<>(activeTransaction.values());
+        } finally {
+            lock.unlock();
+        }
         Entry entry = null;
         try {
             entry = super.get(uid);
@@ -109,49 +249,185 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             }
         }
         try {
-            //可见性判断
-            if(!Visibility.isVisible(tm, t, entry)) {
-                return false;
+            return Visibility.isAllVisible(tm, active, entry);
+        } finally {
+            entry.release();
+        }
+    }
+
+    /*
+    * 唯一性检查不能只看对自己可见的版本：其他事务刚插入还没提交的、或者在本事务开始后才提交的记录同样会冲突。
+    * 沿版本链找到第一个可能仍然存在的版本（见Visibility.isLive），删除它的事务回滚时该版本又会重新生效，所以也算存在。
+    * */
+    @Override
+    public byte[] readLive(long xid, long uid) throws Exception {
+        lock.lock();
+        Transaction t = activeTransaction.get(xid);
+        lock.unlock();
+
+        if(t.err != null) {
+            throw t.err;
+        }
+        while(uid != 0) {
+            Entry entry = null;
+            try {
+                entry = super.get(uid);
+            } catch(Exception e) {
+                if(e == Error.NullEntryException) {
+                    return null;
+                } else {
+                    throw e;
+                }
+            }
+            try {
+                if(Visibility.isLive(tm, xid, entry)) {
+                    return entry.data();
+                }
+                uid = entry.getNext();
+            } finally {
+                entry.release();
+            }
+        }
+        return null;
+    }
+
+    /*
+    * 每个事务在开始时持有资源-xid（见begin），直到提交或回滚才释放，
+    * 等待某个事务结束就是在锁表中等待这个资源，所以同样会检测死锁；拿到后立刻释放，多个等待者不会互相排队。
+    * */
+    @Override
+    public boolean waitForCreator(long xid, long uid) throws Exception {
+        lock.lock();
+        Transaction t = activeTransaction.get(xid);
+        lock.unlock();
+
+        if(t.err != null) {
+            throw t.err;
+        }
+        long creator = 0;
+        while(uid != 0) {
+            Entry entry = null;
+            try {
+                entry = super.get(uid);
+            } catch(Exception e) {
+                if(e == Error.NullEntryException) {
+                    return false;
+                } else {
+                    throw e;
+                }
+            }
+            try {
+                if(Visibility.isLive(tm, xid, entry)) {
+                    creator = entry.getXmin();
+                    break;
+                }
+                uid = entry.getNext();
+            } finally {
+                entry.release();
+            }
+        }
+        if(creator == 0 || creator == xid || !tm.isActive(creator)) {
+            return false;
+        }
+        Semaphore l = null;
+        try {
+            l = lt.add(xid, -creator);
+        } catch(Exception e) {
+            t.err = Error.ConcurrentUpdateException;
+            internAbort(xid, true);
+            t.autoAborted = true;
+            throw t.err;
+        }
+        if(l != null) {
+            l.acquire();
+            l.release();
+        }
+        lt.release(xid, -creator);
+        return true;
+    }
+
+    // 从uid开始沿版本链寻找对事务t可见的版本，找不到则返回null
+    private Entry visibleVersion(Transaction t, long uid) throws Exception {
+        while(uid != 0) {
+            Entry entry = null;
+            try {
+                entry = super.get(uid);
+            } catch(Exception e) {
+                // 这里的异常是返回的本对象中getForCache()抛出的异常
+                if(e == Error.NullEntryException) {
+                    return null;
+                } else {
+                    throw e;
+                }
+            }
+            if(Visibility.isVisible(tm, t, entry)) {
+                return entry;
+            }
+            long next = entry.getNext();
+            entry.release();
+            uid = next;
+        }
+        return null;
+    }
+
+    /*
+    * 找到对事务t可见的版本并对该版本加锁，会造成死锁或出现版本跳跃时自动回滚事务。
+    * 等待锁期间该版本可能已经被其他事务删除或更新并提交（读已提交），此时从该版本出发沿版本链重新寻找。
+    * */
+    private Entry lockVisibleVersion(Transaction t, long uid) throws Exception {
+        while(true) {
+            Entry entry = visibleVersion(t, uid);
+            if(entry == null) {
+                return null;
             }
             Semaphore l = null;
             try {
                 // add方法里会检测是否死锁，并返回Lock对象
-                l = lt.add(xid, uid);
+                l = lt.add(t.xid, entry.getUid());
             } catch(Exception e) {
+                entry.release();
                 t.err = Error.ConcurrentUpdateException;
                 // Q: 为什么先执行internAbort然后再执行t.autoAborted = true？
                 // A: 为了防止internAbort方法内部的提前返回，必须确保在调用internAbort方法时autoAborted尚未被设置，从而确保回滚操作得以完整执行。
                 //    如果先设置t.autoAborted = true，internAbort方法会直接跳过释放锁（lt.remove(xid)）和更新事务状态（tm.abort(xid)）的关键逻辑。
-                internAbort(xid, true);
+                internAbort(t.xid, true);
                 t.autoAborted = true;
                 throw t.err;
             }
-            // 如果 l = lt.add(xid, uid);中的l非空，代表获得了锁，也就是UID正被某个UID持有(u2x中存在该UID)，
-            // 所以这里会进入if方法里，然后阻塞在l.lock()这里。（理论上应该如此，之前这里用的是ReentrantLock，是可重入锁，所以不会锁住）
+            // 如果 l = lt.add(xid, uid);中的l非空，代表UID正被其他事务持有，阻塞直到对方提交或回滚
             if(l != null) {
-                // 阻塞在这一步
                 l.acquire();
                 l.release();
             }
 
-            // Q：为什么如果Xmax是xid就返回false?
-            // A：方法最后会执行一次entry.setXmax(xid)，这里如果相等了，说明已经删除了，不用再次删除（设置XMAX）
-            if(entry.getXmax() == xid) {
-                return false;
-            }
-
             if(Visibility.isVersionSkip(tm, t, entry)) {
+                entry.release();
                 t.err = Error.ConcurrentUpdateException;
-                internAbort(xid, true);
+                internAbort(t.xid, true);
                 t.autoAborted = true;
                 throw t.err;
             }
+            if(Visibility.isVisible(tm, t, entry)) {
+                return entry;
+            }
+            uid = entry.getUid();
+            entry.release();
+        }
+    }
 
-            entry.setXmax(xid);
-            return true;
-
+    @Override
+    public long oldestActive() {
+        lock.lock();
+        try {
+            long oldest = 0;
+            for (long xid : activeTransaction.keySet()) {
+                if(xid != TransactionManagerImpl.SUPER_XID && (oldest == 0 || xid < oldest)) {
+                    oldest = xid;
+                }
+            }
+            return oldest;
         } finally {
-            entry.release();
+            lock.unlock();
         }
     }
 
@@ -165,7 +441,12 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             long xid = tm.begin();
             Transaction t = Transaction.newTransaction(xid, level, activeTransaction);
             activeTransaction.put(xid, t);
+            // 持有代表自己的资源直到结束，其他事务可以等待它结束（见waitForCreator）
+            lt.add(xid, -xid);
             return xid;
+        } catch(Exception e) {
+            Panic.panic(e);
+            return 0;
         } finally {
             lock.unlock();
         }
@@ -194,9 +475,9 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         activeTransaction.remove(xid);
         lock.unlock();
 
-        // 释放所有它持有的锁
-        lt.remove(xid);
+        // 先记下提交，再释放所有它持有的锁，被唤醒的事务看到的已经是提交后的状态
         tm.commit(xid);
+        lt.remove(xid);
     }
 
     @Override
@@ -224,8 +505,8 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         //       而autoAborted是调用方法时代码逻辑认为这里应该是true，至于是不是已经赋值为true了，还是依然为false，需要通过t.autoAborted这个全局变量来判断。
         //       比如abort方法中的autoAborted值为false，就是因为在代码逻辑中认为不应该是自动回滚的，所以是false。
         if(t.autoAborted) return;
-        lt.remove(xid);
         tm.abort(xid);
+        lt.remove(xid);
     }
 
     public void releaseEntry(Entry entry) {
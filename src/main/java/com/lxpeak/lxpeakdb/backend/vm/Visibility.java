@@ -1,5 +1,7 @@
 package com.lxpeak.lxpeakdb.backend.vm;
 
+import java.util.Collection;
+
 import com.lxpeak.lxpeakdb.backend.tm.TransactionManager;
 
 public class Visibility {
@@ -104,4 +106,53 @@ public class Visibility {
         return false;
     }
 
+    /*
+    * 版本是否对所有活跃事务以及之后开始的事务都不可见，满足其一即可：
+    * 1、创建它的事务已经回滚；
+    * 2、删除它的事务已经提交，并且对每个可重复读的活跃事务来说，删除都发生在它开始之前（xmax比它小且不在它的快照中）。
+    *    之后开始的事务xid都比xmax大，快照中也不会有已提交的xmax，所以同样看不到。
+    * */
+    public static boolean isObsolete(TransactionManager tm, Collection<Transaction> active, Entry e) {
+        long xmin = e.getXmin();
+        if(tm.isAborted(xmin)) return true;
+        long xmax = e.getXmax();
+        if(xmax == 0 || !tm.isCommitted(xmax)) return false;
+        for (Transaction t : active) {
+            if(t.level != 0 && (xmax > t.xid || t.isInSnapshot(xmax))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+    * 对事务xid来说，版本是否可能仍然存在（不管是否可见）：
+    * 1、创建它的事务已经回滚，不存在；
+    * 2、没有被删除，或者删除它的事务已经回滚，存在；
+    * 3、被本事务或者已提交的事务删除，不存在；
+    * 4、被其他活跃的事务删除，该事务还可能回滚，算作存在。
+    * */
+    public static boolean isLive(TransactionManager tm, long xid, Entry e) {
+        long xmin = e.getXmin();
+        if(xmin != xid && tm.isAborted(xmin)) return false;
+        long xmax = e.getXmax();
+        if(xmax == 0 || tm.isAborted(xmax)) return true;
+        return xmax != xid && !tm.isCommitted(xmax);
+    }
+
+    /*
+    * 版本是否对所有活跃事务以及之后开始的事务都可见：
+    * 创建它的事务已经提交，没有被删除，并且对每个可重复读的活跃事务来说，创建都发生在它开始之前（xmin比它小且不在它的快照中）。
+    * 之后开始的事务xid都比xmin大，快照中也不会有已提交的xmin，所以同样能看到。
+    * */
+    public static boolean isAllVisible(TransactionManager tm, Collection<Transaction> active, Entry e) {
+        long xmin = e.getXmin();
+        if(!tm.isCommitted(xmin) || e.getXmax() != 0) return false;
+        for (Transaction t : active) {
+            if(t.level != 0 && (xmin > t.xid || t.isInSnapshot(xmin))) {
+                return false;
+            }
+        }
+        return true;
+    }
 }
@@ -0,0 +1,82 @@
+package com.lxpeak.lxpeakdb.backend.vm;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 可见性映射，每张表一个，记录该表的哪些页是"全部可见"的：
+ * 页中该表的每条记录（版本链链头）都已经由已提交的事务创建、没有被删除，并且对所有活跃事务以及之后的事务都可见。
+ * 这样的记录不需要读取Entry判断可见性，索引中保存的值就是它当前的值，查询可以只读索引（index-only scan）。
+ *
+ * 1、只有VACUUM会设置某一页为全部可见，它检查完该页的记录后才设置；
+ * 2、修改记录（插入、删除、更新）前后都要清除记录所在页的标记。每次清除时页的版本号加一，
+ *    VACUUM设置时如果发现版本号和检查前记下的不一样，说明检查期间有写入，放弃设置；
+ *    写入后再清除一次，保证VACUUM不会在写入前检查、写入后设置。
+ * 3、标记只保存在内存中，重启后所有页都不是全部可见的，查询退化为读取记录，结果不受影响。
+ */
+public class VisibilityMap {
+    private Set<Integer> allVisible;
+    private Map<Integer, Long> versions;
+    private Lock lock;
+
+    public VisibilityMap() {
+        allVisible = new HashSet<>();
+        versions = new HashMap<>();
+        lock = new ReentrantLock();
+    }
+
+    static int pgno(long uid) {
+        return (int)(uid >>> 32);
+    }
+
+    // uid所在的页是否全部可见
+    public boolean isAllVisible(long uid) {
+        lock.lock();
+        try {
+            return allVisible.contains(pgno(uid));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 清除uid所在页的标记
+    public void clear(long uid) {
+        int pgno = pgno(uid);
+        lock.lock();
+        try {
+            allVisible.remove(pgno);
+            versions.merge(pgno, 1L, Long::sum);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // uid所在页当前的版本号，VACUUM检查该页之前记下
+    public long version(long uid) {
+        lock.lock();
+        try {
+            return versions.getOrDefault(pgno(uid), 0L);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 版本号没有变化时把uid所在页设置为全部可见，返回是否设置成功
+    public boolean setAllVisible(long uid, long version) {
+        int pgno = pgno(uid);
+        lock.lock();
+        try {
+            if(versions.getOrDefault(pgno, 0L) != version) {
+                return false;
+            }
+            allVisible.add(pgno);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
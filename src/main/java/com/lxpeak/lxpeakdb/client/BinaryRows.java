@@ -0,0 +1,69 @@
+package com.lxpeak.lxpeakdb.client;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.lxpeak.lxpeakdb.common.Error;
+
+/*
+* 解析二进制格式的结果（set format binary之后SELECT和FETCH的结果）：第一批以列头开始，之后是按列类型编码的行，
+* 直接按类型读出int、long和String，不需要解析文本。
+* 一个对象对应一个结果，分批收到的结果（Client.execute的consumer、Cursor.fetch）依次交给decode。
+* */
+public class BinaryRows {
+    private String[] names;
+    private String[] types;
+
+    // 解析一批结果，返回其中的行，每行按列的类型是Integer、Long或String
+    public List<Object[]> decode(byte[] batch) throws Exception {
+        ByteBuffer buf = ByteBuffer.wrap(batch);
+        List<Object[]> rows = new ArrayList<>();
+        try {
+            if(names == null) {
+                int n = buf.getInt();
+                names = new String[n];
+                types = new String[n];
+                for (int i = 0; i < n; i++) {
+                    names[i] = readString(buf);
+                    types[i] = readString(buf);
+                }
+            }
+            while(buf.hasRemaining()) {
+                Object[] row = new Object[types.length];
+                for (int i = 0; i < types.length; i++) {
+                    switch(types[i]) {
+                        case "int32":
+                            row[i] = buf.getInt();
+                            break;
+                        case "int64":
+                            row[i] = buf.getLong();
+                            break;
+                        default:
+                            row[i] = readString(buf);
+                    }
+                }
+                rows.add(row);
+            }
+        } catch(RuntimeException e) {
+            throw Error.InvalidPkgDataException;
+        }
+        return rows;
+    }
+
+    // 列名，收到第一批之前为null
+    public String[] getNames() {
+        return names;
+    }
+
+    // 列的类型：int32、int64或string
+    public String[] getTypes() {
+        return types;
+    }
+
+    private static String readString(ByteBuffer buf) {
+        byte[] b = new byte[buf.getInt()];
+        buf.get(b);
+        return new String(b);
+    }
+}
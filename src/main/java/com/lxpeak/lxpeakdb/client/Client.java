@@ -1,24 +1,143 @@
 package com.lxpeak.lxpeakdb.client;
 
+import java.io.ByteArrayOutputStream;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import com.lxpeak.lxpeakdb.common.Error;
 import com.lxpeak.lxpeakdb.transport.Packager;
 import com.lxpeak.lxpeakdb.transport.Package;
 
+/*
+* 语句发出后不需要等待结果就可以发送下一条（流水线），多条语句只需要一次网络往返的等待。
+* 服务端按收到的顺序逐条执行并返回结果，所以已发出的请求放在队列中，由接收线程按顺序把结果交给对应的请求；
+* 二进制帧中的请求编号用来检查结果和请求是否对得上。
+* */
 public class Client {
     private RoundTripper rt;
+    // 已经发出、还没有收到全部结果的请求
+    private Queue<Request> pending;
+    private Lock lock;
+    private int nextId;
+    private Thread receiver;
+    private Exception closed;
+    private AtomicInteger nextCursor = new AtomicInteger();
 
     public Client(Packager packager) {
         this.rt = new RoundTripper(packager);
+        this.pending = new ConcurrentLinkedQueue<>();
+        this.lock = new ReentrantLock();
+        this.nextId = 1;
+    }
+
+    private static class Request {
+        int id;
+        Consumer<byte[]> consumer;
+        CompletableFuture<Void> done;
     }
 
     // stat: 输入的sql命令
     public byte[] execute(byte[] stat) throws Exception {
-        Package pkg = new Package(stat, null);
-        // 发送sql语句，然后接收处理结果
-        Package resPkg = rt.roundTrip(pkg);
-        if(resPkg.getErr() != null) {
-            throw resPkg.getErr();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        execute(stat, batch -> out.write(batch, 0, batch.length));
+        return out.toByteArray();
+    }
+
+    // 结果分成多个包返回时，每收到一批就交给consumer，不需要等到全部结果
+    public void execute(byte[] stat, Consumer<byte[]> consumer) throws Exception {
+        try {
+            submit(stat, consumer).get();
+        } catch(ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
+        }
+    }
+
+    // 发出语句后立即返回，结果在future中
+    public CompletableFuture<byte[]> executeAsync(byte[] stat) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        return submit(stat, batch -> out.write(batch, 0, batch.length)).thenApply(v -> out.toByteArray());
+    }
+
+    // 用服务端游标执行SELECT，每次取回fetchSize行，用完后需要close
+    public Cursor query(String select, int fetchSize) {
+        return new Cursor(this, "c" + nextCursor.incrementAndGet(), select, fetchSize);
+    }
+
+    private CompletableFuture<Void> submit(byte[] stat, Consumer<byte[]> consumer) {
+        Request req = new Request();
+        req.consumer = consumer;
+        req.done = new CompletableFuture<>();
+        lock.lock();
+        try {
+            if(closed != null) {
+                req.done.completeExceptionally(closed);
+                return req.done;
+            }
+            if(receiver == null) {
+                receiver = new Thread(this::receive, "client-receiver");
+                receiver.setDaemon(true);
+                receiver.start();
+            }
+            req.id = nextId ++;
+            Package pkg = new Package(stat, null);
+            pkg.setId(req.id);
+            // 先放进队列再发送，结果不会在请求入队之前到达
+            pending.add(req);
+            rt.send(pkg);
+        } catch(Exception e) {
+            fail(e);
+        } finally {
+            lock.unlock();
+        }
+        return req.done;
+    }
+
+    // 接收线程：把收到的包交给队列头部的请求，收到结束包后这个请求完成
+    private void receive() {
+        try {
+            while(true) {
+                Package pkg = rt.receive();
+                Request req = pending.peek();
+                if(req == null || (pkg.getId() != 0 && pkg.getId() != req.id)) {
+                    throw Error.InvalidPkgDataException;
+                }
+                if(pkg.isPartial()) {
+                    req.consumer.accept(pkg.getData());
+                    continue;
+                }
+                pending.poll();
+                if(pkg.getErr() != null) {
+                    req.done.completeExceptionally(pkg.getErr());
+                } else {
+                    req.consumer.accept(pkg.getData());
+                    req.done.complete(null);
+                }
+            }
+        } catch(Exception e) {
+            lock.lock();
+            try {
+                fail(e);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // 连接出错，之后的请求都失败
+    private void fail(Exception e) {
+        if(closed == null) {
+            closed = e;
+        }
+        Request req;
+        while((req = pending.poll()) != null) {
+            req.done.completeExceptionally(closed);
         }
-        return resPkg.getData();
     }
 
     public void close() {
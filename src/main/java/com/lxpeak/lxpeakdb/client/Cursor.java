@@ -0,0 +1,62 @@
+package com.lxpeak.lxpeakdb.client;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/*
+* 服务端游标的客户端：declare和第一次fetch一起发出（见Client的流水线），一次往返就拿到游标和前fetchSize行，
+* 之后每次fetch再取下一批。服务端只保存扫描的位置和当前这一批行，适合导出很大的表。
+* 用完后调用close，服务端才会释放游标（以及游标自己的事务）。
+* */
+public class Cursor {
+    private Client client;
+    private String name;
+    private int fetchSize;
+    // 已经发出、还没有取走的下一批
+    private CompletableFuture<byte[]> next;
+    private boolean done;
+
+    Cursor(Client client, String name, String select, int fetchSize) {
+        this.client = client;
+        this.name = name;
+        this.fetchSize = fetchSize;
+        CompletableFuture<byte[]> declare = client.executeAsync(("declare " + name + " cursor for " + select).getBytes());
+        CompletableFuture<byte[]> first = client.executeAsync(fetchStat());
+        // declare失败时游标不存在，报declare的错误
+        this.next = declare.thenCompose(d -> first);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // 下一批行，每行一行文本，没有更多行时返回null
+    public byte[] fetch() throws Exception {
+        if(done) {
+            return null;
+        }
+        byte[] batch;
+        try {
+            batch = next.get();
+        } catch(ExecutionException e) {
+            done = true;
+            throw e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
+        }
+        if(batch == null || batch.length == 0) {
+            done = true;
+            return null;
+        }
+        // 在处理这一批的同时，下一批已经在路上
+        next = client.executeAsync(fetchStat());
+        return batch;
+    }
+
+    public void close() throws Exception {
+        done = true;
+        client.execute(("close " + name).getBytes());
+    }
+
+    private byte[] fetchStat() {
+        return ("fetch " + fetchSize + " from " + name).getBytes();
+    }
+}
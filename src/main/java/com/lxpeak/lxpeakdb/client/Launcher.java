@@ -1,18 +1,17 @@
 package com.lxpeak.lxpeakdb.client;
 
-import java.io.IOException;
 import java.net.Socket;
-import java.net.UnknownHostException;
 
 import com.lxpeak.lxpeakdb.transport.Packager;
 import com.lxpeak.lxpeakdb.transport.Encoder;
 import com.lxpeak.lxpeakdb.transport.Transporter;
 
 public class Launcher {
-    public static void main(String[] args) throws UnknownHostException, IOException {
+    public static void main(String[] args) throws Exception {
         Socket socket = new Socket("127.0.0.1", 9999);
         Encoder e = new Encoder();
-        Transporter t = new Transporter(socket);
+        // 默认使用二进制帧，-hex 时使用原来的十六进制行
+        Transporter t = args.length > 0 && "-hex".equals(args[0]) ? new Transporter(socket) : Transporter.connect(socket);
         Packager packager = new Packager(t, e);
 
         Client client = new Client(packager);
@@ -16,6 +16,16 @@ public class RoundTripper {
         return packager.receive();
     }
 
+    // 只发送，结果由receive接收，可以连续发送多个请求
+    public void send(Package pkg) throws Exception {
+        packager.send(pkg);
+    }
+
+    // 接收下一个包，结果分成多个包时是第一个包之后的包
+    public Package receive() throws Exception {
+        return packager.receive();
+    }
+
     public void close() throws Exception {
         packager.close();
     }
@@ -19,10 +19,9 @@ public class Shell {
                     break;
                 }
                 try {
-                    // 处理输入的sql语句
-                    byte[] res = client.execute(statStr.getBytes());
-                    // 输出处理结果
-                    System.out.println(new String(res));
+                    // 处理输入的sql语句，结果每到一批就输出
+                    client.execute(statStr.getBytes(), res -> System.out.print(new String(res)));
+                    System.out.println();
                 } catch(Exception e) {
                     System.out.println(e.getMessage());
                 }
@@ -12,6 +12,7 @@ public class Error {
     public static final Exception MemTooSmallException = new RuntimeException("Memory too small!");
     public static final Exception DataTooLargeException = new RuntimeException("Data too large!");
     public static final Exception DatabaseBusyException = new RuntimeException("Database is busy!");
+    public static final Exception SegmentNotFoundException = new RuntimeException("Segment not found!");
 
     // tm
     public static final Exception BadXIDFileException = new RuntimeException("Bad XID file!");
@@ -20,19 +21,29 @@ public class Error {
     public static final Exception DeadlockException = new RuntimeException("Deadlock!");
     public static final Exception ConcurrentUpdateException = new RuntimeException("Concurrent update issue!");
     public static final Exception NullEntryException = new RuntimeException("Null entry!");
+    public static final Exception TransactionNotActiveException = new RuntimeException("Transaction is not active!");
+
+    // im
+    public static final Exception InvalidFanoutException = new RuntimeException("Invalid index fanout!");
+    public static final Exception InvalidKeyWidthException = new RuntimeException("Invalid index key width!");
 
     // tbm
     public static final Exception InvalidFieldException = new RuntimeException("Invalid field type!");
     public static final Exception FieldNotFoundException = new RuntimeException("Field not found!");
     public static final Exception FieldNotIndexedException = new RuntimeException("Field not indexed!");
+    public static final Exception FieldAlreadyIndexedException = new RuntimeException("Field already indexed!");
+    public static final Exception DuplicatedKeyException = new RuntimeException("Duplicated key in unique index!");
     public static final Exception InvalidLogOpException = new RuntimeException("Invalid logic operation!");
+    public static final Exception InvalidCmpOpException = new RuntimeException("Invalid compare operation!");
     public static final Exception InvalidValuesException = new RuntimeException("Invalid values!");
     public static final Exception DuplicatedTableException = new RuntimeException("Duplicated table!");
     public static final Exception TableNotFoundException = new RuntimeException("Table not found!");
+    public static final Exception TableInUseException = new RuntimeException("Table is in use!");
 
     // parser
     public static final Exception InvalidCommandException = new RuntimeException("Invalid command!");
     public static final Exception TableNoIndexException = new RuntimeException("Table has no index!");
+    public static final Exception ParamCountException = new RuntimeException("Wrong number of parameters!");
 
     // transport
     public static final Exception InvalidPkgDataException = new RuntimeException("Invalid package data!");
@@ -40,6 +51,10 @@ public class Error {
     // server
     public static final Exception NestedTransactionException = new RuntimeException("Nested transaction not supported!");
     public static final Exception NoTransactionException = new RuntimeException("Not in transaction!");
+    public static final Exception InvalidBatchException = new RuntimeException("Statement not allowed in batch!");
+    public static final Exception PreparedNotFoundException = new RuntimeException("Prepared statement not found!");
+    public static final Exception CursorNotFoundException = new RuntimeException("Cursor not found!");
+    public static final Exception DuplicatedCursorException = new RuntimeException("Duplicated cursor!");
 
     // launcher
     public static final Exception InvalidMemException = new RuntimeException("Invalid memory!");
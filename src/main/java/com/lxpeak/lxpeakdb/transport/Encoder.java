@@ -1,44 +1,48 @@
 package com.lxpeak.lxpeakdb.transport;
 
-import java.util.Arrays;
-
-import com.google.common.primitives.Bytes;
-
 import com.lxpeak.lxpeakdb.common.Error;
 
 /*
- * 每个 Package 在发送前，由 Encoder 编码为字节数组，在对方收到后同样会由 Encoder 解码成 Package 对象。
+ * 每个 Package 在发送前，由 Encoder 编码为一个类型和内容（Frame），在对方收到后同样会由 Encoder 解码成 Package 对象。
  * 编码和解码的规则如下：
  * [Flag][data]
  * 若 flag 为 0，表示发送的是数据，那么 data 即为这份数据本身；如果 flag 为 1，表示发送的是错误，data 是 Exception.getMessage() 的错误提示信息。
+ * 若 flag 为 2，表示发送的是结果的中间一批数据，之后还会有包，直到 flag 为 0 或 1 的包为止。
+ * 旧的客户端不认识 flag 2，所以服务端只在协商为二进制帧的连接上发送这种包。
+ * flag 和 data 分开交给 Transporter 写出，不需要先拼成一个新的字节数组。
+ * 二进制帧还带有请求编号（Package.getId），客户端可以连续发送多条语句，再按编号对应收到的结果。
  * */
 
 public class Encoder {
 
-    public byte[] encode(Package pkg) {
+    public Frame encode(Package pkg) {
         if(pkg.getErr() != null) {
             Exception err = pkg.getErr();
             String msg = "Intern server error!";
             if(err.getMessage() != null) {
                 msg = err.getMessage();
             }
-            return Bytes.concat(new byte[]{1}, msg.getBytes());
+            return new Frame((byte)1, pkg.getId(), msg.getBytes());
+        } else if(pkg.isPartial()) {
+            return new Frame((byte)2, pkg.getId(), pkg.getData());
         } else {
-            return Bytes.concat(new byte[]{0}, pkg.getData());
+            return new Frame((byte)0, pkg.getId(), pkg.getData());
         }
     }
 
-    public Package decode(byte[] data) throws Exception {
-        if(data.length < 1) {
-            throw Error.InvalidPkgDataException;
-        }
-        if(data[0] == 0) {
-            return new Package(Arrays.copyOfRange(data, 1, data.length), null);
-        } else if(data[0] == 1) {
-            return new Package(null, new RuntimeException(new String(Arrays.copyOfRange(data, 1, data.length))));
+    public Package decode(Frame frame) throws Exception {
+        Package pkg;
+        if(frame.type == 0) {
+            pkg = new Package(frame.payload, null);
+        } else if(frame.type == 1) {
+            pkg = new Package(null, new RuntimeException(new String(frame.payload)));
+        } else if(frame.type == 2) {
+            pkg = new Package(frame.payload, true);
         } else {
             throw Error.InvalidPkgDataException;
         }
+        pkg.setId(frame.id);
+        return pkg;
     }
 
 }
@@ -0,0 +1,14 @@
+package com.lxpeak.lxpeakdb.transport;
+
+// 线路上的一个包：类型（见Encoder）、请求编号和内容
+public class Frame {
+    byte type;
+    int id;
+    byte[] payload;
+
+    public Frame(byte type, int id, byte[] payload) {
+        this.type = type;
+        this.id = id;
+        this.payload = payload;
+    }
+}
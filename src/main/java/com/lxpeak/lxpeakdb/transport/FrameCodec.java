@@ -0,0 +1,133 @@
+package com.lxpeak.lxpeakdb.transport;
+
+import java.nio.ByteBuffer;
+
+import com.lxpeak.lxpeakdb.common.Error;
+
+/*
+* 非阻塞连接上的编解码，格式和 Transporter 一样（十六进制行或二进制帧，由客户端发来的第一个字节决定）。
+* 收到的数据先放进 buffer()，每次 poll() 取出一个完整的包，数据不够时返回null，等下次收到更多数据再取。
+* 协商为二进制帧后，需要回复的MAGIC由 takeAck() 取出。
+* */
+public class FrameCodec {
+    private static final int UNKNOWN = 0;
+    private static final int HEX = 1;
+    private static final int BINARY = 2;
+    // 缓冲区最多能放下一个最大的十六进制行
+    // 二进制帧的Length、Type和Id
+    private static final int HEADER = 9;
+    private static final int MAX_BUFFER = Transporter.MAX_FRAME * 2 + 8;
+
+    private int mode;
+    private ByteBuffer in;
+    private byte[] ack;
+    // 十六进制行中已经找过换行符的位置，下次从这里接着找
+    private int scanned;
+
+    public FrameCodec() {
+        this.mode = UNKNOWN;
+        this.in = ByteBuffer.allocate(8192);
+    }
+
+    // 接收数据的缓冲区，满了时扩大
+    public ByteBuffer buffer() throws Exception {
+        if(!in.hasRemaining()) {
+            if(in.capacity() >= MAX_BUFFER) {
+                throw Error.InvalidPkgDataException;
+            }
+            ByteBuffer bigger = ByteBuffer.allocate(Math.min(in.capacity() * 2, MAX_BUFFER));
+            in.flip();
+            bigger.put(in);
+            in = bigger;
+        }
+        return in;
+    }
+
+    public Frame poll() throws Exception {
+        in.flip();
+        try {
+            if(mode == UNKNOWN) {
+                if(!in.hasRemaining()) {
+                    return null;
+                }
+                if(in.get(0) != Transporter.MAGIC[0]) {
+                    mode = HEX;
+                } else {
+                    if(in.remaining() < Transporter.MAGIC.length) {
+                        return null;
+                    }
+                    for (int i = 0; i < Transporter.MAGIC.length; i++) {
+                        if(in.get(i) != Transporter.MAGIC[i]) {
+                            throw Error.InvalidPkgDataException;
+                        }
+                    }
+                    in.position(Transporter.MAGIC.length);
+                    mode = BINARY;
+                    ack = Transporter.MAGIC;
+                }
+            }
+            return mode == BINARY ? pollBinary() : pollHex();
+        } finally {
+            in.compact();
+        }
+    }
+
+    private Frame pollBinary() throws Exception {
+        if(in.remaining() < HEADER) {
+            return null;
+        }
+        int length = in.getInt(in.position());
+        if(length < 0 || length > Transporter.MAX_FRAME) {
+            throw Error.InvalidPkgDataException;
+        }
+        if(in.remaining() < HEADER + length) {
+            return null;
+        }
+        in.getInt();
+        byte type = in.get();
+        int id = in.getInt();
+        byte[] payload = new byte[length];
+        in.get(payload);
+        return new Frame(type, id, payload);
+    }
+
+    private Frame pollHex() throws Exception {
+        for (int i = scanned; i < in.limit(); i++) {
+            if(in.get(i) == '\n') {
+                byte[] line = new byte[i - in.position()];
+                in.get(line);
+                in.get();
+                scanned = 0;
+                int n = line.length;
+                if(n > 0 && line[n-1] == '\r') {
+                    n --;
+                }
+                return Transporter.hexDecode(new String(line, 0, n));
+            }
+        }
+        scanned = in.limit();
+        return null;
+    }
+
+    // 是否已经协商为二进制帧
+    public boolean isBinary() {
+        return mode == BINARY;
+    }
+
+    // 需要回复给客户端的数据，没有时返回null
+    public byte[] takeAck() {
+        byte[] res = ack;
+        ack = null;
+        return res;
+    }
+
+    // 编码要发送的包，二进制帧的内容不复制，和长度、类型分开写出
+    public ByteBuffer[] encode(Frame frame) {
+        if(mode == BINARY) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            header.putInt(frame.payload.length).put(frame.type).putInt(frame.id).flip();
+            return new ByteBuffer[]{header, ByteBuffer.wrap(frame.payload)};
+        }
+        return new ByteBuffer[]{ByteBuffer.wrap(Transporter.hexEncode(frame.type, frame.payload).getBytes())};
+    }
+}
@@ -3,12 +3,21 @@ package com.lxpeak.lxpeakdb.transport;
 public class Package {
     byte[] data;
     Exception err;
+    // 结果的中间一批，之后还有包
+    boolean partial;
+    // 请求的编号，响应带上对应请求的编号（只有二进制帧会传输，十六进制行中总是0）
+    int id;
 
     public Package(byte[] data, Exception err) {
         this.data = data;
         this.err = err;
     }
 
+    public Package(byte[] data, boolean partial) {
+        this.data = data;
+        this.partial = partial;
+    }
+
     public byte[] getData() {
         return data;
     }
@@ -16,4 +25,16 @@ public class Package {
     public Exception getErr() {
         return err;
     }
+
+    public boolean isPartial() {
+        return partial;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public void setId(int id) {
+        this.id = id;
+    }
 }
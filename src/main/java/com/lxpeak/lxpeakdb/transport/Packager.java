@@ -13,13 +13,17 @@ public class Packager {
     }
 
     public void send(Package pkg) throws Exception {
-        byte[] data = encoder.encode(pkg);
-        transpoter.send(data);
+        Frame frame = encoder.encode(pkg);
+        transpoter.send(frame.type, frame.id, frame.payload);
     }
 
     public Package receive() throws Exception {
-        byte[] data = transpoter.receive();
-        return encoder.decode(data);
+        return encoder.decode(transpoter.receive());
+    }
+
+    // 是否使用二进制帧，只有二进制帧才能发送中间包（见Encoder）
+    public boolean isBinary() {
+        return transpoter.isBinary();
     }
 
     public void close() throws Exception {
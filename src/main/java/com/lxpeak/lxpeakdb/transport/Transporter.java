@@ -1,16 +1,28 @@
 package com.lxpeak.lxpeakdb.transport;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.io.PushbackInputStream;
 import java.net.Socket;
+import java.util.Arrays;
 
 import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Hex;
 
+import com.lxpeak.lxpeakdb.common.Error;
+
 /*
+* 传输有两种格式，在连接建立时确定：
+*
+* 1、十六进制行（原来的格式，new Transporter(socket)）：
 * 为了避免特殊字符造成问题，这里会将数据转成十六进制字符串（Hex String），并为信息末尾加上换行符。
 * 这样在发送和接收数据时，就可以很简单地使用 BufferedReader 和 Writer 来直接按行读写了。
 *
@@ -24,26 +36,119 @@ import org.apache.commons.codec.binary.Hex;
 *        假设原始字节数据为 [0x48, 0x0A, 0x65]（包含换行符 0x0A）：
 *        直接传输：接收方 readLine() 会在 0x0A 处截断，只能读到 [0x48]，剩余 0x65 会被当作下一行。
 *        Hex 编码后：数据变为 "480a65\n"，readLine() 会完整读取整行 "480a65"，解码后还原原始 3 个字节。
+*     代价是每个字节在线路上变成两个字符，收发时还要做字符解码和十六进制转换。
+*
+* 2、二进制帧（Transporter.connect）：
+* 每个包为 [Length 4][Type 1][Id 4][Payload]，Length 是 Payload 的字节数，Id 是请求编号，直接在socket的字节流上读写，
+* 按长度读取就不需要换行符，也就不需要十六进制转换。
+* 客户端连接后先发送 MAGIC，服务端回复同样的 MAGIC 后双方都使用二进制帧。
+* 十六进制行的第一个字节总是 '0'-'9' 或 'a'-'f'，不会是 MAGIC 的第一个字节 0，
+* 所以服务端（Transporter.accept）看第一个字节就能区分。
+* 服务端只在二进制帧上发送中间包（flag 2，见Encoder），十六进制行上的结果仍然是一个flag为0或1的包，所以旧的客户端不需要任何改动。
 * */
 public class Transporter {
+    static final byte[] MAGIC = new byte[]{0, 'L', 'X', 'B'};
+    // 单个包的最大长度，防止错误的长度让接收方申请过大的内存
+    static final int MAX_FRAME = 1 << 26;
+
     private Socket socket;
+    private boolean binary;
+
     private BufferedReader reader;
     private BufferedWriter writer;
 
+    private DataInputStream in;
+    private DataOutputStream out;
+
     public Transporter(Socket socket) throws IOException {
+        this(socket, socket.getInputStream(), false);
+    }
+
+    private Transporter(Socket socket, InputStream input, boolean binary) throws IOException {
         this.socket = socket;
-        this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        this.writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+        this.binary = binary;
+        if(binary) {
+            this.in = new DataInputStream(new BufferedInputStream(input));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        } else {
+            this.reader = new BufferedReader(new InputStreamReader(input));
+            this.writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+        }
+    }
+
+    // 客户端：协商使用二进制帧
+    public static Transporter connect(Socket socket) throws Exception {
+        socket.getOutputStream().write(MAGIC);
+        socket.getOutputStream().flush();
+        InputStream input = socket.getInputStream();
+        byte[] ack = new byte[MAGIC.length];
+        new DataInputStream(input).readFully(ack);
+        if(!Arrays.equals(ack, MAGIC)) {
+            socket.close();
+            throw Error.InvalidPkgDataException;
+        }
+        return new Transporter(socket, input, true);
     }
 
+    // 服务端：根据客户端发来的第一个字节决定使用哪种格式
+    public static Transporter accept(Socket socket) throws Exception {
+        PushbackInputStream input = new PushbackInputStream(socket.getInputStream(), 1);
+        int first = input.read();
+        if(first != MAGIC[0]) {
+            if(first >= 0) {
+                input.unread(first);
+            }
+            return new Transporter(socket, input, false);
+        }
+        byte[] rest = new byte[MAGIC.length - 1];
+        new DataInputStream(input).readFully(rest);
+        if(!Arrays.equals(rest, Arrays.copyOfRange(MAGIC, 1, MAGIC.length))) {
+            socket.close();
+            throw Error.InvalidPkgDataException;
+        }
+        socket.getOutputStream().write(MAGIC);
+        socket.getOutputStream().flush();
+        return new Transporter(socket, input, true);
+    }
 
-    public void send(byte[] data) throws Exception {
-        String raw = hexEncode(data);
-        writer.write(raw);
-        writer.flush();
+    public boolean isBinary() {
+        return binary;
     }
 
-    public byte[] receive() throws Exception {
+    public void send(byte type, int id, byte[] payload) throws Exception {
+        if(binary) {
+            out.writeInt(payload.length);
+            out.writeByte(type);
+            out.writeInt(id);
+            out.write(payload);
+            out.flush();
+        } else {
+            writer.write(hexEncode(type, payload));
+            writer.flush();
+        }
+    }
+
+    public Frame receive() throws Exception {
+        if(binary) {
+            int length;
+            byte type;
+            int id;
+            byte[] payload;
+            try {
+                length = in.readInt();
+                type = in.readByte();
+                id = in.readInt();
+                if(length < 0 || length > MAX_FRAME) {
+                    throw Error.InvalidPkgDataException;
+                }
+                payload = new byte[length];
+                in.readFully(payload);
+            } catch(Exception e) {
+                close();
+                throw e;
+            }
+            return new Frame(type, id, payload);
+        }
         String line = reader.readLine();
         if(line == null) {
             close();
@@ -52,16 +157,29 @@ public class Transporter {
     }
 
     public void close() throws IOException {
-        writer.close();
-        reader.close();
+        if(binary) {
+            out.close();
+            in.close();
+        } else {
+            writer.close();
+            reader.close();
+        }
         socket.close();
     }
 
-    private String hexEncode(byte[] buf) {
-        return Hex.encodeHexString(buf, true)+"\n";
+    static String hexEncode(byte type, byte[] payload) {
+        return Hex.encodeHexString(new byte[]{type}, true) + Hex.encodeHexString(payload, true) + "\n";
     }
 
-    private byte[] hexDecode(String buf) throws DecoderException {
-        return Hex.decodeHex(buf);
+    static Frame hexDecode(String buf) throws Exception {
+        if(buf == null || buf.length() < 2) {
+            throw Error.InvalidPkgDataException;
+        }
+        try {
+            byte type = (byte)Integer.parseInt(buf.substring(0, 2), 16);
+            return new Frame(type, 0, Hex.decodeHex(buf.substring(2)));
+        } catch(NumberFormatException | DecoderException e) {
+            throw Error.InvalidPkgDataException;
+        }
     }
 }
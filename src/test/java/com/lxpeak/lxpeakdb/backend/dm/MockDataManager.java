@@ -51,6 +51,45 @@ public class MockDataManager implements DataManager {
         }
     }
 
+    @Override
+    public long insert(long xid, byte[] data, long segment) throws Exception {
+        return insert(xid, data);
+    }
+
+    @Override
+    public long createSegment() throws Exception {
+        return 0;
+    }
+
+    @Override
+    public int[] segmentPages(long segment) {
+        return new int[0];
+    }
+
+    @Override
+    public long segmentOf(long uid) {
+        return 0;
+    }
+
+    @Override
+    public void dropSegment(long segment) throws Exception {}
+
+    @Override
+    public long[] segments() {
+        return new long[0];
+    }
+
+    @Override
+    public long[] pageItems(int pgno) throws Exception {
+        return new long[0];
+    }
+
+    @Override
+    public void deferSync() {}
+
+    @Override
+    public void sync() {}
+
     @Override
     public void close() {}
     
@@ -1,8 +1,7 @@
 package com.lxpeak.lxpeakdb.backend.dm.dataItem;
 
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
 
 import com.lxpeak.lxpeakdb.backend.common.SubArray;
 import com.lxpeak.lxpeakdb.backend.dm.page.Page;
@@ -12,6 +11,7 @@ public class MockDataItem implements DataItem {
     private SubArray data;
     private byte[] oldData;
     private long uid;
+    private StampedLock lock;
     private Lock rLock;
     private Lock wLock;
 
@@ -20,9 +20,9 @@ public class MockDataItem implements DataItem {
         di.data = data;
         di.oldData = new byte[data.end - data.start];
         di.uid = uid;
-        ReadWriteLock l = new ReentrantReadWriteLock();
-        di.rLock = l.readLock();
-        di.wLock = l.writeLock();
+        di.lock = new StampedLock();
+        di.rLock = di.lock.asReadLock();
+        di.wLock = di.lock.asWriteLock();
         return di;
     }
 
@@ -71,6 +71,16 @@ public class MockDataItem implements DataItem {
         rLock.unlock();
     }
 
+    @Override
+    public long tryOptimisticRead() {
+        return lock.tryOptimisticRead();
+    }
+
+    @Override
+    public boolean validate(long stamp) {
+        return lock.validate(stamp);
+    }
+
     @Override
     public Page page() {
         return null;
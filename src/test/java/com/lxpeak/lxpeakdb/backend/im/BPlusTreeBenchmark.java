@@ -0,0 +1,108 @@
+package com.lxpeak.lxpeakdb.backend.im;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.lxpeak.lxpeakdb.backend.dm.DataManager;
+import com.lxpeak.lxpeakdb.backend.dm.pageCache.PageCache;
+import com.lxpeak.lxpeakdb.backend.tm.MockTransactionManager;
+
+/**
+ * BPlusTree.search 的JMH基准测试，不会被surefire执行，需要时直接运行main方法：
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.lxpeak.lxpeakdb.backend.im.BPlusTreeBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BPlusTreeBenchmark {
+
+    private static final String PATH = "D://lxpeakdb/dbTest/BPlusTreeBenchmark";
+
+    @Param({"100000"})
+    public int keys;
+
+    private DataManager dm;
+    private BPlusTree tree;
+    private AtomicLong nextKey;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        new File(PATH + ".db").delete();
+        new File(PATH + ".log").delete();
+        // 缓存足够大，让测量的是节点内查找而不是磁盘IO
+        dm = DataManager.create(PATH, PageCache.PAGE_SIZE*4096, new MockTransactionManager());
+        tree = BPlusTree.load(BPlusTree.create(dm), dm);
+        for(int i = 0; i < keys; i ++) {
+            tree.insert(i, i);
+        }
+        nextKey = new AtomicLong(keys);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        tree.close();
+        dm.close();
+        new File(PATH + ".db").delete();
+        new File(PATH + ".log").delete();
+    }
+
+    @Benchmark
+    public List<Long> search() throws Exception {
+        return tree.search(ThreadLocalRandom.current().nextInt(keys));
+    }
+
+    @Benchmark
+    public List<Long> searchRange() throws Exception {
+        long left = ThreadLocalRandom.current().nextInt(keys);
+        return tree.searchRange(left, left + 100);
+    }
+
+    // 并发读写：3个线程查找的同时1个线程不断插入新key，衡量读者在节点分裂时是否被阻塞
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public List<Long> mixedSearch() throws Exception {
+        return tree.search(ThreadLocalRandom.current().nextInt(keys));
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public void mixedInsert() throws Exception {
+        long key = nextKey.getAndIncrement();
+        tree.insert(key, key);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(BPlusTreeBenchmark.class.getSimpleName())
+                .build();
+        new Runner(opt).run();
+    }
+}
@@ -6,11 +6,17 @@ import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.lxpeak.lxpeakdb.backend.dm.DataManager;
 import com.lxpeak.lxpeakdb.backend.dm.pageCache.PageCache;
 import com.lxpeak.lxpeakdb.backend.tm.MockTransactionManager;
+import com.lxpeak.lxpeakdb.common.Error;
 import org.junit.Test;
 
 import com.lxpeak.lxpeakdb.backend.tm.TransactionManager;
@@ -51,4 +57,473 @@ public class BPlusTreeTest {
         }
 
     }
+
+    @Test
+    public void testTreeFanout() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("D://lxpeakdb/dbTest/TestTreeFanout", PageCache.PAGE_SIZE*10, tm);
+
+        // 节点占满一页
+        long root = BPlusTree.create(dm, Node.MAX_BALANCE_NUMBER);
+        BPlusTree tree = BPlusTree.load(root, dm);
+        assert tree.getBalanceNumber() == Node.MAX_BALANCE_NUMBER;
+
+        int lim = 10000;
+        for(int i = 0; i < lim; i ++) {
+            tree.insert(i, i);
+        }
+        tree.close();
+
+        // 重新加载后节点大小不变
+        tree = BPlusTree.load(root, dm);
+        assert tree.getBalanceNumber() == Node.MAX_BALANCE_NUMBER;
+        for(int i = 0; i < lim; i ++) {
+            List<Long> uids = tree.search(i);
+            assert uids.size() == 1;
+            assert uids.get(0) == i;
+        }
+        assert tree.searchRange(100, 1099).size() == 1000;
+        tree.close();
+
+        try {
+            BPlusTree.create(dm, Node.MAX_BALANCE_NUMBER+1);
+            assert false;
+        } catch(Exception e) {
+            assert e == Error.InvalidFanoutException;
+        }
+        dm.close();
+
+        assert new File("D://lxpeakdb/dbTest/TestTreeFanout.db").delete();
+        assert new File("D://lxpeakdb/dbTest/TestTreeFanout.log").delete();
+    }
+
+    @Test
+    public void testTreeConcurrent() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("D://lxpeakdb/dbTest/TestTreeConcurrent", PageCache.PAGE_SIZE*100, tm);
+
+        // 节点小一些，让分裂（包括根节点分裂）更频繁地和读写并发
+        long root = BPlusTree.create(dm, Node.MIN_BALANCE_NUMBER);
+        BPlusTree tree = BPlusTree.load(root, dm);
+
+        int writers = 4, perWriter = 1000;
+        AtomicBoolean failed = new AtomicBoolean(false);
+        AtomicBoolean done = new AtomicBoolean(false);
+        CountDownLatch cdl = new CountDownLatch(writers);
+        for(int w = 0; w < writers; w ++) {
+            final int id = w;
+            new Thread(() -> {
+                try {
+                    // 各线程的key交错，都落在同一批叶子上
+                    for(int i = 0; i < perWriter; i ++) {
+                        long key = (long)i * writers + id;
+                        tree.insert(key, key);
+                        List<Long> uids = tree.search(key);
+                        if(uids.size() != 1 || uids.get(0) != key) {
+                            failed.set(true);
+                        }
+                    }
+                } catch(Exception e) {
+                    failed.set(true);
+                } finally {
+                    cdl.countDown();
+                }
+            }).start();
+        }
+        // 读者在写入期间不停地范围查找，结果必须有序且不重复
+        Thread reader = new Thread(() -> {
+            try {
+                while(!done.get()) {
+                    List<Long> uids = tree.searchRange(Long.MIN_VALUE, Long.MAX_VALUE);
+                    for(int i = 1; i < uids.size(); i ++) {
+                        if(uids.get(i-1) >= uids.get(i)) {
+                            failed.set(true);
+                        }
+                    }
+                }
+            } catch(Exception e) {
+                failed.set(true);
+            }
+        });
+        reader.start();
+        cdl.await();
+        done.set(true);
+        reader.join();
+
+        assert !failed.get();
+        List<Long> all = tree.searchRange(Long.MIN_VALUE, Long.MAX_VALUE);
+        assert all.size() == writers * perWriter;
+        for(int i = 0; i < all.size(); i ++) {
+            assert all.get(i) == i;
+        }
+        tree.close();
+        dm.close();
+
+        assert new File("D://lxpeakdb/dbTest/TestTreeConcurrent.db").delete();
+        assert new File("D://lxpeakdb/dbTest/TestTreeConcurrent.log").delete();
+    }
+
+    @Test
+    public void testTreeCursor() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("D://lxpeakdb/dbTest/TestTreeCursor", PageCache.PAGE_SIZE*10, tm);
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+        // 每个key插入两次，并且跨越多个叶子节点
+        int lim = 1000;
+        for(int i = 0; i < lim; i ++) {
+            tree.insert(i, i);
+            tree.insert(i, lim + i);
+        }
+
+        RangeCursor cursor = tree.cursor(100, 299);
+        int count = 0;
+        long last = Long.MIN_VALUE;
+        while(cursor.hasNext()) {
+            long uid = cursor.next();
+            assert cursor.key() >= last;
+            assert uid % lim == cursor.key();
+            last = cursor.key();
+            count ++;
+        }
+        assert count == 400;
+        assert !cursor.hasNext();
+
+        // 提前结束
+        cursor = tree.cursor(Long.MIN_VALUE, Long.MAX_VALUE);
+        for(int i = 0; i < 3; i ++) {
+            assert cursor.hasNext();
+            cursor.next();
+            assert cursor.key() == i / 2;
+        }
+
+        assert !tree.cursor(lim, Long.MAX_VALUE).hasNext();
+        tree.close();
+        dm.close();
+
+        assert new File("D://lxpeakdb/dbTest/TestTreeCursor.db").delete();
+        assert new File("D://lxpeakdb/dbTest/TestTreeCursor.log").delete();
+    }
+
+    @Test
+    public void testTreeDuplicateKeys() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("D://lxpeakdb/dbTest/TestTreeDuplicate", PageCache.PAGE_SIZE*10, tm);
+
+        // 同一个key的记录远多于一个节点能容纳的数量，分裂后会跨越多个叶子
+        long root = BPlusTree.create(dm, Node.MIN_BALANCE_NUMBER);
+        BPlusTree tree = BPlusTree.load(root, dm);
+        for(int i = 0; i < 100; i ++) {
+            tree.insert(5, i);
+            tree.insert(i % 10, 1000 + i);
+        }
+        assert tree.search(5).size() == 110;
+        assert tree.search(4).size() == 10;
+        assert tree.searchRange(4, 6).size() == 130;
+        tree.close();
+        dm.close();
+
+        assert new File("D://lxpeakdb/dbTest/TestTreeDuplicate.db").delete();
+        assert new File("D://lxpeakdb/dbTest/TestTreeDuplicate.log").delete();
+    }
+
+    @Test
+    public void testBulkLoad() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("D://lxpeakdb/dbTest/TestBulkLoad", PageCache.PAGE_SIZE*10, tm);
+
+        // 缓冲区很小，强制走外部排序和多路归并
+        BulkLoader loader = new BulkLoader(dm, Node.MIN_BALANCE_NUMBER, 1, 1000);
+        Random random = new Random(1);
+        int lim = 5000;
+        int[] counts = new int[lim / 10];
+        for(int i = 0; i < lim; i ++) {
+            int key = random.nextInt(counts.length);
+            counts[key] ++;
+            loader.add(key, i);
+        }
+        BPlusTree tree = BPlusTree.load(loader.build(), dm);
+        assert tree.getBalanceNumber() == Node.MIN_BALANCE_NUMBER;
+        for(int k = 0; k < counts.length; k ++) {
+            assert tree.search(k).size() == counts[k];
+        }
+        assert tree.searchRange(Long.MIN_VALUE, Long.MAX_VALUE).size() == lim;
+
+        // 批量构建的树可以继续正常插入
+        for(int i = 0; i < lim; i ++) {
+            tree.insert(i, lim + i);
+        }
+        for(int k = 0; k < counts.length; k ++) {
+            assert tree.search(k).size() == counts[k] + 1;
+        }
+        assert tree.search(lim - 1).size() == 1;
+        tree.close();
+
+        // 空的树
+        tree = BPlusTree.load(new BulkLoader(dm).build(), dm);
+        assert tree.searchRange(Long.MIN_VALUE, Long.MAX_VALUE).isEmpty();
+        tree.insert(1, 1);
+        assert tree.search(1).size() == 1;
+        tree.close();
+        dm.close();
+
+        assert new File("D://lxpeakdb/dbTest/TestBulkLoad.db").delete();
+        assert new File("D://lxpeakdb/dbTest/TestBulkLoad.log").delete();
+    }
+
+    @Test
+    public void testCompositeKey() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("D://lxpeakdb/dbTest/TestCompositeKey", PageCache.PAGE_SIZE*10, tm);
+
+        long root = BPlusTree.create(dm, Node.MIN_BALANCE_NUMBER, 2);
+        BPlusTree tree = BPlusTree.load(root, dm);
+        assert tree.getKeyWidth() == 2;
+        // (tenant, time)，第二列的值比long能打包的范围大得多
+        int tenants = 20, perTenant = 100;
+        long base = 1_700_000_000_000L;
+        for(int t = tenants-1; t >= 0; t --) {
+            for(int i = 0; i < perTenant; i ++) {
+                tree.insert(new long[]{t, base + i}, t * perTenant + i);
+            }
+        }
+        // 第一列相等、第二列在一个范围内
+        List<Long> uids = tree.searchRange(new long[]{7, base + 10}, new long[]{7, base + 19});
+        assert uids.size() == 10;
+        for(int i = 0; i < 10; i ++) {
+            assert uids.get(i) == 7 * perTenant + 10 + i;
+        }
+        assert tree.searchRange(new long[]{7, Long.MIN_VALUE}, new long[]{7, Long.MAX_VALUE}).size() == perTenant;
+        assert tree.searchRange(new long[]{3, base + 50}, new long[]{5, base + 49}).size() == 2 * perTenant;
+        assert tree.search(new long[]{tenants, base}).isEmpty();
+
+        RangeCursor cursor = tree.cursor(new long[]{2, base}, new long[]{2, base + 1});
+        assert cursor.hasNext() && cursor.next() == 2 * perTenant;
+        assert cursor.keyColumns()[1] == base;
+        cursor.remove();
+        assert tree.search(new long[]{2, base}).isEmpty();
+        assert tree.delete(new long[]{2, base + 1}, 2 * perTenant + 1);
+        assert tree.searchRange(new long[]{2, Long.MIN_VALUE}, new long[]{2, Long.MAX_VALUE}).size() == perTenant - 2;
+
+        // 单列的接口不能用在联合索引上
+        try {
+            tree.insert(1, 1);
+            assert false;
+        } catch(Exception e) {
+            assert e == Error.InvalidKeyWidthException;
+        }
+        tree.close();
+
+        // 批量构建，按(第一列, 第二列)排序
+        BulkLoader loader = new BulkLoader(dm, Node.MIN_BALANCE_NUMBER, 2, 100);
+        Random random = new Random(1);
+        int lim = 2000;
+        for(int i = 0; i < lim; i ++) {
+            loader.add(new long[]{random.nextInt(10), random.nextInt(1000)}, i);
+        }
+        tree = BPlusTree.load(loader.build(), dm);
+        assert tree.getKeyWidth() == 2;
+        cursor = tree.cursor(new long[]{Long.MIN_VALUE, Long.MIN_VALUE}, new long[]{Long.MAX_VALUE, Long.MAX_VALUE});
+        long[] prev = null;
+        int n = 0;
+        while(cursor.hasNext()) {
+            cursor.next();
+            long[] key = cursor.keyColumns();
+            assert prev == null || prev[0] < key[0] || (prev[0] == key[0] && prev[1] <= key[1]);
+            prev = key;
+            n ++;
+        }
+        assert n == lim;
+        tree.close();
+        dm.close();
+
+        assert new File("D://lxpeakdb/dbTest/TestCompositeKey.db").delete();
+        assert new File("D://lxpeakdb/dbTest/TestCompositeKey.log").delete();
+    }
+
+    @Test
+    public void testTreeDelete() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("D://lxpeakdb/dbTest/TestTreeDelete", PageCache.PAGE_SIZE*10, tm);
+
+        long root = BPlusTree.create(dm, Node.MIN_BALANCE_NUMBER);
+        BPlusTree tree = BPlusTree.load(root, dm);
+        int lim = 1000;
+        for(int i = 0; i < lim; i ++) {
+            tree.insert(i, i);
+            tree.insert(i % 10, lim + i);
+        }
+        assert !tree.delete(lim, lim);
+        assert !tree.delete(1, 2);
+
+        // 删掉大部分key，节点会不断向右合并
+        for(int i = 0; i < lim; i ++) {
+            if(i % 7 != 0) {
+                assert tree.delete(i, i);
+            }
+        }
+        assert !tree.delete(1, 1);
+        for(int i = 10; i < lim; i ++) {
+            assert tree.search(i).size() == (i % 7 == 0 ? 1 : 0);
+        }
+        assert tree.search(3).size() == lim / 10;
+        assert tree.search(7).size() == lim / 10 + 1;
+
+        // 边遍历边删除重复的key，每个项只返回一次
+        RangeCursor cursor = tree.cursor(3, 3);
+        Set<Long> seen = new HashSet<>();
+        while(cursor.hasNext()) {
+            assert seen.add(cursor.next());
+            cursor.remove();
+        }
+        assert seen.size() == lim / 10;
+        assert tree.search(3).isEmpty();
+
+        // 全部删光后还能继续插入
+        List<Long> all = tree.searchRange(Long.MIN_VALUE, Long.MAX_VALUE);
+        for(int i = 0; i < lim; i ++) {
+            tree.delete(i, i);
+            tree.delete(i % 10, lim + i);
+        }
+        assert tree.searchRange(Long.MIN_VALUE, Long.MAX_VALUE).isEmpty();
+        for(int i = 0; i < lim; i ++) {
+            tree.insert(i, i);
+        }
+        all = tree.searchRange(Long.MIN_VALUE, Long.MAX_VALUE);
+        assert all.size() == lim;
+        for(int i = 0; i < lim; i ++) {
+            assert all.get(i) == i;
+        }
+        tree.close();
+        dm.close();
+
+        assert new File("D://lxpeakdb/dbTest/TestTreeDelete.db").delete();
+        assert new File("D://lxpeakdb/dbTest/TestTreeDelete.log").delete();
+    }
+
+    @Test
+    public void testCursorRemove() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("D://lxpeakdb/dbTest/TestCursorRemove", PageCache.PAGE_SIZE*10, tm);
+
+        long root = BPlusTree.create(dm, Node.MIN_BALANCE_NUMBER);
+        BPlusTree tree = BPlusTree.load(root, dm);
+        int lim = 500;
+        for(int i = 0; i < lim; i ++) {
+            tree.insert(i, i);
+        }
+
+        // 还没有调用next时不能删除
+        RangeCursor cursor = tree.cursor(100, 399);
+        try {
+            cursor.remove();
+            assert false;
+        } catch(IllegalStateException e) {
+        }
+
+        // 跨越多个叶子，边遍历边删掉奇数，每个项仍然只返回一次
+        int count = 0;
+        long last = Long.MIN_VALUE;
+        while(cursor.hasNext()) {
+            long uid = cursor.next();
+            assert uid > last;
+            last = uid;
+            count ++;
+            if(uid % 2 == 1) {
+                cursor.remove();
+            }
+        }
+        assert count == 300;
+
+        // 删掉的项从树中消失了，范围外的项和偶数都还在
+        List<Long> all = tree.searchRange(Long.MIN_VALUE, Long.MAX_VALUE);
+        assert all.size() == lim - 150;
+        for (long uid : all) {
+            assert uid < 100 || uid > 399 || uid % 2 == 0;
+        }
+        count = 0;
+        cursor = tree.cursor(100, 399);
+        while(cursor.hasNext()) {
+            assert cursor.next() % 2 == 0;
+            count ++;
+        }
+        assert count == 150;
+        tree.close();
+        dm.close();
+
+        assert new File("D://lxpeakdb/dbTest/TestCursorRemove.db").delete();
+        assert new File("D://lxpeakdb/dbTest/TestCursorRemove.log").delete();
+    }
+
+    @Test
+    public void testTreeConcurrentDelete() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("D://lxpeakdb/dbTest/TestTreeConcurrentDelete", PageCache.PAGE_SIZE*100, tm);
+
+        long root = BPlusTree.create(dm, Node.MIN_BALANCE_NUMBER);
+        BPlusTree tree = BPlusTree.load(root, dm);
+        int threads = 4, perThread = 1000;
+        for(int i = 0; i < threads * perThread; i ++) {
+            tree.insert(i, i);
+        }
+
+        // 每个线程删除自己的奇数key，同时插入新的key；读者看到的结果必须有序且不重复，偶数key始终都在
+        AtomicBoolean failed = new AtomicBoolean(false);
+        AtomicBoolean done = new AtomicBoolean(false);
+        CountDownLatch cdl = new CountDownLatch(threads);
+        for(int w = 0; w < threads; w ++) {
+            final int id = w;
+            new Thread(() -> {
+                try {
+                    for(int i = 0; i < perThread; i ++) {
+                        long key = (long)i * threads + id;
+                        if(key % 2 == 1 && !tree.delete(key, key)) {
+                            failed.set(true);
+                        }
+                        long newKey = threads * perThread + key;
+                        tree.insert(newKey, newKey);
+                    }
+                } catch(Exception e) {
+                    failed.set(true);
+                } finally {
+                    cdl.countDown();
+                }
+            }).start();
+        }
+        Thread reader = new Thread(() -> {
+            try {
+                while(!done.get()) {
+                    List<Long> uids = tree.searchRange(0, threads * perThread - 1);
+                    int even = 0;
+                    for(int i = 0; i < uids.size(); i ++) {
+                        if(i > 0 && uids.get(i-1) >= uids.get(i)) {
+                            failed.set(true);
+                        }
+                        if(uids.get(i) % 2 == 0) {
+                            even ++;
+                        }
+                    }
+                    if(even != threads * perThread / 2) {
+                        failed.set(true);
+                    }
+                }
+            } catch(Exception e) {
+                failed.set(true);
+            }
+        });
+        reader.start();
+        cdl.await();
+        done.set(true);
+        reader.join();
+
+        assert !failed.get();
+        List<Long> all = tree.searchRange(Long.MIN_VALUE, Long.MAX_VALUE);
+        assert all.size() == threads * perThread * 3 / 2;
+        tree.close();
+        dm.close();
+
+        assert new File("D://lxpeakdb/dbTest/TestTreeConcurrentDelete.db").delete();
+        assert new File("D://lxpeakdb/dbTest/TestTreeConcurrentDelete.log").delete();
+    }
 }
@@ -0,0 +1,90 @@
+package com.lxpeak.lxpeakdb.backend.parser;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Tokenizer和Parser的JMH基准测试，语句取自ParserTest，不会被surefire执行，需要时直接运行main方法：
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.lxpeak.lxpeakdb.backend.parser.ParserBenchmark
+ * 加上 -Djmh.prof=gc 可以看到每次解析分配的字节数（见main）。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParserBenchmark {
+
+    private static final String[] STATEMENTS = {
+        "create table student id int32, name string, uid int64, (index name id uid)",
+        "create table orders id int64, tenant_id int32, created_at int64 (index id (tenant_id created_at) fanout 64)",
+        "create unique index on users (email)",
+        "create index on orders (tenant_id include amount id fanout 32)",
+        "select * from student where id > 1 and id < 10 limit 5",
+        "select name from student where age > 20 order by age desc limit 3",
+        "select * from student where name like \"Zhang%\" and age > 20",
+        "insert into student values 5 \"Zhang San\" 22",
+        "insert into student values (5, \"Guo Ziyang\", 22), (6 \"a, b\" 23)",
+        "upsert into users values 1 alice",
+        "update student set name = \"ZYJ\" where id = 5",
+        "delete from student where name = \"Zhang San\"",
+        "prepare q as update student set age = ? where id > ? and name = ?",
+        "execute add 1 \"a b\" 2 3",
+        "vacuum orders",
+        "begin isolation level repeatable read",
+    };
+
+    private byte[][] statements;
+
+    public ParserBenchmark() {
+        statements = new byte[STATEMENTS.length][];
+        for (int i = 0; i < STATEMENTS.length; i++) {
+            statements[i] = STATEMENTS[i].getBytes();
+        }
+    }
+
+    // 完整解析，只有解析结果需要分配
+    @Benchmark
+    public void parse(Blackhole bh) throws Exception {
+        for (byte[] stat : statements) {
+            bh.consume(Parser.Parse(stat));
+        }
+    }
+
+    // 只做词法分析，不创建字符串
+    @Benchmark
+    public void tokenize(Blackhole bh) throws Exception {
+        for (byte[] stat : statements) {
+            Tokenizer tokenizer = new Tokenizer(stat);
+            while(tokenizer.peekType() != Tokenizer.END) {
+                bh.consume(tokenizer.length());
+                tokenizer.pop();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        OptionsBuilder builder = new OptionsBuilder();
+        builder.include(ParserBenchmark.class.getSimpleName());
+        if(System.getProperty("jmh.prof") != null) {
+            builder.addProfiler(System.getProperty("jmh.prof"));
+        }
+        Options opt = builder.build();
+        new Runner(opt).run();
+    }
+}
@@ -6,13 +6,24 @@ import com.google.gson.Gson;
 
 import org.junit.Test;
 
+import com.lxpeak.lxpeakdb.common.Error;
+
 import com.lxpeak.lxpeakdb.backend.parser.statement.Begin;
+import com.lxpeak.lxpeakdb.backend.parser.statement.Close;
 import com.lxpeak.lxpeakdb.backend.parser.statement.Create;
+import com.lxpeak.lxpeakdb.backend.parser.statement.CreateIndex;
+import com.lxpeak.lxpeakdb.backend.parser.statement.Deallocate;
+import com.lxpeak.lxpeakdb.backend.parser.statement.Declare;
 import com.lxpeak.lxpeakdb.backend.parser.statement.Delete;
+import com.lxpeak.lxpeakdb.backend.parser.statement.Execute;
+import com.lxpeak.lxpeakdb.backend.parser.statement.Fetch;
 import com.lxpeak.lxpeakdb.backend.parser.statement.Insert;
+import com.lxpeak.lxpeakdb.backend.parser.statement.Prepare;
 import com.lxpeak.lxpeakdb.backend.parser.statement.Select;
+import com.lxpeak.lxpeakdb.backend.parser.statement.SetFormat;
 import com.lxpeak.lxpeakdb.backend.parser.statement.Show;
 import com.lxpeak.lxpeakdb.backend.parser.statement.Update;
+import com.lxpeak.lxpeakdb.backend.parser.statement.Vacuum;
 
 public class ParserTest {
     @Test
@@ -29,6 +40,115 @@ public class ParserTest {
         System.out.println("======================");
     }
 
+    @Test
+    public void testCreateFanout() throws Exception {
+        String stat = "create table student id int32, name string, (index id fanout 256 name)";
+        Create create = (Create)Parser.Parse(stat.getBytes());
+        assert Arrays.equals(new String[]{"id", "name"}, create.index);
+        assert Arrays.equals(new int[]{256, 0}, create.fanout);
+        // fanout 必须是正的偶数
+        for (String bad : new String[]{
+            "create table student id int32, (index id fanout 257)",
+            "create table student id int32, (index id fanout 0)",
+            "create index on student (id fanout 3)",
+            "create index on student (id fanout 0)"}) {
+            try {
+                Parser.Parse(bad.getBytes());
+                assert false;
+            } catch(Exception e) {
+                assert e == Error.InvalidFanoutException;
+            }
+        }
+        assert ((CreateIndex)Parser.Parse("create index on student (id fanout 64)".getBytes())).fanout == 64;
+    }
+
+    @Test
+    public void testSelectLimit() throws Exception {
+        Select select = (Select)Parser.Parse("select * from student where id > 1 and id < 10 limit 5".getBytes());
+        assert "and".equals(select.where.logicOp);
+        assert select.limit == 5;
+        select = (Select)Parser.Parse("select * from student limit 2".getBytes());
+        assert select.where == null;
+        assert select.limit == 2;
+        select = (Select)Parser.Parse("select * from student where id = 1".getBytes());
+        assert select.limit == -1;
+    }
+
+    @Test
+    public void testCreateIndex() throws Exception {
+        CreateIndex createIndex = (CreateIndex)Parser.Parse("create index on student (age fanout 128)".getBytes());
+        assert "student".equals(createIndex.tableName);
+        assert "age".equals(createIndex.fieldName);
+        assert createIndex.following.length == 0;
+        assert createIndex.fanout == 128;
+
+        createIndex = (CreateIndex)Parser.Parse("create index on orders (tenant_id created_at)".getBytes());
+        assert "tenant_id".equals(createIndex.fieldName);
+        assert Arrays.equals(new String[]{"created_at"}, createIndex.following);
+        assert createIndex.fanout == 0;
+    }
+
+    @Test
+    public void testCreateComposite() throws Exception {
+        Create create = (Create)Parser.Parse("create table orders id int64, tenant_id int32, created_at int64 (index id (tenant_id created_at) fanout 64)".getBytes());
+        assert Arrays.equals(new String[]{"id", "tenant_id"}, create.index);
+        assert create.following[0].length == 0;
+        assert Arrays.equals(new String[]{"created_at"}, create.following[1]);
+        assert Arrays.equals(new int[]{0, 64}, create.fanout);
+    }
+
+    @Test
+    public void testUnique() throws Exception {
+        Create create = (Create)Parser.Parse("create table users id int32, email string (index id unique fanout 64 email)".getBytes());
+        assert Arrays.equals(new boolean[]{true, false}, create.unique);
+        assert Arrays.equals(new int[]{64, 0}, create.fanout);
+        CreateIndex createIndex = (CreateIndex)Parser.Parse("create unique index on users (email)".getBytes());
+        assert createIndex.unique;
+        Insert insert = (Insert)Parser.Parse("upsert into users values 1 alice".getBytes());
+        assert insert.upsert;
+        assert "users".equals(insert.tableName);
+        assert !((Insert)Parser.Parse("insert into users values 1 alice".getBytes())).upsert;
+    }
+
+    @Test
+    public void testInclude() throws Exception {
+        Create create = (Create)Parser.Parse("create table orders id int32, tenant_id int32, amount int64 (index id (tenant_id id) include (amount) fanout 64)".getBytes());
+        assert Arrays.equals(new String[]{"id", "tenant_id"}, create.index);
+        assert Arrays.equals(new String[0], create.include[0]);
+        assert Arrays.equals(new String[]{"amount"}, create.include[1]);
+        assert Arrays.equals(new int[]{0, 64}, create.fanout);
+        CreateIndex createIndex = (CreateIndex)Parser.Parse("create index on orders (tenant_id include amount id fanout 32)".getBytes());
+        assert createIndex.following.length == 0;
+        assert Arrays.equals(new String[]{"amount", "id"}, createIndex.include);
+        assert createIndex.fanout == 32;
+        Vacuum vacuum = (Vacuum)Parser.Parse("vacuum orders".getBytes());
+        assert "orders".equals(vacuum.tableName);
+    }
+
+    @Test
+    public void testCreateWithoutIndex() throws Exception {
+        Create create = (Create)Parser.Parse("create table logs ts int64, msg string".getBytes());
+        assert Arrays.equals(new String[]{"ts", "msg"}, create.fieldName);
+        assert create.index.length == 0;
+    }
+
+    @Test
+    public void testOrderBy() throws Exception {
+        Select select = (Select)Parser.Parse("select name from student where age > 20 order by age desc limit 3".getBytes());
+        assert "age".equals(select.orderBy) && select.desc;
+        assert select.limit == 3;
+        select = (Select)Parser.Parse("select * from student order by name".getBytes());
+        assert select.where == null && "name".equals(select.orderBy) && !select.desc;
+    }
+
+    @Test
+    public void testSelectLike() throws Exception {
+        Select select = (Select)Parser.Parse("select * from student where name like \"Zhang%\" and age > 20".getBytes());
+        assert "like".equals(select.where.singleExp1.compareOp);
+        assert "Zhang%".equals(select.where.singleExp1.value);
+        assert "and".equals(select.where.logicOp);
+    }
+
     @Test
     public void testBegin() throws Exception {
         String stat = "begin isolation level read committed";
@@ -71,6 +191,72 @@ public class ParserTest {
         System.out.println("======================");
     }
 
+    @Test
+    public void testMultiRowInsert() throws Exception {
+        Insert insert = (Insert)Parser.Parse("insert into student values (5, \"Guo Ziyang\", 22), (6 \"a, b\" 23)".getBytes());
+        assert insert.rows.length == 2;
+        assert Arrays.equals(new String[]{"5", "Guo Ziyang", "22"}, insert.rows[0]);
+        assert Arrays.equals(new String[]{"6", "a, b", "23"}, insert.rows[1]);
+        assert insert.values == insert.rows[0];
+        // 单行的写法不变
+        assert ((Insert)Parser.Parse("insert into student values 5 a 22".getBytes())).rows == null;
+
+        for (String stat : new String[]{"insert into student values (5, a", "insert into student values (5), 6", "insert into student values ()"}) {
+            try {
+                Parser.Parse(stat.getBytes());
+                assert false;
+            } catch(Exception e) {}
+        }
+
+        // 分号分开的多条语句，引号中的分号不算
+        assert Parser.split("insert into t values 1 \"a;b\"; delete from t where id = 1;; ".getBytes()).size() == 2;
+        assert Parser.split("select * from t;".getBytes()).size() == 1;
+    }
+
+    @Test
+    public void testPrepare() throws Exception {
+        Prepare prepare = (Prepare)Parser.Parse("prepare q as update student set age = ? where id > ? and name = ?".getBytes());
+        assert "q".equals(prepare.name) && prepare.params == 3;
+        Update update = (Update)Parser.bind(prepare.stat, new String[]{"20", "5", "Guo Ziyang"});
+        assert "20".equals(update.value) && "5".equals(update.where.singleExp1.value) && "Guo Ziyang".equals(update.where.singleExp2.value);
+        // 原来的语句不变，可以再次代入
+        assert "?".equals(((Update)prepare.stat).value);
+
+        prepare = (Prepare)Parser.Parse("prepare add as insert into student values (?, ?, 1), (?, b, ?)".getBytes());
+        assert prepare.params == 4;
+        Insert insert = (Insert)Parser.bind(prepare.stat, new String[]{"1", "a", "2", "3"});
+        assert Arrays.equals(new String[]{"2", "b", "3"}, insert.rows[1]);
+        try {
+            Parser.bind(prepare.stat, new String[]{"1"});
+            assert false;
+        } catch(Exception e) {
+            assert e == Error.ParamCountException;
+        }
+
+        Execute execute = (Execute)Parser.Parse("execute add 1 \"a b\" 2 3".getBytes());
+        assert "add".equals(execute.name) && Arrays.equals(new String[]{"1", "a b", "2", "3"}, execute.params);
+        assert "add".equals(((Deallocate)Parser.Parse("deallocate add".getBytes())).name);
+        try {
+            Parser.Parse("prepare p as begin".getBytes());
+            assert false;
+        } catch(Exception e) {}
+
+        // 引号中的"?"是普通的值，不是参数
+        prepare = (Prepare)Parser.Parse("prepare q as select name from student where name = \"?\" or id = ?".getBytes());
+        assert prepare.params == 1;
+        Select select = (Select)Parser.bind(prepare.stat, new String[]{"x"});
+        assert "?".equals(select.where.singleExp1.value) && "x".equals(select.where.singleExp2.value);
+        assert "?".equals(((Select)Parser.Parse("select * from student where name = '?'".getBytes())).where.singleExp1.value);
+        // PREPARE以外不能有参数
+        for (String sql : new String[]{"select * from student where id = ?", "insert into student values 1 ?",
+                "update student set age = ? where id = 1", "declare c cursor for select * from student where id = ?"}) {
+            try {
+                Parser.Parse(sql.getBytes());
+                assert false;
+            } catch(Exception e) {}
+        }
+    }
+
     @Test
     public void testDelete() throws Exception {
         String stat = "delete from student where name = \"Guo Ziyang\"";
@@ -103,4 +289,70 @@ public class ParserTest {
         System.out.println(gson.toJson(update));
         System.out.println("======================");
     }
+
+    @Test
+    public void testTokenizer() throws Exception {
+        byte[] stat = "select name,age from \"zhang san\" where id_1>10".getBytes();
+        Tokenizer tokenizer = new Tokenizer(stat);
+        // 关键字和符号每次都是同一个对象
+        String select = tokenizer.peek();
+        assert select == new Tokenizer("select".getBytes()).peek();
+        tokenizer.pop();
+        assert tokenizer.peekType() == Tokenizer.WORD;
+        assert "name".equals(new String(stat, tokenizer.start(), tokenizer.length()));
+        tokenizer.pop();
+        assert tokenizer.peek() == new Tokenizer(",".getBytes()).peek();
+        tokenizer.pop();
+        assert "age".equals(tokenizer.peek());
+        tokenizer.pop();
+        assert "from".equals(tokenizer.peek());
+        tokenizer.pop();
+        assert tokenizer.peekType() == Tokenizer.QUOTED;
+        assert "zhang san".equals(tokenizer.peek());
+        tokenizer.pop();
+        assert "where".equals(tokenizer.peek());
+        tokenizer.pop();
+        assert "id_1".equals(tokenizer.peek());
+        tokenizer.pop();
+        assert ">".equals(tokenizer.peek());
+        tokenizer.pop();
+        assert "10".equals(tokenizer.peek());
+        tokenizer.pop();
+        assert tokenizer.peekType() == Tokenizer.END && "".equals(tokenizer.peek());
+
+        tokenizer = new Tokenizer("select \"abc".getBytes());
+        tokenizer.peek();
+        tokenizer.pop();
+        try {
+            tokenizer.peek();
+            assert false;
+        } catch(Exception e) {
+            assert e == Error.InvalidCommandException;
+        }
+    }
+
+    @Test
+    public void testCursor() throws Exception {
+        Declare declare = (Declare)Parser.Parse("declare c1 cursor for select name from student where id > 1 limit 10".getBytes());
+        assert "c1".equals(declare.name);
+        assert "student".equals(declare.select.tableName) && declare.select.limit == 10;
+        Fetch fetch = (Fetch)Parser.Parse("fetch 100 from c1".getBytes());
+        assert "c1".equals(fetch.name) && fetch.count == 100;
+        assert ((Fetch)Parser.Parse("fetch from c1".getBytes())).count == -1;
+        assert "c1".equals(((Close)Parser.Parse("close c1".getBytes())).name);
+        try {
+            Parser.Parse("declare c1 cursor for insert into student values 1".getBytes());
+            assert false;
+        } catch(Exception e) {}
+    }
+
+    @Test
+    public void testSetFormat() throws Exception {
+        assert ((SetFormat)Parser.Parse("set format binary".getBytes())).binary;
+        assert !((SetFormat)Parser.Parse("set format text".getBytes())).binary;
+        try {
+            Parser.Parse("set format json".getBytes());
+            assert false;
+        } catch(Exception e) {}
+    }
 }
@@ -1,11 +1,32 @@
 package com.lxpeak.lxpeakdb.backend.server;
 
 import java.io.File;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
 
 import com.lxpeak.lxpeakdb.backend.dm.DataManager;
+import com.lxpeak.lxpeakdb.backend.im.BPlusTree;
+import com.lxpeak.lxpeakdb.backend.im.RangeCursor;
+import com.lxpeak.lxpeakdb.backend.parser.Parser;
+import com.lxpeak.lxpeakdb.backend.parser.statement.Begin;
+import com.lxpeak.lxpeakdb.backend.parser.statement.Select;
+import com.lxpeak.lxpeakdb.backend.tbm.Field;
+import com.lxpeak.lxpeakdb.backend.tbm.ResultStream;
 import com.lxpeak.lxpeakdb.backend.tm.TransactionManager;
 import com.lxpeak.lxpeakdb.backend.vm.VersionManager;
+import com.lxpeak.lxpeakdb.client.BinaryRows;
+import com.lxpeak.lxpeakdb.client.Client;
+import com.lxpeak.lxpeakdb.client.Cursor;
+import com.lxpeak.lxpeakdb.common.Error;
+import com.lxpeak.lxpeakdb.transport.Encoder;
+import com.lxpeak.lxpeakdb.transport.Packager;
+import com.lxpeak.lxpeakdb.transport.Transporter;
 import org.junit.Test;
 
 import com.lxpeak.lxpeakdb.backend.tbm.TableManager;
@@ -13,6 +34,28 @@ import com.lxpeak.lxpeakdb.backend.tbm.TableManager;
 public class ExecutorTest {
     String path1 = "D://lxpeakdb/dbTest/ExecutorTestDB";
     String path2 = "D://lxpeakdb/dbTest/ExecutorTestDB2";
+    String path3 = "D://lxpeakdb/dbTest/ExecutorTestDB3";
+    String path4 = "D://lxpeakdb/dbTest/ExecutorTestDB4";
+    String path5 = "D://lxpeakdb/dbTest/ExecutorTestDB5";
+    String path6 = "D://lxpeakdb/dbTest/ExecutorTestDB6";
+    String path7 = "D://lxpeakdb/dbTest/ExecutorTestDB7";
+    String path8 = "D://lxpeakdb/dbTest/ExecutorTestDB8";
+    String path9 = "D://lxpeakdb/dbTest/ExecutorTestDB9";
+    String path10 = "D://lxpeakdb/dbTest/ExecutorTestDB10";
+    String path11 = "D://lxpeakdb/dbTest/ExecutorTestDB11";
+    String path12 = "D://lxpeakdb/dbTest/ExecutorTestDB12";
+    String path13 = "D://lxpeakdb/dbTest/ExecutorTestDB13";
+    String path14 = "D://lxpeakdb/dbTest/ExecutorTestDB14";
+    String path15 = "D://lxpeakdb/dbTest/ExecutorTestDB15";
+    String path16 = "D://lxpeakdb/dbTest/ExecutorTestDB16";
+    String path17 = "D://lxpeakdb/dbTest/ExecutorTestDB17";
+    String path18 = "D://lxpeakdb/dbTest/ExecutorTestDB18";
+    String path19 = "D://lxpeakdb/dbTest/ExecutorTestDB19";
+    String path20 = "D://lxpeakdb/dbTest/ExecutorTestDB20";
+    String path21 = "D://lxpeakdb/dbTest/ExecutorTestDB21";
+    String path22 = "D://lxpeakdb/dbTest/ExecutorTestDB22";
+    String path23 = "D://lxpeakdb/dbTest/ExecutorTestDB23";
+    String path24 = "D://lxpeakdb/dbTest/ExecutorTestDB24";
     long mem = (1 << 20) * 64;
 
     byte[] CREATE_TABLE = "create table test_table id int32 (index id)".getBytes();
@@ -76,4 +119,1065 @@ public class ExecutorTest {
         new File(path2 + ".log").delete();
         new File(path2 + ".xid").delete();
     }
+
+    @Test
+    public void testUpdate() throws Exception {
+        Executor exe = testCreate(path3);
+        exe.execute("create table test_user id int32, name string, age int32 (index id)".getBytes());
+        exe.execute("insert into test_user values 1 \"ZhangSan\" 18".getBytes());
+        exe.execute("insert into test_user values 2 \"LiSi\" 20".getBytes());
+
+        // 修改非索引字段，走版本链
+        assert "update 1".equals(new String(exe.execute("update test_user set age = 19 where id = 1".getBytes())));
+        assert "[1, ZhangSan, 19]\n".equals(new String(exe.execute("select * from test_user where id = 1".getBytes())));
+
+        // 同一事务内连续修改，后一次直接原地覆盖本事务创建的版本
+        exe.execute("begin".getBytes());
+        exe.execute("update test_user set age = 21 where id = 2".getBytes());
+        exe.execute("update test_user set age = 22 where id = 2".getBytes());
+        exe.execute("commit".getBytes());
+        assert "[2, LiSi, 22]\n".equals(new String(exe.execute("select * from test_user where id = 2".getBytes())));
+
+        // 修改索引字段，新版本重新插入索引
+        exe.execute("update test_user set id = 3 where id = 2".getBytes());
+        assert "".equals(new String(exe.execute("select * from test_user where id = 2".getBytes())));
+        assert "[3, LiSi, 22]\n".equals(new String(exe.execute("select * from test_user where id = 3".getBytes())));
+
+        assert "delete 1".equals(new String(exe.execute("delete from test_user where id = 1".getBytes())));
+        assert "".equals(new String(exe.execute("select * from test_user where id = 1".getBytes())));
+
+        new File(path3 + ".db").delete();
+        new File(path3 + ".bt").delete();
+        new File(path3 + ".log").delete();
+        new File(path3 + ".xid").delete();
+    }
+
+    @Test
+    public void testSelectLimit() throws Exception {
+        Executor exe = testCreate(path4);
+        exe.execute("create table test_user id int32, name string (index id)".getBytes());
+        for(int i = 1; i <= 5; i ++) {
+            exe.execute(("insert into test_user values " + i + " \"user" + i + "\"").getBytes());
+        }
+
+        assert "[1, user1]\n[2, user2]\n".equals(new String(exe.execute("select * from test_user limit 2".getBytes())));
+        assert "[3, user3]\n".equals(new String(exe.execute("select * from test_user where id > 2 limit 1".getBytes())));
+        assert "".equals(new String(exe.execute("select * from test_user where id > 2 limit 0".getBytes())));
+        // 被删除的行不计入limit
+        exe.execute("delete from test_user where id = 3".getBytes());
+        assert "[4, user4]\n".equals(new String(exe.execute("select * from test_user where id > 2 limit 1".getBytes())));
+
+        new File(path4 + ".db").delete();
+        new File(path4 + ".bt").delete();
+        new File(path4 + ".log").delete();
+        new File(path4 + ".xid").delete();
+    }
+
+    @Test
+    public void testCreateIndex() throws Exception {
+        Executor exe = testCreate(path5);
+        exe.execute("create table test_user id int32, age int32 (index id)".getBytes());
+        for(int i = 1; i <= 100; i ++) {
+            exe.execute(("insert into test_user values " + i + " " + (i % 10)).getBytes());
+        }
+        // 未建索引的字段作为条件时顺序扫描堆
+        assert rows(exe, "select * from test_user where age = 3") == 10;
+        assert rows(exe, "select * from test_user where age = 3 or id = 4") == 11;
+
+        try {
+            exe.execute("create index on test_user (age fanout 257)".getBytes());
+            assert false;
+        } catch(Exception e) {
+            assert e == Error.InvalidFanoutException;
+        }
+        assert "create index age".equals(new String(exe.execute("create index on test_user (age)".getBytes())));
+        assert new String(exe.execute("select * from test_user where age = 3".getBytes())).split("\n").length == 10;
+        assert new String(exe.execute("select * from test_user where age = 3 limit 2".getBytes())).split("\n").length == 2;
+
+        // 建好索引后的写入会维护新索引
+        exe.execute("insert into test_user values 101 3".getBytes());
+        exe.execute("update test_user set age = 3 where id = 4".getBytes());
+        assert new String(exe.execute("select * from test_user where age = 3".getBytes())).split("\n").length == 12;
+        assert new String(exe.execute("select * from test_user where age = 4".getBytes())).split("\n").length == 9;
+
+        try {
+            exe.execute("create index on test_user (age)".getBytes());
+            assert false;
+        } catch(Exception e) {
+            assert e == Error.FieldAlreadyIndexedException;
+        }
+
+        new File(path5 + ".db").delete();
+        new File(path5 + ".bt").delete();
+        new File(path5 + ".log").delete();
+        new File(path5 + ".xid").delete();
+    }
+
+    @Test
+    public void testPruneDeleted() throws Exception {
+        Executor exe = testCreate(path6);
+        for(int i = 0; i < 100; i ++) {
+            exe.execute(("insert into test_table values " + i).getBytes());
+        }
+        // 可重复读的事务在删除之前开始，删除的行对它仍然可见，索引项不能被删掉
+        Executor reader = new Executor(exe.tbm);
+        reader.execute("begin isolation level repeatable read".getBytes());
+        assert new String(reader.execute("select * from test_table where id < 50".getBytes())).split("\n").length == 50;
+
+        assert "delete 40".equals(new String(exe.execute("delete from test_table where id < 40".getBytes())));
+        assert new String(exe.execute("select * from test_table where id < 50".getBytes())).split("\n").length == 10;
+        assert new String(reader.execute("select * from test_table where id < 50".getBytes())).split("\n").length == 50;
+        assert indexEntries(exe, "test_table", "id") == 100;
+        reader.execute("commit".getBytes());
+
+        // 没有事务能看到这些行了，查询时删除索引项，之后的结果不变
+        assert new String(exe.execute("select * from test_table where id < 50".getBytes())).split("\n").length == 10;
+        assert indexEntries(exe, "test_table", "id") == 60;
+        assert new String(exe.execute("select * from test_table".getBytes())).split("\n").length == 60;
+        exe.execute("insert into test_table values 5".getBytes());
+        assert "[5]\n".equals(new String(exe.execute("select * from test_table where id < 50 limit 1".getBytes())));
+
+        new File(path6 + ".db").delete();
+        new File(path6 + ".bt").delete();
+        new File(path6 + ".log").delete();
+        new File(path6 + ".xid").delete();
+    }
+
+    // 直接遍历字段索引中的项数，不经过可见性判断
+    private int indexEntries(Executor exe, String tableName, String fieldName) throws Exception {
+        RangeCursor cursor = field(exe, tableName, fieldName).cursor(Long.MIN_VALUE, Long.MAX_VALUE);
+        int count = 0;
+        while(cursor.hasNext()) {
+            cursor.next();
+            count ++;
+        }
+        return count;
+    }
+
+    private Field field(Executor exe, String tableName, String fieldName) throws Exception {
+        java.lang.reflect.Field cache = exe.tbm.getClass().getDeclaredField("tableCache");
+        cache.setAccessible(true);
+        Object table = ((java.util.Map<?, ?>)cache.get(exe.tbm)).get(tableName);
+        java.lang.reflect.Field fields = table.getClass().getDeclaredField("fields");
+        fields.setAccessible(true);
+        java.lang.reflect.Field name = Field.class.getDeclaredField("fieldName");
+        name.setAccessible(true);
+        for (Object o : (List<?>)fields.get(table)) {
+            Field fd = (Field)o;
+            if(fieldName.equals(name.get(fd))) {
+                return fd;
+            }
+        }
+        throw new IllegalArgumentException(fieldName);
+    }
+
+    private int rows(Executor exe, String sql) throws Exception {
+        String res = new String(exe.execute(sql.getBytes()));
+        return "".equals(res) ? 0 : res.split("\n").length;
+    }
+
+    @Test
+    public void testStringIndex() throws Exception {
+        Executor exe = testCreate(path7);
+        exe.execute("create table person id int32, name string (index id name)".getBytes());
+        String[] names = {"alice", "bob", "carol", "dave", "zhangsan", "zhangsanfeng", "zhangsanfeng2", "zhangwei", "zhao"};
+        for(int i = 0; i < names.length; i ++) {
+            // 负数需要加引号
+            exe.execute(("insert into person values \"" + (i - 4) + "\" " + names[i]).getBytes());
+        }
+
+        // 范围查询按字符串顺序
+        assert rows(exe, "select * from person where name < \"carol\"") == 2;
+        assert rows(exe, "select * from person where name > \"dave\"") == 5;
+        assert rows(exe, "select * from person where name > \"b\" and name < \"d\"") == 2;
+        // 前8个字节相同的字符串
+        assert "[1, zhangsanfeng]\n".equals(new String(exe.execute("select * from person where name = \"zhangsanfeng\"".getBytes())));
+        assert rows(exe, "select * from person where name > \"zhangsanfeng\"") == 3;
+        // 前缀查询
+        assert rows(exe, "select * from person where name like \"zhang%\"") == 4;
+        assert rows(exe, "select * from person where name like \"zhangsanfeng%\"") == 2;
+        assert rows(exe, "select * from person where name like \"%a%e\"") == 2;
+        assert rows(exe, "select * from person where name like \"_o%\"") == 1;
+        // 第二个条件是别的字段
+        assert rows(exe, "select * from person where name like \"zh%\" and id > 1") == 3;
+        assert rows(exe, "select * from person where name = \"bob\" or id = 4") == 2;
+        // 负数
+        assert rows(exe, "select * from person where id < 0") == 4;
+        assert rows(exe, "select * from person") == names.length;
+
+        assert "delete 3".equals(new String(exe.execute("delete from person where name like \"zhangsan%\"".getBytes())));
+        assert rows(exe, "select * from person where name like \"zhang%\"") == 1;
+        try {
+            exe.execute("select * from person where id like \"1%\"".getBytes());
+            assert false;
+        } catch(Exception e) {
+            assert e == Error.InvalidCmpOpException;
+        }
+
+        new File(path7 + ".db").delete();
+        new File(path7 + ".bt").delete();
+        new File(path7 + ".log").delete();
+        new File(path7 + ".xid").delete();
+    }
+
+    @Test
+    public void testCompositeIndex() throws Exception {
+        Executor exe = testCreate(path8);
+        exe.execute("create table orders id int32, tenant_id int32, created_at int64 (index id (tenant_id created_at))".getBytes());
+        long base = 1700000000000L;
+        for(int i = 0; i < 200; i ++) {
+            exe.execute(("insert into orders values " + i + " " + (i % 4) + " " + (base + i)).getBytes());
+        }
+
+        // 第一列等值、第二列范围
+        assert rows(exe, "select * from orders where tenant_id = 1 and created_at > " + (base + 100)) == 25;
+        assert rows(exe, "select * from orders where created_at < " + (base + 10) + " and tenant_id = 2") == 2;
+        assert rows(exe, "select * from orders where tenant_id = 3") == 50;
+        assert rows(exe, "select * from orders where tenant_id > 1 and created_at < " + (base + 8)) == 4;
+        // 修改联合索引后面的列，新版本重新插入索引
+        exe.execute(("update orders set created_at = " + (base + 1000) + " where id = 5").getBytes());
+        assert rows(exe, "select * from orders where tenant_id = 1 and created_at > " + (base + 999)) == 1;
+        assert rows(exe, "select * from orders where tenant_id = 1 and created_at < " + (base + 10)) == 2;
+        assert "delete 50".equals(new String(exe.execute("delete from orders where tenant_id = 0 and created_at > 0".getBytes())));
+        assert rows(exe, "select * from orders") == 150;
+
+        // 在已有数据上创建联合索引
+        exe.execute("create table events id int32, kind string, at int64 (index id)".getBytes());
+        for(int i = 0; i < 30; i ++) {
+            exe.execute(("insert into events values " + i + " " + (i % 2 == 0 ? "click" : "view") + " " + i).getBytes());
+        }
+        assert "create index kind, at".equals(new String(exe.execute("create index on events (kind at)".getBytes())));
+        exe.execute("insert into events values 30 click 30".getBytes());
+        assert rows(exe, "select * from events where kind = \"click\" and at > 20") == 5;
+        assert rows(exe, "select * from events where kind = \"view\"") == 15;
+        try {
+            exe.execute("create index on events (kind)".getBytes());
+            assert false;
+        } catch(Exception e) {
+            assert e == Error.FieldAlreadyIndexedException;
+        }
+
+        new File(path8 + ".db").delete();
+        new File(path8 + ".bt").delete();
+        new File(path8 + ".log").delete();
+        new File(path8 + ".xid").delete();
+    }
+
+    private void assertDuplicated(Executor exe, String sql) throws Exception {
+        try {
+            exe.execute(sql.getBytes());
+            assert false;
+        } catch(Exception e) {
+            assert e == Error.DuplicatedKeyException;
+        }
+    }
+
+    @Test
+    public void testUniqueIndex() throws Exception {
+        Executor exe = testCreate(path9);
+        exe.execute("create table users id int32, email string, name string (index id unique email unique)".getBytes());
+        exe.execute("insert into users values 1 \"a@x.com\" alice".getBytes());
+        exe.execute("insert into users values 2 \"b@x.com\" bob".getBytes());
+        assertDuplicated(exe, "insert into users values 3 \"a@x.com\" carol");
+        assertDuplicated(exe, "insert into users values 1 \"c@x.com\" carol");
+        assert rows(exe, "select * from users") == 2;
+        // 前8个字节相同的字符串不算重复
+        exe.execute("insert into users values 3 \"longprefix1@x.com\" carol".getBytes());
+        exe.execute("insert into users values 4 \"longprefix2@x.com\" dave".getBytes());
+
+        // 修改唯一索引的列
+        assertDuplicated(exe, "update users set email = \"b@x.com\" where id = 1");
+        assert "update 1".equals(new String(exe.execute("update users set email = \"c@x.com\" where id = 1".getBytes())));
+        // 不修改唯一索引的列
+        assert "update 1".equals(new String(exe.execute("update users set name = alice2 where id = 1".getBytes())));
+
+        // upsert：有冲突时更新那一行，否则插入
+        assert "update 1".equals(new String(exe.execute("upsert into users values 5 \"c@x.com\" carl".getBytes())));
+        assert "[5, c@x.com, carl]\n".equals(new String(exe.execute("select * from users where email = \"c@x.com\"".getBytes())));
+        assert rows(exe, "select * from users where id = 1") == 0;
+        assert "insert".equals(new String(exe.execute("upsert into users values 6 \"d@x.com\" dan".getBytes())));
+        assert rows(exe, "select * from users") == 5;
+
+        // 其他事务还没提交的插入同样冲突，回滚后就可以插入了
+        Executor other = new Executor(exe.tbm);
+        other.execute("begin".getBytes());
+        other.execute("insert into users values 7 \"e@x.com\" eve".getBytes());
+        assertDuplicated(exe, "insert into users values 8 \"e@x.com\" eve2");
+        other.execute("abort".getBytes());
+        exe.execute("insert into users values 8 \"e@x.com\" eve2".getBytes());
+        // 已经删除的记录不冲突
+        exe.execute("delete from users where id = 6".getBytes());
+        exe.execute("insert into users values 9 \"d@x.com\" dan2".getBytes());
+        assert rows(exe, "select * from users") == 6;
+
+        // 已有数据重复时不能创建唯一索引
+        exe.execute("insert into users values 10 \"f@x.com\" bob".getBytes());
+        assertDuplicated(exe, "create unique index on users (name)");
+        assert "create index name".equals(new String(exe.execute("create index on users (name)".getBytes())));
+        exe.execute("insert into users values 11 \"g@x.com\" bob".getBytes());
+        assert rows(exe, "select * from users where name = bob") == 3;
+
+        new File(path9 + ".db").delete();
+        new File(path9 + ".bt").delete();
+        new File(path9 + ".log").delete();
+        new File(path9 + ".xid").delete();
+    }
+
+    @Test
+    public void testConcurrentUpsert() throws Exception {
+        Executor exe = testCreate(path22);
+        exe.execute("create table users id int32, name string (index id unique)".getBytes());
+
+        // 其他事务插入还没提交时，upsert等它结束：提交了就更新那一行
+        Executor other = new Executor(exe.tbm);
+        other.execute("begin".getBytes());
+        assert "insert".equals(new String(other.execute("upsert into users values 1 alice".getBytes())));
+        CompletableFuture<String> waiting = CompletableFuture.supplyAsync(() -> {
+            try {
+                return new String(exe.execute("upsert into users values 1 alice2".getBytes()));
+            } catch(Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(200);
+        assert !waiting.isDone();
+        other.execute("commit".getBytes());
+        assert "update 1".equals(waiting.get());
+        assert "[1, alice2]\n".equals(new String(exe.execute("select * from users where id = 1".getBytes())));
+
+        // 回滚了就插入
+        other.execute("begin".getBytes());
+        other.execute("upsert into users values 2 bob".getBytes());
+        waiting = CompletableFuture.supplyAsync(() -> {
+            try {
+                return new String(exe.execute("upsert into users values 2 bob2".getBytes()));
+            } catch(Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(200);
+        assert !waiting.isDone();
+        other.execute("abort".getBytes());
+        assert "insert".equals(waiting.get());
+
+        // 可重复读的事务看不到等待期间提交的行，无法更新
+        Executor reader = new Executor(exe.tbm);
+        reader.execute("begin isolation level repeatable read".getBytes());
+        other.execute("begin".getBytes());
+        other.execute("upsert into users values 3 carl".getBytes());
+        other.execute("commit".getBytes());
+        assertDuplicated(reader, "upsert into users values 3 carl2");
+        reader.execute("abort".getBytes());
+
+        // 多个会话同时upsert同样的一批新key，都不会因为重复而失败，每个key只有一行
+        int workers = 4, keys = 50;
+        List<CompletableFuture<Void>> all = new ArrayList<>();
+        for(int i = 0; i < workers; i ++) {
+            final int no = i;
+            Executor worker = new Executor(exe.tbm);
+            all.add(CompletableFuture.runAsync(() -> {
+                try {
+                    for(int k = 100; k < 100 + keys; k ++) {
+                        worker.execute(("upsert into users values " + k + " w" + no).getBytes());
+                    }
+                } catch(Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }));
+        }
+        for (CompletableFuture<Void> f : all) {
+            f.get();
+        }
+        assert rows(exe, "select * from users where id > 99") == keys;
+
+        new File(path22 + ".db").delete();
+        new File(path22 + ".bt").delete();
+        new File(path22 + ".log").delete();
+        new File(path22 + ".xid").delete();
+    }
+
+    @Test
+    public void testIndexOnlyScan() throws Exception {
+        Executor exe = testCreate(path10);
+        exe.execute("create table orders id int32, tenant_id int32, amount int64, note string (index id tenant_id include (amount))".getBytes());
+        for(int i = 0; i < 100; i ++) {
+            exe.execute(("insert into orders values " + i + " " + (i % 5) + " " + (i * 10) + " n" + i).getBytes());
+        }
+        String sql = "select tenant_id, amount from orders where tenant_id = 2 and amount > 500";
+        String before = new String(exe.execute(sql.getBytes()));
+        assert before.split("\n").length == 10;
+        assert before.startsWith("[2, 520]\n");
+        assert !"vacuum 0".equals(new String(exe.execute("vacuum orders".getBytes())));
+        // 全部可见的页直接用索引中的值，结果不变
+        assert before.equals(new String(exe.execute(sql.getBytes())));
+        assert "[7, 2, 70]\n".equals(new String(exe.execute("select id, tenant_id, amount from orders where id = 7".getBytes())));
+        assert rows(exe, "select amount from orders") == 100;
+
+        // 修改和删除后页的标记被清除，读到的是新的值
+        exe.execute("update orders set amount = 9999 where id = 52".getBytes());
+        exe.execute("delete from orders where id = 57".getBytes());
+        String after = new String(exe.execute(sql.getBytes()));
+        assert after.split("\n").length == 9;
+        assert after.contains("[2, 9999]") && !after.contains("[2, 520]") && !after.contains("[2, 570]");
+
+        // 其他事务未提交的写入不可见
+        Executor other = new Executor(exe.tbm);
+        other.execute("begin".getBytes());
+        other.execute("insert into orders values 100 2 100000 x".getBytes());
+        exe.execute("vacuum orders".getBytes());
+        assert after.equals(new String(exe.execute(sql.getBytes())));
+        other.execute("commit".getBytes());
+
+        // 可重复读事务开始后提交的记录，VACUUM不会把它所在的页设置为全部可见
+        Executor rr = new Executor(exe.tbm);
+        rr.execute("begin isolation level repeatable read".getBytes());
+        exe.execute("insert into orders values 101 2 200000 y".getBytes());
+        exe.execute("vacuum orders".getBytes());
+        assert rows(rr, sql) == 10;
+        assert rows(exe, sql) == 11;
+        rr.execute("commit".getBytes());
+
+        // create index 也可以带include字段，字符串字段不能从key还原，仍然读取记录
+        assert "create index note include id".equals(new String(exe.execute("create index on orders (note include id)".getBytes())));
+        exe.execute("vacuum orders".getBytes());
+        assert "[n3, 3]\n".equals(new String(exe.execute("select note, id from orders where note = n3".getBytes())));
+        try {
+            exe.execute("select missing from orders".getBytes());
+            assert false;
+        } catch(Exception e) {
+            assert e == Error.FieldNotFoundException;
+        }
+
+        new File(path10 + ".db").delete();
+        new File(path10 + ".bt").delete();
+        new File(path10 + ".log").delete();
+        new File(path10 + ".xid").delete();
+    }
+
+    @Test
+    public void testHeapScan() throws Exception {
+        TransactionManager tm = TransactionManager.create(path11);
+        DataManager dm = DataManager.create(path11, mem, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        Executor exe = new Executor(TableManager.create(path11, vm, dm));
+        exe.execute("create table logs id int32, msg string, level int32".getBytes());
+        // 行数足够多时按页分组并行扫描
+        for(int i = 0; i < 1500; i ++) {
+            exe.execute(("insert into logs values " + i + " m" + i + " " + (i % 10)).getBytes());
+        }
+        assert rows(exe, "select * from logs") == 1500;
+        assert rows(exe, "select * from logs where level = 3") == 150;
+        assert rows(exe, "select id from logs where level = 3 and id < 100") == 10;
+        assert rows(exe, "select * from logs where msg like 'm14%'") == 111;
+        assert rows(exe, "select * from logs where level > 7 limit 5") == 5;
+        assert "[0, m0]\n[10, m10]\n".equals(new String(exe.execute("select id, msg from logs where level = 0 limit 2".getBytes())));
+
+        // 更新后只能看到新版本，不会重复
+        exe.execute("update logs set level = 100 where id = 7".getBytes());
+        exe.execute("update logs set level = 101 where id = 7".getBytes());
+        assert "[7, m7, 101]\n".equals(new String(exe.execute("select * from logs where id = 7".getBytes())));
+        assert rows(exe, "select * from logs where level = 7") == 149;
+        exe.execute("delete from logs where level = 5".getBytes());
+        assert rows(exe, "select * from logs") == 1350;
+
+        // 其他事务未提交的写入不可见
+        Executor other = new Executor(exe.tbm);
+        other.execute("begin".getBytes());
+        other.execute("insert into logs values 5000 x 3".getBytes());
+        assert rows(exe, "select * from logs where level = 3") == 150;
+        assert rows(other, "select * from logs where level = 3") == 151;
+        other.execute("commit".getBytes());
+        assert rows(exe, "select * from logs where level = 3") == 151;
+
+        // 提前关闭并行扫描时，交给线程池的任务都结束后close才返回，之后事务才结束
+        long xid = exe.tbm.begin(new Begin()).xid;
+        ResultStream rs = exe.tbm.query(xid, (Select)Parser.Parse("select * from logs".getBytes()));
+        assert rs.next(1) != null;
+        rs.close();
+        java.lang.reflect.Field pool = Class.forName("com.lxpeak.lxpeakdb.backend.tbm.HeapScan").getDeclaredField("POOL");
+        pool.setAccessible(true);
+        assert ((ThreadPoolExecutor)pool.get(null)).getQueue().isEmpty();
+        exe.tbm.commit(xid);
+        // 事务结束后扫描页直接报错
+        try {
+            vm.scanPage(xid, 1, null);
+            assert false;
+        } catch(Exception e) {
+            assert e == Error.TransactionNotActiveException;
+        }
+
+        // 重启后从页头恢复堆段包含的页
+        dm.close();
+        tm.close();
+        tm = TransactionManager.open(path11);
+        dm = DataManager.open(path11, mem, tm);
+        exe = new Executor(TableManager.open(path11, VersionManager.newVersionManager(tm, dm), dm));
+        assert rows(exe, "select * from logs where level = 3") == 151;
+        exe.execute("insert into logs values 5001 y 3".getBytes());
+        assert rows(exe, "select * from logs") == 1352;
+
+        // 之后再建索引，按索引查询
+        exe.execute("create index on logs (id)".getBytes());
+        assert "[7, m7, 101]\n".equals(new String(exe.execute("select * from logs where id = 7".getBytes())));
+        assert rows(exe, "select * from logs where id > 1490") == 10;
+
+        new File(path11 + ".db").delete();
+        new File(path11 + ".bt").delete();
+        new File(path11 + ".log").delete();
+        new File(path11 + ".xid").delete();
+    }
+
+    @Test
+    public void testDropTable() throws Exception {
+        TransactionManager tm = TransactionManager.create(path12);
+        DataManager dm = DataManager.create(path12, mem, tm);
+        Executor exe = new Executor(TableManager.create(path12, VersionManager.newVersionManager(tm, dm), dm));
+        exe.execute("create table t1 id int32 (index id)".getBytes());
+        exe.execute("create table t2 id int32, msg string (index id)".getBytes());
+        exe.execute("create table t3 id int32, msg string".getBytes());
+        for(int i = 0; i < 500; i ++) {
+            exe.execute(("insert into t1 values " + i).getBytes());
+            exe.execute(("insert into t2 values " + i + " m" + i).getBytes());
+        }
+        exe.execute("insert into t3 values 1 a".getBytes());
+        long size = new File(path12 + ".db").length();
+
+        // t2在链表中间，删除后t1和t3不受影响
+        assert "drop t2".equals(new String(exe.execute("drop table t2".getBytes())));
+        try {
+            exe.execute("select * from t2".getBytes());
+            assert false;
+        } catch(Exception e) {
+            assert e == Error.TableNotFoundException;
+        }
+        assert rows(exe, "select * from t1 where id < 10") == 10;
+        assert rows(exe, "select * from t3") == 1;
+
+        // 新表使用t2回收的区，文件不再变大
+        exe.execute("create table t4 id int32, msg string (index id)".getBytes());
+        for(int i = 0; i < 500; i ++) {
+            exe.execute(("insert into t4 values " + i + " n" + i).getBytes());
+        }
+        assert new File(path12 + ".db").length() == size;
+        assert "[7, n7]\n".equals(new String(exe.execute("select * from t4 where id = 7".getBytes())));
+
+        exe.execute("drop table t4".getBytes());
+        exe.execute("drop table t1".getBytes());
+        dm.close();
+        tm.close();
+        tm = TransactionManager.open(path12);
+        dm = DataManager.open(path12, mem, tm);
+        exe = new Executor(TableManager.open(path12, VersionManager.newVersionManager(tm, dm), dm));
+        assert "[1, a]\n".equals(new String(exe.execute("select * from t3".getBytes())));
+        try {
+            exe.execute("select * from t1".getBytes());
+            assert false;
+        } catch(Exception e) {
+            assert e == Error.TableNotFoundException;
+        }
+        // 重启后空闲的区同样可以重用
+        exe.execute("create table t5 id int32, msg string (index id)".getBytes());
+        for(int i = 0; i < 500; i ++) {
+            exe.execute(("insert into t5 values " + i + " n" + i).getBytes());
+        }
+        assert new File(path12 + ".db").length() == size;
+        assert rows(exe, "select * from t5 where id > 489") == 10;
+
+        new File(path12 + ".db").delete();
+        new File(path12 + ".bt").delete();
+        new File(path12 + ".log").delete();
+        new File(path12 + ".xid").delete();
+    }
+
+    @Test
+    public void testLoad() throws Exception {
+        TransactionManager tm = TransactionManager.create(path24);
+        DataManager dm = DataManager.create(path24, mem, tm);
+        TableManager tbm = TableManager.create(path24, VersionManager.newVersionManager(tm, dm), dm);
+        Executor exe = new Executor(tbm);
+        Executor other = new Executor(tbm);
+        exe.execute("create table t id int32, msg string (index id fanout 4)".getBytes());
+        for(int i = 0; i < 20; i ++) {
+            exe.execute(("insert into t values " + i + " m" + i).getBytes());
+        }
+        int segments = dm.segments().length;
+
+        // 导入期间另一个会话的游标还在读旧的索引树
+        other.execute("declare c cursor for select * from t where id < 5".getBytes());
+        List<String[]> rows = new ArrayList<>();
+        for(int i = 20; i < 200; i ++) {
+            rows.add(new String[]{String.valueOf(i), "n" + i});
+        }
+        long xid = tbm.begin(new Begin()).xid;
+        assert tbm.load(xid, "t", rows.iterator()) == 180;
+        tbm.commit(xid);
+        assert dm.segments().length == segments + 1;
+        assert rows(other, "fetch from c") == 5;
+        other.execute("close c".getBytes());
+        // 游标关闭后旧的索引树被回收
+        assert dm.segments().length == segments;
+
+        // 重建的索引沿用建表时的fanout
+        java.lang.reflect.Field bt = Field.class.getDeclaredField("bt");
+        bt.setAccessible(true);
+        assert ((BPlusTree)bt.get(field(exe, "t", "id"))).getBalanceNumber() == 2;
+        assert rows(exe, "select * from t where id > 189") == 10;
+        assert indexEntries(exe, "t", "id") == 200;
+
+        dm.close();
+        tm.close();
+        new File(path24 + ".db").delete();
+        new File(path24 + ".bt").delete();
+        new File(path24 + ".log").delete();
+        new File(path24 + ".xid").delete();
+    }
+
+    @Test
+    public void testDropInUse() throws Exception {
+        TransactionManager tm = TransactionManager.create(path23);
+        DataManager dm = DataManager.create(path23, mem, tm);
+        TableManager tbm = TableManager.create(path23, VersionManager.newVersionManager(tm, dm), dm);
+        Executor exe = new Executor(tbm);
+        Executor other = new Executor(tbm);
+        exe.execute("create table t1 id int32 (index id)".getBytes());
+        for(int i = 0; i < 100; i ++) {
+            exe.execute(("insert into t1 values " + i).getBytes());
+        }
+
+        // 另一个会话的游标还没关闭，不能删除，游标仍然可以继续取
+        other.execute("declare c cursor for select * from t1".getBytes());
+        assert "[0]\n".equals(new String(other.execute("fetch 1 from c".getBytes())));
+        try {
+            exe.execute("drop table t1".getBytes());
+            assert false;
+        } catch(Exception e) {
+            assert e == Error.TableInUseException;
+        }
+        assert "[1]\n".equals(new String(other.execute("fetch 1 from c".getBytes())));
+        other.execute("close c".getBytes());
+        assert "drop t1".equals(new String(exe.execute("drop table t1".getBytes())));
+
+        // 另一个事务写过的表，事务结束前不能删除，回滚后可以
+        exe.execute("create table t2 id int32 (index id)".getBytes());
+        other.execute("begin".getBytes());
+        other.execute("insert into t2 values 1".getBytes());
+        try {
+            exe.execute("drop table t2".getBytes());
+            assert false;
+        } catch(Exception e) {
+            assert e == Error.TableInUseException;
+        }
+        other.execute("abort".getBytes());
+        assert "drop t2".equals(new String(exe.execute("drop table t2".getBytes())));
+
+        // 比删除更早的事务结束之前，表的段不回收
+        int segments = dm.segments().length;
+        exe.execute("create table t3 id int32 (index id)".getBytes());
+        exe.execute("insert into t3 values 1".getBytes());
+        other.execute("begin".getBytes());
+        exe.execute("drop table t3".getBytes());
+        assert dm.segments().length == segments + 2;
+        other.execute("commit".getBytes());
+        assert dm.segments().length == segments;
+
+        // 回收之前崩溃，重启时回收不属于任何表的段
+        exe.execute("create table t4 id int32 (index id)".getBytes());
+        exe.execute("insert into t4 values 1".getBytes());
+        other.execute("begin".getBytes());
+        exe.execute("drop table t4".getBytes());
+        assert dm.segments().length == segments + 2;
+        dm.close();
+        tm.close();
+        tm = TransactionManager.open(path23);
+        dm = DataManager.open(path23, mem, tm);
+        TableManager.open(path23, VersionManager.newVersionManager(tm, dm), dm);
+        assert dm.segments().length == segments;
+        dm.close();
+        tm.close();
+
+        new File(path23 + ".db").delete();
+        new File(path23 + ".bt").delete();
+        new File(path23 + ".log").delete();
+        new File(path23 + ".xid").delete();
+    }
+
+    @Test
+    public void testStreamingSelect() throws Exception {
+        Executor exe = testCreate(path13);
+        exe.execute("create table score id int32, name string, points int32 (index id)".getBytes());
+        exe.execute("create table logs id int32, msg string".getBytes());
+        for(int i = 0; i < 600; i ++) {
+            exe.execute(("insert into score values " + i + " s" + i + " " + (i * 7 % 100)).getBytes());
+            exe.execute(("insert into logs values " + i + " m" + i).getBytes());
+        }
+        // 结果按批交出，每批最多BATCH_ROWS行
+        for (String sql : new String[]{"select * from score", "select * from logs", "select id from score where points < 50"}) {
+            List<Integer> batches = new ArrayList<>();
+            exe.execute(sql.getBytes(), batch -> batches.add(new String(batch).split("\n").length));
+            int total = 0;
+            for (int i = 0; i < batches.size(); i++) {
+                assert i == batches.size()-1 ? batches.get(i) <= Executor.BATCH_ROWS : batches.get(i) == Executor.BATCH_ROWS;
+                total += batches.get(i);
+            }
+            assert total == rows(exe, sql);
+        }
+        List<byte[]> batches = new ArrayList<>();
+        exe.execute("select * from logs limit 3".getBytes(), batches::add);
+        assert batches.size() == 1 && "[0, m0]\n[1, m1]\n[2, m2]\n".equals(new String(batches.get(0)));
+
+        // ORDER BY
+        assert "[99, 57]\n[99, 157]\n[99, 257]\n".equals(new String(exe.execute("select points, id from score order by points desc limit 3".getBytes())));
+        assert "[s0]\n[s1]\n[s10]\n".equals(new String(exe.execute("select name from score where id < 20 order by name limit 3".getBytes())));
+        assert "[m599]\n".equals(new String(exe.execute("select msg from logs where id > 590 order by id desc limit 1".getBytes())));
+        assert "".equals(new String(exe.execute("select * from logs where id > 1000 order by id".getBytes())));
+
+        new File(path13 + ".db").delete();
+        new File(path13 + ".bt").delete();
+        new File(path13 + ".log").delete();
+        new File(path13 + ".xid").delete();
+    }
+
+    @Test
+    public void testProjection() throws Exception {
+        Executor exe = testCreate(path14);
+        // string字段夹在中间，后面列的偏移不固定
+        exe.execute("create table person id int32, name string, age int32, note string, score int64 (index id)".getBytes());
+        exe.execute("create table log name string, level int32, msg string".getBytes());
+        for(int i = 0; i < 20; i ++) {
+            exe.execute(("insert into person values " + i + " p" + i + " " + (20 + i) + " n" + i + " " + (i * 100)).getBytes());
+            exe.execute(("insert into log values l" + i + " " + (i % 3) + " m" + i).getBytes());
+        }
+        assert "[21, 100]\n".equals(new String(exe.execute("select age, score from person where id = 1".getBytes())));
+        assert "[n2, p2]\n".equals(new String(exe.execute("select note, name from person where id = 2".getBytes())));
+        assert "[3, p3, 23, n3, 300]\n".equals(new String(exe.execute("select * from person where id = 3".getBytes())));
+        assert "[1900]\n[1800]\n".equals(new String(exe.execute("select score from person order by age desc limit 2".getBytes())));
+        // 用不上索引的条件在字节数组上过滤，只解码条件用到的列
+        assert "[4, 400]\n".equals(new String(exe.execute("select id, score from person where note = n4".getBytes())));
+        assert "[m2]\n[m5]\n".equals(new String(exe.execute("select msg from log where level = 2 limit 2".getBytes())));
+        assert "[l0, 0]\n".equals(new String(exe.execute("select name, level from log where msg = m0".getBytes())));
+
+        assert "update 1".equals(new String(exe.execute("update person set score = 7 where id > 0 and note = n5".getBytes())));
+        assert "[7]\n".equals(new String(exe.execute("select score from person where id = 5".getBytes())));
+        assert "delete 7".equals(new String(exe.execute("delete from log where level = 0".getBytes())));
+        assert "[1]\n".equals(new String(exe.execute("select level from log where level > 0 and msg = m13".getBytes())));
+
+        new File(path14 + ".db").delete();
+        new File(path14 + ".bt").delete();
+        new File(path14 + ".log").delete();
+        new File(path14 + ".xid").delete();
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        Executor exe = testCreate(path17);
+        exe.execute("create table t id int32, name string, n int32 (index id unique)".getBytes());
+        assert "insert 3".equals(new String(exe.execute("insert into t values (1, a, 10), (2, b, 20), (3, 'c;d', 30)".getBytes())));
+        assert "[3, c;d, 30]\n".equals(new String(exe.execute("select * from t where id = 3".getBytes())));
+        assert "insert 1, update 2".equals(new String(exe.execute("upsert into t values (1, a, 11), (2, b, 21), (4, e, 40)".getBytes())));
+
+        // 一个包中的多条语句，每条语句的结果一行
+        String res = new String(exe.execute("insert into t values 5 f 50; update t set n = 0 where id > 3; delete from t where id = 1; insert into t values (6, g, 60), (7, h, 70)".getBytes()));
+        assert "insert 1\nupdate 2\ndelete 1\ninsert 2\n".equals(res);
+        assert rows(exe, "select * from t") == 6;
+        res = new String(exe.execute("upsert into t values 2 b 22; upsert into t values 10 z 0; delete from t where id = 10".getBytes()));
+        assert "insert 0, update 1\ninsert 1, update 0\ndelete 1\n".equals(res);
+
+        // 出错时整批回滚
+        try {
+            exe.execute("insert into t values 8 i 80; insert into t values 2 x 0".getBytes());
+            assert false;
+        } catch(Exception e) {
+            assert e == Error.DuplicatedKeyException;
+        }
+        assert rows(exe, "select * from t") == 6;
+        try {
+            exe.execute("insert into t values 8 i 80; select * from t".getBytes());
+            assert false;
+        } catch(Exception e) {
+            assert e == Error.InvalidBatchException;
+        }
+
+        // 在事务中时使用这个事务
+        exe.execute("begin".getBytes());
+        exe.execute("insert into t values 8 i 80; insert into t values 9 j 90".getBytes());
+        exe.execute("abort".getBytes());
+        assert rows(exe, "select * from t") == 6;
+
+        new File(path17 + ".db").delete();
+        new File(path17 + ".bt").delete();
+        new File(path17 + ".log").delete();
+        new File(path17 + ".xid").delete();
+    }
+
+    @Test
+    public void testPrepared() throws Exception {
+        Executor exe = testCreate(path18);
+        exe.execute("create table t id int32, name string, n int32 (index id)".getBytes());
+        assert "prepare".equals(new String(exe.execute("prepare add as insert into t values ? ? ?".getBytes())));
+        exe.execute("prepare find as select name, n from t where id = ?".getBytes());
+        exe.execute("prepare inc as update t set n = ? where id > ? and id < ?".getBytes());
+        for(int i = 0; i < 10; i ++) {
+            assert "insert".equals(new String(exe.execute(("execute add " + i + " \"n " + i + "\" " + i).getBytes())));
+        }
+        assert "[n 3, 3]\n".equals(new String(exe.execute("execute find 3".getBytes())));
+        assert "update 3".equals(new String(exe.execute("execute inc 100 2 6".getBytes())));
+        assert "[n 4, 100]\n".equals(new String(exe.execute("execute find 4".getBytes())));
+        // 批量执行中也可以使用
+        assert "insert 1\ninsert 1\n".equals(new String(exe.execute("execute add 10 x 1; execute add 11 y 2".getBytes())));
+        assert rows(exe, "select * from t") == 12;
+
+        try {
+            exe.execute("execute find".getBytes());
+            assert false;
+        } catch(Exception e) {
+            assert e == Error.ParamCountException;
+        }
+        assert "deallocate".equals(new String(exe.execute("deallocate find".getBytes())));
+        try {
+            exe.execute("execute find 3".getBytes());
+            assert false;
+        } catch(Exception e) {
+            assert e == Error.PreparedNotFoundException;
+        }
+
+        new File(path18 + ".db").delete();
+        new File(path18 + ".bt").delete();
+        new File(path18 + ".log").delete();
+        new File(path18 + ".xid").delete();
+    }
+
+    @Test
+    public void testPlanCache() throws Exception {
+        TableManager tbm = testCreate(path19).tbm;
+        PlanCache plans = new PlanCache();
+        Executor a = new Executor(tbm, plans);
+        Executor b = new Executor(tbm, plans);
+        a.execute("create table t id int32, n int32 (index id)".getBytes());
+        for(int i = 0; i < 10; i ++) {
+            a.execute(("insert into t values " + i + " " + i).getBytes());
+        }
+        assert "[3, 3]\n".equals(new String(a.execute("select * from t where id = 3".getBytes())));
+        // 另一个会话执行只有空白不同的同一条语句，不需要再解析
+        long misses = plans.misses();
+        assert "[3, 3]\n".equals(new String(b.execute("select  *  from t\twhere id = 3;".getBytes())));
+        assert plans.misses() == misses && plans.hits() == 1;
+        assert "[4, 4]\n".equals(new String(b.execute("select * from t where n = 4".getBytes())));
+        assert "update 2".equals(new String(a.execute("update t set n = 0 where id > 7".getBytes())));
+        assert "update 2".equals(new String(b.execute("update t set n = 0 where id > 7".getBytes())));
+
+        // DDL之后清空，之前缓存的访问路径也不再使用
+        a.execute("create index on t (n)".getBytes());
+        assert plans.size() == 0;
+        assert "[4, 4]\n".equals(new String(b.execute("select * from t where n = 4".getBytes())));
+        a.execute("drop table t".getBytes());
+        a.execute("create table t id int32, n int32 (index n)".getBytes());
+        a.execute("insert into t values 3 30".getBytes());
+        assert "[3, 30]\n".equals(new String(b.execute("select * from t where id = 3".getBytes())));
+
+        new File(path19 + ".db").delete();
+        new File(path19 + ".bt").delete();
+        new File(path19 + ".log").delete();
+        new File(path19 + ".xid").delete();
+    }
+
+    @Test
+    public void testCursor() throws Exception {
+        Executor exe = testCreate(path20);
+        exe.execute("create table t id int32, name string (index id)".getBytes());
+        exe.execute("create table logs n int32".getBytes());
+        exe.execute("begin".getBytes());
+        for(int i = 0; i < 1000; i ++) {
+            exe.execute(("insert into t values " + i + " n" + i).getBytes());
+            exe.execute(("insert into logs values " + i).getBytes());
+        }
+        exe.execute("commit".getBytes());
+
+        // 索引扫描和顺序扫描，每次取一批，取完之后结果为空
+        for (String table : new String[]{"t", "logs"}) {
+            assert ("declare c").equals(new String(exe.execute(("declare c cursor for select * from " + table).getBytes())));
+            int rows = 0;
+            String batch;
+            while(!"".equals(batch = new String(exe.execute("fetch 300 from c".getBytes())))) {
+                int n = batch.split("\n").length;
+                assert n <= 300;
+                rows += n;
+            }
+            assert rows == 1000;
+            assert "close".equals(new String(exe.execute("close c".getBytes())));
+        }
+        exe.execute("declare c cursor for select name from t where id > 10 and id < 14".getBytes());
+        assert "[n11]\n".equals(new String(exe.execute("fetch 1 from c".getBytes())));
+        // 游标有自己的事务，看不到之后提交的修改
+        exe.execute("delete from t where id = 12".getBytes());
+        assert "[n12]\n[n13]\n".equals(new String(exe.execute("fetch from c".getBytes())));
+        try {
+            exe.execute("declare c cursor for select * from t".getBytes());
+            assert false;
+        } catch(Exception e) {
+            assert e == Error.DuplicatedCursorException;
+        }
+        exe.execute("close c".getBytes());
+
+        // 在事务中声明的游标随事务结束关闭
+        exe.execute("begin".getBytes());
+        exe.execute("declare c cursor for select * from t".getBytes());
+        exe.execute("fetch 10 from c".getBytes());
+        exe.execute("commit".getBytes());
+        try {
+            exe.execute("fetch 10 from c".getBytes());
+            assert false;
+        } catch(Exception e) {
+            assert e == Error.CursorNotFoundException;
+        }
+        exe.close();
+
+        new File(path20 + ".db").delete();
+        new File(path20 + ".bt").delete();
+        new File(path20 + ".log").delete();
+        new File(path20 + ".xid").delete();
+    }
+
+    @Test
+    public void testBinaryRows() throws Exception {
+        Executor exe = testCreate(path21);
+        exe.execute("create table t id int32, big int64, name string (index id)".getBytes());
+        for(int i = 0; i < 600; i ++) {
+            exe.execute(("insert into t values " + i + " " + (i * 10000000000L) + " \"n " + i + "\"").getBytes());
+        }
+        assert "set format binary".equals(new String(exe.execute("set format binary".getBytes())));
+
+        BinaryRows res = new BinaryRows();
+        List<Object[]> rows = res.decode(exe.execute("select name, big from t where id > 0 and id < 3".getBytes()));
+        assert Arrays.equals(new String[]{"name", "big"}, res.getNames());
+        assert Arrays.equals(new String[]{"string", "int64"}, res.getTypes());
+        assert rows.size() == 2;
+        assert "n 1".equals(rows.get(0)[0]) && (Long)rows.get(0)[1] == 10000000000L;
+        assert "n 2".equals(rows.get(1)[0]) && (Long)rows.get(1)[1] == 20000000000L;
+
+        // 没有行时只有列头
+        res = new BinaryRows();
+        assert res.decode(exe.execute("select * from t where id = 1000".getBytes())).isEmpty();
+        assert Arrays.equals(new String[]{"id", "big", "name"}, res.getNames());
+
+        // 分批返回和游标的每一批依次解析
+        res = new BinaryRows();
+        List<byte[]> batches = new ArrayList<>();
+        exe.execute("select id from t".getBytes(), batches::add);
+        int count = 0;
+        for (byte[] batch : batches) {
+            for (Object[] row : res.decode(batch)) {
+                assert (Integer)row[0] == count ++;
+            }
+        }
+        assert batches.size() > 1 && count == 600;
+        exe.execute("declare c cursor for select id from t".getBytes());
+        res = new BinaryRows();
+        count = 0;
+        byte[] batch;
+        while((batch = exe.execute("fetch 100 from c".getBytes())).length > 0) {
+            count += res.decode(batch).size();
+        }
+        exe.execute("close c".getBytes());
+        assert count == 600;
+
+        exe.execute("set format text".getBytes());
+        assert "[1, 10000000000, n 1]\n".equals(new String(exe.execute("select * from t where id = 1".getBytes())));
+
+        new File(path21 + ".db").delete();
+        new File(path21 + ".bt").delete();
+        new File(path21 + ".log").delete();
+        new File(path21 + ".xid").delete();
+    }
+
+    @Test
+    public void testServer() throws Exception {
+        testServer(path15, 10347, false);
+        // 每个连接一个线程
+        testServer(path16, 10348, true);
+    }
+
+    private void testServer(String path, int port, boolean threadPerConnection) throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        TableManager tbm = TableManager.create(path, VersionManager.newVersionManager(tm, dm), dm);
+        Thread server = new Thread(() -> new Server(port, tbm, threadPerConnection).start());
+        server.setDaemon(true);
+        server.start();
+        // 大量空闲连接不占用线程，之后的连接仍然能执行语句
+        List<Socket> idle = new ArrayList<>();
+        while(idle.isEmpty()) {
+            try {
+                idle.add(new Socket("127.0.0.1", port));
+            } catch(ConnectException e) {
+                Thread.sleep(50);
+            }
+        }
+        for(int i = 1; i < 200; i ++) {
+            idle.add(new Socket("127.0.0.1", port));
+        }
+        Client binary = new Client(new Packager(Transporter.connect(new Socket("127.0.0.1", port)), new Encoder()));
+        Client hex = new Client(new Packager(new Transporter(new Socket("127.0.0.1", port)), new Encoder()));
+        binary.execute("create table t id int32, name string (index id)".getBytes());
+        binary.execute("begin".getBytes());
+        for(int i = 0; i < 1000; i ++) {
+            binary.execute(("insert into t values " + i + " n" + i).getBytes());
+        }
+        binary.execute("commit".getBytes());
+        // 流水线：连续发出语句，之后再等待结果，出错的语句不影响后面的语句
+        for (Client c : new Client[]{binary, hex}) {
+            List<CompletableFuture<byte[]>> futures = new ArrayList<>();
+            for(int i = 0; i < 500; i ++) {
+                futures.add(c.executeAsync(("insert into t values " + (1000 + i) + " a" + i).getBytes()));
+            }
+            CompletableFuture<byte[]> bad = c.executeAsync("select * from nothing".getBytes());
+            CompletableFuture<byte[]> count = c.executeAsync("select id from t where id > 999".getBytes());
+            for (CompletableFuture<byte[]> f : futures) {
+                assert "insert".equals(new String(f.get()));
+            }
+            assert bad.isCompletedExceptionally() || bad.handle((v, e) -> e != null).get();
+            assert new String(count.get()).split("\\n").length == 500;
+            c.execute("delete from t where id > 999".getBytes());
+        }
+        for (Client c : new Client[]{binary, hex}) {
+            List<byte[]> batches = new ArrayList<>();
+            c.execute("select * from t".getBytes(), batches::add);
+            int rows = 0;
+            for (byte[] batch : batches) {
+                rows += new String(batch).split("\n").length;
+            }
+            // 只有二进制帧分批发送，十六进制行的客户端只认识flag为0和1的包，结果合并成一个包
+            assert batches.size() == (c == binary ? 1000 / Executor.BATCH_ROWS + 1 : 1) && rows == 1000;
+            assert "[7, n7]\n".equals(new String(c.execute("select * from t where id = 7".getBytes())));
+            Cursor cursor = c.query("select id from t", 128);
+            rows = 0;
+            byte[] batch;
+            while((batch = cursor.fetch()) != null) {
+                rows += new String(batch).split("\n").length;
+            }
+            cursor.close();
+            assert rows == 1000;
+            try {
+                c.execute("select * from nothing".getBytes());
+                assert false;
+            } catch(RuntimeException e) {
+                assert Error.TableNotFoundException.getMessage().equals(e.getMessage());
+            }
+        }
+        // 原来的客户端：直接收发十六进制行，大的结果也只收到一个flag为0的包
+        Transporter old = new Transporter(new Socket("127.0.0.1", port));
+        old.send((byte)0, 0, "select * from t".getBytes());
+        com.lxpeak.lxpeakdb.transport.Package pkg = new Encoder().decode(old.receive());
+        assert !pkg.isPartial() && pkg.getErr() == null && new String(pkg.getData()).split("\n").length == 1000;
+        old.close();
+        binary.close();
+        hex.close();
+        for (Socket socket : idle) {
+            socket.close();
+        }
+
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
 }
@@ -83,4 +83,25 @@ public class LockTableTest {
             Panic.panic(e);
         }
     }
+
+    @Test
+    public void testRelease() throws Exception {
+        LockTable lt = new LockTable();
+        assert lt.add(1, 1) == null;
+        Semaphore o2 = lt.add(2, 1);
+        Semaphore o3 = lt.add(3, 1);
+        assert o2 != null && o3 != null;
+
+        // 提前释放后等待者中的一个获得资源，它再释放后轮到下一个，不需要等到事务结束
+        lt.release(1, 1);
+        assert o2.tryAcquire() || o3.tryAcquire();
+        lt.release(3, 1);
+        lt.release(2, 1);
+        assert o2.tryAcquire() || o3.tryAcquire();
+        // 没有持有的资源释放时什么也不做
+        lt.release(4, 1);
+        lt.remove(2);
+        lt.remove(3);
+        assert lt.add(5, 1) == null;
+    }
 }
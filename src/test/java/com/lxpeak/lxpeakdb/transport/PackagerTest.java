@@ -2,6 +2,7 @@ package com.lxpeak.lxpeakdb.transport;
 
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.Arrays;
 
 import com.lxpeak.lxpeakdb.backend.utils.Panic;
 import org.junit.Test;
@@ -9,11 +10,12 @@ import org.junit.Test;
 public class PackagerTest {
     @Test
     public void testPackager() throws Exception {
+        // 先在主线程绑定端口，避免客户端在服务端监听之前连接
+        ServerSocket ss = new ServerSocket(10345);
         new Thread(new Runnable() {
             @Override
             public void run() {
                 try {
-                    ServerSocket ss = new ServerSocket(10345);
                     Socket socket = ss.accept();
                     Transporter t = new Transporter(socket);
                     Encoder e = new Encoder();
@@ -22,6 +24,7 @@ public class PackagerTest {
                     assert "pkg1 test".equals(new String(one.getData()));
                     Package two = p.receive();
                     assert "pkg2 test".equals(new String(two.getData()));
+                    p.send(new Package("pkg3 part".getBytes(), true));
                     p.send(new Package("pkg3 test".getBytes(), null));
                     ss.close();
                 } catch (Exception e) {
@@ -35,7 +38,49 @@ public class PackagerTest {
         Packager p = new Packager(t, e);
         p.send(new Package("pkg1 test".getBytes(), null));
         p.send(new Package("pkg2 test".getBytes(), null));
+        Package part = p.receive();
+        assert part.isPartial() && "pkg3 part".equals(new String(part.getData()));
         Package three = p.receive();
-        assert "pkg3 test".equals(new String(three.getData()));
+        assert !three.isPartial() && "pkg3 test".equals(new String(three.getData()));
+    }
+
+    @Test
+    public void testNegotiate() throws Exception {
+        // 二进制帧的内容可以包含换行符和0
+        byte[] raw = new byte[]{0, '\n', 1, '\r', (byte)0xff};
+        ServerSocket ss = new ServerSocket(10346);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for(int i = 0; i < 2; i ++) {
+                        Socket socket = ss.accept();
+                        Transporter t = Transporter.accept(socket);
+                        // 第一个连接是新的客户端，第二个是旧的客户端
+                        assert t.isBinary() == (i == 0);
+                        Packager p = new Packager(t, new Encoder());
+                        Package one = p.receive();
+                        p.send(new Package(one.getData(), true));
+                        p.send(new Package(null, new RuntimeException("err")));
+                    }
+                    ss.close();
+                } catch (Exception e) {
+                    Panic.panic(e);
+                }
+            }
+        }).start();
+        Transporter[] ts = new Transporter[]{
+            Transporter.connect(new Socket("127.0.0.1", 10346)),
+            new Transporter(new Socket("127.0.0.1", 10346))
+        };
+        for (Transporter t : ts) {
+            Packager p = new Packager(t, new Encoder());
+            p.send(new Package(raw, null));
+            Package part = p.receive();
+            assert part.isPartial() && Arrays.equals(raw, part.getData());
+            Package err = p.receive();
+            assert "err".equals(err.getErr().getMessage());
+            p.close();
+        }
     }
 }